@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.TransientRepository;
+import org.apache.jackrabbit.core.config.ConfigurationException;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+
+/**
+ * In-memory Jackrabbit repository for the benchmarks, with the same configuration as the
+ * core tests. The repository is bound to a shell session the same way a connect does, but
+ * without registering the observation listener.
+ */
+public final class BenchmarkRepository {
+
+    /** name of the node under the root that contains the generated tree */
+    public static final String ROOT = "bench";
+
+    private final File home;
+    private final TransientRepository repository;
+    private final Session session;
+    private final SimpleCredentials credentials = new SimpleCredentials("admin", "admin".toCharArray());
+
+    private BenchmarkRepository(final File home) throws IOException, RepositoryException {
+        this.home = home;
+        InputStream config = BenchmarkRepository.class.getClassLoader().getResourceAsStream("repository.xml");
+        try {
+            repository = new TransientRepository(RepositoryConfig.create(config, home.getAbsolutePath()));
+        } catch (ConfigurationException e) {
+            throw new RepositoryException(e);
+        } finally {
+            config.close();
+        }
+        session = repository.login(credentials);
+    }
+
+    public static BenchmarkRepository start() throws IOException, RepositoryException {
+        File home = File.createTempFile("jcrshell-bench", "");
+        if (!home.delete() || !home.mkdirs()) {
+            throw new IOException("Unable to create repository directory " + home);
+        }
+        return new BenchmarkRepository(home);
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return a pool of sessions of the same user as the repository session
+     */
+    public SessionPool createSessionPool(final int size) {
+        return new SessionPool(repository, credentials, size);
+    }
+
+    /**
+     * Create /bench with <code>width</code> children, each with <code>width</code> children of
+     * their own. Every node gets a few string properties.
+     * @return the root of the tree
+     */
+    public Node createTree(final int width) throws RepositoryException {
+        Node root = session.getRootNode();
+        if (root.hasNode(ROOT)) {
+            root.getNode(ROOT).remove();
+        }
+        Node tree = root.addNode(ROOT);
+        for (int i = 0; i < width; i++) {
+            Node child = tree.addNode("node" + i);
+            addProperties(child, i);
+            for (int j = 0; j < width; j++) {
+                addProperties(child.addNode("child" + j), j);
+            }
+            if (i % 100 == 99) {
+                session.save();
+            }
+        }
+        session.save();
+        return tree;
+    }
+
+    private static void addProperties(final Node node, final int i) throws RepositoryException {
+        node.setProperty("title", "Title " + i);
+        node.setProperty("description", "Description of node " + i + " with some \"quoted\" text & more");
+        node.setProperty("tags", new String[] { "a", "b", "tag" + i });
+    }
+
+    /**
+     * Bind the repository session to a new shell session on the current thread.
+     */
+    public JcrShellSession bind() throws RepositoryException {
+        JcrShellSession shellSession = new JcrShellSession();
+        shellSession.session = session;
+        shellSession.connected = true;
+        JcrWrapper.setShellSession(shellSession);
+        shellSession.setCurrentNode(session.getRootNode());
+        return shellSession;
+    }
+
+    public void stop() throws IOException {
+        JcrWrapper.setShellSession(null);
+        session.logout();
+        repository.shutdown();
+        FileUtils.deleteDirectory(home);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.onehippo.forge.jcrshell.BenchmarkRepository;
+import org.onehippo.forge.jcrshell.JcrShellSession;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Base class for benchmarks that need a repository with a generated tree. The tree under
+ * /bench has <code>width</code> children with <code>width</code> children each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AbstractRepositoryBenchmark {
+
+    @Param({ "10", "50", "100" })
+    public int width;
+
+    protected BenchmarkRepository repository;
+    protected JcrShellSession shellSession;
+    protected Node tree;
+
+    @Setup
+    public final void startRepository() throws IOException, RepositoryException {
+        repository = BenchmarkRepository.start();
+        tree = repository.createTree(width);
+        shellSession = repository.bind();
+        prepare();
+    }
+
+    @TearDown
+    public final void stopRepository() throws IOException {
+        release();
+        repository.stop();
+    }
+
+    /**
+     * Hook for preparing the benchmark after the tree has been created.
+     */
+    protected void prepare() throws IOException, RepositoryException {
+    }
+
+    /**
+     * Hook for releasing what the benchmark prepared, before the repository is stopped.
+     */
+    protected void release() {
+    }
+
+    /**
+     * @return the name of a node in the middle of a level of the tree
+     */
+    protected final int middle() {
+        return width / 2;
+    }
+}
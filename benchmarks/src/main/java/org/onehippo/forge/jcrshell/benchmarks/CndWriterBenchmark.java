@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.onehippo.forge.jcrshell.BenchmarkRepository;
+import org.onehippo.forge.jcrshell.util.CndWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing the node type definitions of a namespace as CND. The content of the repository has
+ * no influence on this, so no tree is created.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CndWriterBenchmark {
+
+    @Param({ "nt", "mix", "rep" })
+    public String prefix;
+
+    private BenchmarkRepository repository;
+
+    @Setup
+    public void startRepository() throws IOException, RepositoryException {
+        repository = BenchmarkRepository.start();
+    }
+
+    @TearDown
+    public void stopRepository() throws IOException {
+        repository.stop();
+    }
+
+    @Benchmark
+    public Writer printCnd() throws IOException, RepositoryException {
+        Session session = repository.getSession();
+        StringWriter out = new StringWriter();
+        new CndWriter(session.getWorkspace().getNamespaceRegistry(), out).printCnd(session.getWorkspace()
+                .getNodeTypeManager(), prefix);
+        return out;
+    }
+}
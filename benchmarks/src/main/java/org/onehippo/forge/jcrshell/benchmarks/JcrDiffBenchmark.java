@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import java.util.Iterator;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.onehippo.forge.jcrshell.diff.Change;
+import org.onehippo.forge.jcrshell.diff.JcrDiff;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Comparison of the tree with a copy in which every tenth node has been changed.
+ */
+public class JcrDiffBenchmark extends AbstractRepositoryBenchmark {
+
+    private Node copy;
+
+    @Override
+    protected void prepare() throws RepositoryException {
+        Session session = repository.getSession();
+        session.getWorkspace().copy(tree.getPath(), "/benchcopy");
+        copy = session.getNode("/benchcopy");
+        int i = 0;
+        for (NodeIterator nodes = copy.getNodes(); nodes.hasNext(); i++) {
+            Node node = nodes.nextNode();
+            if (i % 10 == 0) {
+                node.setProperty("title", "Changed " + i);
+                node.addNode("added");
+                node.getNode("child0").remove();
+            }
+        }
+        session.save();
+    }
+
+    @Benchmark
+    public void compare(final Blackhole bh) throws RepositoryException {
+        Iterator<Change> changes = JcrDiff.compare(tree, copy);
+        while (changes.hasNext()) {
+            bh.consume(changes.next());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2009 Hippo.
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The output processor of the export package before the single pass escaping, as a baseline for
+ * the benchmarks. Only formatting into a new file is covered, so the merging of comments is left
+ * out and the path of the current item is tracked here.
+ */
+class LegacyOutputProcessor extends DefaultHandler {
+    private static final String SV_VALUE = "sv:value";
+    private final SAXParser saxParser;
+    private final InputStream istream;
+    private String path = null;
+    private int indent = 0;
+    private StringBuffer textBuffer = null;
+    private PrintWriter out;
+    private boolean inValue = false;
+
+    LegacyOutputProcessor(SAXParserFactory factory, InputStream istream, OutputStream ostream) throws IOException,
+            ParserConfigurationException, SAXException {
+        this.istream = istream;
+        saxParser = factory.newSAXParser();
+        out = new PrintWriter(new OutputStreamWriter(ostream, "UTF8"));
+    }
+
+    void process() throws IOException, SAXException {
+        saxParser.parse(istream, this);
+        istream.close();
+        out.flush();
+    }
+
+    private String getPath() {
+        return path;
+    }
+
+    private static boolean isItem(String eName) {
+        return "sv:property".equals(eName) || "property".equals(eName) || "sv:node".equals(eName)
+                || "node".equals(eName);
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        out.flush();
+    }
+
+    private void flush() throws SAXException {
+        if (textBuffer == null) {
+            return;
+        }
+        String s = "" + textBuffer;
+        s = s.replaceAll("&", "&amp;").replaceAll("<", "&lt;").replaceAll(">", "&gt;");
+        out.print(s);
+        textBuffer = null;
+    }
+
+    private void clear() {
+        textBuffer = null;
+    }
+
+    @Override
+    public void characters(char buf[], int offset, int len) throws SAXException {
+        if (inValue) {
+            String s = new String(buf, offset, len);
+            if (textBuffer == null) {
+                textBuffer = new StringBuffer(s);
+            } else {
+                textBuffer.append(s);
+            }
+        }
+    }
+
+    @Override
+    public void startElement(String namespaceURI, String sName, String qName, Attributes attrs) throws SAXException {
+        flush();
+        String eName = sName;
+        if ("".equals(eName)) {
+            eName = qName;
+        }
+        if (isItem(eName) && attrs != null) {
+            String name = "";
+            for (int i = 0; i < attrs.getLength(); i++) {
+                String aName = attrs.getLocalName(i);
+                if ("".equals(aName)) {
+                    aName = attrs.getQName(i);
+                }
+                if ("sv:name".equals(aName) || "name".equals(aName)) {
+                    name = attrs.getValue(i);
+                }
+            }
+            path = path != null ? path + "/" + name : name;
+        }
+        if (eName.equals(SV_VALUE)) {
+            if (getPath().endsWith("/hippo:paths")) {
+                return;
+            }
+            inValue = true;
+        }
+        for (int i = 0; i < indent; i++) {
+            out.print("  ");
+        }
+        out.print("<" + eName);
+        if (attrs != null) {
+            for (int i = 0; i < attrs.getLength(); i++) {
+                String aName = attrs.getLocalName(i);
+                if ("".equals(aName)) {
+                    aName = attrs.getQName(i);
+                }
+                if (aName.startsWith("xmlns:") && !"xmlns:sv".equals(aName)) {
+                    continue;
+                }
+                out.print(" ");
+                out.print(aName + "=\"" + attrs.getValue(i) + "\"");
+            }
+        }
+        out.print(">");
+        if (!eName.equals(SV_VALUE)) {
+            out.println();
+        }
+        ++indent;
+    }
+
+    @Override
+    public void endElement(String namespaceURI, String sName, String qName) throws SAXException {
+        String eName = sName;
+        if ("".equals(eName)) {
+            eName = qName;
+        }
+        if (isItem(eName)) {
+            int idx = path.lastIndexOf('/');
+            path = idx < 0 ? null : path.substring(0, idx);
+        }
+        if (eName.equals(SV_VALUE)) {
+            if (getPath().endsWith("/hippo:paths")) {
+                clear();
+                return;
+            }
+            inValue = false;
+        }
+        flush();
+        --indent;
+        if (!eName.equals(SV_VALUE)) {
+            for (int i = 0; i < indent; i++) {
+                out.print("  ");
+            }
+        }
+        out.println("</" + eName + ">");
+    }
+}
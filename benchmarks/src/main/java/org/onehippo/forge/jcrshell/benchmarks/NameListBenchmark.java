@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import java.util.SortedSet;
+
+import javax.jcr.RepositoryException;
+
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Node and property name listings as used by completion, with cold and warm caches.
+ */
+public class NameListBenchmark extends AbstractRepositoryBenchmark {
+
+    @Benchmark
+    public SortedSet<String> nodeNamesCold() throws RepositoryException {
+        JcrWrapper.clearCaches();
+        return JcrWrapper.getNodeNameList(tree);
+    }
+
+    @Benchmark
+    public SortedSet<String> nodeNamesWarm() throws RepositoryException {
+        return JcrWrapper.getNodeNameList(tree);
+    }
+
+    @Benchmark
+    public SortedSet<String> propertyNamesCold() throws RepositoryException {
+        JcrWrapper.clearCaches();
+        return JcrWrapper.getPropertyNameList(tree.getNode("node0"));
+    }
+
+    @Benchmark
+    public SortedSet<String> propertyNamesWarm() throws RepositoryException {
+        return JcrWrapper.getPropertyNameList(tree.getNode("node0"));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.jcr.RepositoryException;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.export.XmlFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.xml.sax.SAXException;
+
+/**
+ * Formatting of an exported tree by the output processor of the formatter compared with the implementation
+ * before the single pass escaping. The output is discarded, so only parsing and formatting is
+ * measured. The two implementations are checked to produce the same bytes.
+ */
+public class OutputProcessorBenchmark extends AbstractRepositoryBenchmark {
+
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private byte[] export;
+
+    @Override
+    protected void prepare() throws IOException, RepositoryException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JcrWrapper.exportXml(tree.getPath(), out, true);
+        export = out.toByteArray();
+        try {
+            ByteArrayOutputStream current = new ByteArrayOutputStream();
+            XmlFormatter.format(new ByteArrayInputStream(export), current);
+            ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+            new LegacyOutputProcessor(SAXParserFactory.newInstance(), new ByteArrayInputStream(export), legacy)
+                    .process();
+            if (!Arrays.equals(current.toByteArray(), legacy.toByteArray())) {
+                throw new IllegalStateException("Output differs from the legacy output processor");
+            }
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e);
+        } catch (SAXException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Benchmark
+    public void current() throws IOException, ParserConfigurationException, SAXException {
+        XmlFormatter.format(new ByteArrayInputStream(export), NULL);
+    }
+
+    @Benchmark
+    public void legacy() throws IOException, ParserConfigurationException, SAXException {
+        new LegacyOutputProcessor(SAXParserFactory.newInstance(), new ByteArrayInputStream(export), NULL).process();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.onehippo.forge.jcrshell.util.QuotedStringTokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Tokenizing of command lines with and without quoted arguments.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuotedStringTokenizerBenchmark {
+
+    /** number of arguments on the command line */
+    @Param({ "2", "10", "100" })
+    public int arguments;
+
+    private String plain;
+    private String quoted;
+
+    @Setup
+    public void createLines() {
+        StringBuilder plainLine = new StringBuilder("propset");
+        StringBuilder quotedLine = new StringBuilder("propset");
+        for (int i = 0; i < arguments; i++) {
+            plainLine.append(" value").append(i);
+            quotedLine.append(" \"a value with 'quotes' and \\\"escapes\\\" ").append(i).append('"');
+        }
+        plain = plainLine.toString();
+        quoted = quotedLine.toString();
+    }
+
+    private void tokenize(final String line, final Blackhole bh) {
+        QuotedStringTokenizer tokenizer = new QuotedStringTokenizer(line, " ");
+        while (tokenizer.hasMoreTokens()) {
+            bh.consume(tokenizer.nextToken());
+        }
+    }
+
+    @Benchmark
+    public void plain(final Blackhole bh) {
+        tokenize(plain, bh);
+    }
+
+    @Benchmark
+    public void quoted(final Blackhole bh) {
+        tokenize(quoted, bh);
+    }
+}
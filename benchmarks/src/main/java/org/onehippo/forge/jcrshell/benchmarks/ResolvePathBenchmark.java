@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Path resolution as done for every command argument, with the identifiers of resolved paths
+ * cached and with an empty cache for every lookup.
+ */
+public class ResolvePathBenchmark extends AbstractRepositoryBenchmark {
+
+    private String absolute;
+    private String relative;
+
+    @Override
+    protected void prepare() throws RepositoryException {
+        absolute = "/bench/node" + middle() + "/child" + middle();
+        relative = "node" + middle() + "/child" + middle();
+        shellSession.setCurrentNode(tree);
+    }
+
+    @Benchmark
+    public Node absolutePath() throws RepositoryException {
+        return JcrWrapper.resolvePath(absolute);
+    }
+
+    @Benchmark
+    public Node relativePath() throws RepositoryException {
+        return JcrWrapper.resolvePath(relative);
+    }
+
+    @Benchmark
+    public Node absolutePathUncached() throws RepositoryException {
+        JcrWrapper.getPathCache().clear();
+        return JcrWrapper.resolvePath(absolute);
+    }
+
+    @Benchmark
+    public Node relativePathUncached() throws RepositoryException {
+        JcrWrapper.getPathCache().clear();
+        return JcrWrapper.resolvePath(relative);
+    }
+
+    @Benchmark
+    public Node parent() throws RepositoryException {
+        return JcrWrapper.resolvePath("..");
+    }
+}
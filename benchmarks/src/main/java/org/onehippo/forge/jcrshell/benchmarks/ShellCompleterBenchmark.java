@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.onehippo.forge.jcrshell.CommandHelper;
+import org.onehippo.forge.jcrshell.completers.ShellCompleter;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Tab completion of commands and node paths, with the caches warmed up.
+ */
+public class ShellCompleterBenchmark extends AbstractRepositoryBenchmark {
+
+    private static final String DEFAULT_COMMANDS = "/jcr-shell.commands";
+
+    private ShellCompleter completer;
+    private String absolute;
+    private String relative;
+
+    @Override
+    protected void prepare() {
+        if (CommandHelper.getCommandsAsArray().length == 0) {
+            CommandHelper.loadCommandsFromResource(DEFAULT_COMMANDS);
+        }
+        completer = new ShellCompleter();
+        absolute = "cd /bench/node" + middle() + "/ch";
+        relative = "ls bench/no";
+        complete("");
+    }
+
+    private List<CharSequence> complete(final String buffer) {
+        List<CharSequence> candidates = new ArrayList<CharSequence>();
+        completer.complete(buffer, buffer.length(), candidates);
+        return candidates;
+    }
+
+    @Benchmark
+    public List<CharSequence> command() {
+        return complete("no");
+    }
+
+    @Benchmark
+    public List<CharSequence> absolutePath() {
+        return complete(absolute);
+    }
+
+    @Benchmark
+    public List<CharSequence> relativePath() {
+        return complete(relative);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import java.util.Iterator;
+
+import javax.jcr.RepositoryException;
+
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.util.TreeRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Rendering of the whole tree, sequentially and with worker threads that read through a pool of
+ * sessions, and with the number of child nodes limited.
+ */
+public class TreeRendererBenchmark extends AbstractRepositoryBenchmark {
+
+    @Param({ "1", "4" })
+    public int threads;
+
+    private SessionPool pool;
+
+    @Override
+    protected void prepare() {
+        if (threads > 1) {
+            pool = repository.createSessionPool(threads);
+        }
+    }
+
+    @Override
+    protected void release() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Benchmark
+    public void render(final Blackhole bh) throws RepositoryException {
+        Iterator<String> lines = new TreeRenderer(tree, 2, 0, pool);
+        while (lines.hasNext()) {
+            bh.consume(lines.next());
+        }
+    }
+
+    @Benchmark
+    public void renderTruncated(final Blackhole bh) throws RepositoryException {
+        Iterator<String> lines = new TreeRenderer(tree, 2, 10, pool);
+        while (lines.hasNext()) {
+            bh.consume(lines.next());
+        }
+    }
+}
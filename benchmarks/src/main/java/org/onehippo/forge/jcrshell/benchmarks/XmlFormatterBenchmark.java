@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.jcr.RepositoryException;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.export.XmlFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.TearDown;
+import org.xml.sax.SAXException;
+
+/**
+ * Formatting of an exported tree, into a new file and into an existing file of which the
+ * comments are preserved, and the export of the tree piped into the formatter.
+ */
+public class XmlFormatterBenchmark extends AbstractRepositoryBenchmark {
+
+    private File export;
+    private File formatted;
+    private File existing;
+
+    @Override
+    protected void prepare() throws IOException, RepositoryException {
+        export = File.createTempFile("jcrshell-bench", ".xml");
+        formatted = File.createTempFile("jcrshell-bench", ".xml");
+        existing = File.createTempFile("jcrshell-bench", ".xml");
+        OutputStream out = new FileOutputStream(export);
+        try {
+            JcrWrapper.exportXml(tree.getPath(), out, true);
+        } finally {
+            out.close();
+        }
+        if (!existing.delete()) {
+            throw new IOException("Unable to delete " + existing);
+        }
+        try {
+            XmlFormatter.format(export, existing);
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e);
+        } catch (SAXException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @TearDown
+    public void deleteFiles() {
+        export.delete();
+        formatted.delete();
+        existing.delete();
+    }
+
+    @Benchmark
+    public void newFile() throws ParserConfigurationException, SAXException, IOException {
+        formatted.delete();
+        XmlFormatter.format(export, formatted);
+    }
+
+    @Benchmark
+    public void pipedExport() throws ParserConfigurationException, SAXException, IOException, RepositoryException {
+        formatted.delete();
+        InputStream in = JcrWrapper.exportXml(tree.getPath(), true);
+        try {
+            XmlFormatter.format(in, formatted);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public void existingFile() throws ParserConfigurationException, SAXException, IOException {
+        XmlFormatter.format(export, existing);
+    }
+}
@@ -52,7 +52,7 @@ public class CndExport extends AbstractCommand {
         OutputStream os = System.out;
         if (args.length > 2) {
             String fileName = args[2];
-            File file = new File(FsWrapper.getCwd(), fileName);
+            File file = new File(FsWrapper.getFullFileName(fileName));
             os = new FileOutputStream(file);
         }
 
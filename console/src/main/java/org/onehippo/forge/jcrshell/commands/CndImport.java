@@ -55,7 +55,7 @@ public class CndImport extends AbstractCommand {
         }
         Node node = initNode.addNode("import-cnd", HippoNodeType.NT_INITIALIZEITEM);
 
-        File file = new File(FsWrapper.getCwd(), fileName);
+        File file = new File(FsWrapper.getFullFileName(fileName));
         FileInputStream fis = new FileInputStream(file);
         BufferedInputStream bis = new BufferedInputStream(fis);
         node.setProperty(HippoNodeType.HIPPO_NODETYPES, new BufferedInputStream(bis));
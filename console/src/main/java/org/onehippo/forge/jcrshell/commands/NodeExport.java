@@ -15,18 +15,22 @@
  */
 package org.onehippo.forge.jcrshell.commands;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.apache.commons.io.IOUtils;
 import org.onehippo.forge.jcrshell.console.FsWrapper;
 import org.onehippo.forge.jcrshell.JcrShellPrinter;
 import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.export.ExportManifest;
+import org.onehippo.forge.jcrshell.export.ExportManifest.Chunk;
+import org.onehippo.forge.jcrshell.export.SplitExporter;
 import org.onehippo.forge.jcrshell.export.XmlFormatter;
 import org.xml.sax.SAXException;
 
@@ -35,12 +39,17 @@ import org.xml.sax.SAXException;
  */
 public class NodeExport extends AbstractCommand {
 
+    static final String SPLIT = "--split";
+    static final String THREADS = "--threads";
+
     private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { ArgumentType.NODE, ArgumentType.FILE };
 
     public NodeExport() {
-        super("nodeexport", new String[] { "export" }, "nodeexport <nodename> <xml file> [<skipBinaries>]",
-                "export the target node in xml format and store it into the file, default skipBinaries is false",
-                ARGUMENTS);
+        super("nodeexport", new String[] { "export" },
+                "nodeexport <nodename> <xml file> [<skipBinaries>] [--split[=<depth>]] [--threads=<n>]",
+                "export the target node in xml format and store it into the file, default skipBinaries is false\n"
+                        + "--split: export the subtrees at the depth (default 1) into separate files in the directory, "
+                        + "with a manifest, on several sessions; an interrupted export is resumed", ARGUMENTS);
     }
 
     /**
@@ -48,8 +57,11 @@ public class NodeExport extends AbstractCommand {
      * @throws RepositoryException 
      */
     @Override
-    protected final boolean executeCommand(final String[] args) throws RepositoryException {
+    protected final boolean executeCommand(final String[] allArgs) throws RepositoryException {
         boolean skipBinaries = false;
+        String split = getOption(allArgs, SPLIT);
+        String threads = getOption(allArgs, THREADS);
+        String[] args = removeOption(removeOption(allArgs, SPLIT), THREADS);
 
         Node node = JcrWrapper.getCurrentNode();
 
@@ -77,23 +89,14 @@ public class NodeExport extends AbstractCommand {
             srcAbsPath = node.getNode(src).getPath();
         }
 
-        File file = new File(FsWrapper.getCwd(), fileName);
+        File file = new File(FsWrapper.getFullFileName(fileName));
+        if (split != null) {
+            return exportSplit((Node) node.getSession().getItem(srcAbsPath), file, split, threads, skipBinaries);
+        }
 
-        File tmp = null;
+        InputStream export = JcrWrapper.exportXml(srcAbsPath, skipBinaries);
         try {
-            tmp = File.createTempFile("export", ".xml");
-            FileOutputStream fos = new FileOutputStream(tmp);
-            try {
-                BufferedOutputStream bos = new BufferedOutputStream(fos);
-                try {
-                    JcrWrapper.exportXml(srcAbsPath, bos, skipBinaries);
-                } finally {
-                    bos.close();
-                }
-            } finally {
-                fos.close();
-            }
-            XmlFormatter.format(tmp, file);
+            XmlFormatter.format(export, file);
         } catch (IOException e) {
             JcrShellPrinter.printErrorln("Unable to write to file '" + fileName + "': " + e.getMessage());
             return false;
@@ -104,15 +107,70 @@ public class NodeExport extends AbstractCommand {
             JcrShellPrinter.printErrorln("SAXException: " + e.getMessage());
             return false;
         } finally {
-            if (tmp != null && !tmp.delete()) {
-                JcrShellPrinter.printWarnln("Unable to delete temp file: " + tmp.getName());
-            }
+            IOUtils.closeQuietly(export);
         }
         return true;
     }
 
+    private boolean exportSplit(final Node root, final File dir, final String split, final String threads,
+            final boolean skipBinaries) throws RepositoryException {
+        int depth = 1;
+        int size = SplitExporter.DEFAULT_THREADS;
+        try {
+            if (split.length() > 0) {
+                depth = Integer.parseInt(split);
+            }
+            if (threads != null) {
+                size = Integer.parseInt(threads);
+            }
+        } catch (NumberFormatException e) {
+            JcrShellPrinter.printWarnln("Not a number: " + e.getMessage());
+            return false;
+        }
+        if (depth < 0 || size < 1) {
+            JcrShellPrinter.printWarnln("The depth must be positive and there must be at least one thread.");
+            return false;
+        }
+
+        SplitExporter exporter = new SplitExporter(root, dir, depth, skipBinaries);
+        SessionPool pool = JcrWrapper.createSessionPool(size);
+        try {
+            int failed = exporter.export(pool, new SplitExporter.Listener() {
+                public void exported(Chunk chunk, boolean resumed) {
+                    JcrShellPrinter.println((resumed ? "Already exported: " : "Exported: ") + chunk.getFileName()
+                            + " " + describe(chunk));
+                }
+
+                public void failed(Chunk chunk, Exception e) {
+                    JcrShellPrinter.printErrorln("Failed: " + chunk.getFileName() + " " + describe(chunk) + ": "
+                            + e.getMessage());
+                }
+            });
+            if (failed > 0) {
+                JcrShellPrinter.printWarnln(failed + " chunks failed, run the export again to resume.");
+                return false;
+            }
+            JcrShellPrinter.printOkln("Export complete: " + new File(dir, ExportManifest.FILE_NAME).getPath());
+            return true;
+        } catch (IOException e) {
+            JcrShellPrinter.printErrorln("Unable to write to directory '" + dir.getPath() + "': " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            JcrShellPrinter.printWarnln("Export interrupted, run the export again to resume.");
+            return false;
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static String describe(final Chunk chunk) {
+        return (chunk.isDeep() ? "" : "(properties) ") + "/" + chunk.getRelPath();
+    }
+
     @Override
     protected boolean hasValidArgs(String[] args) {
-        return args.length == 3 || args.length == 4;
+        int length = removeOption(removeOption(args, SPLIT), THREADS).length;
+        return length == 3 || length == 4;
     }
 }
@@ -19,30 +19,53 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import javax.jcr.ImportUUIDBehavior;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.xml.parsers.ParserConfigurationException;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.hippoecm.repository.api.ImportMergeBehavior;
 import org.hippoecm.repository.api.ImportReferenceBehavior;
 import org.onehippo.forge.jcrshell.console.FsWrapper;
 import org.onehippo.forge.jcrshell.JcrShellPrinter;
 import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.export.CheckpointImporter;
+import org.onehippo.forge.jcrshell.export.ExportManifest;
+import org.onehippo.forge.jcrshell.export.ExportManifest.Chunk;
+import org.onehippo.forge.jcrshell.export.ParallelImporter;
+import org.onehippo.forge.jcrshell.export.SplitExporter;
+import org.onehippo.forge.jcrshell.export.SystemViewSplitter;
+import org.onehippo.forge.jcrshell.util.ByteSizeFormatter;
+import org.xml.sax.SAXException;
 
 /**
  * Copy a child node.
  */
 public class NodeImport extends AbstractCommand {
 
+    private static final String CHECKPOINT = "--checkpoint";
+    private static final String CHECKPOINT_BYTES = "--checkpoint-bytes";
+    private static final String PARALLEL = "--parallel";
+    private static final String DEPTH = "--depth";
+
     private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { ArgumentType.FILE };
 
     public NodeImport() {
         super("nodeimport", new String[] { "import" },
-                "nodeimport <xml file> [<uuidBehavior> [<referenceBehavior> [<mergeBehavior>]]]", null, ARGUMENTS);
+                "nodeimport <xml file | split export directory> [<uuidBehavior> [<referenceBehavior> [<mergeBehavior>]]]"
+                        + " [--checkpoint[=<nodes>]] [--checkpoint-bytes=<bytes>] [--parallel[=<threads>]]"
+                        + " [--depth=<depth>]", null, ARGUMENTS);
     }
 
     public static class LookupHashMap<K, V> extends HashMap<K, V> {
@@ -97,7 +120,13 @@ public class NodeImport extends AbstractCommand {
     public final String help() {
         initMaps();
         StringBuffer buf = new StringBuffer();
-        buf.append("import xml export file to the current node").append("\n");
+        buf.append("import xml export file, or the chunks of a split export directory, to the current node").append("\n");
+        buf.append("--checkpoint: save after every <nodes> nodes (default ").append(CheckpointImporter.DEFAULT_NODES)
+                .append(") or <bytes> bytes (default ").append(CheckpointImporter.DEFAULT_BYTES).append(")\n");
+        buf.append("--parallel: import the subtrees with <threads> sessions (default ")
+                .append(SplitExporter.DEFAULT_THREADS).append("), each saving its own subtrees; keeps the references"
+                        + " between subtrees only with a uuidBehavior that keeps the identifiers\n");
+        buf.append("--depth: with --parallel, split an xml file into subtrees at <depth> (default 1)\n");
 
         buf.append("uuidBehavior: ").append("\n");
         for (Map.Entry<Integer, String> map : uuidOpts.entrySet()) {
@@ -122,8 +151,16 @@ public class NodeImport extends AbstractCommand {
      * @throws IOException 
      */
     @Override
-    protected final boolean executeCommand(final String[] args) throws RepositoryException, IOException {
+    protected final boolean executeCommand(final String[] allArgs) throws RepositoryException, IOException {
         Node node = JcrWrapper.getCurrentNode();
+        String[] args = removeOptions(allArgs);
+        CheckpointImporter importer = null;
+        try {
+            importer = createImporter(node, getOption(allArgs, CHECKPOINT), getOption(allArgs, CHECKPOINT_BYTES));
+        } catch (NumberFormatException e) {
+            JcrShellPrinter.printWarnln("Not a number: " + e.getMessage());
+            return false;
+        }
 
         int uuidBehavior = ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW;
         int referenceBehavior = ImportReferenceBehavior.IMPORT_REFERENCE_NOT_FOUND_TO_ROOT;
@@ -140,20 +177,237 @@ public class NodeImport extends AbstractCommand {
             mergeBehavior = Integer.valueOf(args[4]);
         }
 
-        File file = new File(FsWrapper.getCwd(), fileName);
-        FileInputStream fis = new FileInputStream(file);
-        BufferedInputStream bis = new BufferedInputStream(fis);
+        if (importer != null && !CheckpointImporter.canCheckpoint(node.getSession(), uuidBehavior)) {
+            JcrShellPrinter.printWarnln("--checkpoint needs another uuidBehavior than "
+                    + ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW + " outside of a Hippo repository.");
+            return false;
+        }
+
+        File file = new File(FsWrapper.getFullFileName(fileName));
+        if (file.isDirectory()) {
+            file = new File(file, ExportManifest.FILE_NAME);
+        }
+        String parallel = getOption(allArgs, PARALLEL);
+        if (parallel != null) {
+            if (!ParallelImporter.canImportChunks(node.getSession(), uuidBehavior, referenceBehavior)) {
+                warnChunks();
+                return false;
+            }
+            return importParallel(node, file, parallel, getOption(allArgs, DEPTH), getOption(allArgs, CHECKPOINT),
+                    getOption(allArgs, CHECKPOINT_BYTES), uuidBehavior, referenceBehavior, mergeBehavior);
+        }
+        if (file.getName().equals(ExportManifest.FILE_NAME)) {
+            if (!ParallelImporter.canImportChunks(node.getSession(), uuidBehavior, referenceBehavior)) {
+                warnChunks();
+                return false;
+            }
+            return importSplit(importer, node, file, uuidBehavior, referenceBehavior, mergeBehavior);
+        }
+        importFile(importer, node.getPath(), file, uuidBehavior, referenceBehavior, mergeBehavior);
+        if (importer != null) {
+            JcrShellPrinter.printOkln("Imported and saved " + importer.getNodes() + " nodes.");
+        }
+        return true;
+    }
+
+    /**
+     * Warn that the references between the chunks of a split import would break.
+     */
+    private static void warnChunks() {
+        JcrShellPrinter.printWarnln("Subtrees are imported one by one, which breaks the references between them"
+                + " unless the uuidBehavior is not " + ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW
+                + " and, in a Hippo repository, the referenceBehavior is "
+                + ImportReferenceBehavior.IMPORT_REFERENCE_NOT_FOUND_THROW + ".");
+    }
+
+    /**
+     * @return the importer with checkpoints, or null when no checkpoint option is given
+     */
+    private CheckpointImporter createImporter(final Node node, final String nodes, final String bytes)
+            throws RepositoryException {
+        if (nodes == null && bytes == null) {
+            return null;
+        }
+        int checkpointNodes = CheckpointImporter.DEFAULT_NODES;
+        long checkpointBytes = CheckpointImporter.DEFAULT_BYTES;
+        if (nodes != null && nodes.length() > 0) {
+            checkpointNodes = Integer.parseInt(nodes);
+        }
+        if (bytes != null && bytes.length() > 0) {
+            checkpointBytes = Long.parseLong(bytes);
+        }
+        return new CheckpointImporter(node.getSession(), checkpointNodes, checkpointBytes,
+                new CheckpointImporter.Listener() {
+                    public void checkpoint(long nodes, long bytes, double nodesPerSecond) {
+                        JcrShellPrinter.println(String.format(Locale.ENGLISH,
+                                "Saved %d nodes, %s read, %.1f nodes/s", nodes, ByteSizeFormatter.format(bytes),
+                                nodesPerSecond));
+                    }
+                });
+    }
+
+    private void importFile(final CheckpointImporter importer, final String parentAbsPath, final File file,
+            final int uuidBehavior, final int referenceBehavior, final int mergeBehavior) throws IOException,
+            RepositoryException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
         try {
-            JcrWrapper.importXml(node.getPath(), bis, uuidBehavior, referenceBehavior, mergeBehavior);
+            if (importer != null) {
+                JcrWrapper.removeFromCache(parentAbsPath);
+                importer.importXml(parentAbsPath, in, uuidBehavior, referenceBehavior, mergeBehavior);
+            } else {
+                JcrWrapper.importXml(parentAbsPath, in, uuidBehavior, referenceBehavior, mergeBehavior);
+            }
         } finally {
-            IOUtils.closeQuietly(bis);
-            IOUtils.closeQuietly(fis);
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Import the chunks of a split export in the order of the manifest, after checking that they
+     * are complete. Each chunk is a separate import, like in a parallel import.
+     */
+    private boolean importSplit(final CheckpointImporter importer, final Node node, final File file, final int uuidBehavior,
+            final int referenceBehavior, final int mergeBehavior) throws RepositoryException, IOException {
+        ExportManifest manifest = ExportManifest.read(file);
+        File dir = file.getParentFile();
+        Chunk invalid = manifest.verify(dir);
+        if (invalid != null) {
+            JcrShellPrinter.printWarnln("Export is incomplete or changed, chunk " + invalid.getFileName()
+                    + " does not match the manifest.");
+            return false;
         }
+
+        Node root = null;
+        for (Chunk chunk : manifest.getChunks()) {
+            Node parent;
+            String relPath = chunk.getRelPath();
+            if (relPath.length() == 0) {
+                parent = node;
+            } else if (root == null) {
+                JcrShellPrinter.printWarnln("Manifest does not start with the exported node.");
+                return false;
+            } else if (relPath.indexOf('/') < 0) {
+                parent = root;
+            } else {
+                parent = root.getNode(relPath.substring(0, relPath.lastIndexOf('/')));
+            }
+            importFile(importer, parent.getPath(), new File(dir, chunk.getFileName()), uuidBehavior,
+                    referenceBehavior, mergeBehavior);
+            if (root == null) {
+                // the last node with the name is the imported one
+                for (NodeIterator iter = node.getNodes(manifest.getName()); iter.hasNext();) {
+                    root = iter.nextNode();
+                }
+                if (root == null) {
+                    JcrShellPrinter.printWarnln("Imported node not found: " + manifest.getName());
+                    return false;
+                }
+            }
+        }
+        JcrShellPrinter.printOkln("Imported " + manifest.getChunks().size() + " chunks of " + manifest.getSource());
         return true;
     }
 
+    /**
+     * Import the subtrees of a split export, or of an xml file that is split first, with a pool
+     * of sessions and report the subtrees that failed.
+     */
+    private boolean importParallel(final Node node, final File file, final String parallel, final String depthOption,
+            final String nodes, final String bytes, final int uuidBehavior, final int referenceBehavior,
+            final int mergeBehavior) throws RepositoryException, IOException {
+        int size = SplitExporter.DEFAULT_THREADS;
+        int depth = 1;
+        int checkpointNodes = 0;
+        long checkpointBytes = 0L;
+        try {
+            if (parallel.length() > 0) {
+                size = Integer.parseInt(parallel);
+            }
+            if (depthOption != null && depthOption.length() > 0) {
+                depth = Integer.parseInt(depthOption);
+            }
+            if (nodes != null) {
+                checkpointNodes = nodes.length() > 0 ? Integer.parseInt(nodes) : CheckpointImporter.DEFAULT_NODES;
+            }
+            if (bytes != null) {
+                checkpointBytes = bytes.length() > 0 ? Long.parseLong(bytes) : CheckpointImporter.DEFAULT_BYTES;
+            }
+        } catch (NumberFormatException e) {
+            JcrShellPrinter.printWarnln("Not a number: " + e.getMessage());
+            return false;
+        }
+        if (depth < 0 || size < 1) {
+            JcrShellPrinter.printWarnln("The depth must be positive and there must be at least one thread.");
+            return false;
+        }
+
+        File manifestFile = file;
+        File splitDir = null;
+        if (!file.getName().equals(ExportManifest.FILE_NAME)) {
+            splitDir = File.createTempFile("jcrshell-import", "");
+            if (!splitDir.delete()) {
+                throw new IOException("Unable to create directory " + splitDir);
+            }
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                SystemViewSplitter.split(in, splitDir, depth, file.getPath());
+            } catch (SAXException e) {
+                FileUtils.deleteDirectory(splitDir);
+                JcrShellPrinter.printErrorln("Unable to parse '" + file.getPath() + "': " + e.getMessage());
+                return false;
+            } catch (ParserConfigurationException e) {
+                FileUtils.deleteDirectory(splitDir);
+                throw new IOException(e.getMessage());
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            manifestFile = new File(splitDir, ExportManifest.FILE_NAME);
+        }
+
+        JcrWrapper.removeFromCache(node.getPath());
+        SessionPool pool = JcrWrapper.createSessionPool(size);
+        try {
+            ParallelImporter importer = new ParallelImporter(pool, uuidBehavior, referenceBehavior, mergeBehavior,
+                    checkpointNodes, checkpointBytes);
+            Map<Chunk, Exception> failures = importer.importManifest(node, manifestFile,
+                    new ParallelImporter.Listener() {
+                        public void imported(Chunk chunk) {
+                            JcrShellPrinter.println("Imported: " + (chunk.isDeep() ? "" : "(properties) ") + "/"
+                                    + chunk.getRelPath());
+                        }
+                    });
+            if (!failures.isEmpty()) {
+                List<String[]> rows = new ArrayList<String[]>();
+                rows.add(new String[] { "Subtree", "Error" });
+                for (Map.Entry<Chunk, Exception> failure : failures.entrySet()) {
+                    rows.add(new String[] { "/" + failure.getKey().getRelPath(), failure.getValue().getMessage() });
+                }
+                JcrShellPrinter.printErrorln(failures.size() + " subtrees failed to import:");
+                JcrShellPrinter.printTableWithHeader(rows);
+                return false;
+            }
+            JcrShellPrinter.printOkln("Imported " + file.getPath() + " with " + size + " sessions.");
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            JcrShellPrinter.printWarnln("Import interrupted.");
+            return false;
+        } finally {
+            pool.close();
+            if (splitDir != null) {
+                FileUtils.deleteDirectory(splitDir);
+            }
+        }
+    }
+
+    private static String[] removeOptions(final String[] args) {
+        return removeOption(removeOption(removeOption(removeOption(args, CHECKPOINT), CHECKPOINT_BYTES), PARALLEL),
+                DEPTH);
+    }
+
     @Override
-    protected boolean hasValidArgs(String[] args) {
+    protected boolean hasValidArgs(String[] allArgs) {
+        String[] args = removeOptions(allArgs);
         if (args.length < 2 || args.length > 5) {
             return false;
         }
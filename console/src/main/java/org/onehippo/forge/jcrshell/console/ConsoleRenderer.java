@@ -8,6 +8,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -24,6 +25,9 @@ public class ConsoleRenderer implements IJcrShellRenderer {
 
     public static final String CR = System.getProperty("line.separator");
     public static final int RIGHT_MARGIN = 8;
+
+    /** number of rows of a streamed table that are used to determine the column widths */
+    public static final int SAMPLE_ROWS = 100;
     private ConsoleReader consoleReader;
 
     public ConsoleRenderer(final ConsoleReader reader) {
@@ -84,6 +88,26 @@ public class ConsoleRenderer implements IJcrShellRenderer {
         printTableLine();
     }
 
+    @Override
+    public void printTableWithHeader(String[] header, Iterator<String[]> rows) {
+        List<String[]> sample = new ArrayList<String[]>(SAMPLE_ROWS + 1);
+        sample.add(header);
+        while (sample.size() <= SAMPLE_ROWS && rows.hasNext()) {
+            sample.add(rows.next());
+        }
+        int[] widths = calculatedWidths(sample);
+
+        Iterator<String[]> rowIter = sample.iterator();
+        printTableHeader(rowIter.next(), widths);
+        while (rowIter.hasNext()) {
+            printTableRow(rowIter.next(), widths);
+        }
+        while (rows.hasNext()) {
+            printTableRow(rows.next(), widths);
+        }
+        printTableLine();
+    }
+
     private void printlnToConsole() {
         printToConsole(CR);
     }
@@ -75,11 +75,7 @@ public final class JcrShell {
                         return;
                     }
                     try {
-                        String path = session.getCurrentNode().getPath();
-                        if (path.length() > MAX_PROMPT_LENGTH) {
-                            String dots = "...";
-                            path = dots + path.substring(path.length() - MAX_PROMPT_LENGTH + dots.length());
-                        }
+                        String path = shortenPath(session.getCurrentNode().getPath());
                         term.setCommandLinePrompt(JcrWrapper.getUsername() + ":" + path + ">");
                     } catch (RepositoryException e) {
                         log.info("Unable to determine path while setting prompt", e);
@@ -94,6 +90,17 @@ public final class JcrShell {
         }
     }
 
+    /**
+     * @return the end of the path, if it is too long for the prompt
+     */
+    static String shortenPath(String path) {
+        if (path.length() > MAX_PROMPT_LENGTH) {
+            String dots = "...";
+            return dots + path.substring(path.length() - MAX_PROMPT_LENGTH + dots.length());
+        }
+        return path;
+    }
+
     public static Terminal setupTerminal() {
         Terminal term = new Terminal();
         term.setCommandLinePrompt(NOT_CONNECTED_PROMPT);
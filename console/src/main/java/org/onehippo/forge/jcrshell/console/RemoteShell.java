@@ -0,0 +1,288 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.console;
+
+import org.onehippo.forge.jcrshell.JcrShellPrinter;
+import org.onehippo.forge.jcrshell.remote.FrameOutputStream;
+import org.onehippo.forge.jcrshell.remote.Record;
+import org.onehippo.forge.jcrshell.remote.RecordReader;
+import org.onehippo.forge.jcrshell.remote.RecordWriter;
+import org.onehippo.forge.jcrshell.remote.RemoteProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.CookieManager;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the commands of the console in the repository JVM, through the remote endpoint of the
+ * jcr-shell servlet, see {@link RemoteProtocol}. Each command line is one request over a
+ * persistent HTTP connection, and its output is printed while it is streamed back, instead of
+ * making a remote call for every node and property. The files that are arguments of a command
+ * are uploaded when they exist, and downloaded when the command wrote them. The HTTP session,
+ * and with it the JCR session and the current node on the server, is kept with a cookie.
+ */
+public final class RemoteShell {
+
+    private static final Logger log = LoggerFactory.getLogger(RemoteShell.class);
+
+    /** commands that run in the console, also in remote mode */
+    private static final Set<String> LOCAL_COMMANDS = new HashSet<String>(Arrays.asList("exit", "remote",
+            "filecd", "filelist", "filepwd"));
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private static volatile RemoteShell active;
+
+    private final URL url;
+    private final URI uri;
+    private final String authorization;
+    private final CookieManager cookies = new CookieManager();
+    private volatile String path = "/";
+
+    /**
+     * @param url the url of the REST resources of the servlet, the user and password of basic
+     *        authentication can be part of it
+     */
+    public RemoteShell(final String url) throws MalformedURLException {
+        URL parsed = new URL(url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+        String userInfo = parsed.getUserInfo();
+        try {
+            this.url = new URL(parsed.getProtocol(), parsed.getHost(), parsed.getPort(), parsed.getFile());
+            this.uri = this.url.toURI();
+            this.authorization = userInfo == null ? null : "Basic "
+                    + DatatypeConverter.printBase64Binary(userInfo.getBytes("UTF-8"));
+        } catch (URISyntaxException e) {
+            throw new MalformedURLException(e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the remote shell that runs the commands, or null when they run locally
+     */
+    public static RemoteShell getActive() {
+        return active;
+    }
+
+    public static void setActive(final RemoteShell remote) {
+        active = remote;
+    }
+
+    /**
+     * @return whether the command runs in the console, also in remote mode
+     */
+    public static boolean isLocal(final String command) {
+        return LOCAL_COMMANDS.contains(command);
+    }
+
+    /**
+     * @return the url without the user information
+     */
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the path of the current node on the server
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public String getPrompt() {
+        return url.getHost() + ":" + JcrShell.shortenPath(path) + ">";
+    }
+
+    /**
+     * Run the command line on the server and print its output.
+     * @param args the tokenized command line
+     * @return whether the command succeeded
+     */
+    public boolean execute(final String line, final String[] args) throws IOException {
+        List<Integer> files = RemoteProtocol.getFileArguments(args);
+        HttpURLConnection connection = open();
+        RecordWriter writer = new RecordWriter(connection.getOutputStream());
+        writer.write(RemoteProtocol.EXECUTE, line);
+        for (int index : files) {
+            File file = new File(FsWrapper.getFullFileName(args[index]));
+            if (file.isFile()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    writer.writeFile(String.valueOf(index), in, file.length());
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        writer.write(RemoteProtocol.END);
+        writer.close();
+
+        boolean success = false;
+        RecordReader reader = response(connection);
+        try {
+            Record record;
+            while ((record = reader.read()) != null) {
+                if (RemoteProtocol.print(record, reader)) {
+                    continue;
+                }
+                if (record.getType() == RemoteProtocol.FILE) {
+                    Integer index = getFileArgument(files, record.getField(0));
+                    if (index != null) {
+                        download(reader, args[index]);
+                    } else {
+                        // not written, the reader skips the content
+                        JcrShellPrinter.printWarnln("Ignored file for argument " + record.getField(0)
+                                + ", which is not a file argument");
+                    }
+                } else if (record.getType() == RemoteProtocol.DONE) {
+                    path = record.getField(0);
+                    success = Boolean.parseBoolean(record.getField(1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return success;
+    }
+
+    /**
+     * @return the index of the file argument that the server sends a file for, or null when the
+     *         index is not one of the file arguments of the command line
+     */
+    private static Integer getFileArgument(final List<Integer> files, final String index) {
+        for (Integer file : files) {
+            if (file.toString().equals(index)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private void download(final RecordReader reader, final String fileName) throws IOException {
+        File file = new File(FsWrapper.getFullFileName(fileName));
+        OutputStream out = new FileOutputStream(file);
+        try {
+            reader.copyFile(out);
+        } finally {
+            out.close();
+        }
+        JcrShellPrinter.printDebugln("Saved " + file.getPath());
+    }
+
+    /**
+     * Complete the command line on the server.
+     * @return the start of the completed word, or -1 when there are no candidates
+     */
+    public int complete(final String buffer, final int cursor, final List<CharSequence> candidates) {
+        try {
+            HttpURLConnection connection = open();
+            RecordWriter writer = new RecordWriter(connection.getOutputStream());
+            writer.write(RemoteProtocol.COMPLETE, buffer == null ? "" : buffer, String.valueOf(cursor), "0");
+            writer.close();
+            RecordReader reader = response(connection);
+            try {
+                Record record = reader.read();
+                if (record == null || record.getType() != RemoteProtocol.COMPLETION) {
+                    return -1;
+                }
+                String[] fields = record.getFields();
+                for (int i = 2; i < fields.length; i++) {
+                    candidates.add(fields[i]);
+                }
+                return Integer.parseInt(fields[0]);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to complete remotely: " + e.getMessage());
+            return -1;
+        } catch (RuntimeException e) {
+            log.warn("Unable to complete remotely: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private HttpURLConnection open() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + "/remote" + encode(path)).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setChunkedStreamingMode(FrameOutputStream.DEFAULT_FRAME_SIZE);
+        connection.setRequestProperty("Content-Type", RemoteProtocol.MEDIA_TYPE);
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        Map<String, List<String>> headers = cookies.get(uri, Collections.<String, List<String>>emptyMap());
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                connection.addRequestProperty(header.getKey(), value);
+            }
+        }
+        return connection;
+    }
+
+    private RecordReader response(final HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        cookies.put(uri, connection.getHeaderFields());
+        if (status != HttpURLConnection.HTTP_OK) {
+            // read the error so the connection can be reused
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                byte[] buffer = new byte[1024];
+                while (error.read(buffer) >= 0) {
+                    continue;
+                }
+                error.close();
+            }
+            throw new IOException("Server returned " + status + " " + connection.getResponseMessage());
+        }
+        return new RecordReader(connection.getInputStream());
+    }
+
+    /**
+     * @return the path with each name url encoded
+     */
+    private static String encode(final String path) throws UnsupportedEncodingException {
+        StringBuilder encoded = new StringBuilder();
+        for (String name : path.split("/")) {
+            if (name.length() > 0) {
+                encoded.append('/').append(URLEncoder.encode(name, "UTF-8").replace("+", "%20"));
+            }
+        }
+        return encoded.length() == 0 ? "/" : encoded.toString();
+    }
+}
@@ -17,6 +17,7 @@ package org.onehippo.forge.jcrshell.console;
 
 import jline.UnsupportedTerminal;
 import jline.console.ConsoleReader;
+import jline.console.completer.Completer;
 import jline.console.history.FileHistory;
 import jline.console.history.History;
 import org.apache.commons.io.IOUtils;
@@ -113,8 +114,17 @@ public class Terminal {
         }
         
         
-        // set completer with list of words
-        consoleReader.addCompleter(new ShellCompleter());
+        // set completer with list of words, in remote mode the server completes
+        final ShellCompleter completer = new ShellCompleter();
+        consoleReader.addCompleter(new Completer() {
+            public int complete(String buffer, int cursor, List<CharSequence> candidates) {
+                RemoteShell remote = RemoteShell.getActive();
+                if (remote != null) {
+                    return remote.complete(buffer, cursor, candidates);
+                }
+                return completer.complete(buffer, cursor, candidates);
+            }
+        });
 
         if (getCommandLineHeader() != null) {
             JcrShellPrinter.println(getCommandLineHeader());
@@ -130,7 +140,8 @@ public class Terminal {
         String line;
         while (keepRunning) {
             try {
-                line = consoleReader.readLine(getCommandLinePrompt());
+                RemoteShell remote = RemoteShell.getActive();
+                line = consoleReader.readLine(remote != null ? remote.getPrompt() : getCommandLinePrompt());
                 if (line != null) {
                     handleCommand(line);
                 } else {
@@ -226,6 +237,18 @@ public class Terminal {
             cmd = CommandHelper.getCommandForAlias(cmd);
         }
 
+        RemoteShell remote = RemoteShell.getActive();
+        if (remote != null && !RemoteShell.isLocal(cmd)) {
+            try {
+                boolean ret = remote.execute(cmdLine, args);
+                JcrShellPrinter.printDebugln("Command completed in " + (System.currentTimeMillis() - tickStart) + " msecs.");
+                return ret;
+            } catch (IOException e) {
+                JcrShellPrinter.printErrorln("IO exception while executing " + cmd + " on " + remote.getUrl() + ": " + e.getMessage());
+                return false;
+            }
+        }
+
         if (!CommandHelper.isCommand(cmd)) {
             JcrShellPrinter.printWarnln("Unknown command: " + cmd);
             return false;
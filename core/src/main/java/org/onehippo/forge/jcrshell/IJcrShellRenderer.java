@@ -2,6 +2,7 @@ package org.onehippo.forge.jcrshell;
 
 import org.onehippo.forge.jcrshell.output.Output;
 
+import java.util.Iterator;
 import java.util.List;
 
 public interface IJcrShellRenderer {
@@ -9,4 +10,9 @@ public interface IJcrShellRenderer {
     void print(Output output);
 
     void printTableWithHeader(List<String[]> rows);
+
+    /**
+     * Print a table of which the rows are produced while the table is printed.
+     */
+    void printTableWithHeader(String[] header, Iterator<String[]> rows);
 }
@@ -19,6 +19,7 @@ import org.onehippo.forge.jcrshell.output.Output;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
 import java.util.List;
 
 import static org.onehippo.forge.jcrshell.output.Output.out;
@@ -70,4 +71,8 @@ public final class JcrShellPrinter {
     public static void printTableWithHeader(List<String[]> rows) {
         printers.get().printTableWithHeader(rows);
     }
+
+    public static void printTableWithHeader(String[] header, Iterator<String[]> rows) {
+        printers.get().printTableWithHeader(header, rows);
+    }
 }
\ No newline at end of file
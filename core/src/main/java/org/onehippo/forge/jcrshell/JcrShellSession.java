@@ -1,8 +1,16 @@
 package org.onehippo.forge.jcrshell;
 
 import javax.jcr.Node;
+import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.observation.EventListener;
+
+import org.onehippo.forge.jcrshell.cache.CacheInvalidator;
+import org.onehippo.forge.jcrshell.cache.DigestCache;
+import org.onehippo.forge.jcrshell.cache.NameCache;
+import org.onehippo.forge.jcrshell.cache.PathCache;
+import org.onehippo.forge.jcrshell.refs.ReferenceIndex;
+
 import java.util.*;
 
 public class JcrShellSession {
@@ -12,10 +20,16 @@ public class JcrShellSession {
         void onChangePath();
     }
 
-    SortedMap<String, SortedSet<String>> nodeNameCache = new TreeMap<String, SortedSet<String>>();
-    SortedMap<String, SortedSet<String>> propertyNameCache = new TreeMap<String, SortedSet<String>>();
-    Object mutex = new Object();
+    NameCache nodeNameCache = new NameCache();
+    NameCache propertyNameCache = new NameCache();
+    DigestCache digestCache = new DigestCache();
+    PathCache pathCache = new PathCache();
+    CacheInvalidator cacheInvalidator = new CacheInvalidator(nodeNameCache, propertyNameCache, pathCache);
     EventListener cacheListener;
+    ReferenceIndex referenceIndex = new ReferenceIndex();
+    CacheInvalidator referenceInvalidator = new CacheInvalidator(referenceIndex);
+    EventListener referenceListener;
+    Session referenceSession;
 
     String server = "rmi://localhost:1099/hipporepository";
 
@@ -29,6 +43,8 @@ public class JcrShellSession {
 
     private Node previousNode;
 
+    private String currentPath;
+
     boolean connected;
 
     List<SessionListener> listeners = new LinkedList<SessionListener>();
@@ -40,22 +56,71 @@ public class JcrShellSession {
     public void setCurrentNode(Node node) {
         this.previousNode = currentNode;
         this.currentNode = node;
+        this.currentPath = null;
         notifyListeners();
     }
 
+    /**
+     * @return the path of the current node, which is only fetched once for each current node
+     */
+    public String getCurrentPath() throws RepositoryException {
+        if (currentPath == null) {
+            currentPath = currentNode.getPath();
+        }
+        return currentPath;
+    }
+
+    /**
+     * Forget the path of the current node, because it may have been moved.
+     */
+    void resetCurrentPath() {
+        currentPath = null;
+    }
+
     public boolean cdPrevious() {
         if (previousNode != null) {
             currentNode = previousNode;
             previousNode = null;
+            currentPath = null;
             notifyListeners();
             return true;
         }
         return false;
     }
 
+    /**
+     * Connect to the repository of another session, with its credentials.
+     */
+    public void copyConnection(JcrShellSession other) {
+        server = other.server;
+        username = other.username;
+        password = other.password.clone();
+    }
+
+    /**
+     * @return whether the session connects to the same repository with the same credentials as
+     *         another session
+     */
+    public boolean hasSameConnection(JcrShellSession other) {
+        return server.equals(other.server) && username.equals(other.username)
+                && Arrays.equals(password, other.password);
+    }
+
+    /**
+     * @return whether the session is logged in and has changes that are not saved
+     */
+    public boolean hasPendingChanges() {
+        try {
+            return connected && session != null && session.isLive() && session.hasPendingChanges();
+        } catch (RepositoryException e) {
+            return false;
+        }
+    }
+
     public void destroy() {
         currentNode = null;
         previousNode = null;
+        currentPath = null;
         notifyListeners();
     }
 
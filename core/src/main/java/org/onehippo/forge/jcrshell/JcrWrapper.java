@@ -15,6 +15,7 @@
  */
 package org.onehippo.forge.jcrshell;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -24,7 +25,6 @@ import java.rmi.RemoteException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
@@ -46,6 +46,7 @@ import javax.jcr.PropertyIterator;
 import javax.jcr.PropertyType;
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.Value;
@@ -69,10 +70,16 @@ import org.apache.jackrabbit.rmi.client.RemoteRuntimeException;
 import org.hippoecm.repository.HippoRepository;
 import org.hippoecm.repository.HippoRepositoryFactory;
 import org.hippoecm.repository.api.HippoSession;
-import org.hippoecm.repository.api.NodeNameCodec;
+import org.onehippo.forge.jcrshell.cache.CacheInvalidator;
+import org.onehippo.forge.jcrshell.cache.DigestCache;
+import org.onehippo.forge.jcrshell.cache.NameCache;
+import org.onehippo.forge.jcrshell.cache.PathCache;
+import org.onehippo.forge.jcrshell.refs.ReferenceIndex;
 import org.onehippo.forge.jcrshell.output.Output;
 import org.onehippo.forge.jcrshell.output.TextOutput;
 import org.onehippo.forge.jcrshell.util.HippoJcrUtils;
+import org.onehippo.forge.jcrshell.util.ShellPath;
+import org.onehippo.forge.jcrshell.util.StreamPipe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -148,20 +155,66 @@ public final class JcrWrapper {
     }
 
     public static void clearCaches() {
-        synchronized (getShellSession().mutex) {
-            getShellSession().propertyNameCache.clear();
-            getShellSession().nodeNameCache.clear();
-        }
+        getShellSession().propertyNameCache.clear();
+        getShellSession().nodeNameCache.clear();
+        getShellSession().digestCache.clear();
+        getShellSession().pathCache.clear();
     }
 
     public static void removeFromCache(final String nodePath) {
-        synchronized (getShellSession().mutex) {
-            getShellSession().propertyNameCache.remove(nodePath);
-            getShellSession().nodeNameCache.remove(nodePath);
-        }
+        removeFromCache(getShellSession(), nodePath);
+    }
+
+    private static void removeFromCache(final JcrShellSession shellSession, final String nodePath) {
+        shellSession.propertyNameCache.remove(nodePath);
+        shellSession.nodeNameCache.remove(nodePath);
+        shellSession.pathCache.invalidate(nodePath);
+    }
+
+    public static NameCache getNodeNameCache() {
+        return getShellSession().nodeNameCache;
+    }
+
+    public static NameCache getPropertyNameCache() {
+        return getShellSession().propertyNameCache;
+    }
+
+    public static DigestCache getDigestCache() {
+        return getShellSession().digestCache;
+    }
+
+    public static PathCache getPathCache() {
+        return getShellSession().pathCache;
+    }
+
+    public static CacheInvalidator getCacheInvalidator() {
+        return getShellSession().cacheInvalidator;
     }
 
     public static void updateCaches(EventIterator events) {
+        updateCaches(getShellSession(), events);
+    }
+
+    /**
+     * Queue the invalidations for the events with the cache invalidator of a shell session. The
+     * observation thread has no shell session bound, so the session is passed explicitly.
+     */
+    static void updateCaches(final JcrShellSession shellSession, final EventIterator events) {
+        if (!queueInvalidations(shellSession.cacheInvalidator, events)) {
+            log.warn("Interrupted while updating cache, clearing caches.");
+            shellSession.nodeNameCache.clear();
+            shellSession.propertyNameCache.clear();
+            shellSession.digestCache.clear();
+            shellSession.pathCache.clear();
+        }
+    }
+
+    /**
+     * Queue the paths of the nodes that are changed by the events.
+     * @return false when the thread was interrupted and invalidations may have been lost
+     */
+    private static boolean queueInvalidations(final CacheInvalidator invalidator, final EventIterator events) {
+        Set<String> subtrees = new HashSet<String>();
         Set<String> paths = new HashSet<String>();
         while (events.hasNext()) {
             Event event = events.nextEvent();
@@ -169,25 +222,8 @@ public final class JcrWrapper {
                 String path = event.getPath();
                 switch (event.getType()) {
                 case Event.NODE_REMOVED:
-                    synchronized (getShellSession().mutex) {
-                        Iterator<Map.Entry<String, SortedSet<String>>> tail = getShellSession().nodeNameCache.tailMap(path).entrySet()
-                                .iterator();
-                        while (tail.hasNext()) {
-                            Map.Entry<String, SortedSet<String>> entry = tail.next();
-                            if (!entry.getKey().startsWith(path)) {
-                                break;
-                            }
-                            tail.remove();
-                        }
-                        tail = getShellSession().propertyNameCache.tailMap(path).entrySet().iterator();
-                        while (tail.hasNext()) {
-                            Map.Entry<String, SortedSet<String>> entry = tail.next();
-                            if (!entry.getKey().startsWith(path)) {
-                                break;
-                            }
-                            tail.remove();
-                        }
-                    }
+                    subtrees.add(path);
+                    // fall through
                 case Event.NODE_ADDED:
                     paths.add(path);
                     // fall through
@@ -199,15 +235,132 @@ public final class JcrWrapper {
                     break;
 
                 default:
-                    JcrShellPrinter.printWarnln("Unknown event type: " + event.getType());
+                    log.warn("Unknown event type: " + event.getType());
                     break;
                 }
             } catch (RepositoryException e) {
-                JcrShellPrinter.printWarnln("Error while updating cache: " + e.getMessage());
+                log.warn("Error while updating cache: " + e.getMessage());
+            }
+        }
+        try {
+            for (String path : subtrees) {
+                invalidator.invalidate(path, true);
+            }
+            for (String path : paths) {
+                invalidator.invalidate(path, false);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public static ReferenceIndex getReferenceIndex() {
+        return getShellSession().referenceIndex;
+    }
+
+    /**
+     * @return the file the reference index is saved to, from the jcrshell.refs.file system
+     *         property or .jcrshell-references in the home directory
+     */
+    public static File getReferenceIndexFile() {
+        String file = System.getProperty("jcrshell.refs.file");
+        if (file == null) {
+            return new File(System.getProperty("user.home"), ".jcrshell-references");
+        }
+        return new File(file);
+    }
+
+    /**
+     * Build the reference index of the workspace and keep it up to date with the saved changes
+     * of all sessions, including this one. The index has a session of its own, and scans the
+     * workspace with a pool of sessions when there is more than one thread.
+     * @return the number of nodes that could not be scanned
+     */
+    public static long buildReferenceIndex(final int threads) throws RepositoryException {
+        connect();
+        final JcrShellSession shellSession = getShellSession();
+        dropReferenceIndex();
+        SessionPool pool = null;
+        try {
+            // listen before scanning, the changes during the scan are applied afterwards
+            startReferenceListener(shellSession);
+            if (threads > 1) {
+                pool = createSessionPool(threads);
+            }
+            return shellSession.referenceIndex.build(shellSession.referenceSession.getRootNode(), pool);
+        } catch (RepositoryException e) {
+            dropReferenceIndex();
+            throw e;
+        } finally {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * Load a reference index that was saved before and keep it up to date. The changes made
+     * while it was not loaded are not in the index.
+     */
+    public static void loadReferenceIndex(final File file) throws RepositoryException, IOException {
+        connect();
+        final JcrShellSession shellSession = getShellSession();
+        dropReferenceIndex();
+        try {
+            startReferenceListener(shellSession);
+            shellSession.referenceIndex.load(file, shellSession.referenceSession);
+        } catch (IOException e) {
+            dropReferenceIndex();
+            throw e;
+        } catch (RepositoryException e) {
+            dropReferenceIndex();
+            throw e;
+        }
+    }
+
+    /**
+     * Log in the session of the index and listen for changes. The worker that applies them runs
+     * from the start, the index keeps them until it is built or loaded.
+     */
+    private static void startReferenceListener(final JcrShellSession shellSession) throws RepositoryException {
+        shellSession.referenceIndex.deferChanges();
+        shellSession.referenceInvalidator.start();
+        shellSession.referenceSession = shellSession.session.getRepository().login(
+                new SimpleCredentials(getUsername(), getPassword()));
+        shellSession.referenceListener = new EventListener() {
+            public void onEvent(EventIterator events) {
+                if (!queueInvalidations(shellSession.referenceInvalidator, events)) {
+                    log.warn("Interrupted while updating the reference index, dropping the index.");
+                    shellSession.referenceIndex.drop();
+                }
+            }
+        };
+        ObservationManager obMgr = shellSession.referenceSession.getWorkspace().getObservationManager();
+        obMgr.addEventListener(shellSession.referenceListener, Event.NODE_ADDED | Event.NODE_REMOVED
+                | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, "/", true, null, null, false);
+    }
+
+    /**
+     * Stop updating the reference index and forget its content.
+     */
+    public static void dropReferenceIndex() {
+        JcrShellSession shellSession = getShellSession();
+        if (shellSession.referenceListener != null) {
+            try {
+                ObservationManager obMgr = shellSession.referenceSession.getWorkspace().getObservationManager();
+                obMgr.removeEventListener(shellSession.referenceListener);
+            } catch (RepositoryException e) {
+                log.info("Error while remove listener.", e);
             }
+            shellSession.referenceListener = null;
         }
-        for (String path : paths) {
-            JcrWrapper.removeFromCache(path);
+        shellSession.referenceInvalidator.stop();
+        shellSession.referenceIndex.drop();
+        if (shellSession.referenceSession != null) {
+            shellSession.referenceSession.logout();
+            shellSession.referenceSession = null;
         }
     }
 
@@ -259,11 +412,13 @@ public final class JcrWrapper {
 
             // start listener for caches
             ObservationManager obMgr = getShellSession().session.getWorkspace().getObservationManager();
-            getShellSession().cacheListener = new EventListener() {
+            final JcrShellSession shellSession = getShellSession();
+            shellSession.cacheListener = new EventListener() {
                 public void onEvent(EventIterator events) {
-                    JcrWrapper.updateCaches(events);
+                    JcrWrapper.updateCaches(shellSession, events);
                 }
             };
+            shellSession.cacheInvalidator.start();
             obMgr.addEventListener(getShellSession().cacheListener, Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED
                     | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, "/", true, null, null, true);
             clearCaches();
@@ -323,6 +478,8 @@ public final class JcrWrapper {
             } catch (RepositoryException e) {
                 log.info("Error while remove listener.", e);
             }
+            getShellSession().cacheInvalidator.stop();
+            dropReferenceIndex();
             getShellSession().session.logout();
             setConnected(false);
             clearCaches();
@@ -362,6 +519,7 @@ public final class JcrWrapper {
         removeFromCache(srcNode.getPath());
         removeFromCache(srcNode.getParent().getPath());
         getShellSession().session.move(srcNode.getPath(), destAbsPath);
+        getShellSession().resetCurrentPath();
         int lastSlash = destAbsPath.lastIndexOf('/');
         if (lastSlash > 0) {
             removeFromCache(destAbsPath.substring(0, lastSlash - 1));
@@ -384,37 +542,33 @@ public final class JcrWrapper {
 
     public static SortedSet<String> getNodeNameList(final Node node) throws RepositoryException {
         connect();
-        synchronized (getShellSession().nodeNameCache) {
-            if (getShellSession().nodeNameCache.containsKey(node.getPath())) {
-                return getShellSession().nodeNameCache.get(node.getPath());
-            }
-            SortedSet<String> names = new TreeSet<String>();
-            if (node.getDepth() != 0) {
-                names.add("..");
-            }
-            NodeIterator iter = node.getNodes();
-            while (iter.hasNext()) {
-                names.add(fullName(iter.nextNode()));
+        return getShellSession().nodeNameCache.get(node.getPath(), new NameCache.Loader() {
+            public SortedSet<String> load() throws RepositoryException {
+                SortedSet<String> names = new TreeSet<String>();
+                if (node.getDepth() != 0) {
+                    names.add("..");
+                }
+                NodeIterator iter = node.getNodes();
+                while (iter.hasNext()) {
+                    names.add(fullName(iter.nextNode()));
+                }
+                return Collections.unmodifiableSortedSet(names);
             }
-            getShellSession().nodeNameCache.put(node.getPath(), Collections.unmodifiableSortedSet(names));
-            return getShellSession().nodeNameCache.get(node.getPath());
-        }
+        });
     }
 
     public static SortedSet<String> getPropertyNameList(final Node node) throws RepositoryException {
         connect();
-        synchronized (getShellSession().propertyNameCache) {
-            if (getShellSession().propertyNameCache.containsKey(node.getPath())) {
-                return getShellSession().propertyNameCache.get(node.getPath());
-            }
-            SortedSet<String> names = new TreeSet<String>();
-            PropertyIterator iter = node.getProperties();
-            while (iter.hasNext()) {
-                names.add(fullName(iter.nextProperty()));
+        return getShellSession().propertyNameCache.get(node.getPath(), new NameCache.Loader() {
+            public SortedSet<String> load() throws RepositoryException {
+                SortedSet<String> names = new TreeSet<String>();
+                PropertyIterator iter = node.getProperties();
+                while (iter.hasNext()) {
+                    names.add(fullName(iter.nextProperty()));
+                }
+                return Collections.unmodifiableSortedSet(names);
             }
-            getShellSession().propertyNameCache.put(node.getPath(), Collections.unmodifiableSortedSet(names));
-            return getShellSession().propertyNameCache.get(node.getPath());
-        }
+        });
     }
 
     public static Node resolvePath(final String path) throws RepositoryException {
@@ -426,54 +580,66 @@ public final class JcrWrapper {
             return getShellSession().session.getRootNode();
         } else if (path.equals("..")) {
             return getShellSession().getCurrentNode().getParent();
-        } else {
-            String[] elements = path.split("\\/");
-            StringBuffer pathEncoded = new StringBuffer(elements[0]);
-            for (int i = 1; i < elements.length; i++) {
-                pathEncoded.append("/");
-                if ("..".equals(elements[i])) {
-                    pathEncoded.append(elements[i]);
-                } else {
-                    String element = elements[i];
-                    String name = element;
-                    int index = 1;
-                    if (element.indexOf('[') > 0 && element.lastIndexOf(']') == element.length() - 1) {
-                        name = element.substring(0, element.lastIndexOf('['));
-                        try {
-                            index = Integer.parseInt(element.substring(element.lastIndexOf('[') + 1, element
-                                    .lastIndexOf(']')));
-                        } catch (NumberFormatException nfe) {
-                            name = element;
-                        }
-                    }
-                    pathEncoded.append(NodeNameCodec.encode(name) + "[" + index + "]");
-                }
+        }
+        JcrShellSession shellSession = getShellSession();
+        String encoded = ShellPath.encode(path);
+        boolean absolute = path.startsWith("/");
+        if (!absolute && path.indexOf('/') == -1) {
+            Node refNode = resolveReference(shellSession.getCurrentNode(), encoded);
+            if (refNode != null) {
+                return refNode;
             }
+        }
 
-            if (path.startsWith("/")) {
-                return getShellSession().session.getRootNode().getNode(pathEncoded.toString().substring(1));
-            }
-            Node refNode = null;
-            if (path.indexOf('/') == -1 && getShellSession().getCurrentNode().hasProperty(pathEncoded.toString())) {
-                // try reference
-                Property p = getShellSession().getCurrentNode().getProperty(pathEncoded.toString());
-                if (p.getType() == PropertyType.REFERENCE) {
-                    if (p.getDefinition().isMultiple()) {
-                        Value[] vals = p.getValues();
-                        if (vals.length > 0) {
-                            refNode = getShellSession().session.getNodeByUUID(p.getValues()[0].getString());
-                        }
-                    } else {
-                        refNode = getShellSession().session.getNodeByUUID(p.getString());
+        String normalized = ShellPath.normalize(absolute ? "/" : shellSession.getCurrentPath(), encoded);
+        if (normalized != null) {
+            String identifier = shellSession.pathCache.get(normalized);
+            if (identifier != null) {
+                try {
+                    Node node = shellSession.session.getNodeByIdentifier(identifier);
+                    if (node.getPath().equals(normalized)) {
+                        return node;
                     }
+                } catch (RepositoryException e) {
+                    // removed or no longer accessible
                 }
+                // moved, removed or the invalidation is still queued, resolve the path again
+                shellSession.pathCache.remove(normalized);
             }
-            if (refNode == null) {
-                return getShellSession().getCurrentNode().getNode(pathEncoded.toString());
-            } else {
-                return refNode;
+        }
+        Node node;
+        if (absolute) {
+            node = shellSession.session.getRootNode().getNode(encoded.substring(1));
+        } else {
+            node = shellSession.getCurrentNode().getNode(encoded);
+        }
+        // virtual nodes share the identifier of their canonical node
+        if (normalized != null && !HippoJcrUtils.isVirtual(node)) {
+            shellSession.pathCache.put(normalized, node.getIdentifier());
+        }
+        return node;
+    }
+
+    /**
+     * @return the node that a reference property of the node refers to, or null when the node
+     *         has no reference property with the name
+     */
+    private static Node resolveReference(final Node node, final String name) throws RepositoryException {
+        if (!node.hasProperty(name)) {
+            return null;
+        }
+        Property p = node.getProperty(name);
+        if (p.getType() != PropertyType.REFERENCE) {
+            return null;
+        }
+        if (p.getDefinition().isMultiple()) {
+            Value[] vals = p.getValues();
+            if (vals.length > 0) {
+                return getShellSession().session.getNodeByUUID(vals[0].getString());
             }
+            return null;
         }
+        return getShellSession().session.getNodeByUUID(p.getString());
     }
 
     public static boolean cdPrevious() {
@@ -625,13 +791,40 @@ public final class JcrWrapper {
 
     public static void exportXml(final String absPath, final OutputStream out, final boolean skipBinary)
             throws IOException, RepositoryException {
-        if (HippoJcrUtils.isHippoSession(getShellSession().session)) {
-            ((HippoSession) getShellSession().session).exportDereferencedView(absPath, out, skipBinary, false);
+        exportXml(getShellSession().session, absPath, out, skipBinary, false);
+    }
+
+    /**
+     * Export the system view with another session than the one of the shell.
+     * @param noRecurse only export the node itself, without its child nodes
+     */
+    public static void exportXml(final Session session, final String absPath, final OutputStream out,
+            final boolean skipBinary, final boolean noRecurse) throws IOException, RepositoryException {
+        if (HippoJcrUtils.isHippoSession(session)) {
+            ((HippoSession) session).exportDereferencedView(absPath, out, skipBinary, noRecurse);
         } else {
-            getShellSession().session.exportSystemView(absPath, out, skipBinary, false);
+            session.exportSystemView(absPath, out, skipBinary, noRecurse);
         }
     }
 
+    /**
+     * Export the system view on a worker thread.
+     * @return a stream that reads the export while it is being written
+     */
+    public static InputStream exportXml(final String absPath, final boolean skipBinary) {
+        final JcrShellSession shellSession = getShellSession();
+        return StreamPipe.start(new StreamPipe.Producer() {
+            public void produce(OutputStream out) throws IOException, RepositoryException {
+                setShellSession(shellSession);
+                try {
+                    exportXml(absPath, out, skipBinary);
+                } finally {
+                    setShellSession(null);
+                }
+            }
+        }, "jcr-shell export " + absPath);
+    }
+
     public static void importXml(String parentAbsPath, InputStream in, int uuidBehavior, int referenceBehavior,
             int mergeBehavior) throws IOException, RepositoryException {
         JcrWrapper.removeFromCache(parentAbsPath);
@@ -643,6 +836,15 @@ public final class JcrWrapper {
         }
     }
 
+    /**
+     * Create a pool of sessions that are logged in with the credentials of the shell session.
+     */
+    public static SessionPool createSessionPool(final int size) {
+        connect();
+        return new SessionPool(getShellSession().session.getRepository(), new SimpleCredentials(getUsername(),
+                getPassword()), size);
+    }
+
     public static String fullName(final Item item) throws RepositoryException {
         StringBuffer buf = new StringBuffer();
         if (item.getDepth() == 0) {
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.jcr.Credentials;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A small pool of sessions for work that runs on several threads, because a session must not be
+ * used by more than one thread at a time. Sessions are logged in when needed, up to the size of
+ * the pool, and logged out when the pool is closed. A session is returned to the pool as it is:
+ * the borrower saves or discards its changes.
+ */
+public final class SessionPool {
+
+    private final Repository repository;
+    private final Credentials credentials;
+    private final int size;
+    private final BlockingQueue<Session> idle;
+    private final List<Session> sessions = new ArrayList<Session>();
+    private boolean closed;
+
+    public SessionPool(final Repository repository, final Credentials credentials, final int size) {
+        this.repository = repository;
+        this.credentials = credentials;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<Session>(size);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Take a session from the pool, logging in a new one when none is idle and the pool is not
+     * full, or waiting for one to be released otherwise.
+     */
+    public Session borrow() throws RepositoryException, InterruptedException {
+        Session session = idle.poll();
+        if (session != null) {
+            return session;
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Session pool is closed");
+            }
+            if (sessions.size() < size) {
+                session = repository.login(credentials);
+                sessions.add(session);
+                return session;
+            }
+        }
+        return idle.take();
+    }
+
+    public void release(final Session session) {
+        synchronized (this) {
+            if (closed) {
+                session.logout();
+                return;
+            }
+        }
+        idle.offer(session);
+    }
+
+    /**
+     * Log out all sessions of the pool.
+     */
+    public synchronized void close() {
+        closed = true;
+        idle.clear();
+        for (Session session : sessions) {
+            if (session.isLive()) {
+                session.logout();
+            }
+        }
+        sessions.clear();
+    }
+}
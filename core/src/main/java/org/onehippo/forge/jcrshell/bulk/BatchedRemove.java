@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.bulk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeDefinition;
+
+import org.onehippo.forge.jcrshell.util.HippoJcrUtils;
+
+/**
+ * Removes a subtree bottom-up in batches, saving the session after each batch of removed nodes,
+ * so the transient space never holds more than a batch and each save is short. When a save
+ * fails or the removal is interrupted, the batch that was not saved is discarded and the part
+ * of the subtree that is left can be removed again to continue. The session must not have other
+ * pending changes. Virtual nodes are not descended into; they disappear with their parent.
+ */
+public final class BatchedRemove {
+
+    /** default number of nodes that are removed between saves */
+    public static final int DEFAULT_SIZE = Integer.getInteger("jcrshell.remove.batch", 1000);
+
+    /**
+     * Receives the progress of the removal, on the removing thread.
+     */
+    public interface Listener {
+        void saved(long removed, double nodesPerSecond);
+    }
+
+    private final Session session;
+    private final int size;
+    private final Listener listener;
+
+    private long started;
+    private long removed;
+    private long pending;
+
+    /**
+     * @param size the number of nodes that are removed between saves
+     * @param listener the listener to notify after each save, or null
+     */
+    public BatchedRemove(final Session session, final int size, final Listener listener) {
+        this.session = session;
+        this.size = Math.max(1, size);
+        this.listener = listener;
+    }
+
+    /**
+     * Remove the node with its subtree.
+     * @return the number of nodes that were removed
+     */
+    public long remove(final String absPath) throws RepositoryException, InterruptedException {
+        if (session.hasPendingChanges()) {
+            throw new RepositoryException("Session has pending changes, save or refresh before removing");
+        }
+        started = System.currentTimeMillis();
+        removed = 0L;
+        pending = 0;
+        boolean done = false;
+        try {
+            removeSubtree(session.getNode(absPath));
+            if (pending > 0) {
+                save();
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                // discard the batch that was not saved
+                session.refresh(false);
+            }
+        }
+        return removed;
+    }
+
+    private void removeSubtree(final Node node) throws RepositoryException, InterruptedException {
+        boolean more = true;
+        while (more) {
+            // the children are read again after each group, as saves may invalidate the iterator
+            more = false;
+            List<Node> children = new ArrayList<Node>();
+            for (NodeIterator iter = node.getNodes(); iter.hasNext();) {
+                Node child = iter.nextNode();
+                if (!HippoJcrUtils.isVirtual(child) && isRemovable(child)) {
+                    children.add(child);
+                    if (children.size() == size) {
+                        more = true;
+                        break;
+                    }
+                }
+            }
+            for (Node child : children) {
+                removeSubtree(child);
+            }
+        }
+        // the children that are left are removed with the node
+        long count = 1L + countSubtrees(node);
+        node.remove();
+        pending += count;
+        if (pending >= size) {
+            save();
+        }
+    }
+
+    /**
+     * @return whether the node can be removed without its parent; mandatory and protected child
+     *         nodes are removed with their parent
+     */
+    private static boolean isRemovable(final Node node) throws RepositoryException {
+        NodeDefinition definition = node.getDefinition();
+        return !definition.isMandatory() && !definition.isProtected();
+    }
+
+    /**
+     * @return the number of nodes below the node, not counting virtual nodes
+     */
+    private static long countSubtrees(final Node node) throws RepositoryException {
+        long count = 0L;
+        for (NodeIterator iter = node.getNodes(); iter.hasNext();) {
+            Node child = iter.nextNode();
+            if (!HippoJcrUtils.isVirtual(child)) {
+                count += 1L + countSubtrees(child);
+            }
+        }
+        return count;
+    }
+
+    private void save() throws RepositoryException, InterruptedException {
+        session.save();
+        removed += pending;
+        pending = 0;
+        if (listener != null) {
+            long elapsed = Math.max(1L, System.currentTimeMillis() - started);
+            listener.saved(removed, removed * 1000d / elapsed);
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.bulk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFormatException;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
+
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.util.PrefetchingTreeWalker;
+
+/**
+ * Applies one change to many nodes: setting a property, adding or removing a value of a multi
+ * value property, or adding or removing a mixin. The paths of the nodes are read from an
+ * iterator, like the rows of a query result, while the changes are made. The paths are handed
+ * out in batches to the sessions of a pool, and each session saves after its batch, so at most
+ * a batch of changes per session is pending. Nodes that already have the change are not changed.
+ */
+public final class BulkUpdate {
+
+    /** default number of sessions that change nodes concurrently */
+    public static final int DEFAULT_THREADS = Integer.getInteger("jcrshell.bulk.threads", 1);
+
+    /** default number of nodes that are changed between saves */
+    public static final int DEFAULT_SAVE = Integer.getInteger("jcrshell.bulk.save", 1000);
+
+    /** names of the operations */
+    public static final String[] OPERATIONS = { "propset", "valueadd", "valueremove", "mixinadd", "mixinremove" };
+
+    /**
+     * A change to a node.
+     */
+    public interface Operation {
+        /**
+         * @return whether the node was changed
+         */
+        boolean apply(Node node) throws RepositoryException;
+    }
+
+    /**
+     * Receives the progress of the update, on the thread that called {@link BulkUpdate#run}.
+     */
+    public interface Listener {
+        void saved(long matched, long changed, long failed, double nodesPerSecond);
+
+        void failed(String path, Exception e);
+    }
+
+    /**
+     * The totals of an update.
+     */
+    public static final class Result {
+        private long matched;
+        private long changed;
+        private long failed;
+        private long millis;
+
+        public long getMatched() {
+            return matched;
+        }
+
+        public long getChanged() {
+            return changed;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public double getNodesPerSecond() {
+            return matched * 1000d / Math.max(1L, millis);
+        }
+    }
+
+    /**
+     * The outcome of a batch, reported back to the calling thread.
+     */
+    private static final class Batch {
+        private final List<String> paths;
+        private final List<String> failedPaths = new ArrayList<String>();
+        private final List<Exception> failures = new ArrayList<Exception>();
+        private long changed;
+
+        private Batch(final List<String> paths) {
+            this.paths = paths;
+        }
+
+        private void fail(final String path, final Exception e) {
+            failedPaths.add(path);
+            failures.add(e);
+        }
+    }
+
+    private final Operation operation;
+    private final int saveEvery;
+
+    /**
+     * @param saveEvery the number of nodes that are changed between saves
+     */
+    public BulkUpdate(final Operation operation, final int saveEvery) {
+        this.operation = operation;
+        this.saveEvery = Math.max(1, saveEvery);
+    }
+
+    /**
+     * Create the operation from its name and arguments, like the commands of the same name.
+     * @throws IllegalArgumentException when the name, the number of arguments or the property
+     *         type is wrong
+     */
+    public static Operation parse(final String name, final String[] args) {
+        if ("mixinadd".equals(name) || "mixinremove".equals(name)) {
+            if (args.length != 1) {
+                throw new IllegalArgumentException(name + " needs a mixin type");
+            }
+            return "mixinadd".equals(name) ? new MixinAdd(args[0]) : new MixinRemove(args[0]);
+        }
+        if (args.length != 2 && args.length != 3) {
+            throw new IllegalArgumentException(name + " needs a property name, a value and an optional type");
+        }
+        int type = args.length == 3 ? PropertyType.valueFromName(args[2]) : PropertyType.UNDEFINED;
+        if ("propset".equals(name)) {
+            return new PropSet(args[0], args[1], type);
+        }
+        if (type == PropertyType.UNDEFINED) {
+            type = PropertyType.STRING;
+        }
+        if ("valueadd".equals(name)) {
+            return new ValueAdd(args[0], args[1], type);
+        }
+        if ("valueremove".equals(name)) {
+            return new ValueRemove(args[0], args[1], type);
+        }
+        throw new IllegalArgumentException("Unknown operation: " + name);
+    }
+
+    /**
+     * Change the nodes with the paths, with the sessions of the pool.
+     */
+    public Result run(final Iterator<String> paths, final SessionPool pool, final Listener listener)
+            throws InterruptedException {
+        long started = System.currentTimeMillis();
+        Result result = new Result();
+        int threads = pool.getSize();
+        ExecutorService executor = threads < 2 ? Executors.newSingleThreadExecutor() : PrefetchingTreeWalker
+                .newExecutor(threads, "jcr-shell bulk");
+        try {
+            CompletionService<Batch> completion = new ExecutorCompletionService<Batch>(executor);
+            int pending = 0;
+            while (paths.hasNext() || pending > 0) {
+                // read ahead at most two batches per session
+                if (paths.hasNext() && pending < 2 * threads) {
+                    final List<String> batch = new ArrayList<String>(saveEvery);
+                    while (paths.hasNext() && batch.size() < saveEvery) {
+                        batch.add(paths.next());
+                    }
+                    completion.submit(new Callable<Batch>() {
+                        public Batch call() throws InterruptedException, RepositoryException {
+                            return apply(pool, batch);
+                        }
+                    });
+                    pending++;
+                    continue;
+                }
+                Batch batch = take(completion);
+                pending--;
+                result.matched += batch.paths.size();
+                result.changed += batch.changed;
+                result.failed += batch.failedPaths.size();
+                for (int i = 0; i < batch.failedPaths.size(); i++) {
+                    listener.failed(batch.failedPaths.get(i), batch.failures.get(i));
+                }
+                result.millis = System.currentTimeMillis() - started;
+                listener.saved(result.matched, result.changed, result.failed, result.getNodesPerSecond());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        result.millis = System.currentTimeMillis() - started;
+        return result;
+    }
+
+    private static Batch take(final CompletionService<Batch> completion) throws InterruptedException {
+        try {
+            return completion.take().get();
+        } catch (ExecutionException e) {
+            // apply only throws when it cannot get a session
+            throw new IllegalStateException("Unable to change nodes: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Change the nodes of a batch with a session of the pool and save them. When the save fails,
+     * the changes are discarded and all changed nodes of the batch are failed.
+     */
+    private Batch apply(final SessionPool pool, final List<String> paths) throws InterruptedException,
+            RepositoryException {
+        Batch batch = new Batch(paths);
+        Session session = pool.borrow();
+        try {
+            List<String> changed = new ArrayList<String>();
+            for (String path : paths) {
+                try {
+                    if (operation.apply(session.getNode(path))) {
+                        changed.add(path);
+                    }
+                } catch (RepositoryException e) {
+                    batch.fail(path, e);
+                }
+            }
+            try {
+                session.save();
+                batch.changed = changed.size();
+            } catch (RepositoryException e) {
+                session.refresh(false);
+                for (String path : changed) {
+                    batch.fail(path, e);
+                }
+            }
+        } finally {
+            pool.release(session);
+        }
+        return batch;
+    }
+
+    /**
+     * @return the paths of the rows of a query result, read while iterating
+     */
+    public static Iterator<String> paths(final QueryResult result) throws RepositoryException {
+        final RowIterator rows = result.getRows();
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            public String next() {
+                if (!rows.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return rows.nextRow().getValue("jcr:path").getString();
+                } catch (RepositoryException e) {
+                    throw new IllegalStateException("Unable to read row: " + e.getMessage(), e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static boolean hasMixin(final Node node, final String mixin) throws RepositoryException {
+        for (NodeType type : node.getMixinNodeTypes()) {
+            if (type.getName().equals(mixin)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the property, or null when it does not exist
+     * @throws ValueFormatException when the property does not have the type or multiplicity
+     */
+    private static Property getProperty(final Node node, final String name, final int type, final boolean multiple)
+            throws RepositoryException {
+        if (!node.hasProperty(name)) {
+            return null;
+        }
+        Property property = node.getProperty(name);
+        if (type != PropertyType.UNDEFINED && property.getType() != type) {
+            throw new ValueFormatException("Property type doesn't match type of current property: "
+                    + PropertyType.nameFromValue(property.getType()));
+        }
+        if (property.isMultiple() != multiple) {
+            throw new ValueFormatException(multiple ? "Use propset to set single value properties."
+                    : "Use valueadd to add values to a multivalue.");
+        }
+        return property;
+    }
+
+    private static final class PropSet implements Operation {
+        private final String name;
+        private final String value;
+        private final int type;
+
+        private PropSet(final String name, final String value, final int type) {
+            this.name = name;
+            this.value = value;
+            this.type = type;
+        }
+
+        public boolean apply(final Node node) throws RepositoryException {
+            Property property = getProperty(node, name, type, false);
+            int propertyType = type;
+            if (property != null) {
+                if (property.getString().equals(value)) {
+                    return false;
+                }
+                propertyType = property.getType();
+            } else if (propertyType == PropertyType.UNDEFINED) {
+                propertyType = PropertyType.STRING;
+            }
+            node.setProperty(name, node.getSession().getValueFactory().createValue(value, propertyType));
+            return true;
+        }
+    }
+
+    private static final class ValueAdd implements Operation {
+        private final String name;
+        private final String value;
+        private final int type;
+
+        private ValueAdd(final String name, final String value, final int type) {
+            this.name = name;
+            this.value = value;
+            this.type = type;
+        }
+
+        public boolean apply(final Node node) throws RepositoryException {
+            Property property = getProperty(node, name, type, true);
+            Value added = node.getSession().getValueFactory().createValue(value, type);
+            if (property == null) {
+                node.setProperty(name, new Value[] { added });
+                return true;
+            }
+            Value[] values = property.getValues();
+            for (Value val : values) {
+                if (val.getString().equals(value)) {
+                    return false;
+                }
+            }
+            Value[] newValues = new Value[values.length + 1];
+            System.arraycopy(values, 0, newValues, 0, values.length);
+            newValues[values.length] = added;
+            node.setProperty(name, newValues);
+            return true;
+        }
+    }
+
+    private static final class ValueRemove implements Operation {
+        private final String name;
+        private final String value;
+        private final int type;
+
+        private ValueRemove(final String name, final String value, final int type) {
+            this.name = name;
+            this.value = value;
+            this.type = type;
+        }
+
+        public boolean apply(final Node node) throws RepositoryException {
+            Property property = getProperty(node, name, type, true);
+            if (property == null) {
+                return false;
+            }
+            Value[] values = property.getValues();
+            List<Value> newValues = new ArrayList<Value>(values.length);
+            for (Value val : values) {
+                if (!val.getString().equals(value)) {
+                    newValues.add(val);
+                }
+            }
+            if (newValues.size() == values.length) {
+                return false;
+            }
+            node.setProperty(name, newValues.toArray(new Value[newValues.size()]));
+            return true;
+        }
+    }
+
+    private static final class MixinAdd implements Operation {
+        private final String mixin;
+
+        private MixinAdd(final String mixin) {
+            this.mixin = mixin;
+        }
+
+        public boolean apply(final Node node) throws RepositoryException {
+            if (hasMixin(node, mixin)) {
+                return false;
+            }
+            node.addMixin(mixin);
+            return true;
+        }
+    }
+
+    private static final class MixinRemove implements Operation {
+        private final String mixin;
+
+        private MixinRemove(final String mixin) {
+            this.mixin = mixin;
+        }
+
+        public boolean apply(final Node node) throws RepositoryException {
+            if (!hasMixin(node, mixin)) {
+                return false;
+            }
+            node.removeMixin(mixin);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous invalidation stage for the caches. Invalidations are queued by the observation
+ * thread and applied by a worker thread in batches. Each batch is coalesced into a minimal set of
+ * subtree prefixes and single paths, which are removed from every cache while taking its lock once.
+ * The queue is bounded: when it is full the observation thread blocks until the worker catches up.
+ */
+public class CacheInvalidator {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheInvalidator.class);
+
+    /** default capacity of the queue */
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("jcrshell.cache.queue", 10000);
+
+    private static final long RATE_WINDOW = 1000L;
+
+    /**
+     * A path to invalidate, optionally including all paths that start with it.
+     */
+    static final class Invalidation {
+        final String path;
+        final boolean subtree;
+
+        Invalidation(final String path, final boolean subtree) {
+            this.path = path;
+            this.subtree = subtree;
+        }
+    }
+
+    private final PathInvalidated[] caches;
+    private final BlockingQueue<Invalidation> queue;
+    private final int capacity;
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    private long windowStart = System.currentTimeMillis();
+    private long windowCount;
+    private double rate;
+
+    private Thread worker;
+
+    public CacheInvalidator(final PathInvalidated... caches) {
+        this(DEFAULT_CAPACITY, caches);
+    }
+
+    public CacheInvalidator(final int capacity, final PathInvalidated... caches) {
+        this.caches = caches.clone();
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<Invalidation>(capacity);
+    }
+
+    /**
+     * Start the worker thread, if it is not running yet.
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "jcr-shell cache invalidator");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop the worker thread. Pending invalidations are discarded.
+     */
+    public synchronized void stop() {
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+        queue.clear();
+    }
+
+    /**
+     * Queue the invalidation of a path, blocking while the queue is full.
+     * @param subtree also invalidate all paths that start with the path
+     */
+    public void invalidate(final String path, final boolean subtree) throws InterruptedException {
+        queue.put(new Invalidation(path, subtree));
+        events.incrementAndGet();
+        count();
+    }
+
+    private synchronized void count() {
+        long now = System.currentTimeMillis();
+        windowCount++;
+        if (now - windowStart >= RATE_WINDOW) {
+            rate = windowCount * 1000d / (now - windowStart);
+            windowStart = now;
+            windowCount = 0L;
+        }
+    }
+
+    /**
+     * @return the number of events per second in the last measured window
+     */
+    public synchronized double getEventRate() {
+        if (System.currentTimeMillis() - windowStart > 2 * RATE_WINDOW) {
+            // no events in the last window
+            return 0d;
+        }
+        return rate;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    public long getEvents() {
+        return events.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    private void drain() {
+        List<Invalidation> batch = new ArrayList<Invalidation>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            try {
+                apply(batch);
+            } catch (RuntimeException e) {
+                log.warn("Error while invalidating cache: " + e.getMessage(), e);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Coalesce a batch and apply it to all caches.
+     */
+    void apply(final Collection<Invalidation> batch) {
+        TreeSet<String> prefixes = new TreeSet<String>();
+        Set<String> paths = new HashSet<String>();
+        coalesce(batch, prefixes, paths);
+        for (PathInvalidated cache : caches) {
+            cache.invalidate(prefixes, paths);
+        }
+        batches.incrementAndGet();
+    }
+
+    /**
+     * Reduce a batch to the subtree prefixes that are not covered by another prefix and the
+     * single paths that are not covered by any prefix.
+     */
+    static void coalesce(final Collection<Invalidation> batch, final TreeSet<String> prefixes, final Set<String> paths) {
+        TreeSet<String> sorted = new TreeSet<String>();
+        for (Invalidation invalidation : batch) {
+            if (invalidation.subtree) {
+                sorted.add(invalidation.path);
+            }
+        }
+        // in sorted order a subtree precedes the subtrees below it
+        for (String prefix : sorted) {
+            if (!isCovered(prefixes, prefix)) {
+                prefixes.add(prefix);
+            }
+        }
+        for (Invalidation invalidation : batch) {
+            if (!invalidation.subtree && !isCovered(prefixes, invalidation.path)) {
+                paths.add(invalidation.path);
+            }
+        }
+    }
+
+    /**
+     * @return whether the path is in the subtree of one of the prefixes
+     */
+    private static boolean isCovered(final Set<String> prefixes, final String path) {
+        if (prefixes.contains("/")) {
+            return true;
+        }
+        String ancestor = path;
+        int slash = ancestor.length();
+        while (slash > 0) {
+            ancestor = ancestor.substring(0, slash);
+            if (prefixes.contains(ancestor)) {
+                return true;
+            }
+            slash = ancestor.lastIndexOf('/');
+        }
+        return false;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the subtree digests of frozen nodes by identifier. A frozen node never changes, so its
+ * digest is never invalidated. Digests of other nodes are not cached: the changes of the shell's
+ * own session are not observed and those of other sessions are applied asynchronously, so a
+ * cached digest of a live subtree could hide a change.
+ */
+public class DigestCache {
+
+    /** default maximum number of digests */
+    public static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("jcrshell.digest.entries", 100000);
+
+    private final int maxEntries;
+
+    /** digests of frozen nodes by identifier, least recently used first */
+    private final LinkedHashMap<String, byte[]> frozen = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, byte[]> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    public DigestCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public DigestCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public synchronized byte[] getFrozen(final String identifier) {
+        return frozen.get(identifier);
+    }
+
+    public synchronized void putFrozen(final String identifier, final byte[] digest) {
+        frozen.put(identifier, digest);
+    }
+
+    public synchronized void clear() {
+        frozen.clear();
+    }
+
+    public synchronized int size() {
+        return frozen.size();
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.cache;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Bounded cache of the child names of a node, keyed by the path of the node. The cache is
+ * limited by a number of entries and by an estimate of the heap used by the entries. When
+ * one of the limits is exceeded the least recently used entries are evicted.
+ * <p>
+ * Lookups do not block: the entries are kept in a concurrent sorted map and the recency of
+ * an entry is only updated when the lock of the LRU list is free. Loading happens outside of
+ * any lock and at most once at a time per path; concurrent lookups of a path that is being
+ * loaded wait for that load. Invalidating a path that is being loaded discards the result of
+ * the load, so stale names are never installed.
+ * <p>
+ * Every change of the cached entries and every invalidation, also of paths that are not cached,
+ * gives the cache a new version, which is unique among all caches in the JVM. As long as the
+ * version of a cache is the same, so are its entries and the names in the repository they
+ * cache, which lets clients validate results that were computed from them.
+ */
+public class NameCache implements PathInvalidated {
+
+    /** default maximum number of cached paths */
+    public static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("jcrshell.cache.entries", 10000);
+
+    /** default maximum estimated heap size in bytes */
+    public static final long DEFAULT_MAX_BYTES = Long.getLong("jcrshell.cache.bytes", 16L * 1024L * 1024L);
+
+    /** source of the versions of all caches */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    // rough estimates of the object overhead of the entries
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int NAME_OVERHEAD = 72;
+
+    /**
+     * Loads the names of a path on a cache miss.
+     */
+    public interface Loader {
+
+        SortedSet<String> load() throws RepositoryException;
+    }
+
+    private static final class Entry {
+        private final SortedSet<String> names;
+        private final long weight;
+
+        private Entry(final String path, final SortedSet<String> names) {
+            this.names = names;
+            this.weight = weigh(path, names);
+        }
+    }
+
+    /** the cached entries, sorted by path for subtree invalidation */
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+
+    /** the loads in progress */
+    private final ConcurrentSkipListMap<String, FutureTask<SortedSet<String>>> loading =
+            new ConcurrentSkipListMap<String, FutureTask<SortedSet<String>>>();
+
+    /** guards the LRU list, the byte count and all modifications of the entries and loads */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** access ordered map, the eldest entry is the least recently used */
+    private final LinkedHashMap<String, Entry> lru = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private volatile int maxEntries;
+    private volatile long maxBytes;
+    private volatile long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    private volatile long version = VERSIONS.incrementAndGet();
+
+    public NameCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    public NameCache(final int maxEntries, final long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the cached names for a path.
+     * @return the names or null when the path is not cached
+     */
+    public SortedSet<String> get(final String path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        touch(path);
+        return entry.names;
+    }
+
+    /**
+     * Get the names for a path, loading them when they are not cached. Only one load per path
+     * runs at a time; other callers for the same path wait for its result.
+     */
+    public SortedSet<String> get(final String path, final Loader loader) throws RepositoryException {
+        SortedSet<String> names = get(path);
+        if (names != null) {
+            return names;
+        }
+        FutureTask<SortedSet<String>> task = new FutureTask<SortedSet<String>>(new Callable<SortedSet<String>>() {
+            public SortedSet<String> call() throws Exception {
+                loads.incrementAndGet();
+                return loader.load();
+            }
+        });
+        FutureTask<SortedSet<String>> running = loading.putIfAbsent(path, task);
+        if (running == null) {
+            task.run();
+            running = task;
+        }
+        try {
+            names = running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while loading names of " + path, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RepositoryException) {
+                throw (RepositoryException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RepositoryException(cause);
+        } finally {
+            if (running == task) {
+                install(path, task);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Install the result of a finished load, unless the path was invalidated while loading. The
+     * check and the install happen under the lock that the invalidations take, so an
+     * invalidation either removes the load before the check or the entry after the install.
+     */
+    private void install(final String path, final FutureTask<SortedSet<String>> task) {
+        SortedSet<String> names = null;
+        try {
+            names = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // failed loads are not cached
+        }
+        lock.lock();
+        try {
+            // not removed means not invalidated while loading
+            if (loading.remove(path, task) && names != null) {
+                put(path, names);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(final String path, final SortedSet<String> names) {
+        Entry entry = new Entry(path, names);
+        lock.lock();
+        try {
+            Entry old = entries.put(path, entry);
+            lru.put(path, entry);
+            bytes += entry.weight - (old != null ? old.weight : 0L);
+            evict();
+            version = VERSIONS.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(final String path) {
+        lock.lock();
+        try {
+            loading.remove(path);
+            Entry old = entries.remove(path);
+            if (old != null) {
+                lru.remove(path);
+                bytes -= old.weight;
+            }
+            version = VERSIONS.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all paths that start with the prefix. Note that this is a plain string prefix,
+     * so removing "/foo" also removes "/foobar".
+     */
+    public void removeSubtree(final String prefix) {
+        lock.lock();
+        try {
+            removeLoads(prefix);
+            removeRange(prefix);
+            version = VERSIONS.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the loads of the paths that start with the prefix, so their results are not
+     * installed. The caller must hold the lock.
+     */
+    private void removeLoads(final String prefix) {
+        Iterator<String> tasks = loading.tailMap(prefix).keySet().iterator();
+        while (tasks.hasNext() && tasks.next().startsWith(prefix)) {
+            tasks.remove();
+        }
+    }
+
+    /**
+     * Remove the entries of which the path starts with the prefix. The caller must hold the lock.
+     */
+    private void removeRange(final String prefix) {
+        Iterator<Map.Entry<String, Entry>> tail = entries.tailMap(prefix).entrySet().iterator();
+        while (tail.hasNext()) {
+            Map.Entry<String, Entry> entry = tail.next();
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            tail.remove();
+            lru.remove(entry.getKey());
+            bytes -= entry.getValue().weight;
+        }
+    }
+
+    /**
+     * Remove a batch of subtrees and single paths while taking the lock once.
+     * @param prefixes the subtree prefixes, see {@link #removeSubtree(String)}
+     * @param paths the single paths
+     */
+    @Override
+    public void invalidate(final Collection<String> prefixes, final Collection<String> paths) {
+        lock.lock();
+        try {
+            for (String prefix : prefixes) {
+                removeLoads(prefix);
+                removeRange(prefix);
+            }
+            loading.keySet().removeAll(paths);
+            for (String path : paths) {
+                Entry old = entries.remove(path);
+                if (old != null) {
+                    lru.remove(path);
+                    bytes -= old.weight;
+                }
+            }
+            version = VERSIONS.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            loading.clear();
+            entries.clear();
+            lru.clear();
+            bytes = 0L;
+            version = VERSIONS.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void resetStatistics() {
+        hits.set(0L);
+        misses.set(0L);
+        evictions.set(0L);
+        loads.set(0L);
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(final int maxEntries) {
+        lock.lock();
+        try {
+            this.maxEntries = maxEntries;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(final long maxBytes) {
+        lock.lock();
+        try {
+            this.maxBytes = maxBytes;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the version of the entries, which changes whenever an entry is added or evicted and
+     *         whenever a path is invalidated, also when it was not cached
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of times names were loaded through a {@link Loader}
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * @return the hit ratio between 0 and 1, or 0 when there have been no lookups
+     */
+    public double getHitRatio() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        if (total == 0L) {
+            return 0d;
+        }
+        return (double) hit / total;
+    }
+
+    /**
+     * Move the path to the end of the LRU list. This is skipped when another thread holds the
+     * lock; the recency is only a hint and lookups must not wait for writers.
+     */
+    private void touch(final String path) {
+        if (lock.tryLock()) {
+            try {
+                lru.get(path);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the cache is within its limits. The caller
+     * must hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = lru.entrySet().iterator();
+        while ((lru.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<String, Entry> entry = eldest.next();
+            eldest.remove();
+            entries.remove(entry.getKey());
+            bytes -= entry.getValue().weight;
+            evictions.incrementAndGet();
+            version = VERSIONS.incrementAndGet();
+        }
+    }
+
+    static long weigh(final String path, final SortedSet<String> names) {
+        long weight = ENTRY_OVERHEAD + 2L * path.length();
+        for (String name : names) {
+            weight += NAME_OVERHEAD + 2L * name.length();
+        }
+        return weight;
+    }
+}
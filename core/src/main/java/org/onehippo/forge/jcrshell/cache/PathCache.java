@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.cache;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.onehippo.forge.jcrshell.util.ShellPath;
+
+/**
+ * Cache of the identifiers of resolved paths, so a path that was resolved before is looked up
+ * with a single getNodeByIdentifier call. The paths are normalized absolute paths, as returned
+ * by getPath. A changed path invalidates its subtree, because a move or removal changes the
+ * paths of all descendants. The paths are also kept in sorted order, so a subtree is removed as
+ * a range instead of with a scan of all paths.
+ */
+public class PathCache implements PathInvalidated {
+
+    /** default maximum number of paths */
+    public static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("jcrshell.path.entries", 10000);
+
+    private final int maxEntries;
+
+    /** identifiers by path, least recently used first */
+    private final LinkedHashMap<String, String> identifiers = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            if (size() > maxEntries) {
+                sortedPaths.remove(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /** the cached paths in sorted order */
+    private final TreeSet<String> sortedPaths = new TreeSet<String>();
+
+    private long hits;
+    private long misses;
+
+    public PathCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public PathCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the identifier of the node at the path, or null when it is not cached
+     */
+    public synchronized String get(final String path) {
+        String identifier = identifiers.get(path);
+        if (identifier == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return identifier;
+    }
+
+    public synchronized void put(final String path, final String identifier) {
+        sortedPaths.add(path);
+        identifiers.put(path, identifier);
+    }
+
+    public synchronized void remove(final String path) {
+        if (identifiers.remove(path) != null) {
+            sortedPaths.remove(path);
+        }
+    }
+
+    /**
+     * Invalidate the path and its subtree.
+     */
+    public synchronized void invalidate(final String path) {
+        removeSubtree(path);
+    }
+
+    @Override
+    public synchronized void invalidate(final Collection<String> prefixes, final Collection<String> paths) {
+        for (String prefix : prefixes) {
+            removeSubtree(prefix);
+        }
+        for (String path : paths) {
+            remove(path);
+        }
+    }
+
+    public synchronized void clear() {
+        identifiers.clear();
+        sortedPaths.clear();
+    }
+
+    public synchronized int size() {
+        return identifiers.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void removeSubtree(final String prefix) {
+        if ("/".equals(prefix)) {
+            clear();
+            return;
+        }
+        remove(prefix);
+        for (Iterator<String> iter = sortedPaths.tailSet(prefix + "/").iterator(); iter.hasNext();) {
+            String path = iter.next();
+            if (!ShellPath.isInSubtree(path, prefix)) {
+                break;
+            }
+            iter.remove();
+            identifiers.remove(path);
+        }
+    }
+}
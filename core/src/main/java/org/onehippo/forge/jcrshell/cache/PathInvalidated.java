@@ -0,0 +1,32 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.cache;
+
+import java.util.Collection;
+
+/**
+ * A cache with entries that depend on repository paths.
+ */
+public interface PathInvalidated {
+
+    /**
+     * Remove the entries for a batch of subtrees and single paths.
+     * @param prefixes the subtree prefixes, the prefix and all paths below it are invalidated. A
+     *        cache may invalidate more, e.g. all paths that start with the prefix.
+     * @param paths the single paths
+     */
+    void invalidate(Collection<String> prefixes, Collection<String> paths);
+}
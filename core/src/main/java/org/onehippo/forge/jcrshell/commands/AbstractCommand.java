@@ -16,6 +16,8 @@
 package org.onehippo.forge.jcrshell.commands;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.jcr.RepositoryException;
 
@@ -131,6 +133,60 @@ public abstract class AbstractCommand implements Command {
 
     // --------------------------- helper methods ----------------------- //
 
+    /**
+     * @return true when one of the arguments is the flag
+     */
+    protected static boolean hasFlag(final String[] args, final String flag) {
+        for (String arg : args) {
+            if (flag.equals(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the value of an option given as <code>option=value</code>, an empty string when
+     *         the option is given without a value, or null when it is not given
+     */
+    protected static String getOption(final String[] args, final String option) {
+        for (String arg : args) {
+            if (option.equals(arg)) {
+                return "";
+            }
+            if (arg.startsWith(option + "=")) {
+                return arg.substring(option.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the arguments without the option, with or without a value
+     */
+    protected static String[] removeOption(final String[] args, final String option) {
+        List<String> list = new ArrayList<String>(args.length);
+        for (String arg : args) {
+            if (!option.equals(arg) && !arg.startsWith(option + "=")) {
+                list.add(arg);
+            }
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    /**
+     * @return the arguments without the flag
+     */
+    protected static String[] removeFlag(final String[] args, final String flag) {
+        List<String> list = new ArrayList<String>(args.length);
+        for (String arg : args) {
+            if (!flag.equals(arg)) {
+                list.add(arg);
+            }
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
     /**
      * Print help and usage to the org.onehippo.forge.jcrshell.console.
      */
@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.commands;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.query.InvalidQueryException;
+
+import org.onehippo.forge.jcrshell.JcrShellPrinter;
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.bulk.BulkUpdate;
+import org.onehippo.forge.jcrshell.util.PathGlob;
+
+/**
+ * Apply a property or mixin change to all nodes that match a query or a path pattern.
+ */
+public class Bulk extends AbstractCommand {
+
+    static final String SAVE_EVERY = "--save-every";
+    static final String THREADS = "--threads";
+    static final String DRY_RUN = "--dry-run";
+
+    /** number of failed nodes that are printed */
+    private static final int MAX_FAILURES = 20;
+
+    private static final ArgumentType[] ARGUMENTS = new ArgumentType[] {
+            new ArgumentType(new String[] { "xpath", "sql", "glob" }), ArgumentType.STRING,
+            new ArgumentType(BulkUpdate.OPERATIONS), ArgumentType.STRING, ArgumentType.STRING,
+            ArgumentType.PRIMITIVE };
+
+    public Bulk() {
+        super("bulk", new String[] {},
+                "bulk <xpath|sql|glob> <statement|pattern> <operation> <args> [--save-every=<n>] [--threads=<n>]"
+                        + " [--dry-run]",
+                "apply propset, valueadd, valueremove, mixinadd or mixinremove with its arguments to all nodes that"
+                        + " match the query or path pattern, like /content/*/news/*. The changes are saved every n"
+                        + " nodes (default " + BulkUpdate.DEFAULT_SAVE + ") on separate sessions. --dry-run only"
+                        + " counts the matches", ARGUMENTS);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RepositoryException
+     */
+    @Override
+    protected final boolean executeCommand(final String[] allArgs) throws RepositoryException {
+        String[] args = removeFlag(removeOption(removeOption(allArgs, SAVE_EVERY), THREADS), DRY_RUN);
+        int saveEvery = BulkUpdate.DEFAULT_SAVE;
+        int threads = BulkUpdate.DEFAULT_THREADS;
+        try {
+            String option = getOption(allArgs, SAVE_EVERY);
+            if (option != null && option.length() > 0) {
+                saveEvery = Integer.parseInt(option);
+            }
+            option = getOption(allArgs, THREADS);
+            if (option != null && option.length() > 0) {
+                threads = Integer.parseInt(option);
+            }
+        } catch (NumberFormatException e) {
+            JcrShellPrinter.printWarnln("Not a number: " + e.getMessage());
+            return false;
+        }
+        if (saveEvery < 1 || threads < 1) {
+            JcrShellPrinter.printWarnln("Save every and threads must be at least one.");
+            return false;
+        }
+        BulkUpdate.Operation operation;
+        try {
+            operation = BulkUpdate.parse(args[3], Arrays.copyOfRange(args, 4, args.length));
+        } catch (IllegalArgumentException e) {
+            JcrShellPrinter.printWarnln(e.getMessage());
+            return false;
+        }
+
+        Iterator<String> paths;
+        String language = args[1].toLowerCase(Locale.ENGLISH);
+        try {
+            if ("glob".equals(language)) {
+                paths = new PathGlob(JcrWrapper.getCurrentNode(), args[2]);
+            } else if ("xpath".equals(language) || "sql".equals(language)) {
+                paths = BulkUpdate.paths(JcrWrapper.query(args[2], language));
+            } else {
+                JcrShellPrinter.printWarnln("Unknown query language: " + language);
+                return false;
+            }
+        } catch (InvalidQueryException e) {
+            JcrShellPrinter.printWarnln("Invalid query: " + args[2]);
+            return false;
+        }
+
+        try {
+            if (hasFlag(allArgs, DRY_RUN)) {
+                long started = System.currentTimeMillis();
+                long matched = 0L;
+                while (paths.hasNext()) {
+                    paths.next();
+                    matched++;
+                }
+                JcrShellPrinter.printOkln("Matched: " + matched + " nodes in "
+                        + (System.currentTimeMillis() - started) + " ms");
+                return true;
+            }
+            return update(new BulkUpdate(operation, saveEvery), paths, threads);
+        } catch (IllegalStateException e) {
+            JcrShellPrinter.printErrorln(e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean update(final BulkUpdate update, final Iterator<String> paths, final int threads) {
+        SessionPool pool = JcrWrapper.createSessionPool(threads);
+        try {
+            BulkUpdate.Result result = update.run(paths, pool, new BulkUpdate.Listener() {
+                private long failures;
+
+                public void saved(long matched, long changed, long failed, double nodesPerSecond) {
+                    JcrShellPrinter.println(String.format("Saved: %d matched, %d changed, %d failed (%.0f nodes/s)",
+                            matched, changed, failed, nodesPerSecond));
+                }
+
+                public void failed(String path, Exception e) {
+                    if (failures++ < MAX_FAILURES) {
+                        JcrShellPrinter.printWarnln("Failed: " + path + ": " + e.getMessage());
+                    }
+                }
+            });
+            String summary = String.format("%d matched, %d changed, %d failed in %d ms (%.0f nodes/s)", result
+                    .getMatched(), result.getChanged(), result.getFailed(), result.getMillis(), result
+                    .getNodesPerSecond());
+            if (result.getFailed() > 0) {
+                JcrShellPrinter.printWarnln(summary);
+                return false;
+            }
+            JcrShellPrinter.printOkln(summary);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            JcrShellPrinter.printWarnln("Bulk update interrupted, the saved changes are kept.");
+            return false;
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Override
+    protected boolean hasValidArgs(String[] args) {
+        return removeFlag(removeOption(removeOption(args, SAVE_EVERY), THREADS), DRY_RUN).length >= 5;
+    }
+}
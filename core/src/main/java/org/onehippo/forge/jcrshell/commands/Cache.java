@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.onehippo.forge.jcrshell.JcrShellPrinter;
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.cache.CacheInvalidator;
+import org.onehippo.forge.jcrshell.cache.NameCache;
+import org.onehippo.forge.jcrshell.cache.PathCache;
+import org.onehippo.forge.jcrshell.util.ByteSizeFormatter;
+
+/**
+ * Show the statistics of the name caches and their invalidation or change the cache limits.
+ */
+public class Cache extends AbstractCommand {
+
+    private static final ArgumentType[] ARGUMENTS = new ArgumentType[] {
+            new ArgumentType(new String[] { "clear", "entries", "bytes" }), ArgumentType.INTEGER };
+
+    public Cache() {
+        super("cache", new String[] {}, "cache [clear | entries <max> | bytes <max>]",
+                "show the name cache statistics, clear the caches or set the maximum number of entries or bytes",
+                ARGUMENTS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected final boolean executeCommand(final String[] args) {
+        NameCache nodes = JcrWrapper.getNodeNameCache();
+        NameCache properties = JcrWrapper.getPropertyNameCache();
+        if (args.length == 1) {
+            List<String[]> rows = new ArrayList<String[]>();
+            rows.add(new String[] { "Cache", "Entries", "Size", "Hits", "Misses", "Hit ratio", "Loads", "Evictions" });
+            rows.add(statistics("nodes", nodes));
+            rows.add(statistics("properties", properties));
+            JcrShellPrinter.printTableWithHeader(rows);
+            JcrShellPrinter.println("Limits per cache: " + nodes.getMaxEntries() + " entries, "
+                    + ByteSizeFormatter.format(nodes.getMaxBytes()));
+            CacheInvalidator invalidator = JcrWrapper.getCacheInvalidator();
+            JcrShellPrinter.println(String.format(Locale.ENGLISH,
+                    "Invalidation: %d events, %d batches, %.1f events/s, queue %d/%d", invalidator.getEvents(),
+                    invalidator.getBatches(), invalidator.getEventRate(), invalidator.getQueueDepth(),
+                    invalidator.getQueueCapacity()));
+            JcrShellPrinter.println("Digests: " + JcrWrapper.getDigestCache().size() + " subtrees");
+            PathCache paths = JcrWrapper.getPathCache();
+            JcrShellPrinter.println("Paths: " + paths.size() + " identifiers, " + paths.getHits() + " hits, "
+                    + paths.getMisses() + " misses");
+            return true;
+        }
+
+        if ("clear".equals(args[1])) {
+            JcrWrapper.clearCaches();
+            nodes.resetStatistics();
+            properties.resetStatistics();
+            JcrShellPrinter.printOkln("Caches cleared.");
+            return true;
+        }
+
+        long max;
+        try {
+            max = Long.parseLong(args[2]);
+        } catch (NumberFormatException e) {
+            JcrShellPrinter.printWarnln("Not a number: " + args[2]);
+            return false;
+        }
+        if (max < 0) {
+            JcrShellPrinter.printWarnln("The maximum must be positive: " + args[2]);
+            return false;
+        }
+        if ("entries".equals(args[1])) {
+            int entries = (int) Math.min(max, Integer.MAX_VALUE);
+            nodes.setMaxEntries(entries);
+            properties.setMaxEntries(entries);
+        } else {
+            nodes.setMaxBytes(max);
+            properties.setMaxBytes(max);
+        }
+        JcrShellPrinter.printOkln("Cache limit set.");
+        return true;
+    }
+
+    private String[] statistics(final String name, final NameCache cache) {
+        return new String[] { name, String.valueOf(cache.size()), ByteSizeFormatter.format(cache.getBytes()),
+                String.valueOf(cache.getHits()), String.valueOf(cache.getMisses()),
+                String.format(Locale.ENGLISH, "%.1f%%", cache.getHitRatio() * 100),
+                String.valueOf(cache.getLoads()), String.valueOf(cache.getEvictions()) };
+    }
+
+    @Override
+    protected boolean needsLiveSession() {
+        return false;
+    }
+
+    @Override
+    protected boolean hasValidArgs(String[] args) {
+        if (args.length == 1) {
+            return true;
+        }
+        if (args.length == 2) {
+            return "clear".equals(args[1]);
+        }
+        return args.length == 3 && ("entries".equals(args[1]) || "bytes".equals(args[1]));
+    }
+}
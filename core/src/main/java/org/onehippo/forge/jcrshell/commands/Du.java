@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.onehippo.forge.jcrshell.JcrShellPrinter;
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.util.ByteSizeFormatter;
+import org.onehippo.forge.jcrshell.util.TreeUsage;
+import org.onehippo.forge.jcrshell.util.TreeUsage.Usage;
+
+/**
+ * Show the number of nodes, properties, binary bytes and versions of the subtrees of the current
+ * node and of each primary node type.
+ */
+public class Du extends AbstractCommand {
+
+    private static final String TOP = "--top";
+
+    private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { ArgumentType.INTEGER };
+
+    public Du() {
+        super("du", new String[] {}, "du [<depth>] [--top=<n>]",
+                "show the nodes, properties, binary size and versions of the subtrees down to depth,"
+                        + " default is 1, and by node type, largest first, at most n of each", ARGUMENTS);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RepositoryException 
+     */
+    @Override
+    protected final boolean executeCommand(final String[] allArgs) throws RepositoryException {
+        String[] args = removeOption(allArgs, TOP);
+        int depth = 1;
+        int top = 0;
+        try {
+            if (args.length == 2) {
+                depth = Integer.parseInt(args[1]);
+            }
+            String max = getOption(allArgs, TOP);
+            if (max != null && max.length() > 0) {
+                top = Integer.parseInt(max);
+            }
+        } catch (NumberFormatException e) {
+            JcrShellPrinter.printWarnln("Not a number: " + e.getMessage());
+            return false;
+        }
+        Node node = JcrWrapper.getCurrentNode();
+        if (node == null) {
+            return false;
+        }
+
+        TreeUsage usage = new TreeUsage(depth, top);
+        SessionPool pool = null;
+        if (TreeUsage.DEFAULT_THREADS > 1) {
+            pool = JcrWrapper.createSessionPool(TreeUsage.DEFAULT_THREADS);
+        }
+        try {
+            usage.collect(node, pool);
+        } finally {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+        Usage total = usage.getTotal();
+        if (total == null) {
+            JcrShellPrinter.printErrorln("Unable to read " + node.getPath());
+            return false;
+        }
+
+        List<String[]> rows = new ArrayList<String[]>();
+        rows.add(new String[] { "Path", "Nodes", "Properties", "Binaries", "Versions" });
+        for (Usage subtree : usage.getSubtrees()) {
+            rows.add(row(subtree));
+        }
+        rows.add(row(total));
+        JcrShellPrinter.printTableWithHeader(rows);
+
+        rows = new ArrayList<String[]>();
+        rows.add(new String[] { "Type", "Nodes", "Properties", "Binaries", "Versions" });
+        for (Usage type : usage.getTypes()) {
+            rows.add(row(type));
+        }
+        JcrShellPrinter.println("");
+        JcrShellPrinter.printTableWithHeader(rows);
+        if (usage.getErrors() > 0) {
+            JcrShellPrinter.printWarnln(usage.getErrors() + " nodes could not be read, see the log.");
+        }
+        return true;
+    }
+
+    private static String[] row(final Usage usage) {
+        return new String[] { usage.getName(), String.valueOf(usage.getNodes()),
+                String.valueOf(usage.getProperties()), ByteSizeFormatter.format(usage.getBytes()),
+                String.valueOf(usage.getVersions()) };
+    }
+
+    @Override
+    protected boolean hasValidArgs(String[] args) {
+        int length = removeOption(args, TOP).length;
+        return length == 1 || length == 2;
+    }
+}
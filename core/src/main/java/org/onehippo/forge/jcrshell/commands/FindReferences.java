@@ -15,24 +15,39 @@
  */
 package org.onehippo.forge.jcrshell.commands;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 
 import org.onehippo.forge.jcrshell.JcrShellPrinter;
 import org.onehippo.forge.jcrshell.JcrWrapper;
-
-import static org.onehippo.forge.jcrshell.output.Output.out;
+import org.onehippo.forge.jcrshell.refs.ReferenceIndex;
+import org.onehippo.forge.jcrshell.refs.ReferenceIndex.Reference;
 
 /**
  * Find references and print path.
  */
 public class FindReferences extends AbstractCommand {
 
+    static final String SUBTREE = "--subtree";
+    static final String INDEX = "--index";
+
+    private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { new ArgumentType(new String[] { SUBTREE,
+            INDEX + "=build", INDEX + "=load", INDEX + "=save", INDEX + "=drop" }) };
+
     public FindReferences() {
-        super("findreferences", new String[] { "refs", "noderefs" }, "findreferences",
-                "find references to the current node");
+        super("findreferences", new String[] { "refs", "noderefs" },
+                "findreferences [--subtree] [--index[=build|load|save|drop]]",
+                "find references to the current node, or from outside its subtree to nodes in its subtree."
+                        + " With --index=build all references are indexed, which is needed for --subtree",
+                ARGUMENTS);
     }
 
     /**
@@ -41,20 +56,107 @@ public class FindReferences extends AbstractCommand {
      */
     @Override
     protected final boolean executeCommand(final String[] args) throws RepositoryException {
+        String index = getOption(args, INDEX);
+        if (index != null) {
+            return manageIndex(index);
+        }
         Node node = JcrWrapper.getCurrentNode();
-        if (node.isNodeType("mix:referenceable")) {
-            PropertyIterator iter = node.getReferences();
-            while (iter.hasNext()) {
-                Property prop = iter.nextProperty();
-                Node n = prop.getParent();
-                JcrShellPrinter.println(String.format("%-60s\n", n.getPath()));
+        ReferenceIndex referenceIndex = JcrWrapper.getReferenceIndex();
+        List<String[]> rows = new ArrayList<String[]>();
+        if (hasFlag(args, SUBTREE)) {
+            if (!referenceIndex.isEnabled()) {
+                JcrShellPrinter.printWarnln("No reference index, create it with: findreferences --index=build");
+                return false;
+            }
+            rows.add(new String[] { "Node", "Property", "Type" });
+            for (Reference reference : referenceIndex.getReferencesInto(node.getPath())) {
+                rows.add(new String[] { reference.getTargetPath(), reference.getPropertyPath(),
+                        PropertyType.nameFromValue(reference.getType()) });
+            }
+        } else {
+            rows.add(new String[] { "Property", "Type" });
+            for (String[] row : getReferences(node)) {
+                rows.add(row);
+            }
+        }
+        JcrShellPrinter.printTableWithHeader(rows);
+        return true;
+    }
+
+    /**
+     * @return the property path and type of the references to the node, from the index when
+     *         there is one or else the references the repository keeps for referenceable nodes
+     */
+    static List<String[]> getReferences(final Node node) throws RepositoryException {
+        List<String[]> rows = new ArrayList<String[]>();
+        ReferenceIndex referenceIndex = JcrWrapper.getReferenceIndex();
+        if (referenceIndex.isEnabled()) {
+            for (Reference reference : referenceIndex.getReferences(node.getIdentifier())) {
+                rows.add(new String[] { reference.getPropertyPath(), PropertyType.nameFromValue(reference.getType()) });
             }
+        } else if (node.isNodeType("mix:referenceable")) {
+            addRows(rows, node.getReferences());
+            addRows(rows, node.getWeakReferences());
+        }
+        return rows;
+    }
+
+    private static void addRows(final List<String[]> rows, final PropertyIterator iter) throws RepositoryException {
+        while (iter.hasNext()) {
+            Property prop = iter.nextProperty();
+            rows.add(new String[] { prop.getPath(), PropertyType.nameFromValue(prop.getType()) });
+        }
+    }
+
+    private boolean manageIndex(final String action) throws RepositoryException {
+        ReferenceIndex referenceIndex = JcrWrapper.getReferenceIndex();
+        File file = JcrWrapper.getReferenceIndexFile();
+        try {
+            if ("build".equals(action)) {
+                long start = System.currentTimeMillis();
+                long errors = JcrWrapper.buildReferenceIndex(ReferenceIndex.DEFAULT_THREADS);
+                referenceIndex.save(file);
+                JcrShellPrinter.printOkln("Indexed " + referenceIndex.size() + " properties referring to "
+                        + referenceIndex.getTargetCount() + " nodes in " + (System.currentTimeMillis() - start)
+                        + " ms, saved to " + file.getPath());
+                if (errors > 0) {
+                    JcrShellPrinter.printWarnln(errors + " nodes could not be scanned, see the log.");
+                }
+            } else if ("load".equals(action)) {
+                JcrWrapper.loadReferenceIndex(file);
+                JcrShellPrinter.printOkln("Loaded " + referenceIndex.size() + " properties from " + file.getPath()
+                        + ", changes made since it was saved are not included.");
+            } else if ("save".equals(action)) {
+                if (!referenceIndex.isEnabled()) {
+                    JcrShellPrinter.printWarnln("No reference index to save.");
+                    return false;
+                }
+                referenceIndex.save(file);
+                JcrShellPrinter.printOkln("Saved reference index to " + file.getPath());
+            } else if ("drop".equals(action)) {
+                JcrWrapper.dropReferenceIndex();
+                JcrShellPrinter.printOkln("Reference index dropped.");
+            } else if (referenceIndex.isEnabled()) {
+                JcrShellPrinter.println("Reference index: " + referenceIndex.size() + " properties referring to "
+                        + referenceIndex.getTargetCount() + " nodes");
+            } else {
+                JcrShellPrinter.println("No reference index.");
+            }
+        } catch (IOException e) {
+            JcrShellPrinter.printErrorln("Unable to access reference index file '" + file.getPath() + "': "
+                    + e.getMessage());
+            return false;
         }
         return true;
     }
 
     @Override
     protected boolean hasValidArgs(String[] args) {
-        return args.length == 1;
+        String index = getOption(args, INDEX);
+        if (index != null && index.length() > 0 && !"build".equals(index) && !"load".equals(index)
+                && !"save".equals(index) && !"drop".equals(index)) {
+            return false;
+        }
+        return removeFlag(removeOption(args, INDEX), SUBTREE).length == 1;
     }
 }
@@ -0,0 +1,177 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.onehippo.forge.jcrshell.JcrShellPrinter;
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.refs.IntegrityChecker;
+import org.onehippo.forge.jcrshell.refs.IntegrityChecker.Finding;
+import org.onehippo.forge.jcrshell.refs.IntegrityChecker.Problem;
+import org.onehippo.forge.jcrshell.refs.ReferenceIndex;
+
+/**
+ * Check the references in the subtree of the current node for missing nodes and nodes outside
+ * the subtree, and optionally the version histories for missing versionable nodes.
+ */
+public class IntegrityCheck extends AbstractCommand {
+
+    static final String DEPTH = "--depth";
+    static final String THREADS = "--threads";
+    static final String VERSIONS = "--versions";
+    static final String CHECKPOINT = "--checkpoint";
+    static final String RESTART = "--restart";
+
+    private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { new ArgumentType(new String[] { DEPTH,
+            THREADS, VERSIONS, CHECKPOINT, RESTART }) };
+
+    public IntegrityCheck() {
+        super("integritycheck", new String[] { "fsck" },
+                "integritycheck [--depth=<n>] [--threads=<n>] [--versions] [--checkpoint=<file>] [--restart]",
+                "check the references below the current node for missing nodes and nodes outside the subtree,"
+                        + " with --versions also the version histories for missing versionable nodes.\n"
+                        + "The subtrees at the depth (default 1) are checked on several sessions and recorded in"
+                        + " the checkpoint file, an interrupted check is resumed unless --restart is given",
+                ARGUMENTS);
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws RepositoryException
+     */
+    @Override
+    protected final boolean executeCommand(final String[] args) throws RepositoryException {
+        int depth = 1;
+        int size = IntegrityChecker.DEFAULT_THREADS;
+        try {
+            String option = getOption(args, DEPTH);
+            if (option != null && option.length() > 0) {
+                depth = Integer.parseInt(option);
+            }
+            option = getOption(args, THREADS);
+            if (option != null && option.length() > 0) {
+                size = Integer.parseInt(option);
+            }
+        } catch (NumberFormatException e) {
+            JcrShellPrinter.printWarnln("Not a number: " + e.getMessage());
+            return false;
+        }
+        if (depth < 0 || size < 1) {
+            JcrShellPrinter.printWarnln("The depth must be positive and there must be at least one thread.");
+            return false;
+        }
+        String checkpoint = getOption(args, CHECKPOINT);
+        File checkpointFile = checkpoint == null || checkpoint.length() == 0 ? getCheckpointFile() : new File(
+                checkpoint);
+        if (hasFlag(args, RESTART) && checkpointFile.exists() && !checkpointFile.delete()) {
+            JcrShellPrinter.printErrorln("Unable to remove checkpoint " + checkpointFile.getPath());
+            return false;
+        }
+        Node node = JcrWrapper.getCurrentNode();
+        if (node == null) {
+            return false;
+        }
+
+        final Map<Problem, Integer> counts = new EnumMap<Problem, Integer>(Problem.class);
+        IntegrityChecker checker = new IntegrityChecker(node, depth, ReferenceIndex.DEFAULT_STRING_PROPERTIES,
+                hasFlag(args, VERSIONS), IntegrityChecker.DEFAULT_BATCH);
+        SessionPool pool = JcrWrapper.createSessionPool(size);
+        try {
+            int failed = checker.check(pool, checkpointFile, new IntegrityChecker.Listener() {
+                public void found(Finding finding) {
+                    Integer count = counts.get(finding.getProblem());
+                    counts.put(finding.getProblem(), Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+                    JcrShellPrinter.printWarnln(describe(finding));
+                }
+
+                public void checked(String path, long nodes, boolean resumed) {
+                    if (resumed) {
+                        JcrShellPrinter.println("Already checked: " + path);
+                    } else {
+                        JcrShellPrinter.println("Checked: " + path + " (" + nodes + " nodes)");
+                    }
+                }
+
+                public void failed(String path, Exception e) {
+                    JcrShellPrinter.printErrorln("Failed: " + path + ": " + e.getMessage());
+                }
+            });
+            if (failed > 0) {
+                JcrShellPrinter.printWarnln(failed + " subtrees failed, run the check again to resume.");
+                return false;
+            }
+        } catch (IOException e) {
+            JcrShellPrinter.printErrorln("Unable to use checkpoint '" + checkpointFile.getPath() + "': "
+                    + e.getMessage() + ", use --restart to start over.");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            JcrShellPrinter.printWarnln("Check interrupted, run the check again to resume.");
+            return false;
+        } finally {
+            pool.close();
+        }
+        if (counts.isEmpty()) {
+            JcrShellPrinter.printOkln("No problems found.");
+            return true;
+        }
+        for (Map.Entry<Problem, Integer> entry : counts.entrySet()) {
+            JcrShellPrinter.printWarnln(entry.getKey().name().toLowerCase().replace('_', ' ') + ": "
+                    + entry.getValue());
+        }
+        return false;
+    }
+
+    private static String describe(final Finding finding) {
+        switch (finding.getProblem()) {
+        case DANGLING:
+            return "Dangling: " + finding.getPath() + " -> " + finding.getIdentifier();
+        case OUTSIDE:
+            return "Outside: " + finding.getPath() + " -> " + finding.getTargetPath();
+        default:
+            return "Orphaned history: " + finding.getPath() + " of " + finding.getIdentifier();
+        }
+    }
+
+    /**
+     * @return the checkpoint file from the jcrshell.integrity.file system property, or in the home
+     *         directory of the user
+     */
+    private static File getCheckpointFile() {
+        String file = System.getProperty("jcrshell.integrity.file");
+        if (file == null) {
+            return new File(System.getProperty("user.home"), ".jcrshell-integrity");
+        }
+        return new File(file);
+    }
+
+    @Override
+    protected boolean hasValidArgs(String[] args) {
+        String[] rest = args;
+        for (String option : new String[] { DEPTH, THREADS, CHECKPOINT }) {
+            rest = removeOption(rest, option);
+        }
+        return removeFlag(removeFlag(rest, VERSIONS), RESTART).length == 1;
+    }
+}
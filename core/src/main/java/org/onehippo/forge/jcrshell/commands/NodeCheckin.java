@@ -39,6 +39,7 @@ public class NodeCheckin extends AbstractCommand {
         Node node = JcrWrapper.getCurrentNode();
         if (node.isCheckedOut()) {
             node.checkin();
+            JcrWrapper.removeFromCache(node.getPath());
             JcrShellPrinter.println("Node checked in.");
             return true;
         } else {
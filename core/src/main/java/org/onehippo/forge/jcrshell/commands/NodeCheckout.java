@@ -39,6 +39,7 @@ public class NodeCheckout extends AbstractCommand {
         Node node = JcrWrapper.getCurrentNode();
         if (!node.isCheckedOut()) {
             node.checkout();
+            JcrWrapper.removeFromCache(node.getPath());
             JcrShellPrinter.println("Node checked out.");
             return true;
         } else {
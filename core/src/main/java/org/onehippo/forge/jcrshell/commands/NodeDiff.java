@@ -15,12 +15,7 @@
  */
 package org.onehippo.forge.jcrshell.commands;
 
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.Stack;
 
 import javax.jcr.ItemExistsException;
 import javax.jcr.Node;
@@ -30,20 +25,22 @@ import javax.jcr.RepositoryException;
 import org.onehippo.forge.jcrshell.JcrShellPrinter;
 import org.onehippo.forge.jcrshell.JcrWrapper;
 import org.onehippo.forge.jcrshell.diff.Change;
+import org.onehippo.forge.jcrshell.diff.ChangeRows;
 import org.onehippo.forge.jcrshell.diff.JcrDiff;
-import org.onehippo.forge.jcrshell.diff.PropertyChange;
-import org.onehippo.forge.jcrshell.diff.PropertyChanged;
+import org.onehippo.forge.jcrshell.diff.SubtreeDigester;
 
 /**
  * Diff child node.
  */
 public class NodeDiff extends AbstractCommand {
 
+    static final String DIGEST = "--digest";
+
     private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { ArgumentType.NODE, ArgumentType.NODE };
 
     public NodeDiff() {
-        super("nodediff", new String[] { "diff" }, "nodediff <nodeame> [<path>/]<base>",
-                "nodediff node target: compare node to target", ARGUMENTS);
+        super("nodediff", new String[] { "diff" }, "nodediff <nodeame> [<path>/]<base> [--digest]",
+                "nodediff node target: compare node to target, --digest skips identical subtrees", ARGUMENTS);
     }
 
     /**
@@ -51,7 +48,9 @@ public class NodeDiff extends AbstractCommand {
      * @throws RepositoryException 
      */
     @Override
-    protected final boolean executeCommand(final String[] args) throws RepositoryException {
+    protected final boolean executeCommand(final String[] allArgs) throws RepositoryException {
+        boolean digest = hasFlag(allArgs, DIGEST);
+        String[] args = removeFlag(allArgs, DIGEST);
 
         Node node = JcrWrapper.getCurrentNode();
 
@@ -86,81 +85,15 @@ public class NodeDiff extends AbstractCommand {
         }
         try {
             Node destNode = (Node) node.getSession().getItem(dest);
-            Iterator<Change> diff = JcrDiff.compare(srcNode, destNode);
-
-            Stack<String> stack = new Stack<String>();
-            stack.add("");
-
-            List<String[]> rows = new ArrayList<String[]>();
-            rows.add(new String[] { "", "Name", "Type", "Value" });
-
-            while (diff.hasNext()) {
-                Change change = diff.next();
-                String path = change.getPath();
-
-                String rootPath;
-                if (change.isAddition()) {
-                    rootPath = destNode.getPath();
-                } else {
-                    rootPath = srcNode.getPath();
-                }
-                if ("/".equals(rootPath)) {
-                    rootPath = "";
-                }
-
-                path = path.substring(rootPath.length());
-                path = path.substring(0, path.lastIndexOf('/'));
-
-                LinkedList<String> ancestors = new LinkedList<String>();
-                while (!stack.contains(path)) {
-                    ancestors.add(path);
-                    path = path.substring(0, path.lastIndexOf('/'));
-                }
-
-                String last = stack.peek();
-                while (!path.equals(last)) {
-                    stack.pop();
-                    last = stack.peek();
-                }
-
-                int depth = stack.size();
-                for (ListIterator<String> iter = ancestors.listIterator(ancestors.size()); iter.hasPrevious();) {
-                    String ancestor = iter.previous();
-                    stack.push(ancestor);
-
-                    StringBuilder sb = new StringBuilder();
-                    for (int i = 0; i < depth; i++) {
-                        sb.append("  ");
-                    }
-                    sb.append(ancestor.substring(ancestor.lastIndexOf('/') + 1));
-                    rows.add(new String[] { "", sb.toString(), "", "" });
-                    depth++;
-                }
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < depth; i++) {
-                    sb.append("  ");
-                }
-                String prefix = sb.toString();
-
-                if (!change.isPropertyChange()) {
-                    rows.add(new String[] { change.isRemoval() ? "-" : "+", prefix + change.getName(),
-                            change.getType(), "" });
-                } else {
-                    if (change.isAddition() || change.isRemoval()) {
-                        PropertyChange pc = (PropertyChange) change;
-                        rows.add(new String[] { change.isRemoval() ? "-" : "+", prefix + change.getName(),
-                                pc.getType(), pc.getValue() });
-                    } else {
-                        PropertyChanged pcd = (PropertyChanged) change;
-                        PropertyChange removal = pcd.getRemoval();
-                        rows.add(new String[] { "-", prefix + pcd.getName(), removal.getType(), removal.getValue() });
-
-                        PropertyChange addition = pcd.getAddition();
-                        rows.add(new String[] { "+", prefix + pcd.getName(), addition.getType(), addition.getValue() });
-                    }
-                }
+            Iterator<Change> diff;
+            if (digest) {
+                diff = JcrDiff.compare(srcNode, destNode, new SubtreeDigester(JcrWrapper.getDigestCache()));
+            } else {
+                diff = JcrDiff.compare(srcNode, destNode);
             }
-            JcrShellPrinter.printTableWithHeader(rows);
+
+            JcrShellPrinter.printTableWithHeader(ChangeRows.HEADER, new ChangeRows(diff, srcNode.getPath(), destNode
+                    .getPath()));
         } catch (ItemExistsException e) {
             JcrShellPrinter.printWarnln("Target already exists: " + dest);
         } catch (PathNotFoundException e) {
@@ -173,6 +106,6 @@ public class NodeDiff extends AbstractCommand {
 
     @Override
     protected boolean hasValidArgs(String[] args) {
-        return args.length == 3;
+        return removeFlag(args, DIGEST).length == 3;
     }
 }
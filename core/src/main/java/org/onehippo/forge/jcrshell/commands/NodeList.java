@@ -15,8 +15,8 @@
  */
 package org.onehippo.forge.jcrshell.commands;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -25,17 +25,76 @@ import javax.jcr.RepositoryException;
 import org.onehippo.forge.jcrshell.JcrShellPrinter;
 import org.onehippo.forge.jcrshell.JcrWrapper;
 import org.onehippo.forge.jcrshell.util.HippoJcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * List child nodes of current node.
  */
 public class NodeList extends AbstractCommand {
 
+    /** logger */
+    private static final Logger log = LoggerFactory.getLogger(NodeList.class);
+
+    private static final String OFFSET = "--offset";
+    private static final String LIMIT = "--limit";
+    private static final String COUNT = "--count";
+    private static final String NAMES = "--names";
+
     private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { ArgumentType.NODE };
 
     public NodeList() {
-        super("ls", new String[] { "dir", "nodelist" }, "ls [<path>]", "list child nodes of the current node",
-                ARGUMENTS);
+        super("ls", new String[] { "dir", "nodelist" },
+                "ls [<path>] [--offset=<n>] [--limit=<n>] [--count] [--names]",
+                "list child nodes of the current node, skipping offset nodes and showing at most limit nodes,"
+                        + " only count them or only show their names", ARGUMENTS);
+    }
+
+    /**
+     * The rows of the child nodes, read while the table is printed.
+     */
+    private static final class ChildRows implements Iterator<String[]> {
+        private final NodeIterator iter;
+        private final long limit;
+        private final boolean namesOnly;
+        private long count;
+
+        private ChildRows(final NodeIterator iter, final long limit, final boolean namesOnly) {
+            this.iter = iter;
+            this.limit = limit;
+            this.namesOnly = namesOnly;
+        }
+
+        public boolean hasNext() {
+            return (limit < 0 || count < limit) && iter.hasNext();
+        }
+
+        public String[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            count++;
+            Node n = iter.nextNode();
+            try {
+                // a child node is never the root, so its name is the last segment of the path
+                String path = n.getPath();
+                StringBuilder name = new StringBuilder(path.substring(path.lastIndexOf('/') + 1));
+                if (namesOnly) {
+                    return new String[] { name.toString() };
+                }
+                if (HippoJcrUtils.isVirtual(n)) {
+                    name.append('*');
+                }
+                return new String[] { name.toString(), n.getPrimaryNodeType().getName() };
+            } catch (RepositoryException e) {
+                log.warn("Error while listing child node: {}", e.getMessage());
+                return namesOnly ? new String[] { "?" } : new String[] { "?", e.getMessage() };
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     /**
@@ -43,7 +102,23 @@ public class NodeList extends AbstractCommand {
      * @throws RepositoryException 
      */
     @Override
-    protected final boolean executeCommand(final String[] args) throws RepositoryException {
+    protected final boolean executeCommand(final String[] allArgs) throws RepositoryException {
+        String[] args = removeOptions(allArgs);
+        long offset = 0L;
+        long limit = -1L;
+        try {
+            String value = getOption(allArgs, OFFSET);
+            if (value != null && value.length() > 0) {
+                offset = Long.parseLong(value);
+            }
+            value = getOption(allArgs, LIMIT);
+            if (value != null && value.length() > 0) {
+                limit = Long.parseLong(value);
+            }
+        } catch (NumberFormatException e) {
+            JcrShellPrinter.printWarnln("Not a number: " + e.getMessage());
+            return false;
+        }
 
         StringBuilder path = new StringBuilder();
         for (int i = 1; i < args.length; i++) {
@@ -59,23 +134,41 @@ public class NodeList extends AbstractCommand {
             return false;
         }
 
-        List<String[]> rows = new ArrayList<String[]>();
-        rows.add(new String[] { "Name", "Type" });
-        while (iter.hasNext()) {
-            Node n = iter.nextNode();
-            StringBuilder name = new StringBuilder(JcrWrapper.fullName(n));
-            if (HippoJcrUtils.isVirtual(n)) {
-                name.append('*');
+        if (hasFlag(allArgs, COUNT)) {
+            long size = iter.getSize();
+            if (size < 0) {
+                // the size is unknown, count without fetching the nodes
+                size = 0L;
+                while (iter.hasNext()) {
+                    iter.skip(1L);
+                    size++;
+                }
+            }
+            JcrShellPrinter.println(size + " child nodes");
+            return true;
+        }
+
+        if (offset > 0) {
+            try {
+                iter.skip(offset);
+            } catch (NoSuchElementException e) {
+                JcrShellPrinter.printWarnln("Offset is past the last child node: " + offset);
+                return false;
             }
-            rows.add(new String[] { name.toString(), n.getPrimaryNodeType().getName() });
         }
-        JcrShellPrinter.printTableWithHeader(rows);
+        boolean namesOnly = hasFlag(allArgs, NAMES);
+        String[] header = namesOnly ? new String[] { "Name" } : new String[] { "Name", "Type" };
+        JcrShellPrinter.printTableWithHeader(header, new ChildRows(iter, limit, namesOnly));
         return true;
 
     }
 
+    private static String[] removeOptions(final String[] args) {
+        return removeFlag(removeFlag(removeOption(removeOption(args, OFFSET), LIMIT), COUNT), NAMES);
+    }
+
     @Override
     protected boolean hasValidArgs(String[] args) {
-        return args.length >= 1;
+        return removeOptions(args).length >= 1;
     }
 }
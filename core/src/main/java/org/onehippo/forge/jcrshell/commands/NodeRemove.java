@@ -15,25 +15,41 @@
  */
 package org.onehippo.forge.jcrshell.commands;
 
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 
 import javax.jcr.Node;
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 
 import org.onehippo.forge.jcrshell.JcrShellPrinter;
 import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.bulk.BatchedRemove;
+import org.onehippo.forge.jcrshell.refs.ReferenceIndex;
+import org.onehippo.forge.jcrshell.refs.ReferenceIndex.Reference;
+import org.onehippo.forge.jcrshell.util.PathGlob;
+import org.onehippo.forge.jcrshell.util.ShellPath;
 
 /**
  * Remove child node.
  */
 public class NodeRemove extends AbstractCommand {
 
+    private static final String BATCHED = "--batched";
+
     private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { new ArgumentType(EnumSet.of(
             ArgumentType.Flags.NODE, ArgumentType.Flags.REMOVE)) };
 
     public NodeRemove() {
         super("noderemove", new String[] { "removenode", "noderm", "rmnode", "delete", "nodedel", "rm" },
-                "noderemove <nodename>", "noderm node [,node,[..]]: delete child nodes from the current node",
+                "noderemove [--batched[=<size>]] <nodename|pattern>...",
+                "noderm node [,node,[..]]: delete child nodes from the current node, with a warning when they are"
+                        + " referenced from outside. Patterns like news/* match names as in ls.\n"
+                        + "--batched: delete each subtree bottom-up and save after every size nodes (default "
+                        + BatchedRemove.DEFAULT_SIZE + ")",
                 ARGUMENTS);
     }
 
@@ -42,31 +58,134 @@ public class NodeRemove extends AbstractCommand {
      * @throws RepositoryException 
      */
     @Override
-    protected final boolean executeCommand(final String[] args) throws RepositoryException {
+    protected final boolean executeCommand(final String[] allArgs) throws RepositoryException {
         boolean success = true;
+        String batched = getOption(allArgs, BATCHED);
+        int batchSize = BatchedRemove.DEFAULT_SIZE;
+        if (batched != null && batched.length() > 0) {
+            try {
+                batchSize = Integer.parseInt(batched);
+            } catch (NumberFormatException e) {
+                JcrShellPrinter.printWarnln("Not a number: " + e.getMessage());
+                return false;
+            }
+        }
+        String[] args = removeOption(allArgs, BATCHED);
 
-        for (int i = 1; i < args.length; i++) {
-            final Node node = JcrWrapper.resolvePath(args[i]);
+        for (String target : expand(args)) {
+            final Node node = JcrWrapper.resolvePath(target);
             if (node == null) {
                 success = false;
-                JcrShellPrinter.printWarnln("Node does not exist: " + args[i]);
+                JcrShellPrinter.printWarnln("Node does not exist: " + target);
             } else if (node.isSame(node.getSession().getRootNode())) {
                 success = false;
                 JcrShellPrinter.printWarnln("Cannot remove root node.");
+            } else if (batched != null) {
+                warnReferences(node);
+                success &= removeBatched(node, target, batchSize);
             } else {
+                warnReferences(node);
                 if (JcrWrapper.removeNode(node)) {
-                    JcrShellPrinter.println("Node '" + args[i] + "' removed.");
+                    JcrShellPrinter.println("Node '" + target + "' removed.");
                 } else {
                     success = false;
-                    JcrShellPrinter.printWarnln("Failed to remove node: " + args[i]);
+                    JcrShellPrinter.printWarnln("Failed to remove node: " + target);
                 }
             }
         }
         return success;
     }
 
+    /**
+     * @return the node names of the arguments, with the patterns replaced by the paths they match
+     */
+    private static List<String> expand(final String[] args) throws RepositoryException {
+        List<String> targets = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].indexOf('*') < 0 && args[i].indexOf('|') < 0) {
+                targets.add(args[i]);
+                continue;
+            }
+            PathGlob glob = new PathGlob(JcrWrapper.getCurrentNode(), args[i]);
+            if (!glob.hasNext()) {
+                JcrShellPrinter.printWarnln("No nodes match: " + args[i]);
+            }
+            while (glob.hasNext()) {
+                targets.add(glob.next());
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Remove the subtree of the node in batches that are saved immediately. The removal is done with
+     * the shell session when it has no pending changes, and with a session of its own otherwise, so
+     * that the pending changes are not saved with it.
+     */
+    private static boolean removeBatched(final Node node, final String target, final int batchSize)
+            throws RepositoryException {
+        String path = node.getPath();
+        JcrWrapper.removeFromCache(path);
+        JcrWrapper.removeFromCache(node.getParent().getPath());
+        BatchedRemove.Listener listener = new BatchedRemove.Listener() {
+            public void saved(long removed, double nodesPerSecond) {
+                JcrShellPrinter.println(String.format("Removed: %d nodes (%.0f nodes/s)", removed, nodesPerSecond));
+            }
+        };
+        SessionPool pool = null;
+        try {
+            Session session = node.getSession();
+            if (session.hasPendingChanges()) {
+                pool = JcrWrapper.createSessionPool(1);
+                session = pool.borrow();
+            }
+            long removed = new BatchedRemove(session, batchSize, listener).remove(path);
+            JcrShellPrinter.println("Node '" + target + "' removed, " + removed + " nodes.");
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            JcrShellPrinter.printWarnln("Removal of '" + target + "' interrupted, remove it again to continue.");
+            return false;
+        } catch (RepositoryException e) {
+            JcrShellPrinter.printErrorln("Failed to remove node: " + target + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * Print the references from outside the subtree of the node to nodes in the subtree. Without
+     * a reference index only the references to the node itself are known.
+     */
+    private static void warnReferences(final Node node) throws RepositoryException {
+        List<String[]> rows = new ArrayList<String[]>();
+        ReferenceIndex referenceIndex = JcrWrapper.getReferenceIndex();
+        if (referenceIndex.isEnabled()) {
+            rows.add(new String[] { "Node", "Property", "Type" });
+            for (Reference reference : referenceIndex.getReferencesInto(node.getPath())) {
+                rows.add(new String[] { reference.getTargetPath(), reference.getPropertyPath(),
+                        PropertyType.nameFromValue(reference.getType()) });
+            }
+        } else {
+            rows.add(new String[] { "Node", "Property", "Type" });
+            for (String[] row : FindReferences.getReferences(node)) {
+                // a property below the node is removed with it
+                if (!ShellPath.isInSubtree(row[0], node.getPath())) {
+                    rows.add(new String[] { node.getPath(), row[0], row[1] });
+                }
+            }
+        }
+        if (rows.size() > 1) {
+            JcrShellPrinter.printWarnln("Node " + node.getPath() + " is referenced:");
+            JcrShellPrinter.printTableWithHeader(rows);
+        }
+    }
+
     @Override
     protected boolean hasValidArgs(String[] args) {
-        return args.length > 1;
+        return removeOption(args, BATCHED).length > 1;
     }
 }
@@ -15,26 +15,29 @@
  */
 package org.onehippo.forge.jcrshell.commands;
 
+import java.util.Iterator;
+
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 
 import org.onehippo.forge.jcrshell.JcrShellPrinter;
 import org.onehippo.forge.jcrshell.JcrWrapper;
-import org.onehippo.forge.jcrshell.util.HippoJcrUtils;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.util.TreeRenderer;
 
 /**
  * Print a node tree.
  */
 public class NodeTree extends AbstractCommand {
 
-    private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { ArgumentType.INTEGER };
+    private static final String MAX_CHILDREN = "--max-children";
 
-    private StringBuffer prefix = new StringBuffer();
+    private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { ArgumentType.INTEGER };
 
     public NodeTree() {
-        super("nodetree", new String[] { "tree" }, "nodetree [<levels>]",
-                "print a nodetree number of levels deep, default is 3", ARGUMENTS);
+        super("nodetree", new String[] { "tree" }, "nodetree [<levels>] [--max-children=<n>]",
+                "print a nodetree number of levels deep, default is 3, showing at most n child nodes of each node",
+                ARGUMENTS);
     }
 
     /**
@@ -42,76 +45,48 @@ public class NodeTree extends AbstractCommand {
      * @throws RepositoryException 
      */
     @Override
-    protected final boolean executeCommand(final String[] args) throws RepositoryException {
+    protected final boolean executeCommand(final String[] allArgs) throws RepositoryException {
+        String[] args = removeOption(allArgs, MAX_CHILDREN);
         int maxLevel = 3;
-        if (args.length == 2) {
-            maxLevel = Integer.valueOf(args[1]);
+        int maxChildren = 0;
+        try {
+            if (args.length == 2) {
+                maxLevel = Integer.parseInt(args[1]);
+            }
+            String max = getOption(allArgs, MAX_CHILDREN);
+            if (max != null && max.length() > 0) {
+                maxChildren = Integer.parseInt(max);
+            }
+        } catch (NumberFormatException e) {
+            JcrShellPrinter.printWarnln("Not a number: " + e.getMessage());
+            return false;
         }
         Node node = JcrWrapper.getCurrentNode();
         if (node == null) {
             return false;
         }
 
-        printTree(node, 0, maxLevel, 0, 0);
-
-        return true;
-    }
-
-    /**
-     * Recursive print tree maxLevels deep
-     * @param node start node
-     * @param level current level
-     * @param maxLevel max depth
-     * @param childCount total number of child nodes of parent node
-     * @param pos position of current child node of parent node
-     * @throws RepositoryException
-     */
-    private void printTree(final Node node, final int level, final int maxLevel, final long childCount, final long pos)
-            throws RepositoryException {
-        if (level == (maxLevel + 1)) {
-            // done..
-            return;
+        // the sessions of a pool do not see the pending changes of the shell session
+        SessionPool pool = null;
+        if (TreeRenderer.DEFAULT_THREADS > 1 && !node.getSession().hasPendingChanges()) {
+            pool = JcrWrapper.createSessionPool(TreeRenderer.DEFAULT_THREADS);
         }
-        StringBuffer buf = new StringBuffer();
-        if (level > 0) {
-            buf.append(prefix);
-            if (pos == childCount) {
-                buf.append("`--");
-            } else {
-                buf.append("|--");
+        try {
+            Iterator<String> lines = new TreeRenderer(node, maxLevel, maxChildren, pool);
+            while (lines.hasNext()) {
+                JcrShellPrinter.println(lines.next());
             }
-            buf.append(JcrWrapper.fullName(node));
-            if (HippoJcrUtils.isVirtual(node)) {
-                buf.append("*");
-            }
-            buf.append(" {").append(node.getPrimaryNodeType().getName()).append("}");
-            JcrShellPrinter.println(buf.toString());
-
-            if (pos == childCount) {
-                prefix.append("   ");
-            } else {
-                prefix.append("|  ");
+        } finally {
+            if (pool != null) {
+                pool.close();
             }
-        } else {
-            // treat first node specifically
-            buf.append(JcrWrapper.fullName(node));
-            buf.append(" {").append(node.getPrimaryNodeType().getName()).append("}");
-            JcrShellPrinter.println(buf.toString());
-        }
-        NodeIterator iter = node.getNodes();
-        long size = iter.getSize();
-        while (iter.hasNext()) {
-            Node n = iter.nextNode();
-            printTree(n, (level + 1), maxLevel, size, iter.getPosition());
-
-        }
-        if (level > 0) {
-            prefix.delete(prefix.length() - 3, prefix.length());
         }
+        return true;
     }
 
     @Override
     protected boolean hasValidArgs(String[] args) {
-        return args.length == 1 || args.length == 2;
+        int length = removeOption(args, MAX_CHILDREN).length;
+        return length == 1 || length == 2;
     }
 }
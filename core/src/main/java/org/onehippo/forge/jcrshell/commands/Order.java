@@ -150,6 +150,7 @@ public class Order extends AbstractCommand {
                 parent.orderBefore(siblingName, srcName);
             }
         }
+        JcrWrapper.removeFromCache(parent.getPath());
         return true;
     }
 
@@ -15,14 +15,13 @@
  */
 package org.onehippo.forge.jcrshell.commands;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Map.Entry;
 
-import javax.jcr.Node;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
@@ -39,10 +38,16 @@ import org.onehippo.forge.jcrshell.output.TextOutput;
 import static org.onehippo.forge.jcrshell.output.Output.out;
 
 /**
- * Run a query.
+ * Run a query. The rows are printed while they are read from the result. Only the first
+ * {@link #SAMPLE_SIZE} rows are buffered to determine the column widths, so the memory use
+ * does not depend on the size of the result. Columns that only get a value after the sample
+ * window are not shown.
  */
 public class Query extends AbstractCommand {
 
+    /** number of rows used to determine the columns and their widths */
+    static final int SAMPLE_SIZE = 100;
+
     private static final ArgumentType[] ARGUMENTS = new ArgumentType[] { ArgumentType.STRING };
 
     public Query() {
@@ -118,62 +123,92 @@ public class Query extends AbstractCommand {
 
         Map<String, Integer> usedColumns = new TreeMap<String, Integer>();
         usedColumns.put("jcr:name", 20);
-        List<Map<String, String>> results = new LinkedList<Map<String, String>>();
-        int count = 0;
-        try {
-            while (iter.hasNext() && count < max) {
-                Row row = iter.nextRow();
-                String path = row.getValue("jcr:path").getString();
-                try {
-                    Map<String, String> map = new TreeMap<String, String>();
-                    map.put("jcr:path", path);
-                    Node n = JcrWrapper.getCurrentNode().getSession().getRootNode();
-                    if (!"/".equals(path)) {
-                        n = n.getNode(path.substring(1));
-                    }
-                    String fullName = JcrWrapper.fullName(n);
-                    map.put("jcr:name", fullName);
-                    if (fullName.length() > usedColumns.get("jcr:name")) {
-                        usedColumns.put("jcr:name", fullName.length());
-                    }
-                    for (String name : columns) {
-                        if ("jcr:score".equals(name) || "jcr:path".equals(name)) {
-                            continue;
-                        }
-                        Value value = row.getValue(name);
-                        if (value != null) {
-                            // FIXME: centralize value printing
-                            String strVal;
-                            if (value.getType() == PropertyType.BINARY) {
-                                strVal = "[binary]";
-                            } else {
-                                strVal = value.getString();
-                            }
-                            if (usedColumns.containsKey(name)) {
-                                Integer length = usedColumns.get(name);
-                                if (length < strVal.length()) {
-                                    usedColumns.put(name, strVal.length());
-                                }
-                            } else {
-                                if (strVal.length() > 10) {
-                                    usedColumns.put(name, strVal.length());
-                                } else {
-                                    usedColumns.put(name, 10);
-                                }
-                            }
-                            map.put(name, strVal);
-                        }
+        List<Map<String, String>> sample = new ArrayList<Map<String, String>>(SAMPLE_SIZE);
+        Map<String, String> formats = null;
+        long count = 0;
+        while (iter.hasNext() && count < max) {
+            Row row = iter.nextRow();
+            try {
+                Map<String, String> map = toMap(row, columns);
+                if (formats == null) {
+                    updateWidths(usedColumns, map);
+                    sample.add(map);
+                    if (sample.size() == SAMPLE_SIZE) {
+                        formats = printSample(usedColumns, sample);
                     }
-                    results.add(map);
-                } catch (RepositoryException e) {
-                    JcrShellPrinter.printErrorln("Error: " + e.getMessage());
+                } else {
+                    printRow(usedColumns, formats, map);
                 }
-                count++;
+            } catch (RepositoryException e) {
+                JcrShellPrinter.printErrorln("Error: " + e.getMessage());
             }
-        } catch (RepositoryException e) {
-            JcrShellPrinter.printErrorln("Error: " + e.getMessage());
+            count++;
+        }
+        if (formats == null) {
+            formats = printSample(usedColumns, sample);
         }
+        printLine(usedColumns, formats);
+
+        long size = iter.getSize();
+        JcrShellPrinter.println(String.format("Total: %s", size < 0 ? count : size));
+        return true;
+    }
+
+    /**
+     * Convert a result row into a column name to value map. The name of the node is derived from the path
+     * of the row, so no extra round trip to the repository is needed.
+     */
+    private Map<String, String> toMap(final Row row, final String[] columns) throws RepositoryException {
+        Map<String, String> map = new TreeMap<String, String>();
+        String path = row.getValue("jcr:path").getString();
+        map.put("jcr:path", path);
+        map.put("jcr:name", nameFromPath(path));
+        for (String name : columns) {
+            if ("jcr:score".equals(name) || "jcr:path".equals(name)) {
+                continue;
+            }
+            Value value = row.getValue(name);
+            if (value != null) {
+                // FIXME: centralize value printing
+                if (value.getType() == PropertyType.BINARY) {
+                    map.put(name, "[binary]");
+                } else {
+                    map.put(name, value.getString());
+                }
+            }
+        }
+        return map;
+    }
+
+    static String nameFromPath(final String path) {
+        if ("/".equals(path)) {
+            return "/";
+        }
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
 
+    private void updateWidths(final Map<String, Integer> usedColumns, final Map<String, String> row) {
+        for (Map.Entry<String, String> entry : row.entrySet()) {
+            String name = entry.getKey();
+            if ("jcr:path".equals(name)) {
+                continue;
+            }
+            int length = entry.getValue().length();
+            Integer current = usedColumns.get(name);
+            if (current == null) {
+                usedColumns.put(name, length > 10 ? length : 10);
+            } else if (current < length) {
+                usedColumns.put(name, length);
+            }
+        }
+    }
+
+    /**
+     * Print the header and the rows of the sample window. The column widths are fixed after this.
+     * @return the formats of the columns
+     */
+    private Map<String, String> printSample(final Map<String, Integer> usedColumns,
+            final List<Map<String, String>> sample) {
         Map<String, String> formats = new TreeMap<String, String>();
         for (Map.Entry<String, Integer> entry : usedColumns.entrySet()) {
             formats.put(entry.getKey(), "%-" + (entry.getValue() + 1) + "s");
@@ -187,34 +222,34 @@ public class Query extends AbstractCommand {
             text.a(String.format(formats.get(name), name + " "));
         }
         JcrShellPrinter.print(text.a(String.format("%-40s", "Path")));
+        printLine(usedColumns, formats);
 
-        text = Output.out().a(String.format(formats.get("jcr:name"), dashes(usedColumns.get("jcr:name"))));
-        for (Entry<String, Integer> e : usedColumns.entrySet()) {
-            String name = e.getKey();
+        for (Map<String, String> row : sample) {
+            printRow(usedColumns, formats, row);
+        }
+        sample.clear();
+        return formats;
+    }
+
+    private void printRow(final Map<String, Integer> usedColumns, final Map<String, String> formats,
+            final Map<String, String> row) {
+        TextOutput text = Output.out().a(String.format(formats.get("jcr:name"), row.get("jcr:name")));
+        for (String name : usedColumns.keySet()) {
             if ("jcr:score".equals(name) || "jcr:path".equals(name) || "jcr:name".equals(name)) {
                 continue;
             }
-            text.a(String.format(formats.get(name), dashes(e.getValue())));
-        }
-        JcrShellPrinter.print(text.a(String.format("%-40s", "--------------------")));
-
-        for (Map<String, String> row : results) {
-            text = Output.out().a(String.format(formats.get("jcr:name"), row.get("jcr:name")));
-            for (String name : usedColumns.keySet()) {
-                if ("jcr:score".equals(name) || "jcr:path".equals(name) || "jcr:name".equals(name)) {
-                    continue;
-                }
-                String value = row.get(name);
-                if (value != null) {
-                    text.a(String.format(formats.get(name), value));
-                } else {
-                    text.a(String.format(formats.get(name), ""));
-                }
+            String value = row.get(name);
+            if (value != null) {
+                text.a(String.format(formats.get(name), value));
+            } else {
+                text.a(String.format(formats.get(name), ""));
             }
-            JcrShellPrinter.print(text.a(String.format("%-40s", row.get("jcr:path"))));
         }
+        JcrShellPrinter.print(text.a(String.format("%-40s", row.get("jcr:path"))));
+    }
 
-        text = Output.out().a(String.format(formats.get("jcr:name"), dashes(usedColumns.get("jcr:name"))));
+    private void printLine(final Map<String, Integer> usedColumns, final Map<String, String> formats) {
+        TextOutput text = Output.out().a(String.format(formats.get("jcr:name"), dashes(usedColumns.get("jcr:name"))));
         for (Entry<String, Integer> e : usedColumns.entrySet()) {
             String name = e.getKey();
             if ("jcr:score".equals(name) || "jcr:path".equals(name) || "jcr:name".equals(name)) {
@@ -223,9 +258,6 @@ public class Query extends AbstractCommand {
             text.a(String.format(formats.get(name), dashes(e.getValue())));
         }
         JcrShellPrinter.print(text.a(String.format("%-40s", "--------------------")));
-
-        JcrShellPrinter.println(String.format("Total: %s", iter.getSize()));
-        return true;
     }
 
     @Override
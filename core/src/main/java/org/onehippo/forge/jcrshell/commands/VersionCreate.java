@@ -43,6 +43,7 @@ public class VersionCreate extends AbstractCommand {
         String base = JcrWrapper.getCurrentNode().getBaseVersion().getName();
         if (args.length == 2) {
             vh.addVersionLabel(base, args[1], true);
+            JcrWrapper.removeFromCache(vh.getPath());
             JcrShellPrinter.printOkln("Version " + base + " created with label '" + args[1] + "'.");
         } else {
             JcrShellPrinter.printOkln("Version " + base + " created.");
@@ -57,6 +58,7 @@ public class VersionCreate extends AbstractCommand {
         }
         n.checkin();
         n.checkout();
+        JcrWrapper.removeFromCache(n.getPath());
     }
 
     @Override
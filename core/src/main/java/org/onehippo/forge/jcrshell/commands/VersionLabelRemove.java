@@ -45,6 +45,7 @@ public class VersionLabelRemove extends AbstractCommand {
         VersionHistory vh = JcrWrapper.getVersionHistory();
         try {
             vh.removeVersionLabel(args[1]);
+            JcrWrapper.removeFromCache(vh.getPath());
             JcrShellPrinter.printOkln("Label " + args[1] + " removed. ");
         } catch (VersionException e) {
             JcrShellPrinter.printWarnln("Unable to remove label: " + e.getMessage());
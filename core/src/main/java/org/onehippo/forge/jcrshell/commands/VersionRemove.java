@@ -48,6 +48,7 @@ public class VersionRemove extends AbstractCommand {
         }
         try {
             vh.removeVersion(name);
+            JcrWrapper.removeFromCache(vh.getPath());
             JcrShellPrinter.printOkln("Version " + name + " removed.");
         } catch (VersionException e) {
             JcrShellPrinter.printWarnln("Unable to remove version: " + e.getMessage());
@@ -15,6 +15,7 @@
  */
 package org.onehippo.forge.jcrshell.commands;
 
+import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.version.VersionException;
 import javax.jcr.version.VersionHistory;
@@ -46,7 +47,13 @@ public class VersionRestore extends AbstractCommand {
             name = vh.getVersionByLabel(args[1]).getName();
         }
         try {
-            JcrWrapper.getCurrentNode().restore(name, getRemoveExisting(args));
+            Node node = JcrWrapper.getCurrentNode();
+            node.restore(name, getRemoveExisting(args));
+            if (getRemoveExisting(args)) {
+                JcrWrapper.clearCaches();
+            } else {
+                JcrWrapper.removeFromCache(node.getPath());
+            }
             JcrShellPrinter.printOkln("Versoin " + args[1] + " restored.");
         } catch (VersionException e) {
             JcrShellPrinter.printWarnln("Unable to restore version: " + e.getMessage());
@@ -116,7 +116,7 @@ public class NodeNameCompleter implements Completer {
         for (Iterator<String> i = matches.iterator(); i.hasNext();) {
             String can = i.next();
             // list is sorted, bail out
-            if (!(can.startsWith(start))) {
+            if (!(can.startsWith(start)) || ShellCompleter.isFull(clist)) {
                 break;
             }
             if (!movingup && "..".equals(can)) {
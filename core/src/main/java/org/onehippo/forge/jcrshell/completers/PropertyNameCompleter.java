@@ -98,7 +98,7 @@ public class PropertyNameCompleter implements Completer {
 
         for (Iterator<String> i = matches.iterator(); i.hasNext();) {
             String can = i.next();
-            if (!(can.startsWith(path))) {
+            if (!(can.startsWith(path)) || ShellCompleter.isFull(clist)) {
                 break;
             }
             try {
@@ -33,17 +33,31 @@ public class ShellCompleter implements Completer {
     private ArgumentCompleter commandComp;
     private Map<String, ArgumentCompleter> paramCompletors;
 
-    private boolean initialized = false;
+    /** maximum number of candidates of the completion that is running in the current thread */
+    private static final ThreadLocal<Integer> limit = new ThreadLocal<Integer>();
+
+    private volatile boolean initialized = false;
 
     public ShellCompleter() {
     }
 
-    private void init() {
+    /**
+     * Create the completers of the registered commands, unless that was done before. Commands
+     * that are registered later are not completed.
+     */
+    public void init() {
         if (initialized) {
             return;
-        } else {
-            initialized = true;
         }
+        synchronized (this) {
+            if (!initialized) {
+                createCompleters();
+                initialized = true;
+            }
+        }
+    }
+
+    private void createCompleters() {
 
         final Completer cmdOrAliasCompleter = new AggregateCompleter(new Completer[] {
                 new StringsCompleter(CommandHelper.getCommandsAsArray()),
@@ -123,6 +137,27 @@ public class ShellCompleter implements Completer {
         }
     }
 
+    /**
+     * Complete the buffer, letting the name completers stop once there are more than max
+     * candidates, so that a list with max + 1 candidates means that there are more.
+     */
+    public int complete(String buffer, int cursor, List<CharSequence> candidates, int max) {
+        limit.set(max);
+        try {
+            return complete(buffer, cursor, candidates);
+        } finally {
+            limit.remove();
+        }
+    }
+
+    /**
+     * @return whether a completer should stop adding candidates to the list
+     */
+    static boolean isFull(List<CharSequence> candidates) {
+        Integer max = limit.get();
+        return max != null && candidates.size() > max;
+    }
+
     public int complete(String buffer, int cursor, List<CharSequence> candidates) {
         init();
 
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.diff;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.Stack;
+
+import javax.jcr.RepositoryException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns changes into the rows of a diff table. Parent nodes of changes are shown as indented
+ * rows. The rows are produced while the changes are read, so a table can be printed before the
+ * whole diff has been computed.
+ */
+public final class ChangeRows implements Iterator<String[]> {
+
+    /** logger */
+    private static final Logger log = LoggerFactory.getLogger(ChangeRows.class);
+
+    public static final String[] HEADER = new String[] { "", "Name", "Type", "Value" };
+
+    private final Iterator<Change> diff;
+    private final String basePath;
+    private final String currentPath;
+
+    private final Stack<String> stack = new Stack<String>();
+    private final LinkedList<String[]> rows = new LinkedList<String[]>();
+
+    /**
+     * @param basePath the path of the base node of the diff
+     * @param currentPath the path of the node that is compared to the base
+     */
+    public ChangeRows(final Iterator<Change> diff, final String basePath, final String currentPath) {
+        this.diff = diff;
+        this.basePath = "/".equals(basePath) ? "" : basePath;
+        this.currentPath = "/".equals(currentPath) ? "" : currentPath;
+        stack.add("");
+    }
+
+    public boolean hasNext() {
+        while (rows.isEmpty() && diff.hasNext()) {
+            addRows(diff.next());
+        }
+        return !rows.isEmpty();
+    }
+
+    public String[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return rows.removeFirst();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void addRows(final Change change) {
+        String path = change.getPath();
+        String rootPath = change.isAddition() ? currentPath : basePath;
+
+        path = path.substring(rootPath.length());
+        path = path.substring(0, path.lastIndexOf('/'));
+
+        LinkedList<String> ancestors = new LinkedList<String>();
+        while (!stack.contains(path)) {
+            ancestors.add(path);
+            path = path.substring(0, path.lastIndexOf('/'));
+        }
+
+        String last = stack.peek();
+        while (!path.equals(last)) {
+            stack.pop();
+            last = stack.peek();
+        }
+
+        int depth = stack.size();
+        for (ListIterator<String> iter = ancestors.listIterator(ancestors.size()); iter.hasPrevious();) {
+            String ancestor = iter.previous();
+            stack.push(ancestor);
+            rows.add(new String[] { "", indent(depth) + ancestor.substring(ancestor.lastIndexOf('/') + 1), "", "" });
+            depth++;
+        }
+        String prefix = indent(depth);
+
+        if (!change.isPropertyChange()) {
+            rows.add(new String[] { change.isRemoval() ? "-" : "+", prefix + change.getName(), change.getType(), "" });
+        } else if (change.isAddition() || change.isRemoval()) {
+            PropertyChange pc = (PropertyChange) change;
+            rows.add(new String[] { change.isRemoval() ? "-" : "+", prefix + change.getName(), pc.getType(),
+                    pc.getValue() });
+        } else {
+            PropertyChanged pcd = (PropertyChanged) change;
+            try {
+                PropertyChange removal = pcd.getRemoval();
+                rows.add(new String[] { "-", prefix + pcd.getName(), removal.getType(), removal.getValue() });
+
+                PropertyChange addition = pcd.getAddition();
+                rows.add(new String[] { "+", prefix + pcd.getName(), addition.getType(), addition.getValue() });
+            } catch (RepositoryException e) {
+                log.warn("Error while showing change of '{}': {}", pcd.getPath(), e.getMessage());
+                rows.add(new String[] { "!", prefix + pcd.getName(), "< unknown >", "< error >" });
+            }
+        }
+    }
+
+    private static String indent(final int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append("  ");
+        }
+        return sb.toString();
+    }
+}
@@ -15,28 +15,36 @@
  */
 package org.onehippo.forge.jcrshell.diff;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import javax.jcr.Binary;
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;
-import javax.jcr.Property;
-import javax.jcr.PropertyIterator;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
-import javax.jcr.nodetype.PropertyDefinition;
 
-import org.onehippo.forge.jcrshell.util.HippoJcrUtils;
+import org.onehippo.forge.jcrshell.diff.NodeSnapshot.ChildSnapshot;
+import org.onehippo.forge.jcrshell.diff.NodeSnapshot.PropertySnapshot;
+import org.onehippo.forge.jcrshell.util.PrefetchingTreeWalker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Compares two trees. The pairs of nodes are compared lazily, in depth first order, while the
+ * changes are consumed. Each node is read with one iteration over its properties and one over
+ * its child nodes. The changes keep the items of the compared sessions, so the comparison runs
+ * on the thread of the consumer. With a {@link SubtreeDigester} the pairs of subtrees with the same digest are
+ * skipped.
+ */
 public final class JcrDiff {
 
     /** logger */
@@ -54,155 +62,200 @@ public final class JcrDiff {
     }
     
     public static Iterator<Change> compare(Node base, Node current) {
-        return new ChangeIterator(base, current);
+        return compare(base, current, null);
     }
 
-    static class ChangeIterator implements Iterator<Change> {
-        private boolean initialized = false;
-        private Node base;
-        private Node current;
-        private Iterator<Change> propChanges = null;
-        private List<Iterator<Change>> nested = new LinkedList<Iterator<Change>>();
+    /**
+     * Compare two trees, skipping the subtrees that have the same digest.
+     * @param digester the digester of the subtrees, or null to compare all nodes
+     */
+    public static Iterator<Change> compare(Node base, Node current, SubtreeDigester digester) {
+        return new ChangeIterator(new NodePair(base, current), digester);
+    }
+
+    static boolean isIgnored(String propertyName) {
+        return IGNORED_PROPERTIES.contains(propertyName);
+    }
 
-        ChangeIterator(Node base, Node current) {
+    static final class NodePair {
+        private final Node base;
+        private final Node current;
+
+        NodePair(Node base, Node current) {
             this.base = base;
             this.current = current;
         }
+    }
 
-        void init() {
-            initialized = true;
-            try {
-                SortedSet<Change> changes = new TreeSet<Change>();
-                for (PropertyIterator pi = base.getProperties(); pi.hasNext();) {
-                    Property baseProp = pi.nextProperty();
-                    String name = baseProp.getName();
-                    if (IGNORED_PROPERTIES.contains(name)) {
-                        continue;
-                    }
-                    if (current.hasProperty(name)) {
-                        Property currentProp = current.getProperty(name);
-                        PropertyDefinition pd = baseProp.getDefinition();
-                        if (pd.getRequiredType() == PropertyType.REFERENCE) {
-                            continue;
-                        }
-                        if (baseProp.getDefinition().isMultiple()) {
-                            if (currentProp.getDefinition().isMultiple()) {
-                                Value[] baseVals = baseProp.getValues();
-                                Value[] currentVals = currentProp.getValues();
-                                if (baseVals.length == currentVals.length) {
-                                    for (int i = 0; i < baseVals.length; i++) {
-                                        Value baseVal = baseVals[i];
-                                        Value currentVal = currentVals[i];
-                                        if (baseVal.getType() != currentVal.getType()
-                                                || !baseVal.getString().equals(currentVal.getString())) {
-                                            Change valChange = new PropertyChanged(baseProp, currentProp);
-                                            changes.add(valChange);
-                                            break;
-                                        }
-                                    }
-                                } else {
-                                    Change multi = new PropertyChanged(baseProp, currentProp);
-                                    changes.add(multi);
-                                }
-                            } else {
-                                Change multi = new PropertyChanged(baseProp, currentProp);
-                                changes.add(multi);
-                            }
-                        } else {
-                            if (!currentProp.getDefinition().isMultiple()) {
-                                Value baseVal = baseProp.getValue();
-                                Value currentVal = currentProp.getValue();
-                                if (baseVal.getType() != currentVal.getType()
-                                        || !baseVal.getString().equals(currentVal.getString())) {
-                                    Change valChange = new PropertyChanged(baseProp, currentProp);
-                                    changes.add(valChange);
-                                }
-                            } else {
-                                Change multi = new PropertyChanged(baseProp, currentProp);
-                                changes.add(multi);
-                            }
-                        }
-                    } else {
-                        Change removed = new PropertyRemoved(baseProp);
-                        changes.add(removed);
-                    }
-                }
-                for (PropertyIterator pi = current.getProperties(); pi.hasNext();) {
-                    Property currentProp = pi.nextProperty();
-                    String name = currentProp.getName();
-                    if (IGNORED_PROPERTIES.contains(name)) {
-                        continue;
-                    }
-                    if (currentProp.getDefinition().getRequiredType() == PropertyType.REFERENCE) {
-                        continue;
-                    }
-                    if (!base.hasProperty(name)) {
-                        Change added = new PropertyAdded(currentProp);
-                        changes.add(added);
-                    }
+    static final class PairChanges {
+        private final Iterator<Change> changes;
+        private final List<NodePair> children;
+
+        PairChanges(Iterator<Change> changes, List<NodePair> children) {
+            this.changes = changes;
+            this.children = children;
+        }
+    }
+
+    static final class PairVisitor implements PrefetchingTreeWalker.Visitor<NodePair, PairChanges> {
+        private final SubtreeDigester digester;
+
+        PairVisitor(SubtreeDigester digester) {
+            this.digester = digester;
+        }
+
+        public PairChanges visit(NodePair pair) throws RepositoryException {
+            if (digester != null && Arrays.equals(digester.digest(pair.base), digester.digest(pair.current))) {
+                List<NodePair> children = Collections.emptyList();
+                return new PairChanges(Collections.<Change> emptySet().iterator(), children);
+            }
+            NodeSnapshot base = new NodeSnapshot(pair.base);
+            NodeSnapshot current = new NodeSnapshot(pair.current);
+            SortedSet<Change> changes = new TreeSet<Change>();
+            List<NodePair> children = new ArrayList<NodePair>();
+            compareProperties(base, current, changes);
+            compareNodes(base, current, changes, children);
+            return new PairChanges(changes.iterator(), children);
+        }
+
+        public PairChanges failed(NodePair pair, Exception e) {
+            log.warn("Exception while create change iterator", e);
+            Set<Change> set = Collections.emptySet();
+            List<NodePair> children = Collections.emptyList();
+            return new PairChanges(set.iterator(), children);
+        }
+
+        public List<NodePair> getChildren(PairChanges result) {
+            return result.children;
+        }
+    }
+
+    static void compareProperties(NodeSnapshot base, NodeSnapshot current, SortedSet<Change> changes)
+            throws RepositoryException {
+        Map<String, PropertySnapshot> currentProps = current.getProperties();
+        for (Map.Entry<String, PropertySnapshot> entry : base.getProperties().entrySet()) {
+            String name = entry.getKey();
+            if (isIgnored(name)) {
+                continue;
+            }
+            PropertySnapshot baseProp = entry.getValue();
+            PropertySnapshot currentProp = currentProps.get(name);
+            if (currentProp != null) {
+                if (baseProp.getRequiredType() == PropertyType.REFERENCE) {
+                    continue;
                 }
-                for (NodeIterator ni = base.getNodes(); ni.hasNext();) {
-                    Node baseNode = ni.nextNode();
-                    if (HippoJcrUtils.isVirtual(baseNode)) {
-                        continue;
-                    }
-                    String name = baseNode.getName() + "[" + baseNode.getIndex() + "]";
-                    if (current.hasNode(name)) {
-                        nested.add(compare(baseNode, current.getNode(name)));
+                if (baseProp.isMultiple() != currentProp.isMultiple()) {
+                    changes.add(new PropertyChanged(baseProp.getProperty(), currentProp.getProperty()));
+                } else if (baseProp.isMultiple()) {
+                    Value[] baseVals = baseProp.getValues();
+                    Value[] currentVals = currentProp.getValues();
+                    if (baseVals.length != currentVals.length) {
+                        changes.add(new PropertyChanged(baseProp.getProperty(), currentProp.getProperty()));
                     } else {
-                        changes.add(new NodeRemoved(baseNode));
-                    }
-                }
-                for (NodeIterator ni = current.getNodes(); ni.hasNext();) {
-                    Node currentNode = ni.nextNode();
-                    if (HippoJcrUtils.isVirtual(currentNode)) {
-                        continue;
-                    }
-                    String name = currentNode.getName() + "[" + currentNode.getIndex() + "]";
-                    if (!base.hasNode(name)) {
-                        changes.add(new NodeAdded(currentNode));
+                        for (int i = 0; i < baseVals.length; i++) {
+                            if (!equals(baseVals[i], currentVals[i])) {
+                                changes.add(new PropertyChanged(baseProp.getProperty(), currentProp.getProperty()));
+                                break;
+                            }
+                        }
                     }
+                } else if (!equals(baseProp.getValue(), currentProp.getValue())) {
+                    changes.add(new PropertyChanged(baseProp.getProperty(), currentProp.getProperty()));
                 }
-                propChanges = changes.iterator();
-            } catch (RepositoryException e) {
-                log.warn("Exception while create change iterator", e);
-                Set<Change> set = Collections.emptySet();
-                propChanges = set.iterator();
+            } else {
+                changes.add(new PropertyRemoved(baseProp.getProperty()));
             }
         }
-
-        public boolean hasNext() {
-            if (!initialized) {
-                init();
+        Map<String, PropertySnapshot> baseProps = base.getProperties();
+        for (Map.Entry<String, PropertySnapshot> entry : currentProps.entrySet()) {
+            String name = entry.getKey();
+            if (isIgnored(name)) {
+                continue;
             }
-            if (propChanges.hasNext()) {
-                return true;
+            PropertySnapshot currentProp = entry.getValue();
+            if (currentProp.getRequiredType() == PropertyType.REFERENCE) {
+                continue;
             }
-            while (nested.size() > 0) {
-                Iterator<Change> iter = nested.get(0);
-                if (iter.hasNext()) {
-                    return true;
-                }
-                nested.remove(0);
+            if (!baseProps.containsKey(name)) {
+                changes.add(new PropertyAdded(currentProp.getProperty()));
             }
+        }
+    }
+
+    static boolean equals(Value baseVal, Value currentVal) throws RepositoryException {
+        if (baseVal.getType() != currentVal.getType()) {
             return false;
         }
+        if (baseVal.getType() == PropertyType.BINARY) {
+            // compare binaries by digest instead of materializing them as strings
+            return size(baseVal) == size(currentVal)
+                    && Arrays.equals(SubtreeDigester.digest(baseVal), SubtreeDigester.digest(currentVal));
+        }
+        return baseVal.getString().equals(currentVal.getString());
+    }
 
-        public Change next() {
-            if (!initialized) {
-                init();
+    private static long size(Value binaryVal) throws RepositoryException {
+        Binary binary = binaryVal.getBinary();
+        try {
+            return binary.getSize();
+        } finally {
+            binary.dispose();
+        }
+    }
+
+    static void compareNodes(NodeSnapshot base, NodeSnapshot current, SortedSet<Change> changes,
+            List<NodePair> children) throws RepositoryException {
+        Map<String, ChildSnapshot> currentChildren = current.getChildren();
+        for (Map.Entry<String, ChildSnapshot> entry : base.getChildren().entrySet()) {
+            ChildSnapshot baseNode = entry.getValue();
+            if (baseNode.isVirtual()) {
+                continue;
+            }
+            ChildSnapshot currentNode = currentChildren.get(entry.getKey());
+            if (currentNode != null) {
+                children.add(new NodePair(baseNode.getNode(), currentNode.getNode()));
+            } else {
+                changes.add(new NodeRemoved(baseNode.getNode()));
+            }
+        }
+        Map<String, ChildSnapshot> baseChildren = base.getChildren();
+        for (Map.Entry<String, ChildSnapshot> entry : currentChildren.entrySet()) {
+            if (entry.getValue().isVirtual()) {
+                continue;
             }
-            if (propChanges.hasNext()) {
-                return propChanges.next();
+            if (!baseChildren.containsKey(entry.getKey())) {
+                changes.add(new NodeAdded(entry.getValue().getNode()));
             }
-            while (nested.size() > 0) {
-                Iterator<Change> iter = nested.get(0);
-                if (iter.hasNext()) {
-                    return iter.next();
+        }
+    }
+
+    /**
+     * Flattens the changes of the node pairs.
+     */
+    static class ChangeIterator implements Iterator<Change> {
+        private final PrefetchingTreeWalker<NodePair, PairChanges> walker;
+        private Iterator<Change> changes;
+
+        ChangeIterator(NodePair root, SubtreeDigester digester) {
+            walker = new PrefetchingTreeWalker<NodePair, PairChanges>(root, new PairVisitor(digester), null,
+                    PrefetchingTreeWalker.DEFAULT_WINDOW);
+        }
+
+        public boolean hasNext() {
+            while (changes == null || !changes.hasNext()) {
+                if (!walker.hasNext()) {
+                    return false;
                 }
-                nested.remove(0);
+                changes = walker.next().changes;
+            }
+            return true;
+        }
+
+        public Change next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
-            throw new NoSuchElementException();
+            return changes.next();
         }
 
         public void remove() {
@@ -26,8 +26,11 @@ public abstract class NodeChange extends Change {
     /** logger */
     private static final Logger log = LoggerFactory.getLogger(NodeChange.class);
 
+    private final int index;
+
     NodeChange(Node node) throws RepositoryException {
         super(node);
+        this.index = node.getIndex();
     }
 
     private Node getNode() {
@@ -51,14 +54,9 @@ public abstract class NodeChange extends Change {
     }
 
     protected int getIndex() {
-        try {
-            return getNode().getIndex();
-        } catch (RepositoryException e) {
-            log.warn("Error while getting index for '{}': {}", getPath(), e.getMessage());
-            log.debug("Stack:", e);
-            return 0;
-        }
+        return index;
     }
+
     @Override
     public int compareTo(Change o) {
         int superCmp = super.compareTo(o);
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.diff;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+
+import org.onehippo.forge.jcrshell.util.HippoJcrUtils;
+
+/**
+ * The properties and child nodes of a node, fetched with one iteration each. Lookups by name
+ * are done in memory instead of with hasProperty/getProperty/hasNode calls, each of which is a
+ * round trip to a remote repository. Definitions and values are fetched when first needed.
+ */
+final class NodeSnapshot {
+
+    /**
+     * A property of the node.
+     */
+    static final class PropertySnapshot {
+        private final Property property;
+        private PropertyDefinition definition;
+
+        private PropertySnapshot(final Property property) {
+            this.property = property;
+        }
+
+        Property getProperty() {
+            return property;
+        }
+
+        private PropertyDefinition getDefinition() throws RepositoryException {
+            if (definition == null) {
+                definition = property.getDefinition();
+            }
+            return definition;
+        }
+
+        boolean isMultiple() throws RepositoryException {
+            return getDefinition().isMultiple();
+        }
+
+        int getRequiredType() throws RepositoryException {
+            return getDefinition().getRequiredType();
+        }
+
+        Value getValue() throws RepositoryException {
+            return property.getValue();
+        }
+
+        Value[] getValues() throws RepositoryException {
+            return property.getValues();
+        }
+    }
+
+    /**
+     * A child node of the node.
+     */
+    static final class ChildSnapshot {
+        private final Node node;
+        private final boolean virtual;
+
+        private ChildSnapshot(final Node node) {
+            this.node = node;
+            this.virtual = HippoJcrUtils.isVirtual(node);
+        }
+
+        Node getNode() {
+            return node;
+        }
+
+        boolean isVirtual() {
+            return virtual;
+        }
+    }
+
+    private final Node node;
+    private final Map<String, PropertySnapshot> properties = new LinkedHashMap<String, PropertySnapshot>();
+    private final Map<String, ChildSnapshot> children = new LinkedHashMap<String, ChildSnapshot>();
+
+    NodeSnapshot(final Node node) throws RepositoryException {
+        this.node = node;
+        for (PropertyIterator pi = node.getProperties(); pi.hasNext();) {
+            Property property = pi.nextProperty();
+            properties.put(property.getName(), new PropertySnapshot(property));
+        }
+        for (NodeIterator ni = node.getNodes(); ni.hasNext();) {
+            Node child = ni.nextNode();
+            children.put(child.getName() + "[" + child.getIndex() + "]", new ChildSnapshot(child));
+        }
+    }
+
+    Node getNode() {
+        return node;
+    }
+
+    /**
+     * @return the properties by name, in the order of the repository
+     */
+    Map<String, PropertySnapshot> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return the child nodes by name with index, in the order of the repository
+     */
+    Map<String, ChildSnapshot> getChildren() {
+        return children;
+    }
+}
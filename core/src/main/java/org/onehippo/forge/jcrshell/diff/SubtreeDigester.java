@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.diff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.onehippo.forge.jcrshell.cache.DigestCache;
+import org.onehippo.forge.jcrshell.diff.NodeSnapshot.ChildSnapshot;
+import org.onehippo.forge.jcrshell.diff.NodeSnapshot.PropertySnapshot;
+
+/**
+ * Computes a digest of a subtree, bottom up: the digest of a node covers its properties and the
+ * names and digests of its child nodes. The properties and child nodes that are ignored by the
+ * diff are left out, so two subtrees with the same digest have no changes. Binary values are
+ * digested from their stream.
+ * <p>
+ * The digests of frozen nodes are cached by identifier; the digests of other nodes are only kept
+ * until the digester is discarded, so each node is digested once per comparison and a change is
+ * never hidden by a digest of an earlier one.
+ */
+public final class SubtreeDigester {
+
+    private static final String ALGORITHM = "SHA-1";
+
+    private static final String VERSION_STORAGE = "/jcr:system/jcr:versionStorage/";
+
+    private static final String FROZEN_NODE = "jcr:frozenNode";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final DigestCache cache;
+    private final Map<String, byte[]> digests = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * @param cache the cache of frozen digests to use across comparisons, or null
+     */
+    public SubtreeDigester(final DigestCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the digest of the subtree of the node
+     */
+    public byte[] digest(final Node node) throws RepositoryException {
+        String path = node.getPath();
+        byte[] digest = digests.get(path);
+        if (digest != null) {
+            return digest;
+        }
+        String identifier = null;
+        if (cache != null && isFrozen(path)) {
+            identifier = node.getIdentifier();
+            digest = cache.getFrozen(identifier);
+        }
+        if (digest == null) {
+            digest = compute(node);
+            if (identifier != null) {
+                cache.putFrozen(identifier, digest);
+            }
+        }
+        digests.put(path, digest);
+        return digest;
+    }
+
+    /**
+     * A frozen node and its subtree never change, unlike the version histories around it.
+     */
+    static boolean isFrozen(final String path) {
+        return path.startsWith(VERSION_STORAGE)
+                && (path.endsWith("/" + FROZEN_NODE) || path.contains("/" + FROZEN_NODE + "/"));
+    }
+
+    private byte[] compute(final Node node) throws RepositoryException {
+        NodeSnapshot snapshot = new NodeSnapshot(node);
+        MessageDigest md = newMessageDigest();
+        Map<String, PropertySnapshot> properties = snapshot.getProperties();
+        for (String name : new TreeSet<String>(properties.keySet())) {
+            if (JcrDiff.isIgnored(name)) {
+                continue;
+            }
+            Property property = properties.get(name).getProperty();
+            update(md, name);
+            if (property.isMultiple()) {
+                Value[] values = property.getValues();
+                update(md, values.length);
+                for (Value value : values) {
+                    update(md, value);
+                }
+            } else {
+                update(md, -1);
+                update(md, property.getValue());
+            }
+        }
+        Map<String, ChildSnapshot> children = snapshot.getChildren();
+        for (String name : new TreeSet<String>(children.keySet())) {
+            ChildSnapshot child = children.get(name);
+            if (child.isVirtual()) {
+                continue;
+            }
+            update(md, name);
+            md.update(digest(child.getNode()));
+        }
+        return md.digest();
+    }
+
+    private static void update(final MessageDigest md, final Value value) throws RepositoryException {
+        update(md, value.getType());
+        if (value.getType() == PropertyType.BINARY) {
+            md.update(digest(value));
+        } else {
+            update(md, value.getString());
+        }
+    }
+
+    private static void update(final MessageDigest md, final String string) {
+        try {
+            byte[] bytes = string.getBytes("UTF-8");
+            update(md, bytes.length);
+            md.update(bytes);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(final MessageDigest md, final int i) {
+        md.update((byte) (i >>> 24));
+        md.update((byte) (i >>> 16));
+        md.update((byte) (i >>> 8));
+        md.update((byte) i);
+    }
+
+    /**
+     * Digest the stream of a binary value, without holding it in memory.
+     */
+    static byte[] digest(final Value value) throws RepositoryException {
+        MessageDigest md = newMessageDigest();
+        Binary binary = value.getBinary();
+        try {
+            InputStream in = binary.getStream();
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    md.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RepositoryException("Unable to read binary: " + e.getMessage(), e);
+        } finally {
+            binary.dispose();
+        }
+        return md.digest();
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+}
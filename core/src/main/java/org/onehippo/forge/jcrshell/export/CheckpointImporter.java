@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.hippoecm.repository.api.HippoSession;
+import org.onehippo.forge.jcrshell.util.HippoJcrUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Imports a system view stream through the import content handler of the session and saves the
+ * session at checkpoints: after a number of nodes or bytes of the stream since the previous
+ * checkpoint, whichever comes first. The transient space of the session then holds at most one
+ * checkpoint worth of nodes instead of the whole import. Checkpoints are only taken when a node
+ * has been imported completely. The session is saved when the import is done, and must not have
+ * other pending changes when it starts.
+ * <p>
+ * An import that creates new identifiers can only be saved at checkpoints through the
+ * dereferenced import of a Hippo session. A plain import handler only rewrites the reference
+ * values to the new identifiers at the end of the document, so a checkpoint would save the
+ * references with the identifiers of the document.
+ */
+public final class CheckpointImporter {
+
+    /** default number of nodes between checkpoints */
+    public static final int DEFAULT_NODES = Integer.getInteger("jcrshell.import.checkpoint.nodes", 1000);
+
+    /** default number of bytes between checkpoints */
+    public static final long DEFAULT_BYTES = Long.getLong("jcrshell.import.checkpoint.bytes", 16L * 1024 * 1024);
+
+    private static final String SV_URI = "http://www.jcp.org/jcr/sv/1.0";
+    private static final String NODE = "node";
+
+    /**
+     * Receives the progress of the import, on the importing thread.
+     */
+    public interface Listener {
+        void checkpoint(long nodes, long bytes, double nodesPerSecond);
+    }
+
+    private final Session session;
+    private final int checkpointNodes;
+    private final long checkpointBytes;
+    private final Listener listener;
+
+    private long nodes;
+    private long checkpoints;
+
+    /**
+     * @param checkpointNodes the number of nodes between checkpoints, 0 for no limit
+     * @param checkpointBytes the number of bytes between checkpoints, 0 for no limit
+     * @param listener the listener to notify at each checkpoint, or null
+     */
+    public CheckpointImporter(final Session session, final int checkpointNodes, final long checkpointBytes,
+            final Listener listener) {
+        this.session = session;
+        this.checkpointNodes = checkpointNodes;
+        this.checkpointBytes = checkpointBytes;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the number of nodes imported by this importer
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the number of checkpoints of this importer, including the final save of each import
+     */
+    public long getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * @return whether an import into the session with the uuid behavior can be saved at checkpoints
+     */
+    public static boolean canCheckpoint(final Session session, final int uuidBehavior) {
+        return uuidBehavior != ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW || HippoJcrUtils.isHippoSession(session);
+    }
+
+    public void importXml(final String parentAbsPath, final InputStream in, final int uuidBehavior,
+            final int referenceBehavior, final int mergeBehavior) throws IOException, RepositoryException {
+        if (session.hasPendingChanges()) {
+            throw new RepositoryException("Session has pending changes, save or refresh before importing");
+        }
+        if ((checkpointNodes > 0 || checkpointBytes > 0) && !canCheckpoint(session, uuidBehavior)) {
+            throw new RepositoryException("Checkpoints are not supported for imports that create new identifiers");
+        }
+        ContentHandler handler;
+        if (HippoJcrUtils.isHippoSession(session)) {
+            handler = ((HippoSession) session).getDereferencedImportContentHandler(parentAbsPath, uuidBehavior,
+                    referenceBehavior, mergeBehavior);
+        } else {
+            handler = session.getImportContentHandler(parentAbsPath, uuidBehavior);
+        }
+        CountingInputStream counter = new CountingInputStream(in);
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature("http://xml.org/sax/features/namespace-prefixes", false);
+            XMLReader reader = factory.newSAXParser().getXMLReader();
+            reader.setContentHandler(new CheckpointHandler(handler, counter));
+            reader.parse(new InputSource(counter));
+        } catch (ParserConfigurationException e) {
+            throw new RepositoryException("Unable to create parser: " + e.getMessage(), e);
+        } catch (SAXException e) {
+            Exception cause = e.getException();
+            if (cause instanceof RepositoryException) {
+                throw (RepositoryException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RepositoryException("Unable to import: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Passes the events to the import handler and takes the checkpoints.
+     */
+    private final class CheckpointHandler implements ContentHandler {
+        private final ContentHandler handler;
+        private final CountingInputStream counter;
+        private final long started = System.currentTimeMillis();
+        private long lastNodes;
+        private long lastBytes;
+
+        private CheckpointHandler(final ContentHandler handler, final CountingInputStream counter) {
+            this.handler = handler;
+            this.counter = counter;
+        }
+
+        private void checkpoint() throws SAXException {
+            try {
+                session.save();
+            } catch (RepositoryException e) {
+                throw new SAXException(e);
+            }
+            checkpoints++;
+            lastNodes = nodes;
+            lastBytes = counter.getByteCount();
+            if (listener != null) {
+                long elapsed = Math.max(1L, System.currentTimeMillis() - started);
+                listener.checkpoint(nodes, lastBytes, nodes * 1000d / elapsed);
+            }
+        }
+
+        public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+            handler.endElement(uri, localName, qName);
+            if (SV_URI.equals(uri) && NODE.equals(localName)) {
+                nodes++;
+                if ((checkpointNodes > 0 && nodes - lastNodes >= checkpointNodes)
+                        || (checkpointBytes > 0 && counter.getByteCount() - lastBytes >= checkpointBytes)) {
+                    checkpoint();
+                }
+            }
+        }
+
+        public void endDocument() throws SAXException {
+            handler.endDocument();
+            checkpoint();
+        }
+
+        public void setDocumentLocator(final Locator locator) {
+            handler.setDocumentLocator(locator);
+        }
+
+        public void startDocument() throws SAXException {
+            handler.startDocument();
+        }
+
+        public void startPrefixMapping(final String prefix, final String uri) throws SAXException {
+            handler.startPrefixMapping(prefix, uri);
+        }
+
+        public void endPrefixMapping(final String prefix) throws SAXException {
+            handler.endPrefixMapping(prefix);
+        }
+
+        public void startElement(final String uri, final String localName, final String qName,
+                final Attributes atts) throws SAXException {
+            handler.startElement(uri, localName, qName, atts);
+        }
+
+        public void characters(final char[] ch, final int start, final int length) throws SAXException {
+            handler.characters(ch, start, length);
+        }
+
+        public void ignorableWhitespace(final char[] ch, final int start, final int length) throws SAXException {
+            handler.ignorableWhitespace(ch, start, length);
+        }
+
+        public void processingInstruction(final String target, final String data) throws SAXException {
+            handler.processingInstruction(target, data);
+        }
+
+        public void skippedEntity(final String name) throws SAXException {
+            handler.skippedEntity(name);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.export;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The manifest of a split export: the exported node and the chunks in the order in which they
+ * have to be imported. The manifest is a text file with one tab separated entry per line. A
+ * chunk is listed again with its checksum when it has been written, so the manifest of an
+ * interrupted export tells which chunks are complete.
+ */
+public final class ExportManifest {
+
+    /** name of the manifest file in the export directory */
+    public static final String FILE_NAME = "manifest.txt";
+
+    private static final String HEADER = "# jcr-shell split export";
+    private static final String SOURCE = "source";
+    private static final String NAME = "name";
+    private static final String DEPTH = "depth";
+    private static final String SKIP_BINARIES = "skipBinaries";
+    private static final String CHUNK = "chunk";
+    private static final String DEEP = "deep";
+    private static final String SHALLOW = "shallow";
+    private static final String NO_CHECKSUM = "-";
+
+    private static final String ALGORITHM = "SHA-1";
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * A file with the export of one node. A shallow chunk contains the properties of the node,
+     * a deep chunk the whole subtree.
+     */
+    public static final class Chunk {
+        private final String fileName;
+        private final String relPath;
+        private final boolean deep;
+        private volatile String checksum;
+
+        public Chunk(final String fileName, final String relPath, final boolean deep) {
+            this.fileName = fileName;
+            this.relPath = relPath;
+            this.deep = deep;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return the path of the node relative to the exported node, empty for the exported node
+         */
+        public String getRelPath() {
+            return relPath;
+        }
+
+        public boolean isDeep() {
+            return deep;
+        }
+
+        /**
+         * @return the checksum of the file, or null when it has not been written
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public void setChecksum(final String checksum) {
+            this.checksum = checksum;
+        }
+
+        boolean isSameChunk(final Chunk other) {
+            return fileName.equals(other.fileName) && relPath.equals(other.relPath) && deep == other.deep;
+        }
+    }
+
+    private final String source;
+    private final String name;
+    private final int depth;
+    private final boolean skipBinaries;
+    private final Map<String, Chunk> chunks = new LinkedHashMap<String, Chunk>();
+
+    public ExportManifest(final String source, final String name, final int depth, final boolean skipBinaries,
+            final List<Chunk> chunks) {
+        this.source = source;
+        this.name = name;
+        this.depth = depth;
+        this.skipBinaries = skipBinaries;
+        for (Chunk chunk : chunks) {
+            this.chunks.put(chunk.getFileName(), chunk);
+        }
+    }
+
+    /**
+     * @return the path of the exported node
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the name of the exported node
+     */
+    public String getName() {
+        return name;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isSkipBinaries() {
+        return skipBinaries;
+    }
+
+    /**
+     * @return the chunks in import order
+     */
+    public List<Chunk> getChunks() {
+        return Collections.unmodifiableList(new ArrayList<Chunk>(chunks.values()));
+    }
+
+    public Chunk getChunk(final String fileName) {
+        return chunks.get(fileName);
+    }
+
+    /**
+     * @return true when all chunks have been written
+     */
+    public boolean isComplete() {
+        for (Chunk chunk : chunks.values()) {
+            if (chunk.getChecksum() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the first chunk of which the file in the directory is missing or does not match its
+     *         checksum, or null when all chunks are complete
+     */
+    public Chunk verify(final File dir) throws IOException {
+        for (Chunk chunk : chunks.values()) {
+            File file = new File(dir, chunk.getFileName());
+            if (chunk.getChecksum() == null || !file.exists() || !chunk.getChecksum().equals(checksum(file))) {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    public static ExportManifest read(final File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String source = null;
+            String name = null;
+            int depth = 0;
+            boolean skipBinaries = false;
+            Map<String, Chunk> chunks = new LinkedHashMap<String, Chunk>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 5);
+                try {
+                    if (SOURCE.equals(fields[0])) {
+                        source = fields[1];
+                    } else if (NAME.equals(fields[0])) {
+                        name = fields[1];
+                    } else if (DEPTH.equals(fields[0])) {
+                        depth = Integer.parseInt(fields[1]);
+                    } else if (SKIP_BINARIES.equals(fields[0])) {
+                        skipBinaries = Boolean.parseBoolean(fields[1]);
+                    } else if (CHUNK.equals(fields[0])) {
+                        Chunk chunk = new Chunk(fields[1], fields[4], DEEP.equals(fields[2]));
+                        if (!NO_CHECKSUM.equals(fields[3])) {
+                            chunk.setChecksum(fields[3]);
+                        }
+                        // a later entry of a chunk records its checksum, the first one its position
+                        chunks.put(chunk.getFileName(), chunk);
+                    } else {
+                        throw new IOException("Unknown manifest entry in " + file + ": " + line);
+                    }
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    throw new IOException("Incomplete manifest entry in " + file + ": " + line);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid manifest entry in " + file + ": " + line);
+                }
+            }
+            if (source == null || name == null) {
+                throw new IOException("Not an export manifest: " + file);
+            }
+            return new ExportManifest(source, name, depth, skipBinaries, new ArrayList<Chunk>(chunks.values()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write the manifest, replacing the file when it exists.
+     */
+    public synchronized void write(final File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            out.print(HEADER + "\n");
+            out.print(SOURCE + "\t" + source + "\n");
+            out.print(NAME + "\t" + name + "\n");
+            out.print(DEPTH + "\t" + depth + "\n");
+            out.print(SKIP_BINARIES + "\t" + skipBinaries + "\n");
+            for (Chunk chunk : chunks.values()) {
+                out.print(entry(chunk));
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Unable to write " + tmp);
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Unable to replace " + file + " with " + tmp);
+        }
+    }
+
+    /**
+     * Append the entry of a chunk to the manifest file, to record its checksum.
+     */
+    public synchronized void append(final File file, final Chunk chunk) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        try {
+            out.print(entry(chunk));
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Unable to write " + file);
+        }
+    }
+
+    private static String entry(final Chunk chunk) {
+        String checksum = chunk.getChecksum();
+        return CHUNK + "\t" + chunk.getFileName() + "\t" + (chunk.isDeep() ? DEEP : SHALLOW) + "\t"
+                + (checksum == null ? NO_CHECKSUM : checksum) + "\t" + chunk.getRelPath() + "\n";
+    }
+
+    /**
+     * @return the checksum of the contents of a file
+     */
+    public static String checksum(final File file) throws IOException {
+        MessageDigest md = newMessageDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(md.digest());
+    }
+
+    static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+
+    static String toHex(final byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
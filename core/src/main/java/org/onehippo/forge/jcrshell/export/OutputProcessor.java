@@ -15,6 +15,7 @@
  */
 package org.onehippo.forge.jcrshell.export;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,23 +28,36 @@ import javax.xml.parsers.SAXParserFactory;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
+/**
+ * Writes the document with one element per line and indentation. Text is escaped in a single
+ * pass from the character arrays of the parser into a buffered writer.
+ */
 class OutputProcessor extends XmlProcessor {
     private static final String SV_VALUE = "sv:value";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String[] INDENTS = new String[32];
+
+    static {
+        INDENTS[0] = "";
+        for (int i = 1; i < INDENTS.length; i++) {
+            INDENTS[i] = INDENTS[i - 1] + "  ";
+        }
+    }
+
     private int indent = 0;
-    private StringBuffer textBuffer = null;
     private PrintWriter out;
     private boolean inValue = false;
 
     OutputProcessor(SAXParserFactory factory, XmlProcessor recordProcessor, InputStream istream, OutputStream ostream)
             throws IOException, ParserConfigurationException, SAXException {
         super(factory, recordProcessor, istream);
-        out = new PrintWriter(new OutputStreamWriter(ostream, "UTF8"));
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(ostream, "UTF8"), BUFFER_SIZE));
     }
 
     OutputProcessor(SAXParserFactory factory, InputStream istream, OutputStream ostream) throws IOException,
             ParserConfigurationException, SAXException {
         super(factory, null, istream);
-        out = new PrintWriter(new OutputStreamWriter(ostream, "UTF8"));
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(ostream, "UTF8"), BUFFER_SIZE));
     }
 
     @Override
@@ -67,18 +81,60 @@ class OutputProcessor extends XmlProcessor {
         }
     }
 
-    private void flush() throws SAXException {
-        if (textBuffer == null) {
-            return;
+    private void indent() {
+        int remaining = indent;
+        while (remaining >= INDENTS.length) {
+            out.write(INDENTS[INDENTS.length - 1]);
+            remaining -= INDENTS.length - 1;
+        }
+        out.write(INDENTS[remaining]);
+    }
+
+    /**
+     * @return the entity for the character, or null when it needs no escaping. Attribute values
+     *         are always quoted with &quot;.
+     */
+    private static String entity(char c, boolean attribute) {
+        switch (c) {
+        case '&':
+            return "&amp;";
+        case '<':
+            return "&lt;";
+        case '>':
+            return attribute ? null : "&gt;";
+        case '"':
+            return attribute ? "&quot;" : null;
+        default:
+            return null;
+        }
+    }
+
+    private void escape(char[] buf, int offset, int len) {
+        int start = offset;
+        int end = offset + len;
+        for (int i = offset; i < end; i++) {
+            String entity = entity(buf[i], false);
+            if (entity != null) {
+                out.write(buf, start, i - start);
+                out.write(entity);
+                start = i + 1;
+            }
         }
-        String s = "" + textBuffer;
-        s = s.replaceAll("&", "&amp;").replaceAll("<", "&lt;").replaceAll(">", "&gt;");
-        out.print(s);
-        textBuffer = null;
+        out.write(buf, start, end - start);
     }
 
-    private void clear() {
-        textBuffer = null;
+    private void escapeAttribute(String value) {
+        int start = 0;
+        int end = value.length();
+        for (int i = 0; i < end; i++) {
+            String entity = entity(value.charAt(i), true);
+            if (entity != null) {
+                out.write(value, start, i - start);
+                out.write(entity);
+                start = i + 1;
+            }
+        }
+        out.write(value, start, end - start);
     }
 
     @Override
@@ -92,9 +148,7 @@ class OutputProcessor extends XmlProcessor {
             out.print(literal);
             out.print("-->\n\n");
         } else {
-            for (int i = 0; i < indent; i++) {
-                out.print("  ");
-            }
+            indent();
             out.print("<!--");
             out.print(literal);
             out.print("-->\n");
@@ -107,20 +161,15 @@ class OutputProcessor extends XmlProcessor {
 
     @Override
     public void characters(char buf[], int offset, int len) throws SAXException {
+        // values have no child elements, so their text can be written as soon as it is parsed
         if (inValue) {
-            String s = new String(buf, offset, len);
-            if (textBuffer == null) {
-                textBuffer = new StringBuffer(s);
-            } else {
-                textBuffer.append(s);
-            }
+            escape(buf, offset, len);
         }
     }
 
     @Override
     public void startElement(String namespaceURI, String sName, String qName, Attributes attrs) throws SAXException {
         super.startElement(namespaceURI, sName, qName, attrs);
-        flush();
         String eName = sName;
         if ("".equals(eName)) {
             eName = qName;
@@ -131,10 +180,9 @@ class OutputProcessor extends XmlProcessor {
             }
             inValue = true;
         }
-        for (int i = 0; i < indent; i++) {
-            out.print("  ");
-        }
-        out.print("<" + eName);
+        indent();
+        out.write('<');
+        out.write(eName);
         if (attrs != null) {
             for (int i = 0; i < attrs.getLength(); i++) {
                 String aName = attrs.getLocalName(i);
@@ -144,11 +192,15 @@ class OutputProcessor extends XmlProcessor {
                 if (aName.startsWith("xmlns:") && !"xmlns:sv".equals(aName)) {
                     continue;
                 }
-                out.print(" ");
-                out.print(aName + "=\"" + attrs.getValue(i) + "\"");
+                String value = attrs.getValue(i);
+                out.write(' ');
+                out.write(aName);
+                out.write("=\"");
+                escapeAttribute(value);
+                out.write('"');
             }
         }
-        out.print(">");
+        out.write('>');
         if (!eName.equals(SV_VALUE)) {
             out.println();
         }
@@ -164,18 +216,16 @@ class OutputProcessor extends XmlProcessor {
         }
         if (eName.equals(SV_VALUE)) {
             if (getPath().endsWith("/hippo:paths")) {
-                clear();
                 return;
             }
             inValue = false;
         }
-        flush();
         --indent;
         if (!eName.equals(SV_VALUE)) {
-            for (int i = 0; i < indent; i++) {
-                out.print("  ");
-            }
+            indent();
         }
-        out.println("</" + eName + ">");
+        out.write("</");
+        out.write(eName);
+        out.println('>');
     }
 }
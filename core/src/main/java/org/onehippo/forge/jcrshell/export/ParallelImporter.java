@@ -0,0 +1,298 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.export;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.hippoecm.repository.api.ImportReferenceBehavior;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.export.ExportManifest.Chunk;
+import org.onehippo.forge.jcrshell.util.HippoJcrUtils;
+import org.onehippo.forge.jcrshell.util.PrefetchingTreeWalker;
+
+/**
+ * Imports the chunks of a split export concurrently. The chunks with the properties of the nodes
+ * above the split depth are imported first, in order, with the session of the target node. The
+ * subtrees are then imported with the sessions of a pool, each of which saves its own chunks.
+ * Subtrees with the same parent are imported concurrently, except when they have the same name,
+ * and are ordered as in the export afterwards when the parent has orderable child nodes.
+ * <p>
+ * Each chunk is a separate import, so references between chunks only survive when the
+ * identifiers are kept, see {@link #canImportChunks}.
+ */
+public final class ParallelImporter {
+
+    /**
+     * Receives the progress of the import, on the thread that called
+     * {@link ParallelImporter#importManifest}.
+     */
+    public interface Listener {
+        void imported(Chunk chunk);
+    }
+
+    private final SessionPool pool;
+    private final int uuidBehavior;
+    private final int referenceBehavior;
+    private final int mergeBehavior;
+    private final int checkpointNodes;
+    private final long checkpointBytes;
+
+    /**
+     * @param checkpointNodes the number of nodes between saves of a worker, 0 to save each chunk once
+     * @param checkpointBytes the number of bytes between saves of a worker, 0 to save each chunk once
+     */
+    public ParallelImporter(final SessionPool pool, final int uuidBehavior, final int referenceBehavior,
+            final int mergeBehavior, final int checkpointNodes, final long checkpointBytes) {
+        this.pool = pool;
+        this.uuidBehavior = uuidBehavior;
+        this.referenceBehavior = referenceBehavior;
+        this.mergeBehavior = mergeBehavior;
+        this.checkpointNodes = checkpointNodes;
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    /**
+     * @return whether the references between the chunks of a split export survive when the chunks
+     *         are imported one by one into the session: the identifiers must be kept, as new ones
+     *         are only mapped within one import, and a Hippo repository, which resolves the
+     *         references while importing, must fail on the references it cannot resolve yet
+     *         instead of dropping them or pointing them to the root
+     */
+    public static boolean canImportChunks(final Session session, final int uuidBehavior,
+            final int referenceBehavior) {
+        return uuidBehavior != ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW
+                && (!HippoJcrUtils.isHippoSession(session)
+                        || referenceBehavior == ImportReferenceBehavior.IMPORT_REFERENCE_NOT_FOUND_THROW);
+    }
+
+    /**
+     * Import the chunks of the manifest into the node.
+     * @return the chunks that failed with their exception, in import order
+     * @throws RepositoryException when references between chunks would not survive, see
+     *         {@link #canImportChunks}
+     */
+    public Map<Chunk, Exception> importManifest(final Node parent, final File manifestFile, final Listener listener)
+            throws IOException, RepositoryException, InterruptedException {
+        if (!canImportChunks(parent.getSession(), uuidBehavior, referenceBehavior)) {
+            throw new RepositoryException("References between chunks are broken by imports that create new"
+                    + " identifiers or do not fail on missing references");
+        }
+        final File dir = manifestFile.getAbsoluteFile().getParentFile();
+        ExportManifest manifest = ExportManifest.read(manifestFile);
+        Chunk invalid = manifest.verify(dir);
+        if (invalid != null) {
+            throw new IOException("Export is incomplete or changed, chunk " + invalid.getFileName()
+                    + " does not match the manifest");
+        }
+
+        // the nodes above the split depth, in order, so each parent exists before its children
+        Session session = parent.getSession();
+        Node root = null;
+        Map<String, List<Chunk>> subtrees = new LinkedHashMap<String, List<Chunk>>();
+        for (Chunk chunk : manifest.getChunks()) {
+            String relPath = chunk.getRelPath();
+            if (relPath.length() == 0) {
+                importChunk(session, parent.getPath(), new File(dir, chunk.getFileName()));
+                for (NodeIterator iter = parent.getNodes(manifest.getName()); iter.hasNext();) {
+                    root = iter.nextNode();
+                }
+                if (root == null) {
+                    throw new RepositoryException("Imported node not found: " + manifest.getName());
+                }
+                listener.imported(chunk);
+            } else if (!chunk.isDeep()) {
+                importChunk(session, parentPath(root, relPath), new File(dir, chunk.getFileName()));
+                listener.imported(chunk);
+            } else {
+                String parentRelPath = relPath.indexOf('/') < 0 ? "" : relPath.substring(0, relPath.lastIndexOf('/'));
+                List<Chunk> siblings = subtrees.get(parentRelPath);
+                if (siblings == null) {
+                    siblings = new ArrayList<Chunk>();
+                    subtrees.put(parentRelPath, siblings);
+                }
+                siblings.add(chunk);
+            }
+        }
+
+        // the subtrees, concurrently
+        List<List<Chunk>> tasks = new ArrayList<List<Chunk>>();
+        for (List<Chunk> siblings : subtrees.values()) {
+            if (hasSameNameSiblings(siblings)) {
+                tasks.add(siblings);
+            } else {
+                for (Chunk chunk : siblings) {
+                    List<Chunk> task = new ArrayList<Chunk>();
+                    task.add(chunk);
+                    tasks.add(task);
+                }
+            }
+        }
+        Map<Chunk, Exception> failures = new LinkedHashMap<Chunk, Exception>();
+        final String rootPath = root.getPath();
+        int threads = pool.getSize();
+        ExecutorService executor = threads < 2 ? Executors.newSingleThreadExecutor() : PrefetchingTreeWalker
+                .newExecutor(threads, "jcr-shell import");
+        try {
+            CompletionService<Map<Chunk, Exception>> completion = new ExecutorCompletionService<Map<Chunk, Exception>>(
+                    executor);
+            for (final List<Chunk> task : tasks) {
+                completion.submit(new Callable<Map<Chunk, Exception>>() {
+                    public Map<Chunk, Exception> call() throws Exception {
+                        return importChunks(task, rootPath, dir);
+                    }
+                });
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                Map<Chunk, Exception> results;
+                try {
+                    results = completion.take().get();
+                } catch (ExecutionException e) {
+                    throw new RepositoryException("Import failed: " + e.getCause().getMessage(), e.getCause());
+                }
+                for (Map.Entry<Chunk, Exception> entry : results.entrySet()) {
+                    if (entry.getValue() == null) {
+                        listener.imported(entry.getKey());
+                    } else {
+                        failures.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        order(root, subtrees, failures);
+        return sort(manifest, failures);
+    }
+
+    /**
+     * Import the chunks of a task with a session of the pool.
+     * @return the chunks with their exception, or null when they have been imported
+     */
+    private Map<Chunk, Exception> importChunks(final List<Chunk> task, final String rootPath, final File dir)
+            throws RepositoryException, InterruptedException {
+        Map<Chunk, Exception> results = new LinkedHashMap<Chunk, Exception>();
+        Session session;
+        try {
+            session = pool.borrow();
+        } catch (RepositoryException e) {
+            for (Chunk chunk : task) {
+                results.put(chunk, e);
+            }
+            return results;
+        }
+        try {
+            for (Chunk chunk : task) {
+                try {
+                    importChunk(session, parentPath(rootPath, chunk.getRelPath()), new File(dir, chunk.getFileName()));
+                    results.put(chunk, null);
+                } catch (Exception e) {
+                    results.put(chunk, e);
+                    session.refresh(false);
+                }
+            }
+        } finally {
+            pool.release(session);
+        }
+        return results;
+    }
+
+    private void importChunk(final Session session, final String parentAbsPath, final File file) throws IOException,
+            RepositoryException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            new CheckpointImporter(session, checkpointNodes, checkpointBytes, null).importXml(parentAbsPath, in,
+                    uuidBehavior, referenceBehavior, mergeBehavior);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Order the subtrees that were imported concurrently as in the export.
+     */
+    private static void order(final Node root, final Map<String, List<Chunk>> subtrees,
+            final Map<Chunk, Exception> failures) throws RepositoryException {
+        Session session = root.getSession();
+        session.refresh(true);
+        for (Map.Entry<String, List<Chunk>> entry : subtrees.entrySet()) {
+            List<Chunk> siblings = entry.getValue();
+            Node parent = entry.getKey().length() == 0 ? root : root.getNode(entry.getKey());
+            if (siblings.size() < 2 || hasSameNameSiblings(siblings)
+                    || !parent.getPrimaryNodeType().hasOrderableChildNodes()) {
+                continue;
+            }
+            for (Chunk chunk : siblings) {
+                if (!failures.containsKey(chunk)) {
+                    String relPath = chunk.getRelPath();
+                    parent.orderBefore(relPath.substring(relPath.lastIndexOf('/') + 1), null);
+                }
+            }
+        }
+        session.save();
+    }
+
+    private static Map<Chunk, Exception> sort(final ExportManifest manifest, final Map<Chunk, Exception> failures) {
+        Map<Chunk, Exception> sorted = new LinkedHashMap<Chunk, Exception>();
+        for (Chunk chunk : manifest.getChunks()) {
+            if (failures.containsKey(chunk)) {
+                sorted.put(chunk, failures.get(chunk));
+            }
+        }
+        return sorted;
+    }
+
+    private static boolean hasSameNameSiblings(final List<Chunk> siblings) {
+        for (Chunk chunk : siblings) {
+            if (chunk.getRelPath().endsWith("]")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String parentPath(final Node root, final String relPath) throws RepositoryException {
+        return parentPath(root.getPath(), relPath);
+    }
+
+    private static String parentPath(final String rootPath, final String relPath) {
+        int slash = relPath.lastIndexOf('/');
+        if (slash < 0) {
+            return rootPath;
+        }
+        return ("/".equals(rootPath) ? "" : rootPath) + "/" + relPath.substring(0, slash);
+    }
+}
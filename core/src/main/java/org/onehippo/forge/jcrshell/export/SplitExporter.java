@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.export;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.export.ExportManifest.Chunk;
+import org.onehippo.forge.jcrshell.util.HippoJcrUtils;
+import org.onehippo.forge.jcrshell.util.PrefetchingTreeWalker;
+import org.onehippo.forge.jcrshell.util.StreamPipe;
+import org.xml.sax.SAXException;
+
+/**
+ * Exports a node into a directory with one file per chunk and a manifest. The node and its
+ * descendants above the split depth are exported without their child nodes, the descendants at
+ * the split depth with their whole subtree. The chunks are exported concurrently, each with a
+ * session from a pool. Chunks of an earlier export into the same directory that are complete
+ * and unchanged according to the manifest are not exported again.
+ */
+public final class SplitExporter {
+
+    /** default number of chunks that are exported concurrently */
+    public static final int DEFAULT_THREADS = Integer.getInteger("jcrshell.export.threads", 4);
+
+    /**
+     * Receives the progress of the export, on the thread that called {@link SplitExporter#export}.
+     */
+    public interface Listener {
+        void exported(Chunk chunk, boolean resumed);
+
+        void failed(Chunk chunk, Exception e);
+    }
+
+    private final Node root;
+    private final File dir;
+    private final int depth;
+    private final boolean skipBinaries;
+
+    public SplitExporter(final Node root, final File dir, final int depth, final boolean skipBinaries) {
+        this.root = root;
+        this.dir = dir;
+        this.depth = depth;
+        this.skipBinaries = skipBinaries;
+    }
+
+    /**
+     * @return the chunks of the export, in import order
+     */
+    public List<Chunk> plan() throws RepositoryException {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        plan(root, "", 0, chunks);
+        return chunks;
+    }
+
+    private void plan(final Node node, final String relPath, final int level, final List<Chunk> chunks)
+            throws RepositoryException {
+        boolean deep = level >= depth;
+        chunks.add(new Chunk(String.format("chunk-%05d.xml", chunks.size()), relPath, deep));
+        if (deep) {
+            return;
+        }
+        for (NodeIterator iter = node.getNodes(); iter.hasNext();) {
+            Node child = iter.nextNode();
+            if (HippoJcrUtils.isVirtual(child)) {
+                continue;
+            }
+            String name = child.getName();
+            if (child.getIndex() > 1) {
+                name += "[" + child.getIndex() + "]";
+            }
+            plan(child, relPath.length() == 0 ? name : relPath + "/" + name, level + 1, chunks);
+        }
+    }
+
+    /**
+     * Export the chunks that are not complete yet.
+     * @return the number of chunks that failed
+     */
+    public int export(final SessionPool pool, final Listener listener) throws RepositoryException, IOException,
+            InterruptedException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        final String source = root.getPath();
+        ExportManifest manifest = new ExportManifest(source, root.getName(), depth, skipBinaries, plan());
+        File manifestFile = new File(dir, ExportManifest.FILE_NAME);
+        if (manifestFile.exists()) {
+            resume(ExportManifest.read(manifestFile), manifest, listener);
+        }
+        manifest.write(manifestFile);
+
+        int threads = pool.getSize();
+        ExecutorService executor = threads < 2 ? Executors.newSingleThreadExecutor() : PrefetchingTreeWalker
+                .newExecutor(threads, "jcr-shell export");
+        try {
+            CompletionService<Chunk> completion = new ExecutorCompletionService<Chunk>(executor);
+            Map<Future<Chunk>, Chunk> pending = new HashMap<Future<Chunk>, Chunk>();
+            for (final Chunk chunk : manifest.getChunks()) {
+                if (chunk.getChecksum() != null) {
+                    continue;
+                }
+                pending.put(completion.submit(new Callable<Chunk>() {
+                    public Chunk call() throws Exception {
+                        Session session = pool.borrow();
+                        try {
+                            chunk.setChecksum(exportChunk(session, path(source, chunk), chunk));
+                        } finally {
+                            pool.release(session);
+                        }
+                        return chunk;
+                    }
+                }), chunk);
+            }
+            int failed = 0;
+            for (int i = 0; i < pending.size(); i++) {
+                Future<Chunk> future = completion.take();
+                try {
+                    manifest.append(manifestFile, future.get());
+                    listener.exported(pending.get(future), false);
+                } catch (ExecutionException e) {
+                    failed++;
+                    Throwable cause = e.getCause();
+                    listener.failed(pending.get(future), cause instanceof Exception ? (Exception) cause : e);
+                }
+            }
+            if (failed == 0) {
+                manifest.write(manifestFile);
+            }
+            return failed;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String path(final String source, final Chunk chunk) {
+        if (chunk.getRelPath().length() == 0) {
+            return source;
+        }
+        return "/".equals(source) ? "/" + chunk.getRelPath() : source + "/" + chunk.getRelPath();
+    }
+
+    private void resume(final ExportManifest previous, final ExportManifest manifest, final Listener listener)
+            throws IOException {
+        if (!previous.getSource().equals(manifest.getSource()) || previous.getDepth() != manifest.getDepth()
+                || previous.isSkipBinaries() != manifest.isSkipBinaries()) {
+            throw new IOException("Directory " + dir + " contains another export of " + previous.getSource());
+        }
+        for (Chunk chunk : manifest.getChunks()) {
+            Chunk done = previous.getChunk(chunk.getFileName());
+            if (done == null || done.getChecksum() == null || !done.isSameChunk(chunk)) {
+                continue;
+            }
+            File file = new File(dir, chunk.getFileName());
+            if (file.exists() && done.getChecksum().equals(ExportManifest.checksum(file))) {
+                chunk.setChecksum(done.getChecksum());
+                listener.exported(chunk, true);
+            }
+        }
+    }
+
+    /**
+     * Export and format a chunk into a temporary file, which replaces the file of the chunk when
+     * it is complete.
+     * @return the checksum of the file
+     */
+    private String exportChunk(final Session session, final String path, final Chunk chunk) throws IOException,
+            RepositoryException, ParserConfigurationException, SAXException {
+        File file = new File(dir, chunk.getFileName());
+        File tmp = new File(dir, chunk.getFileName() + ".tmp");
+        InputStream in = StreamPipe.start(new StreamPipe.Producer() {
+            public void produce(OutputStream out) throws IOException, RepositoryException {
+                JcrWrapper.exportXml(session, path, out, skipBinaries, !chunk.isDeep());
+            }
+        }, "jcr-shell export " + path);
+        MessageDigest md = ExportManifest.newMessageDigest();
+        boolean done = false;
+        try {
+            OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), md);
+            try {
+                XmlFormatter.format(in, out);
+            } finally {
+                out.close();
+            }
+            done = true;
+        } finally {
+            in.close();
+            if (!done) {
+                tmp.delete();
+            }
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Unable to replace " + file + " with " + tmp);
+        }
+        return ExportManifest.toHex(md.digest());
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.export;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.onehippo.forge.jcrshell.export.ExportManifest.Chunk;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Splits a system view document at the node boundaries into the chunks of a split export, the
+ * same way as the {@link SplitExporter} does: the nodes above the split depth become chunks with
+ * only their properties, the nodes at the split depth chunks with their whole subtree. The
+ * document is read once and only the chunk that is being written is open.
+ */
+public final class SystemViewSplitter extends DefaultHandler {
+
+    private static final String SV_URI = "http://www.jcp.org/jcr/sv/1.0";
+    private static final String NODE = "node";
+    private static final String NAME = "name";
+
+    /**
+     * A node above or at the split depth.
+     */
+    private static final class Level {
+        private final String relPath;
+        private final Map<String, Integer> siblings = new HashMap<String, Integer>();
+
+        private Level(final String relPath) {
+            this.relPath = relPath;
+        }
+
+        private String childPath(final String name) {
+            Integer count = siblings.get(name);
+            int index = count == null ? 1 : count.intValue() + 1;
+            siblings.put(name, Integer.valueOf(index));
+            String segment = index > 1 ? name + "[" + index + "]" : name;
+            return relPath.length() == 0 ? segment : relPath + "/" + segment;
+        }
+    }
+
+    private final File dir;
+    private final int depth;
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private final Map<String, String> prefixes = new LinkedHashMap<String, String>();
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private final LinkedList<Level> levels = new LinkedList<Level>();
+
+    private String rootName;
+    private int level = -1;
+    private int deepLevel = -1;
+
+    private Chunk chunk;
+    private MessageDigest md;
+    private OutputStream out;
+    private XMLStreamWriter writer;
+    private boolean declareNamespaces;
+
+    private SystemViewSplitter(final File dir, final int depth) {
+        this.dir = dir;
+        this.depth = depth;
+    }
+
+    /**
+     * Split the document into the directory and write the manifest.
+     * @param source the description of the document for the manifest
+     */
+    public static ExportManifest split(final InputStream in, final File dir, final int depth, final String source)
+            throws IOException, SAXException, ParserConfigurationException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        SystemViewSplitter splitter = new SystemViewSplitter(dir, depth);
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        XMLReader reader = factory.newSAXParser().getXMLReader();
+        reader.setContentHandler(splitter);
+        try {
+            reader.parse(new InputSource(in));
+        } catch (SAXException e) {
+            if (e.getException() instanceof IOException) {
+                throw (IOException) e.getException();
+            }
+            throw e;
+        } finally {
+            splitter.abort();
+        }
+        if (splitter.rootName == null) {
+            throw new IOException("Not a system view document: " + source);
+        }
+        ExportManifest manifest = new ExportManifest(source, splitter.rootName, depth, false, splitter.chunks);
+        manifest.write(new File(dir, ExportManifest.FILE_NAME));
+        return manifest;
+    }
+
+    @Override
+    public void startPrefixMapping(final String prefix, final String uri) {
+        prefixes.put(prefix, uri);
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts)
+            throws SAXException {
+        try {
+            if (SV_URI.equals(uri) && NODE.equals(localName) && deepLevel < 0) {
+                level++;
+                String name = atts.getValue(SV_URI, NAME);
+                String relPath;
+                if (level == 0) {
+                    rootName = name;
+                    relPath = "";
+                } else {
+                    relPath = levels.getFirst().childPath(name);
+                    // the properties of the parent come before its child nodes
+                    finishChunk();
+                }
+                levels.addFirst(new Level(relPath));
+                startChunk(new Chunk(String.format("chunk-%05d.xml", chunks.size()), relPath, level >= depth));
+                if (level >= depth) {
+                    deepLevel = level;
+                }
+            } else if (SV_URI.equals(uri) && NODE.equals(localName)) {
+                level++;
+            } else if (writer == null) {
+                throw new SAXException("Unexpected element " + qName + " after the child nodes of "
+                        + levels.getFirst().relPath);
+            }
+            writeStartElement(uri, localName, atts);
+        } catch (XMLStreamException e) {
+            throw new SAXException(e);
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+        try {
+            if (writer != null) {
+                writer.writeEndElement();
+            }
+            if (SV_URI.equals(uri) && NODE.equals(localName)) {
+                if (deepLevel < 0 || level == deepLevel) {
+                    finishChunk();
+                    levels.removeFirst();
+                    deepLevel = -1;
+                }
+                level--;
+            }
+        } catch (XMLStreamException e) {
+            throw new SAXException(e);
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length) throws SAXException {
+        if (writer != null) {
+            try {
+                writer.writeCharacters(ch, start, length);
+            } catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+        }
+    }
+
+    private void writeStartElement(final String uri, final String localName, final Attributes atts)
+            throws XMLStreamException {
+        writer.writeStartElement(prefix(uri), localName, uri);
+        if (declareNamespaces) {
+            // each chunk is a document of its own
+            for (Map.Entry<String, String> entry : prefixes.entrySet()) {
+                writer.writeNamespace(entry.getKey(), entry.getValue());
+            }
+            declareNamespaces = false;
+        }
+        for (int i = 0; i < atts.getLength(); i++) {
+            String attributeUri = atts.getURI(i);
+            if (attributeUri.length() == 0) {
+                writer.writeAttribute(atts.getLocalName(i), atts.getValue(i));
+            } else {
+                writer.writeAttribute(prefix(attributeUri), attributeUri, atts.getLocalName(i), atts.getValue(i));
+            }
+        }
+    }
+
+    private String prefix(final String uri) {
+        for (Map.Entry<String, String> entry : prefixes.entrySet()) {
+            if (entry.getValue().equals(uri)) {
+                return entry.getKey();
+            }
+        }
+        return "";
+    }
+
+    private void startChunk(final Chunk next) throws IOException, XMLStreamException {
+        chunk = next;
+        md = ExportManifest.newMessageDigest();
+        out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, chunk
+                .getFileName()))), md);
+        writer = outputFactory.createXMLStreamWriter(out, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        declareNamespaces = true;
+    }
+
+    private void finishChunk() throws IOException, XMLStreamException {
+        if (writer == null) {
+            return;
+        }
+        writer.writeEndDocument();
+        writer.close();
+        writer = null;
+        out.close();
+        chunk.setChecksum(ExportManifest.toHex(md.digest()));
+        chunks.add(chunk);
+        chunk = null;
+    }
+
+    private void abort() {
+        if (out != null && writer != null) {
+            try {
+                writer.close();
+                out.close();
+            } catch (XMLStreamException e) {
+                // ignore, the document is incomplete anyway
+            } catch (IOException e) {
+                // ignore, the document is incomplete anyway
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.onehippo.forge.jcrshell.export;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -19,30 +20,59 @@ public final class XmlFormatter {
     }
 
     public static void format(File in, File out) throws ParserConfigurationException, SAXException, IOException {
-        SAXParserFactory factory = SAXParserFactory.newInstance();
         InputStream istream = new FileInputStream(in);
-        OutputStream ostream = null;
-        OutputProcessor processor;
         try {
+            format(istream, out);
+        } finally {
+            istream.close();
+        }
+    }
+
+    /**
+     * Format the xml from the stream into the file in one pass. When the file exists, its
+     * comments are merged into the output, which is then written to a temporary file next to it
+     * that replaces the file when formatting succeeds.
+     */
+    public static void format(InputStream in, File out) throws ParserConfigurationException, SAXException,
+            IOException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        XmlProcessor recordProcessor = null;
+        File target = out;
+        if (out.exists()) {
+            recordProcessor = new XmlProcessor(factory, out);
+            recordProcessor.process();
+            target = File.createTempFile(out.getName(), ".tmp", out.getAbsoluteFile().getParentFile());
+        }
+        boolean done = false;
+        try {
+            OutputStream ostream = new BufferedOutputStream(new FileOutputStream(target));
             try {
-                if (!out.exists()) {
-                    ostream = new FileOutputStream(out);
-                    processor = new OutputProcessor(factory, istream, ostream);
+                OutputProcessor processor;
+                if (recordProcessor == null) {
+                    processor = new OutputProcessor(factory, in, ostream);
                 } else {
-                    XmlProcessor recordProcessor = new XmlProcessor(factory, out);
-                    recordProcessor.process();
-                    ostream = new FileOutputStream(out);
-                    processor = new OutputProcessor(factory, recordProcessor, istream, ostream);
+                    processor = new OutputProcessor(factory, recordProcessor, in, ostream);
                 }
                 processor.process();
             } finally {
-                if (ostream != null) {
-                    ostream.close();
-                }
+                ostream.close();
             }
+            if (target != out && !target.renameTo(out) && !(out.delete() && target.renameTo(out))) {
+                throw new IOException("Unable to replace " + out + " with " + target);
+            }
+            done = true;
         } finally {
-            istream.close();
+            if (!done) {
+                target.delete();
+            }
         }
     }
-    
+
+    /**
+     * Format the xml from one stream into another in one pass. The output stream is not closed.
+     */
+    public static void format(InputStream in, OutputStream out) throws ParserConfigurationException, SAXException,
+            IOException {
+        new OutputProcessor(SAXParserFactory.newInstance(), in, out).process();
+    }
 }
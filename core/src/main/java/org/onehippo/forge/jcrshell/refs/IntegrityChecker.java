@@ -0,0 +1,472 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.refs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.refs.ReferenceIndex.Refs;
+import org.onehippo.forge.jcrshell.util.PrefetchingTreeWalker;
+import org.onehippo.forge.jcrshell.util.ShellPath;
+
+/**
+ * Checks the references in a tree: REFERENCE and WEAKREFERENCE properties and string properties
+ * with a configured name that hold identifiers. References to nodes that do not exist and to
+ * nodes outside the tree are reported, and optionally the version histories of which the
+ * versionable node no longer exists.
+ * <p>
+ * The tree is divided into units like a split export: the nodes above the split depth are
+ * checked without their child nodes, the nodes at the split depth with their whole subtree. The
+ * units are checked concurrently, each with a session from a pool, and the identifiers of a unit
+ * are resolved in batches, with a query for each batch. The version storage is divided and
+ * checked the same way. Each unit that is checked is appended to a checkpoint file, so an
+ * interrupted check continues with the units that were not checked yet. The checkpoint file is
+ * removed when all units have been checked.
+ */
+public final class IntegrityChecker {
+
+    /** default number of units that are checked concurrently */
+    public static final int DEFAULT_THREADS = Integer.getInteger("jcrshell.integrity.threads", 4);
+
+    /** default number of references that are resolved at once */
+    public static final int DEFAULT_BATCH = Integer.getInteger("jcrshell.integrity.batch", 500);
+
+    private static final String VERSION_STORAGE = "/jcr:system/jcr:versionStorage";
+    private static final String VERSION_HISTORY = "nt:versionHistory";
+    private static final String VERSIONABLE_UUID = "jcr:versionableUuid";
+    private static final String HEADER = "# integritycheck ";
+    private static final int QUEUE_SIZE = 1000;
+
+    /**
+     * The kinds of problems that are found.
+     */
+    public enum Problem {
+        /** the referenced node does not exist */
+        DANGLING,
+        /** the referenced node is outside the checked tree */
+        OUTSIDE,
+        /** the versionable node of the version history does not exist */
+        ORPHANED_HISTORY
+    }
+
+    /**
+     * A problem with a reference or a version history.
+     */
+    public static final class Finding {
+        private final Problem problem;
+        private final String path;
+        private final String identifier;
+        private final String targetPath;
+
+        Finding(final Problem problem, final String path, final String identifier, final String targetPath) {
+            this.problem = problem;
+            this.path = path;
+            this.identifier = identifier;
+            this.targetPath = targetPath;
+        }
+
+        public Problem getProblem() {
+            return problem;
+        }
+
+        /**
+         * @return the path of the referring property, or of the version history
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the referenced identifier, or the identifier of the versionable node
+         */
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * @return the path of the referenced node, or null when it does not exist
+         */
+        public String getTargetPath() {
+            return targetPath;
+        }
+    }
+
+    /**
+     * Receives the findings and the progress of the check, on the thread that called
+     * {@link IntegrityChecker#check}. A unit that is checked again after an interruption may
+     * report its findings again.
+     */
+    public interface Listener {
+        void found(Finding finding);
+
+        void checked(String path, long nodes, boolean resumed);
+
+        void failed(String path, Exception e);
+    }
+
+    /**
+     * A part of the tree that is checked as a whole, and the key under which it is checkpointed.
+     */
+    private static final class Unit {
+        private final String path;
+        private final boolean deep;
+        private final boolean versions;
+
+        private Unit(final String path, final boolean deep, final boolean versions) {
+            this.path = path;
+            this.deep = deep;
+            this.versions = versions;
+        }
+
+        private String key() {
+            return (versions ? "V" : "") + (deep ? "D" : "S") + "\t" + path;
+        }
+    }
+
+    /**
+     * Reports that a unit is done, after all its findings.
+     */
+    private static final class Done {
+        private final Unit unit;
+        private final long nodes;
+        private final Exception exception;
+
+        private Done(final Unit unit, final long nodes, final Exception exception) {
+            this.unit = unit;
+            this.nodes = nodes;
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * A reference, or the versionable node of a version history, that is waiting to be resolved.
+     */
+    private static final class Pending {
+        private final String path;
+        private final String identifier;
+
+        private Pending(final String path, final String identifier) {
+            this.path = path;
+            this.identifier = identifier;
+        }
+    }
+
+    private final Node root;
+    private final int depth;
+    private final Set<String> stringProperties;
+    private final boolean versions;
+    private final int batchSize;
+
+    /**
+     * @param depth the split depth of the units
+     * @param stringProperties comma separated names of the string properties that hold identifiers
+     * @param versions whether to check the version histories of the repository
+     */
+    public IntegrityChecker(final Node root, final int depth, final String stringProperties,
+            final boolean versions, final int batchSize) {
+        this.root = root;
+        this.depth = depth;
+        this.stringProperties = ReferenceIndex.parseNames(stringProperties);
+        this.versions = versions;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    private List<Unit> plan() throws RepositoryException {
+        List<Unit> units = new ArrayList<Unit>();
+        plan(root, 0, false, units);
+        if (versions && root.getSession().nodeExists(VERSION_STORAGE)) {
+            plan(root.getSession().getNode(VERSION_STORAGE), 0, true, units);
+        }
+        return units;
+    }
+
+    private void plan(final Node node, final int level, final boolean versionStorage, final List<Unit> units)
+            throws RepositoryException {
+        boolean deep = level >= depth;
+        units.add(new Unit(node.getPath(), deep, versionStorage));
+        if (deep) {
+            return;
+        }
+        for (NodeIterator iter = node.getNodes(); iter.hasNext();) {
+            Node child = iter.nextNode();
+            if (versionStorage || ReferenceIndex.isIndexed(child)) {
+                plan(child, level + 1, versionStorage, units);
+            }
+        }
+    }
+
+    /**
+     * Check the units that are not in the checkpoint file yet.
+     * @param checkpointFile the file with the units that are checked, or null to check all units
+     * @return the number of units that failed
+     */
+    public int check(final SessionPool pool, final File checkpointFile, final Listener listener)
+            throws RepositoryException, IOException, InterruptedException {
+        final String rootPath = root.getPath();
+        String header = HEADER + rootPath + " " + depth;
+        Set<String> checked = checkpointFile == null ? new HashSet<String>() : readCheckpoint(checkpointFile,
+                header);
+        final BlockingQueue<Object> events = new LinkedBlockingQueue<Object>(QUEUE_SIZE);
+        int threads = pool.getSize();
+        ExecutorService executor = threads < 2 ? Executors.newSingleThreadExecutor() : PrefetchingTreeWalker
+                .newExecutor(threads, "jcr-shell integritycheck");
+        Writer checkpoint = null;
+        try {
+            if (checkpointFile != null) {
+                checkpoint = new FileWriter(checkpointFile, true);
+                if (checked.isEmpty()) {
+                    checkpoint.write(header + "\n");
+                    checkpoint.flush();
+                }
+            }
+            int pending = 0;
+            for (final Unit unit : plan()) {
+                if (checked.contains(unit.key())) {
+                    listener.checked(unit.path, 0L, true);
+                    continue;
+                }
+                pending++;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        check(pool, unit, rootPath, events);
+                    }
+                });
+            }
+            int failed = 0;
+            while (pending > 0) {
+                Object event = events.take();
+                if (event instanceof Finding) {
+                    listener.found((Finding) event);
+                    continue;
+                }
+                pending--;
+                Done done = (Done) event;
+                if (done.exception != null) {
+                    failed++;
+                    listener.failed(done.unit.path, done.exception);
+                    continue;
+                }
+                if (checkpoint != null) {
+                    checkpoint.write(done.unit.key() + "\n");
+                    checkpoint.flush();
+                }
+                listener.checked(done.unit.path, done.nodes, false);
+            }
+            if (failed == 0 && checkpoint != null) {
+                checkpoint.close();
+                checkpoint = null;
+                if (!checkpointFile.delete()) {
+                    throw new IOException("Unable to remove " + checkpointFile);
+                }
+            }
+            return failed;
+        } finally {
+            executor.shutdownNow();
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        }
+    }
+
+    private static Set<String> readCheckpoint(final File file, final String header) throws IOException {
+        Set<String> checked = new HashSet<String>();
+        if (!file.exists()) {
+            return checked;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line = reader.readLine();
+            if (line == null) {
+                return checked;
+            }
+            if (!line.equals(header)) {
+                throw new IOException("Checkpoint " + file + " is of another check: " + line.substring(1).trim());
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    checked.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return checked;
+    }
+
+    /**
+     * Check a unit on a worker thread and queue its findings.
+     */
+    private void check(final SessionPool pool, final Unit unit, final String rootPath,
+            final BlockingQueue<Object> events) {
+        long nodes = 0L;
+        Exception exception = null;
+        try {
+            Session session = pool.borrow();
+            try {
+                Node node = session.getNode(unit.path);
+                if (unit.versions) {
+                    nodes = checkVersions(session, node, unit.deep, events);
+                } else {
+                    nodes = checkReferences(session, node, unit.deep, rootPath, events);
+                }
+            } finally {
+                pool.release(session);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            exception = e;
+        }
+        try {
+            events.put(new Done(unit, nodes, exception));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long checkReferences(final Session session, final Node node, final boolean deep,
+            final String rootPath, final BlockingQueue<Object> events) throws RepositoryException,
+            InterruptedException {
+        List<Pending> pending = new ArrayList<Pending>();
+        LinkedList<NodeIterator> stack = new LinkedList<NodeIterator>();
+        long nodes = 0L;
+        Node current = node;
+        while (current != null) {
+            nodes++;
+            String path = current.getPath();
+            for (Map.Entry<String, Refs> property : ReferenceIndex.scan(current, stringProperties).entrySet()) {
+                String propertyPath = ("/".equals(path) ? "/" : path + "/") + property.getKey();
+                for (String identifier : property.getValue().targets) {
+                    pending.add(new Pending(propertyPath, identifier));
+                }
+            }
+            if (pending.size() >= batchSize) {
+                resolve(session, rootPath, pending, events);
+            }
+            if (deep) {
+                stack.addFirst(current.getNodes());
+            }
+            current = null;
+            while (current == null && !stack.isEmpty()) {
+                NodeIterator iter = stack.getFirst();
+                if (!iter.hasNext()) {
+                    stack.removeFirst();
+                    continue;
+                }
+                Node child = iter.nextNode();
+                if (ReferenceIndex.isIndexed(child)) {
+                    current = child;
+                }
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        resolve(session, rootPath, pending, events);
+        return nodes;
+    }
+
+    /**
+     * Look up the identifiers of the pending references together and queue the references that
+     * are dangling or that point outside the tree.
+     */
+    private static void resolve(final Session session, final String rootPath, final List<Pending> pending,
+            final BlockingQueue<Object> events) throws RepositoryException, InterruptedException {
+        Set<String> identifiers = new HashSet<String>();
+        for (Pending reference : pending) {
+            identifiers.add(reference.identifier);
+        }
+        Map<String, String> paths = ReferenceIndex.resolve(session, identifiers);
+        for (Pending reference : pending) {
+            String targetPath = paths.get(reference.identifier);
+            if (targetPath == null) {
+                events.put(new Finding(Problem.DANGLING, reference.path, reference.identifier, null));
+            } else if (!ShellPath.isInSubtree(targetPath, rootPath)) {
+                events.put(new Finding(Problem.OUTSIDE, reference.path, reference.identifier, targetPath));
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Queue the version histories of the node, and of its subtree when deep, of which the
+     * versionable node does not exist. The versionable nodes are looked up in batches.
+     */
+    private long checkVersions(final Session session, final Node node, final boolean deep,
+            final BlockingQueue<Object> events) throws RepositoryException, InterruptedException {
+        List<Pending> pending = new ArrayList<Pending>();
+        long nodes = 0L;
+        LinkedList<Node> stack = new LinkedList<Node>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            Node current = stack.removeFirst();
+            nodes++;
+            if (current.isNodeType(VERSION_HISTORY)) {
+                pending.add(new Pending(current.getPath(), current.getProperty(VERSIONABLE_UUID).getString()));
+                if (pending.size() >= batchSize) {
+                    resolveHistories(session, pending, events);
+                }
+                continue;
+            }
+            if (deep) {
+                for (NodeIterator iter = current.getNodes(); iter.hasNext();) {
+                    stack.addFirst(iter.nextNode());
+                }
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        resolveHistories(session, pending, events);
+        return nodes;
+    }
+
+    private static void resolveHistories(final Session session, final List<Pending> pending,
+            final BlockingQueue<Object> events) throws RepositoryException, InterruptedException {
+        Set<String> identifiers = new HashSet<String>();
+        for (Pending history : pending) {
+            identifiers.add(history.identifier);
+        }
+        Map<String, String> paths = ReferenceIndex.resolve(session, identifiers);
+        for (Pending history : pending) {
+            if (paths.get(history.identifier) == null) {
+                events.put(new Finding(Problem.ORPHANED_HISTORY, history.path, history.identifier, null));
+            }
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,894 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.refs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.cache.PathInvalidated;
+import org.onehippo.forge.jcrshell.util.HippoJcrUtils;
+import org.onehippo.forge.jcrshell.util.PrefetchingTreeWalker;
+import org.onehippo.forge.jcrshell.util.ShellPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reverse index of the references in a workspace, from the identifier of the referenced node to
+ * the properties that refer to it. REFERENCE and WEAKREFERENCE properties are indexed, as are
+ * string properties with a configured name that hold identifiers, like hippo:docbase. The
+ * version storage and virtual nodes are not indexed.
+ * <p>
+ * The index is built once with a parallel scan and then kept up to date with the paths of
+ * changed nodes: a changed node is scanned again, and the referring and referenced nodes in a
+ * removed subtree are looked up by identifier, so moved nodes keep their references. The index
+ * reads the changed nodes through the session it was built or loaded with, which should be a
+ * session of its own, as the updates run on the thread that delivers the changes.
+ */
+public class ReferenceIndex implements PathInvalidated {
+
+    /** logger */
+    private static final Logger log = LoggerFactory.getLogger(ReferenceIndex.class);
+
+    /** default number of threads that scan nodes */
+    public static final int DEFAULT_THREADS = Integer.getInteger("jcrshell.refs.threads", 4);
+
+    /** default comma separated names of the string properties that hold identifiers */
+    public static final String DEFAULT_STRING_PROPERTIES = System.getProperty("jcrshell.refs.properties",
+            "hippo:docbase");
+
+    private static final String SYSTEM = "/jcr:system";
+
+    private static final int RESOLVE_BATCH = 100;
+
+    private static final String RESOLVE_QUERY = "SELECT * FROM [mix:referenceable] WHERE ";
+
+    /** first bytes of an index file, "JRI" and the version of the format */
+    private static final int MAGIC = 0x4a524901;
+
+    /**
+     * A property that refers to a node.
+     */
+    public static final class Reference {
+        private final String sourcePath;
+        private final String property;
+        private final int type;
+        private final String targetIdentifier;
+        private final String targetPath;
+
+        Reference(final String sourcePath, final String property, final int type, final String targetIdentifier,
+                final String targetPath) {
+            this.sourcePath = sourcePath;
+            this.property = property;
+            this.type = type;
+            this.targetIdentifier = targetIdentifier;
+            this.targetPath = targetPath;
+        }
+
+        /**
+         * @return the path of the node with the property
+         */
+        public String getSourcePath() {
+            return sourcePath;
+        }
+
+        public String getPropertyPath() {
+            return ("/".equals(sourcePath) ? "" : sourcePath) + "/" + property;
+        }
+
+        /**
+         * @return the type of the property, which is STRING for the configured string properties
+         */
+        public int getType() {
+            return type;
+        }
+
+        public String getTargetIdentifier() {
+            return targetIdentifier;
+        }
+
+        /**
+         * @return the path of the referenced node, or null when it does not exist
+         */
+        public String getTargetPath() {
+            return targetPath;
+        }
+    }
+
+    /**
+     * The references of a property, as stored in the index.
+     */
+    static final class Refs {
+        final int type;
+        final String[] targets;
+
+        Refs(final int type, final String[] targets) {
+            this.type = type;
+            this.targets = targets;
+        }
+    }
+
+    /**
+     * A node with references.
+     */
+    static final class Source {
+        String path;
+        final Map<String, Refs> properties;
+
+        Source(final String path, final Map<String, Refs> properties) {
+            this.path = path;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * A referenced node.
+     */
+    static final class Target {
+        String path;
+        final Set<String> sources = new LinkedHashSet<String>();
+
+        Target(final String path) {
+            this.path = path;
+        }
+    }
+
+    private final Set<String> stringProperties;
+
+    private final Map<String, Source> sources = new HashMap<String, Source>();
+    private final Map<String, Target> targets = new HashMap<String, Target>();
+
+    private Session session;
+
+    /** the changes that arrived while the index was built or loaded, null when not deferred */
+    private Set<String> pendingPrefixes;
+    private Set<String> pendingPaths;
+
+    /** serializes the updates, which share the session of the index */
+    private final Object updates = new Object();
+
+    public ReferenceIndex() {
+        this(DEFAULT_STRING_PROPERTIES);
+    }
+
+    /**
+     * @param stringProperties comma separated names of the string properties that hold identifiers
+     */
+    public ReferenceIndex(final String stringProperties) {
+        this.stringProperties = parseNames(stringProperties);
+    }
+
+    /**
+     * @return the names in a comma separated list
+     */
+    static Set<String> parseNames(final String names) {
+        Set<String> set = new HashSet<String>();
+        for (String name : names.split(",")) {
+            if (name.trim().length() > 0) {
+                set.add(name.trim());
+            }
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * @return whether the index has been built or loaded
+     */
+    public synchronized boolean isEnabled() {
+        return session != null;
+    }
+
+    /**
+     * Forget all references and stop updating the index.
+     */
+    public synchronized void drop() {
+        session = null;
+        pendingPrefixes = null;
+        pendingPaths = null;
+        sources.clear();
+        targets.clear();
+    }
+
+    /**
+     * Forget all references and keep the changes that arrive until the index is built or loaded,
+     * to apply them to the new index. Call this before listening for the changes.
+     */
+    public synchronized void deferChanges() {
+        drop();
+        pendingPrefixes = new LinkedHashSet<String>();
+        pendingPaths = new LinkedHashSet<String>();
+    }
+
+    /**
+     * @return the number of indexed properties
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Source source : sources.values()) {
+            size += source.properties.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of referenced nodes
+     */
+    public synchronized int getTargetCount() {
+        return targets.size();
+    }
+
+    static final class Scanned {
+        private final String path;
+        private final String identifier;
+        private final Map<String, Refs> properties;
+        private final List<Item> children;
+
+        Scanned(final String path, final String identifier, final Map<String, Refs> properties,
+                final List<Item> children) {
+            this.path = path;
+            this.identifier = identifier;
+            this.properties = properties;
+            this.children = children;
+        }
+    }
+
+    /**
+     * A node to scan: the node itself when it is read sequentially, or its path when it is read
+     * through a session of the pool.
+     */
+    static final class Item {
+        private final Node node;
+        private final String path;
+
+        Item(final Node node, final String path) {
+            this.node = node;
+            this.path = path;
+        }
+    }
+
+    final class ScanVisitor implements PrefetchingTreeWalker.Visitor<Item, Scanned> {
+        private final SessionPool pool;
+
+        ScanVisitor(final SessionPool pool) {
+            this.pool = pool;
+        }
+
+        public Scanned visit(final Item item) throws RepositoryException, InterruptedException {
+            if (pool == null) {
+                return visit(item.node);
+            }
+            Session session = pool.borrow();
+            try {
+                return visit(session.getNode(item.path));
+            } finally {
+                pool.release(session);
+            }
+        }
+
+        private Scanned visit(final Node node) throws RepositoryException {
+            String path = node.getPath();
+            Map<String, Refs> properties = scan(node, stringProperties);
+            String identifier = properties.isEmpty() ? null : node.getIdentifier();
+            List<Item> children = new ArrayList<Item>();
+            for (NodeIterator iter = node.getNodes(); iter.hasNext();) {
+                Node child = iter.nextNode();
+                if (isIndexed(child)) {
+                    children.add(pool == null ? new Item(child, null) : new Item(null, child.getPath()));
+                }
+            }
+            return new Scanned(path, identifier, properties, children);
+        }
+
+        public Scanned failed(final Item item, final Exception e) {
+            log.warn("Exception while scanning node for references", e);
+            Map<String, Refs> properties = Collections.emptyMap();
+            List<Item> children = Collections.emptyList();
+            return new Scanned(null, null, properties, children);
+        }
+
+        public List<Item> getChildren(final Scanned result) {
+            return result.children;
+        }
+    }
+
+    /**
+     * Build the index for the workspace of the node, scanning the tree below the node. The index
+     * is kept up to date through the session of the node.
+     * @param pool the sessions that scan the nodes, one thread for each, or null to scan the nodes
+     *        sequentially through the session of the root
+     * @return the number of nodes that could not be scanned
+     */
+    public long build(final Node root, final SessionPool pool) throws RepositoryException {
+        ExecutorService executor = null;
+        Item item = new Item(root, null);
+        if (pool != null) {
+            executor = PrefetchingTreeWalker.newExecutor(pool.getSize(), "jcr-shell refs");
+            item = new Item(null, root.getPath());
+        }
+        Map<String, Source> scannedSources = new HashMap<String, Source>();
+        Map<String, Target> scannedTargets = new HashMap<String, Target>();
+        long errors = 0L;
+        try {
+            PrefetchingTreeWalker<Item, Scanned> walker = new PrefetchingTreeWalker<Item, Scanned>(item,
+                    new ScanVisitor(pool), executor, PrefetchingTreeWalker.DEFAULT_WINDOW);
+            while (walker.hasNext()) {
+                Scanned scanned = walker.next();
+                if (scanned.path == null) {
+                    errors++;
+                } else if (!scanned.properties.isEmpty()) {
+                    scannedSources.put(scanned.identifier, new Source(scanned.path, scanned.properties));
+                    link(scannedTargets, scanned.identifier, scanned.properties);
+                }
+            }
+            resolveTargets(root.getSession(), pool, scannedTargets, executor);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        install(root.getSession(), scannedSources, scannedTargets);
+        return errors;
+    }
+
+    /**
+     * Replace the content of the index and apply the changes that arrived in the meantime.
+     */
+    private void install(final Session current, final Map<String, Source> newSources,
+            final Map<String, Target> newTargets) {
+        Collection<String> prefixes;
+        Collection<String> paths;
+        synchronized (this) {
+            session = current;
+            sources.clear();
+            sources.putAll(newSources);
+            targets.clear();
+            targets.putAll(newTargets);
+            prefixes = pendingPrefixes;
+            paths = pendingPaths;
+            pendingPrefixes = null;
+            pendingPaths = null;
+        }
+        if (prefixes != null && (!prefixes.isEmpty() || !paths.isEmpty())) {
+            invalidate(prefixes, paths);
+        }
+    }
+
+    /**
+     * Look up the paths of the referenced nodes, in batches on the executor when there is one,
+     * each batch through a session of the pool.
+     */
+    private static void resolveTargets(final Session session, final SessionPool pool,
+            final Map<String, Target> targets, final ExecutorService executor) throws RepositoryException {
+        final List<Map.Entry<String, Target>> entries = new ArrayList<Map.Entry<String, Target>>(targets.entrySet());
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < entries.size(); i += RESOLVE_BATCH) {
+            final List<Map.Entry<String, Target>> batch = entries.subList(i, Math.min(i + RESOLVE_BATCH, entries
+                    .size()));
+            Callable<Void> task = new Callable<Void>() {
+                public Void call() throws RepositoryException, InterruptedException {
+                    Session reader = pool == null ? session : pool.borrow();
+                    try {
+                        List<String> identifiers = new ArrayList<String>(batch.size());
+                        for (Map.Entry<String, Target> entry : batch) {
+                            identifiers.add(entry.getKey());
+                        }
+                        Map<String, String> paths = resolve(reader, identifiers);
+                        for (Map.Entry<String, Target> entry : batch) {
+                            entry.getValue().path = paths.get(entry.getKey());
+                        }
+                    } finally {
+                        if (pool != null) {
+                            pool.release(reader);
+                        }
+                    }
+                    return null;
+                }
+            };
+            if (executor == null || pool == null) {
+                try {
+                    task.call();
+                } catch (RepositoryException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RepositoryException(e);
+                }
+            } else {
+                futures.add(executor.submit(task));
+            }
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while resolving references", e);
+        } catch (ExecutionException e) {
+            throw new RepositoryException("Unable to resolve references: " + e.getCause().getMessage(), e
+                    .getCause());
+        }
+    }
+
+    /**
+     * Look up the paths of the nodes with the identifiers, {@value #RESOLVE_BATCH} at a time with
+     * a query on jcr:uuid. The identifiers the query does not find, like those of nodes that are
+     * not referenceable, are looked up one by one.
+     * @return the paths by identifier, with null for the nodes that do not exist
+     */
+    static Map<String, String> resolve(final Session session, final Collection<String> identifiers)
+            throws RepositoryException {
+        Map<String, String> paths = new HashMap<String, String>();
+        Set<String> distinct = new LinkedHashSet<String>();
+        for (String identifier : identifiers) {
+            if (isIdentifier(identifier)) {
+                distinct.add(identifier);
+            }
+        }
+        List<String> queried = new ArrayList<String>(distinct);
+        QueryManager queryManager = session.getWorkspace().getQueryManager();
+        for (int i = 0; i < queried.size(); i += RESOLVE_BATCH) {
+            StringBuilder statement = new StringBuilder(RESOLVE_QUERY);
+            for (String identifier : queried.subList(i, Math.min(i + RESOLVE_BATCH, queried.size()))) {
+                if (statement.length() > RESOLVE_QUERY.length()) {
+                    statement.append(" OR ");
+                }
+                statement.append("[jcr:uuid] = '").append(identifier).append('\'');
+            }
+            NodeIterator nodes = queryManager.createQuery(statement.toString(), Query.JCR_SQL2).execute()
+                    .getNodes();
+            while (nodes.hasNext()) {
+                Node node = nodes.nextNode();
+                paths.put(node.getIdentifier(), node.getPath());
+            }
+        }
+        for (String identifier : identifiers) {
+            if (!paths.containsKey(identifier)) {
+                paths.put(identifier, resolve(session, identifier));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return the path of the node with the identifier, or null when it does not exist
+     */
+    static String resolve(final Session session, final String identifier) throws RepositoryException {
+        try {
+            return session.getNodeByIdentifier(identifier).getPath();
+        } catch (ItemNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static void link(final Map<String, Target> targets, final String sourceIdentifier,
+            final Map<String, Refs> properties) {
+        for (Refs refs : properties.values()) {
+            for (String targetIdentifier : refs.targets) {
+                Target target = targets.get(targetIdentifier);
+                if (target == null) {
+                    target = new Target(null);
+                    targets.put(targetIdentifier, target);
+                }
+                target.sources.add(sourceIdentifier);
+            }
+        }
+    }
+
+    static boolean isIndexed(final Node node) throws RepositoryException {
+        return !HippoJcrUtils.isVirtual(node) && !SYSTEM.equals(node.getPath());
+    }
+
+    /**
+     * @return the references of the properties of the node, by property name
+     */
+    static Map<String, Refs> scan(final Node node, final Set<String> stringProperties) throws RepositoryException {
+        Map<String, Refs> properties = null;
+        for (PropertyIterator iter = node.getProperties(); iter.hasNext();) {
+            Property property = iter.nextProperty();
+            int type = property.getType();
+            if (type != PropertyType.REFERENCE && type != PropertyType.WEAKREFERENCE
+                    && (type != PropertyType.STRING || !stringProperties.contains(property.getName()))) {
+                continue;
+            }
+            Value[] values = property.isMultiple() ? property.getValues() : new Value[] { property.getValue() };
+            List<String> identifiers = new ArrayList<String>(values.length);
+            for (Value value : values) {
+                String identifier = value.getString();
+                if (type != PropertyType.STRING || isIdentifier(identifier)) {
+                    identifiers.add(identifier);
+                }
+            }
+            if (!identifiers.isEmpty()) {
+                if (properties == null) {
+                    properties = new LinkedHashMap<String, Refs>();
+                }
+                properties.put(property.getName(), new Refs(type, identifiers.toArray(new String[identifiers
+                        .size()])));
+            }
+        }
+        if (properties == null) {
+            return Collections.emptyMap();
+        }
+        return properties;
+    }
+
+    /**
+     * @return whether the string has the form of a UUID
+     */
+    static boolean isIdentifier(final String value) {
+        if (value.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the properties that refer to the node with the identifier
+     */
+    public synchronized List<Reference> getReferences(final String targetIdentifier) {
+        List<Reference> references = new ArrayList<Reference>();
+        addReferences(references, targetIdentifier, targets.get(targetIdentifier), null);
+        return references;
+    }
+
+    /**
+     * @return the properties outside the subtree that refer to nodes in the subtree
+     */
+    public synchronized List<Reference> getReferencesInto(final String subtreePath) {
+        List<Reference> references = new ArrayList<Reference>();
+        for (Map.Entry<String, Target> entry : targets.entrySet()) {
+            if (entry.getValue().path != null && ShellPath.isInSubtree(entry.getValue().path, subtreePath)) {
+                addReferences(references, entry.getKey(), entry.getValue(), subtreePath);
+            }
+        }
+        return references;
+    }
+
+    private void addReferences(final List<Reference> references, final String targetIdentifier,
+            final Target target, final String excludedSubtree) {
+        if (target == null) {
+            return;
+        }
+        for (String sourceIdentifier : target.sources) {
+            Source source = sources.get(sourceIdentifier);
+            if (excludedSubtree != null && ShellPath.isInSubtree(source.path, excludedSubtree)) {
+                continue;
+            }
+            for (Map.Entry<String, Refs> property : source.properties.entrySet()) {
+                for (String identifier : property.getValue().targets) {
+                    if (identifier.equals(targetIdentifier)) {
+                        references.add(new Reference(source.path, property.getKey(), property.getValue().type,
+                                targetIdentifier, target.path));
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the index for removed subtrees and changed nodes. While the index is built or loaded
+     * after {@link #deferChanges}, the changes are kept until it is ready.
+     */
+    public void invalidate(final Collection<String> prefixes, final Collection<String> paths) {
+        synchronized (updates) {
+            Session current;
+            synchronized (this) {
+                if (session == null) {
+                    if (pendingPrefixes != null) {
+                        pendingPrefixes.addAll(prefixes);
+                        pendingPaths.addAll(paths);
+                    }
+                    return;
+                }
+                current = session;
+            }
+            try {
+                for (String prefix : prefixes) {
+                    relocate(current, prefix);
+                    // the subtree may have been replaced by nodes at the same path
+                    rescanSubtree(current, prefix);
+                }
+                for (String path : paths) {
+                    rescan(current, path);
+                }
+            } catch (RepositoryException e) {
+                log.warn("Unable to update reference index: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Look up the nodes that were in a removed subtree by identifier, to find out whether they
+     * have been removed or moved.
+     */
+    private void relocate(final Session current, final String prefix) throws RepositoryException {
+        Map<String, String> moved = new HashMap<String, String>();
+        synchronized (this) {
+            for (Map.Entry<String, Source> entry : sources.entrySet()) {
+                if (ShellPath.isInSubtree(entry.getValue().path, prefix)) {
+                    moved.put(entry.getKey(), null);
+                }
+            }
+            for (Map.Entry<String, Target> entry : targets.entrySet()) {
+                if (entry.getValue().path != null && ShellPath.isInSubtree(entry.getValue().path, prefix)) {
+                    moved.put(entry.getKey(), null);
+                }
+            }
+        }
+        moved = resolve(current, moved.keySet());
+        synchronized (this) {
+            for (Map.Entry<String, String> entry : moved.entrySet()) {
+                Target target = targets.get(entry.getKey());
+                if (target != null) {
+                    target.path = entry.getValue();
+                }
+                Source source = sources.get(entry.getKey());
+                if (source != null) {
+                    if (entry.getValue() == null) {
+                        unlink(entry.getKey(), sources.remove(entry.getKey()));
+                    } else {
+                        source.path = entry.getValue();
+                    }
+                }
+            }
+        }
+    }
+
+    private void rescanSubtree(final Session current, final String path) throws RepositoryException {
+        Node node;
+        try {
+            node = current.getNode(path);
+        } catch (PathNotFoundException e) {
+            return;
+        }
+        List<Node> stack = new ArrayList<Node>();
+        stack.add(node);
+        while (!stack.isEmpty()) {
+            Node next = stack.remove(stack.size() - 1);
+            update(next);
+            for (NodeIterator iter = next.getNodes(); iter.hasNext();) {
+                Node child = iter.nextNode();
+                if (isIndexed(child)) {
+                    stack.add(child);
+                }
+            }
+        }
+    }
+
+    private void rescan(final Session current, final String path) throws RepositoryException {
+        if (ShellPath.isInSubtree(path, SYSTEM)) {
+            return;
+        }
+        try {
+            Node node = current.getNode(path);
+            if (!HippoJcrUtils.isVirtual(node)) {
+                update(node);
+            }
+        } catch (PathNotFoundException e) {
+            // removed, which is handled by the removal of its subtree
+        }
+    }
+
+    /**
+     * Replace the references of a node with its current references.
+     */
+    void update(final Node node) throws RepositoryException {
+        String identifier = node.getIdentifier();
+        String path = node.getPath();
+        Map<String, Refs> properties = scan(node, stringProperties);
+        Map<String, Target> added = new HashMap<String, Target>();
+        synchronized (this) {
+            // a referenced node may have been created or moved after its references
+            Target self = targets.get(identifier);
+            if (self != null) {
+                self.path = path;
+            }
+            unlink(identifier, sources.remove(identifier));
+            if (properties.isEmpty()) {
+                return;
+            }
+            sources.put(identifier, new Source(path, properties));
+            for (Refs refs : properties.values()) {
+                for (String target : refs.targets) {
+                    if (!targets.containsKey(target)) {
+                        added.put(target, new Target(null));
+                    }
+                }
+            }
+        }
+        resolveTargets(node.getSession(), null, added, null);
+        synchronized (this) {
+            for (Map.Entry<String, Target> entry : added.entrySet()) {
+                if (!targets.containsKey(entry.getKey())) {
+                    targets.put(entry.getKey(), entry.getValue());
+                }
+            }
+            link(targets, identifier, properties);
+        }
+    }
+
+    private void unlink(final String sourceIdentifier, final Source source) {
+        if (source == null) {
+            return;
+        }
+        for (Refs refs : source.properties.values()) {
+            for (String targetIdentifier : refs.targets) {
+                Target target = targets.get(targetIdentifier);
+                if (target != null) {
+                    target.sources.remove(sourceIdentifier);
+                    if (target.sources.isEmpty()) {
+                        targets.remove(targetIdentifier);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the index to a file, replacing the file when the index has been written. The file
+     * has the referring nodes with their references, followed by the paths of the referenced
+     * nodes, both sorted by identifier.
+     */
+    public synchronized void save(final File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(sources.size());
+            for (String identifier : sorted(sources.keySet())) {
+                Source source = sources.get(identifier);
+                out.writeUTF(identifier);
+                out.writeUTF(source.path);
+                out.writeShort(source.properties.size());
+                for (Map.Entry<String, Refs> property : source.properties.entrySet()) {
+                    out.writeUTF(property.getKey());
+                    out.writeByte(property.getValue().type);
+                    out.writeShort(property.getValue().targets.length);
+                    for (String target : property.getValue().targets) {
+                        out.writeUTF(target);
+                    }
+                }
+            }
+            out.writeInt(targets.size());
+            for (String identifier : sorted(targets.keySet())) {
+                String path = targets.get(identifier).path;
+                out.writeUTF(identifier);
+                out.writeUTF(path == null ? "" : path);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Unable to replace " + file + " with " + tmp);
+        }
+    }
+
+    /**
+     * Replace the index with the content of a file written by {@link #save}, mapping the file
+     * into memory to read it. Changes made while the index was not loaded are not in the file.
+     * The index is kept up to date through the session.
+     */
+    public void load(final File file, final Session current) throws IOException {
+        Map<String, Source> loadedSources = new HashMap<String, Source>();
+        Map<String, Target> loadedTargets = new HashMap<String, Target>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream in = new DataInputStream(new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) {
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    int n = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, n);
+                    return n;
+                }
+            });
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a reference index: " + file);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String identifier = in.readUTF();
+                String path = in.readUTF();
+                Map<String, Refs> properties = new LinkedHashMap<String, Refs>();
+                for (int j = in.readUnsignedShort(); j > 0; j--) {
+                    String name = in.readUTF();
+                    int type = in.readByte();
+                    String[] identifiers = new String[in.readUnsignedShort()];
+                    for (int k = 0; k < identifiers.length; k++) {
+                        identifiers[k] = in.readUTF();
+                    }
+                    properties.put(name, new Refs(type, identifiers));
+                }
+                loadedSources.put(identifier, new Source(path, properties));
+                link(loadedTargets, identifier, properties);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String identifier = in.readUTF();
+                String path = in.readUTF();
+                Target target = loadedTargets.get(identifier);
+                if (target != null) {
+                    target.path = path.length() == 0 ? null : path;
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Reference index is truncated: " + file);
+        } finally {
+            raf.close();
+        }
+        install(current, loadedSources, loadedTargets);
+    }
+
+    private static List<String> sorted(final Collection<String> identifiers) {
+        List<String> list = new ArrayList<String>(identifiers);
+        Collections.sort(list);
+        return list;
+    }
+}
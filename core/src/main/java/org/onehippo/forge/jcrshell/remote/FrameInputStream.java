@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.remote;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the frames written by a {@link FrameOutputStream}.
+ */
+public class FrameInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private byte[] buffer = new byte[0];
+    private byte[] compressed = new byte[0];
+    private int position;
+    private int count;
+    private boolean ended;
+
+    public FrameInputStream(final InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * Read and inflate the next frame.
+     * @return false at the end of the stream
+     */
+    private boolean readFrame() throws IOException {
+        if (ended) {
+            return false;
+        }
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            ended = true;
+            return false;
+        }
+        int compressedLength = in.readInt();
+        if (length < 0 || compressedLength < 0) {
+            throw new IOException("Corrupt frame");
+        }
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        if (compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        in.readFully(compressed, 0, compressedLength);
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            count = 0;
+            while (count < length && !inflater.finished()) {
+                int inflated = inflater.inflate(buffer, count, length - count);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                count += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt frame: " + e.getMessage());
+        }
+        if (count != length) {
+            throw new IOException("Corrupt frame, expected " + length + " bytes, got " + count);
+        }
+        position = 0;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (position == count) {
+            if (!readFrame()) {
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (position == count) {
+            if (!readFrame()) {
+                return -1;
+            }
+        }
+        int chunk = Math.min(length, count - position);
+        System.arraycopy(buffer, position, bytes, offset, chunk);
+        position += chunk;
+        return chunk;
+    }
+
+    @Override
+    public int available() {
+        return count - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.remote;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that compresses its bytes in frames. Each flush deflates the buffered bytes into
+ * a frame of its own, preceded by the uncompressed and the compressed length, so the reader can
+ * inflate everything that was flushed without waiting for the end of the stream. A single
+ * deflate stream cannot be flushed halfway before Java 7.
+ */
+public class FrameOutputStream extends OutputStream {
+
+    /** default number of bytes after which a frame is written without a flush */
+    public static final int DEFAULT_FRAME_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] buffer;
+    private byte[] compressed;
+    private int count;
+
+    public FrameOutputStream(final OutputStream out) {
+        this(out, DEFAULT_FRAME_SIZE);
+    }
+
+    public FrameOutputStream(final OutputStream out, final int frameSize) {
+        this.out = new DataOutputStream(out);
+        this.buffer = new byte[frameSize];
+        this.compressed = new byte[frameSize / 2];
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (count == buffer.length) {
+            writeFrame();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == buffer.length) {
+                writeFrame();
+            }
+            int chunk = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private void writeFrame() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        deflater.reset();
+        deflater.setInput(buffer, 0, count);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] larger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, larger, 0, length);
+                compressed = larger;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        out.writeInt(count);
+        out.writeInt(length);
+        out.write(compressed, 0, length);
+        count = 0;
+    }
+
+    /**
+     * Write the buffered bytes as a frame and flush the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeFrame();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
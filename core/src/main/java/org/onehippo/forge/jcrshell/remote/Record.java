@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.remote;
+
+/**
+ * A record of the remote protocol: a type and a list of fields. A {@link RemoteProtocol#FILE}
+ * record is followed by the bytes of the file.
+ */
+public final class Record {
+
+    private final char type;
+    private final String[] fields;
+    private final long length;
+
+    Record(final char type, final String[] fields, final long length) {
+        this.type = type;
+        this.fields = fields;
+        this.length = length;
+    }
+
+    public char getType() {
+        return type;
+    }
+
+    public String[] getFields() {
+        return fields.clone();
+    }
+
+    public int size() {
+        return fields.length;
+    }
+
+    /**
+     * @return the field, or null when the record has no such field
+     */
+    public String getField(final int index) {
+        return index < fields.length ? fields[index] : null;
+    }
+
+    /**
+     * @return the number of bytes that follow a file record
+     */
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return type + java.util.Arrays.toString(fields);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.remote;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads the records written by a {@link RecordWriter}.
+ */
+public class RecordReader {
+
+    private static final int COPY_BUFFER = 8192;
+
+    /** maximum size of a single field, to fail early on a corrupt stream */
+    private static final int MAX_FIELD = 64 * 1024 * 1024;
+
+    private final DataInputStream in;
+    private Record peeked;
+    private long remaining;
+
+    public RecordReader(final InputStream in) {
+        this.in = new DataInputStream(new FrameInputStream(in));
+    }
+
+    /**
+     * @return the next record without consuming it, or null at the end of the stream
+     */
+    public Record peek() throws IOException {
+        if (peeked == null) {
+            peeked = readRecord();
+        }
+        return peeked;
+    }
+
+    /**
+     * Read the next record. The bytes of a file record that were not copied are skipped.
+     * @return the record or null at the end of the stream
+     */
+    public Record read() throws IOException {
+        Record record = peek();
+        peeked = null;
+        return record;
+    }
+
+    /**
+     * Copy the bytes of the file record that was read last.
+     */
+    public void copyFile(final OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER];
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("File ended " + remaining + " bytes early");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private Record readRecord() throws IOException {
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                throw new EOFException("File ended " + remaining + " bytes early");
+            }
+            remaining -= skipped;
+        }
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        int count = in.readInt();
+        if (count < 0 || count > MAX_FIELD) {
+            throw new IOException("Corrupt record of type " + (char) type);
+        }
+        String[] fields = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if (length > MAX_FIELD) {
+                throw new IOException("Corrupt record of type " + (char) type);
+            }
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                fields[i] = new String(bytes, "UTF-8");
+            }
+        }
+        long length = 0L;
+        if (type == RemoteProtocol.FILE) {
+            length = in.readLong();
+            remaining = length;
+        }
+        return new Record((char) type, fields, length);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
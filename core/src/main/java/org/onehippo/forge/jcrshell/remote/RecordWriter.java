@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.remote;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes records to a compressed {@link FrameOutputStream}. Strings are written as their length
+ * in UTF-8 bytes followed by the bytes, so there is no limit on their size.
+ */
+public class RecordWriter {
+
+    private static final int COPY_BUFFER = 8192;
+
+    private final DataOutputStream out;
+
+    public RecordWriter(final OutputStream out) {
+        this.out = new DataOutputStream(new FrameOutputStream(out));
+    }
+
+    public void write(final char type, final String... fields) throws IOException {
+        out.writeByte(type);
+        out.writeInt(fields.length);
+        for (String field : fields) {
+            if (field == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = field.getBytes("UTF-8");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Write a {@link RemoteProtocol#FILE} record followed by length bytes of the stream.
+     */
+    public void writeFile(final String index, final InputStream in, final long length) throws IOException {
+        write(RemoteProtocol.FILE, index);
+        out.writeLong(length);
+        byte[] buffer = new byte[COPY_BUFFER];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("File ended " + remaining + " bytes early");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Compress the records written since the last flush and send them.
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
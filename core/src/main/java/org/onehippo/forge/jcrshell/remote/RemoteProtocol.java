@@ -0,0 +1,209 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.remote;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+import org.onehippo.forge.jcrshell.Command.ArgumentType;
+import org.onehippo.forge.jcrshell.CommandHelper;
+import org.onehippo.forge.jcrshell.JcrShellPrinter;
+import org.onehippo.forge.jcrshell.output.DebugOutput;
+import org.onehippo.forge.jcrshell.output.ErrorOutput;
+import org.onehippo.forge.jcrshell.output.OkOutput;
+import org.onehippo.forge.jcrshell.output.Output;
+import org.onehippo.forge.jcrshell.output.TextOutput;
+import org.onehippo.forge.jcrshell.output.WarnOutput;
+
+/**
+ * The protocol between a console in remote mode and the servlet, which runs the commands in the
+ * repository JVM. A request and its response are each a stream of {@link Record}s, compressed in
+ * frames. The path of the current node is part of the URL of the request.
+ * <p>
+ * A request is either an {@link #EXECUTE} record, followed by a {@link #FILE} record for each
+ * local file that is an argument of the command and an {@link #END} record, or a
+ * {@link #COMPLETE} record. The response to an execution starts with {@link #START}, continues
+ * with the output of the command as {@link #LINE}, {@link #TABLE} and {@link #ROW} records and
+ * the files that the command wrote, and ends with {@link #DONE}. The response to a completion is
+ * a single {@link #COMPLETION} record.
+ */
+public final class RemoteProtocol {
+
+    public static final String MEDIA_TYPE = "application/x-jcrshell";
+
+    /** command line */
+    public static final char EXECUTE = 'X';
+    /** buffer, cursor, maximum number of candidates */
+    public static final char COMPLETE = 'Q';
+    /** end of the files of an execution */
+    public static final char END = 'E';
+
+    /** path the command runs in */
+    public static final char START = 'S';
+    /** mode and text of each part of the line */
+    public static final char LINE = 'L';
+    /** headers of a table of which the rows follow */
+    public static final char TABLE = 'T';
+    /** cells of a row */
+    public static final char ROW = 'R';
+    /** index of the argument that names the file, followed by the bytes */
+    public static final char FILE = 'F';
+    /** path of the current node after the command, whether it succeeded */
+    public static final char DONE = 'D';
+    /** start of the completed word, whether there are more candidates, the candidates */
+    public static final char COMPLETION = 'C';
+
+    private static final String PLAIN = "PLAIN";
+    private static final String DEBUG = "DEBUG";
+    private static final String OK = "OK";
+    private static final String WARN = "WARN";
+    private static final String ERROR = "ERROR";
+
+    /**
+     * Hide constructor.
+     */
+    private RemoteProtocol() {
+    }
+
+    /**
+     * @return the fields of a {@link #LINE} record for the output
+     */
+    public static String[] toFields(Output output) {
+        List<String> fields = new ArrayList<String>();
+        do {
+            String text = output.getText();
+            if (text.length() > 0) {
+                if (output instanceof DebugOutput) {
+                    fields.add(DEBUG);
+                } else if (output instanceof OkOutput) {
+                    fields.add(OK);
+                } else if (output instanceof WarnOutput) {
+                    fields.add(WARN);
+                } else if (output instanceof ErrorOutput) {
+                    fields.add(ERROR);
+                } else {
+                    fields.add(PLAIN);
+                }
+                fields.add(text);
+            }
+            output = output.next();
+        } while (output != null);
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    /**
+     * @return the output of the fields of a {@link #LINE} record
+     */
+    public static Output toOutput(String[] fields) {
+        TextOutput output = Output.out();
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            String mode = fields[i];
+            String text = fields[i + 1];
+            if (DEBUG.equals(mode)) {
+                output = output.debug(text);
+            } else if (OK.equals(mode)) {
+                output = output.ok(text);
+            } else if (WARN.equals(mode)) {
+                output = output.warn(text);
+            } else if (ERROR.equals(mode)) {
+                output = output.error(text);
+            } else {
+                output = output.a(text);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * @return the indexes of the arguments of the command line that are files, counting the
+     *         arguments that are not options
+     */
+    public static List<Integer> getFileArguments(String[] args) {
+        List<Integer> files = new ArrayList<Integer>();
+        if (args.length == 0) {
+            return files;
+        }
+        String cmd = args[0].toLowerCase(Locale.ENGLISH);
+        if (CommandHelper.isAlias(cmd)) {
+            cmd = CommandHelper.getCommandForAlias(cmd);
+        }
+        ArgumentType[] types = CommandHelper.getArgumentTypes(cmd);
+        if (types == null) {
+            return files;
+        }
+        int position = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                continue;
+            }
+            if (position < types.length && types[position].getFlags().contains(ArgumentType.Flags.FILE)) {
+                files.add(i);
+            }
+            position++;
+        }
+        return files;
+    }
+
+    /**
+     * Print an output record and the rows that follow a table with the current printer.
+     * @return false when the record is not output
+     */
+    public static boolean print(Record record, final RecordReader reader) throws IOException {
+        if (record.getType() == LINE) {
+            JcrShellPrinter.print(toOutput(record.getFields()));
+            return true;
+        }
+        if (record.getType() != TABLE) {
+            return false;
+        }
+        final IOException[] failure = new IOException[1];
+        JcrShellPrinter.printTableWithHeader(record.getFields(), new Iterator<String[]>() {
+            public boolean hasNext() {
+                try {
+                    Record next = reader.peek();
+                    return next != null && next.getType() == ROW;
+                } catch (IOException e) {
+                    failure[0] = e;
+                    return false;
+                }
+            }
+
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return reader.read().getFields();
+                } catch (IOException e) {
+                    // cannot happen, the record was peeked
+                    throw new NoSuchElementException(e.getMessage());
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return true;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+
+import org.onehippo.forge.jcrshell.IJcrShellRenderer;
+import org.onehippo.forge.jcrshell.output.Output;
+
+/**
+ * Renders the output of a command as records of the {@link RemoteProtocol}. Tables are written
+ * row by row. The records are flushed as a frame after a number of records, or by a flush thread
+ * of the renderer when they have waited for some time, so the client sees the output of a slow
+ * command while it runs, also when the command does not write for a while. Each renderer has its
+ * own flush thread, so a client that does not read only holds up its own command. When the
+ * client has gone away the remaining output is dropped and the thread of the command is
+ * interrupted, so that commands that check for it stop early. The renderer must be closed when
+ * the command is done, to stop its flush thread.
+ */
+public class RemoteRenderer implements IJcrShellRenderer {
+
+    /** default number of records after which they are flushed */
+    public static final int DEFAULT_FLUSH_RECORDS = 256;
+
+    /** time in milliseconds after which records are flushed */
+    public static final long FLUSH_INTERVAL = 200L;
+
+    private final RecordWriter writer;
+    private final int flushRecords;
+    private final Thread thread = Thread.currentThread();
+    private int unflushed;
+    private long lastFlush = System.currentTimeMillis();
+    private boolean closed;
+    private boolean disconnected;
+
+    public RemoteRenderer(final RecordWriter writer) {
+        this(writer, DEFAULT_FLUSH_RECORDS);
+    }
+
+    /**
+     * Create a renderer for the command that runs on the current thread.
+     */
+    public RemoteRenderer(final RecordWriter writer, final int flushRecords) {
+        this.writer = writer;
+        this.flushRecords = Math.max(1, flushRecords);
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLate();
+            }
+        }, "jcr-shell remote flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public void print(final Output output) {
+        write(RemoteProtocol.LINE, RemoteProtocol.toFields(output));
+    }
+
+    public void printTableWithHeader(final List<String[]> rows) {
+        printTableWithHeader(rows.get(0), rows.subList(1, rows.size()).iterator());
+    }
+
+    public void printTableWithHeader(final String[] header, final Iterator<String[]> rows) {
+        write(RemoteProtocol.TABLE, header);
+        while (!closed && rows.hasNext()) {
+            write(RemoteProtocol.ROW, rows.next());
+        }
+    }
+
+    /**
+     * @return whether the output is dropped, because the client has gone away or the renderer
+     *         is closed
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return whether the client has gone away, in which case the thread of the command has been
+     *         interrupted
+     */
+    public synchronized boolean isDisconnected() {
+        return disconnected;
+    }
+
+    /**
+     * Write the record and flush when enough records have been written or enough time has passed.
+     */
+    public synchronized void write(final char type, final String... fields) {
+        if (closed) {
+            return;
+        }
+        try {
+            writer.write(type, fields);
+            if (++unflushed >= flushRecords || System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+                flush();
+            } else if (unflushed == 1) {
+                // the flush thread waits for the first record
+                notifyAll();
+            }
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Write a {@link RemoteProtocol#FILE} record, see {@link RecordWriter#writeFile}.
+     */
+    public synchronized void writeFile(final String index, final InputStream in, final long length)
+            throws IOException {
+        if (!closed) {
+            writer.writeFile(index, in, length);
+        }
+    }
+
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            writer.flush();
+            unflushed = 0;
+            lastFlush = System.currentTimeMillis();
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Flush the records that have been waiting for longer than the interval, on the flush thread,
+     * until the renderer is closed.
+     */
+    private synchronized void flushLate() {
+        try {
+            while (!closed) {
+                if (unflushed == 0) {
+                    wait();
+                    continue;
+                }
+                long remaining = lastFlush + FLUSH_INTERVAL - System.currentTimeMillis();
+                if (remaining > 0) {
+                    wait(remaining);
+                } else {
+                    flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            // not interrupted by the renderer, stop flushing
+        }
+    }
+
+    /**
+     * Stop the flush thread and drop the output that is written after this.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void disconnect() {
+        disconnected = true;
+        close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+
+/**
+ * Iterates over the paths of the nodes that match a path of name patterns, like
+ * <code>/content/documents/*&#47;news/*</code>. Each segment is a name pattern as accepted by
+ * {@link Node#getNodes(String)}, so <code>*</code> matches any part of a name and
+ * <code>|</code> separates alternatives. The tree is read one level of a match at a time, so
+ * the paths are produced while the tree is traversed. Virtual nodes are not matched.
+ */
+public final class PathGlob implements Iterator<String> {
+
+    private final String[] patterns;
+    private final LinkedList<NodeIterator> stack = new LinkedList<NodeIterator>();
+    private String next;
+    private boolean done;
+
+    /**
+     * @param base the node that relative patterns start from
+     * @param pattern the absolute or relative path pattern
+     */
+    public PathGlob(final Node base, final String pattern) throws RepositoryException {
+        Node start = pattern.startsWith("/") ? base.getSession().getRootNode() : base;
+        String trimmed = pattern;
+        while (trimmed.startsWith("/")) {
+            trimmed = trimmed.substring(1);
+        }
+        while (trimmed.endsWith("/")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        this.patterns = trimmed.length() == 0 ? new String[0] : trimmed.split("/+");
+        if (patterns.length == 0) {
+            next = start.getPath();
+        } else {
+            stack.addFirst(start.getNodes(patterns[0]));
+        }
+    }
+
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = advance();
+            } catch (RepositoryException e) {
+                throw new IllegalStateException("Unable to match " + e.getMessage(), e);
+            }
+            done = next == null;
+        }
+        return next != null;
+    }
+
+    private String advance() throws RepositoryException {
+        while (!stack.isEmpty()) {
+            NodeIterator iter = stack.getFirst();
+            if (!iter.hasNext()) {
+                stack.removeFirst();
+                continue;
+            }
+            Node node = iter.nextNode();
+            if (HippoJcrUtils.isVirtual(node)) {
+                continue;
+            }
+            if (stack.size() == patterns.length) {
+                return node.getPath();
+            }
+            stack.addFirst(node.getNodes(patterns[stack.size()]));
+        }
+        return null;
+    }
+
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String path = next;
+        next = null;
+        return path;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Depth first iterator over a tree that visits the upcoming items in parallel. The results are
+ * returned in pre-order, the same order as a sequential walk. Only the next <code>window</code>
+ * items in that order are visited ahead, which bounds the number of results held in memory.
+ * Without an executor the items are visited sequentially on the calling thread.
+ *
+ * @param <T> the type of the items of the tree
+ * @param <R> the type of the result of a visit
+ */
+public class PrefetchingTreeWalker<T, R> implements Iterator<R> {
+
+    /** default number of items that are visited ahead */
+    public static final int DEFAULT_WINDOW = 64;
+
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+
+    /**
+     * Visits the items of the tree.
+     */
+    public interface Visitor<T, R> {
+
+        /**
+         * Visit an item. This is called on a worker thread when the walker has an executor.
+         */
+        R visit(T item) throws Exception;
+
+        /**
+         * Called on the calling thread when the visit of an item failed.
+         * @return the result to use for the item
+         */
+        R failed(T item, Exception e);
+
+        /**
+         * @return the children of a visited item, in the order in which they should be visited
+         */
+        List<T> getChildren(R result);
+    }
+
+    private final class Pending implements Callable<R> {
+        private final T item;
+        private Future<R> future;
+
+        private Pending(final T item) {
+            this.item = item;
+        }
+
+        public R call() throws Exception {
+            return visitor.visit(item);
+        }
+
+        private R get() {
+            try {
+                if (future == null) {
+                    return call();
+                }
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return visitor.failed(item, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    return visitor.failed(item, (Exception) cause);
+                }
+                throw (Error) cause;
+            } catch (Exception e) {
+                return visitor.failed(item, e);
+            }
+        }
+    }
+
+    private final Visitor<T, R> visitor;
+    private final ExecutorService executor;
+    private final int window;
+
+    /** the items to visit, the first item is the next one */
+    private final LinkedList<Pending> stack = new LinkedList<Pending>();
+
+    public PrefetchingTreeWalker(final T root, final Visitor<T, R> visitor, final ExecutorService executor,
+            final int window) {
+        this.visitor = visitor;
+        this.executor = executor;
+        this.window = window;
+        stack.add(new Pending(root));
+        prefetch();
+    }
+
+    /**
+     * Create an executor for walkers. The threads are daemon threads and stop when they have been
+     * idle for a while, so a walker that is not iterated to the end does not keep threads alive.
+     * @return the executor, or null for sequential walking when threads is less than 2
+     */
+    public static ExecutorService newExecutor(final int threads, final String name) {
+        if (threads < 2) {
+            return null;
+        }
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public boolean hasNext() {
+        return !stack.isEmpty();
+    }
+
+    public R next() {
+        if (stack.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        R result = stack.removeFirst().get();
+        List<T> children = visitor.getChildren(result);
+        for (ListIterator<T> iter = children.listIterator(children.size()); iter.hasPrevious();) {
+            stack.addFirst(new Pending(iter.previous()));
+        }
+        prefetch();
+        return result;
+    }
+
+    private void prefetch() {
+        if (executor == null) {
+            return;
+        }
+        int count = 0;
+        for (Iterator<Pending> iter = stack.iterator(); iter.hasNext() && count < window; count++) {
+            Pending pending = iter.next();
+            if (pending.future == null) {
+                pending.future = executor.submit(pending);
+            }
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.util;
+
+import org.hippoecm.repository.api.NodeNameCodec;
+
+/**
+ * Parses the paths that are typed in the shell. The paths are scanned once, without regular
+ * expressions or intermediate arrays.
+ */
+public final class ShellPath {
+
+    /** hide constructor */
+    private ShellPath() {
+    }
+
+    /**
+     * Encode the names of a path, except the first one, and give them an explicit index.
+     * Trailing slashes are ignored.
+     * @return the path that can be passed to getNode
+     */
+    public static String encode(final String path) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        int start = path.indexOf('/');
+        if (start < 0 || start >= end) {
+            return path.substring(0, end);
+        }
+        StringBuilder buf = new StringBuilder(end + 16);
+        buf.append(path, 0, start);
+        while (start < end) {
+            int next = path.indexOf('/', start + 1);
+            if (next < 0 || next > end) {
+                next = end;
+            }
+            buf.append('/');
+            appendElement(buf, path, start + 1, next);
+            start = next;
+        }
+        return buf.toString();
+    }
+
+    private static void appendElement(final StringBuilder buf, final String path, final int from, final int to) {
+        if (to - from == 2 && path.charAt(from) == '.' && path.charAt(from + 1) == '.') {
+            buf.append("..");
+            return;
+        }
+        int nameEnd = to;
+        int open = path.indexOf('[', from);
+        if (open > from && open < to && path.charAt(to - 1) == ']') {
+            int last = path.lastIndexOf('[', to - 1);
+            if (isNumber(path, last + 1, to - 1)) {
+                nameEnd = last;
+            }
+        }
+        buf.append(NodeNameCodec.encode(path.substring(from, nameEnd))).append('[');
+        if (nameEnd == to) {
+            buf.append('1');
+        } else {
+            buf.append(path, nameEnd + 1, to - 1);
+        }
+        buf.append(']');
+    }
+
+    private static boolean isNumber(final String path, final int from, final int to) {
+        if (from >= to) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            char c = path.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the path is the subtree path or lies below it
+     */
+    public static boolean isInSubtree(final String path, final String subtreePath) {
+        if ("/".equals(subtreePath)) {
+            return true;
+        }
+        return path.startsWith(subtreePath)
+                && (path.length() == subtreePath.length() || path.charAt(subtreePath.length()) == '/');
+    }
+
+    /**
+     * Make an encoded path absolute, resolve the "." and ".." names and leave out the index of
+     * the first sibling, so the path is the same as the path of the node it resolves to.
+     * @param basePath the absolute path that relative paths are resolved against
+     * @param encodedPath a path as returned by {@link #encode}
+     * @return the normalized path, or null when the path is outside the tree or has an empty name
+     */
+    public static String normalize(final String basePath, final String encodedPath) {
+        StringBuilder buf = new StringBuilder(basePath.length() + encodedPath.length());
+        int start = 0;
+        if (encodedPath.startsWith("/")) {
+            start = 1;
+        } else if (!"/".equals(basePath)) {
+            buf.append(basePath);
+        }
+        int length = encodedPath.length();
+        while (start < length) {
+            int next = encodedPath.indexOf('/', start);
+            if (next < 0) {
+                next = length;
+            }
+            int size = next - start;
+            if (size == 0 || encodedPath.charAt(start) == '[') {
+                // an empty name
+                return null;
+            } else if (size == 1 && encodedPath.charAt(start) == '.') {
+                // same node
+            } else if (size == 2 && encodedPath.startsWith("..", start)) {
+                if (buf.length() == 0) {
+                    return null;
+                }
+                buf.setLength(buf.lastIndexOf("/"));
+            } else {
+                buf.append('/');
+                if (encodedPath.startsWith("[1]", next - 3)) {
+                    buf.append(encodedPath, start, next - 3);
+                } else {
+                    buf.append(encodedPath, start, next);
+                }
+            }
+            start = next + 1;
+        }
+        return buf.length() == 0 ? "/" : buf.toString();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Connects a producer that writes to an output stream on a worker thread with a consumer that
+ * reads from an input stream. The data is passed in chunks through a bounded queue, so the
+ * producer blocks when it is too far ahead of the consumer. An exception of the producer is
+ * thrown to the consumer when it reaches the end of the data.
+ */
+public final class StreamPipe extends InputStream {
+
+    /** default size of a chunk */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /** default number of chunks in the queue */
+    public static final int DEFAULT_CHUNKS = 16;
+
+    private static final byte[] EOF = new byte[0];
+
+    private static final long POLL_INTERVAL = 100L;
+
+    /**
+     * Writes the data to the pipe.
+     */
+    public interface Producer {
+        void produce(OutputStream out) throws IOException, RepositoryException;
+    }
+
+    private final BlockingQueue<byte[]> queue;
+    private volatile boolean closed;
+    private volatile Throwable failure;
+    private Thread worker;
+
+    private byte[] chunk;
+    private int position;
+
+    private StreamPipe(final int chunks) {
+        queue = new ArrayBlockingQueue<byte[]>(chunks);
+    }
+
+    /**
+     * Start the producer on a new worker thread.
+     * @return the stream to read the data from
+     */
+    public static InputStream start(final Producer producer, final String name) {
+        return start(producer, name, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS);
+    }
+
+    public static InputStream start(final Producer producer, final String name, final int chunkSize, final int chunks) {
+        final StreamPipe pipe = new StreamPipe(chunks);
+        final PipeOutputStream out = pipe.new PipeOutputStream(chunkSize);
+        pipe.worker = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    producer.produce(out);
+                    out.close();
+                } catch (Exception e) {
+                    pipe.failure = e;
+                } catch (Error e) {
+                    pipe.failure = e;
+                    throw e;
+                } finally {
+                    try {
+                        pipe.put(EOF);
+                    } catch (IOException e) {
+                        // closed by the consumer
+                    }
+                }
+            }
+        }, name);
+        pipe.worker.setDaemon(true);
+        pipe.worker.start();
+        return pipe;
+    }
+
+    private void put(final byte[] bytes) throws IOException {
+        try {
+            do {
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+            } while (!queue.offer(bytes, POLL_INTERVAL, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing to pipe");
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (chunk == EOF) {
+            return false;
+        }
+        if (chunk != null && position < chunk.length) {
+            return true;
+        }
+        try {
+            chunk = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading from pipe");
+        }
+        position = 0;
+        if (chunk == EOF) {
+            if (failure != null) {
+                IOException ioe = new IOException(failure.getMessage());
+                ioe.initCause(failure);
+                throw ioe;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return chunk == null || chunk == EOF ? 0 : chunk.length - position;
+    }
+
+    /**
+     * Stop reading. A producer that is still writing is interrupted and fails with an
+     * IOException on its next write; this returns when the producer has finished, so the
+     * caller can release the resources it uses.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+        if (worker == Thread.currentThread()) {
+            return;
+        }
+        worker.interrupt();
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+    }
+
+    /**
+     * Collects the writes in chunks and passes them to the queue.
+     */
+    private final class PipeOutputStream extends OutputStream {
+        private byte[] buffer;
+        private int count;
+
+        private PipeOutputStream(final int chunkSize) {
+            buffer = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (count == buffer.length) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int offset = off;
+            int remaining = len;
+            while (remaining > 0) {
+                if (count == buffer.length) {
+                    flush();
+                }
+                int n = Math.min(remaining, buffer.length - count);
+                System.arraycopy(b, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                remaining -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            byte[] bytes;
+            if (count == buffer.length) {
+                bytes = buffer;
+                buffer = new byte[buffer.length];
+            } else {
+                bytes = new byte[count];
+                System.arraycopy(buffer, 0, bytes, 0, count);
+            }
+            put(bytes);
+            count = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders a node tree as lines of text, in depth first order. With a pool of sessions the nodes
+ * are read on worker threads ahead of the consumer of the lines, each through a session of the
+ * pool, so the children of a node are fetched while the lines above them are printed and only
+ * saved nodes are rendered. Each node is read with one call for its path, one for its
+ * type, one for its canonical node and one iteration over its child nodes. Nodes with more child
+ * nodes than the limit show the first ones, followed by a line with the number of omitted nodes.
+ */
+public final class TreeRenderer implements Iterator<String> {
+
+    /** logger */
+    private static final Logger log = LoggerFactory.getLogger(TreeRenderer.class);
+
+    /** default number of threads that read nodes, each with a session of its own */
+    public static final int DEFAULT_THREADS = Integer.getInteger("jcrshell.tree.threads", 4);
+
+    private static final String BRANCH = "|--";
+    private static final String LAST_BRANCH = "`--";
+
+    /**
+     * A line of the tree: a node, or the marker of the child nodes that are omitted. The node is
+     * kept itself when it is read sequentially, or by its path when it is read through a session
+     * of the pool.
+     */
+    static final class Item {
+        private final Node node;
+        private final String path;
+        private final int level;
+        private final String prefix;
+        private final boolean last;
+        private final long omitted;
+
+        Item(final Node node, final String path, final int level, final String prefix, final boolean last) {
+            this.node = node;
+            this.path = path;
+            this.level = level;
+            this.prefix = prefix;
+            this.last = last;
+            this.omitted = 0L;
+        }
+
+        Item(final String prefix, final long omitted) {
+            this.node = null;
+            this.path = null;
+            this.level = 0;
+            this.prefix = prefix;
+            this.last = true;
+            this.omitted = omitted;
+        }
+
+        private String branch() {
+            return prefix + (last ? LAST_BRANCH : BRANCH);
+        }
+    }
+
+    static final class Line {
+        private final String text;
+        private final List<Item> children;
+
+        Line(final String text, final List<Item> children) {
+            this.text = text;
+            this.children = children;
+        }
+    }
+
+    static final class LineVisitor implements PrefetchingTreeWalker.Visitor<Item, Line> {
+        private final int maxLevel;
+        private final int maxChildren;
+        private final SessionPool pool;
+
+        LineVisitor(final int maxLevel, final int maxChildren, final SessionPool pool) {
+            this.maxLevel = maxLevel;
+            this.maxChildren = maxChildren;
+            this.pool = pool;
+        }
+
+        public Line visit(final Item item) throws RepositoryException, InterruptedException {
+            if (item.node == null && item.path == null) {
+                List<Item> children = Collections.emptyList();
+                return new Line(item.branch() + " ... " + item.omitted + " more", children);
+            }
+            if (pool == null) {
+                return visit(item, item.node);
+            }
+            Session session = pool.borrow();
+            try {
+                return visit(item, session.getNode(item.path));
+            } finally {
+                pool.release(session);
+            }
+        }
+
+        private Line visit(final Item item, final Node node) throws RepositoryException {
+            List<Item> children = Collections.emptyList();
+            String path = node.getPath();
+            StringBuilder text = new StringBuilder();
+            if (item.level > 0) {
+                text.append(item.branch()).append(path.substring(path.lastIndexOf('/') + 1));
+                if (HippoJcrUtils.isVirtual(node)) {
+                    text.append('*');
+                }
+            } else {
+                // treat first node specifically
+                text.append("/".equals(path) ? "/" : path.substring(path.lastIndexOf('/') + 1));
+            }
+            text.append(" {").append(node.getPrimaryNodeType().getName()).append('}');
+
+            if (item.level < maxLevel) {
+                children = new ArrayList<Item>();
+                String prefix = item.level == 0 ? "" : item.prefix + (item.last ? "   " : "|  ");
+                NodeIterator iter = node.getNodes();
+                while (iter.hasNext() && (maxChildren <= 0 || children.size() < maxChildren)) {
+                    Node child = iter.nextNode();
+                    if (pool == null) {
+                        children.add(new Item(child, null, item.level + 1, prefix, !iter.hasNext()));
+                    } else {
+                        children.add(new Item(null, child.getPath(), item.level + 1, prefix, !iter.hasNext()));
+                    }
+                }
+                if (iter.hasNext()) {
+                    long size = iter.getSize();
+                    long omitted = size < 0 ? count(iter) : size - iter.getPosition();
+                    children.add(new Item(prefix, omitted));
+                }
+            }
+            return new Line(text.toString(), children);
+        }
+
+        private static long count(final NodeIterator iter) {
+            long count = 0L;
+            while (iter.hasNext()) {
+                iter.skip(1L);
+                count++;
+            }
+            return count;
+        }
+
+        public Line failed(final Item item, final Exception e) {
+            log.warn("Exception while reading node", e);
+            List<Item> children = Collections.emptyList();
+            return new Line(item.branch() + "!" + e.getMessage(), children);
+        }
+
+        public List<Item> getChildren(final Line line) {
+            return line.children;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final PrefetchingTreeWalker<Item, Line> walker;
+
+    /**
+     * @param maxLevel the number of levels below the node to render
+     * @param maxChildren the number of child nodes to render of each node, 0 for all
+     * @param pool the sessions that read the nodes, one thread for each, or null to read the nodes
+     *        sequentially through the session of the node. The pool must stay open while the lines
+     *        are read.
+     */
+    public TreeRenderer(final Node node, final int maxLevel, final int maxChildren, final SessionPool pool)
+            throws RepositoryException {
+        Item root;
+        if (pool == null) {
+            executor = null;
+            root = new Item(node, null, 0, "", true);
+        } else {
+            executor = PrefetchingTreeWalker.newExecutor(pool.getSize(), "jcr-shell tree");
+            root = new Item(null, node.getPath(), 0, "", true);
+        }
+        walker = new PrefetchingTreeWalker<Item, Line>(root, new LineVisitor(maxLevel, maxChildren, pool), executor,
+                PrefetchingTreeWalker.DEFAULT_WINDOW);
+    }
+
+    public boolean hasNext() {
+        if (!walker.hasNext()) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return walker.next().text;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the number of nodes, properties, binary bytes and versions of a tree. With a pool of
+ * sessions the nodes are read on worker threads with the {@link PrefetchingTreeWalker}, each
+ * through a session of the pool, so only saved nodes are counted. The counts are added up on the
+ * calling thread, for the subtrees down to a depth and for each primary node type.
+ * Only the largest subtrees are kept, so the memory does not grow with the size of the tree.
+ * Virtual nodes are not counted.
+ */
+public final class TreeUsage {
+
+    /** logger */
+    private static final Logger log = LoggerFactory.getLogger(TreeUsage.class);
+
+    /** default number of threads that read nodes, each with a session of its own */
+    public static final int DEFAULT_THREADS = Integer.getInteger("jcrshell.du.threads", 4);
+
+    private static final String VERSIONABLE = "mix:versionable";
+
+    /**
+     * The counts of a subtree or of a node type.
+     */
+    public static final class Usage {
+        private final String name;
+        private final int depth;
+        private long nodes;
+        private long properties;
+        private long bytes;
+        private long versions;
+
+        Usage(final String name, final int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+
+        private void add(final NodeUsage node) {
+            nodes++;
+            properties += node.properties;
+            bytes += node.bytes;
+            versions += node.versions;
+        }
+
+        /**
+         * @return the path of the subtree or the name of the node type
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getNodes() {
+            return nodes;
+        }
+
+        public long getProperties() {
+            return properties;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getVersions() {
+            return versions;
+        }
+    }
+
+    /** largest first, by binary bytes and then by number of nodes */
+    private static final Comparator<Usage> LARGEST_FIRST = new Comparator<Usage>() {
+        public int compare(final Usage o1, final Usage o2) {
+            if (o1.bytes != o2.bytes) {
+                return o1.bytes < o2.bytes ? 1 : -1;
+            }
+            if (o1.nodes != o2.nodes) {
+                return o1.nodes < o2.nodes ? 1 : -1;
+            }
+            return o1.name.compareTo(o2.name);
+        }
+    };
+
+    /**
+     * A node to visit: the node itself when it is read sequentially, or its path when it is read
+     * through a session of the pool.
+     */
+    static final class Item {
+        private final Node node;
+        private final String path;
+        private final int depth;
+
+        Item(final Node node, final String path, final int depth) {
+            this.node = node;
+            this.path = path;
+            this.depth = depth;
+        }
+    }
+
+    static final class NodeUsage {
+        private final String path;
+        private final int depth;
+        private final String type;
+        private final long properties;
+        private final long bytes;
+        private final long versions;
+        private final List<Item> children;
+
+        NodeUsage(final String path, final int depth, final String type, final long properties, final long bytes,
+                final long versions, final List<Item> children) {
+            this.path = path;
+            this.depth = depth;
+            this.type = type;
+            this.properties = properties;
+            this.bytes = bytes;
+            this.versions = versions;
+            this.children = children;
+        }
+    }
+
+    static final class UsageVisitor implements PrefetchingTreeWalker.Visitor<Item, NodeUsage> {
+        private final SessionPool pool;
+
+        UsageVisitor(final SessionPool pool) {
+            this.pool = pool;
+        }
+
+        public NodeUsage visit(final Item item) throws RepositoryException, InterruptedException {
+            if (pool == null) {
+                return visit(item, item.node);
+            }
+            Session session = pool.borrow();
+            try {
+                return visit(item, session.getNode(item.path));
+            } finally {
+                pool.release(session);
+            }
+        }
+
+        private NodeUsage visit(final Item item, final Node node) throws RepositoryException {
+            long properties = 0L;
+            long bytes = 0L;
+            for (PropertyIterator iter = node.getProperties(); iter.hasNext();) {
+                Property property = iter.nextProperty();
+                properties++;
+                if (property.getType() == PropertyType.BINARY) {
+                    if (property.isMultiple()) {
+                        for (long length : property.getLengths()) {
+                            bytes += Math.max(0L, length);
+                        }
+                    } else {
+                        bytes += Math.max(0L, property.getLength());
+                    }
+                }
+            }
+            String path = node.getPath();
+            long versions = 0L;
+            if (node.isNodeType(VERSIONABLE)) {
+                // not counting the root version
+                versions = node.getSession().getWorkspace().getVersionManager().getVersionHistory(path)
+                        .getAllVersions().getSize() - 1;
+            }
+            List<Item> children = new ArrayList<Item>();
+            for (NodeIterator iter = node.getNodes(); iter.hasNext();) {
+                Node child = iter.nextNode();
+                if (!HippoJcrUtils.isVirtual(child)) {
+                    if (pool == null) {
+                        children.add(new Item(child, null, item.depth + 1));
+                    } else {
+                        children.add(new Item(null, child.getPath(), item.depth + 1));
+                    }
+                }
+            }
+            return new NodeUsage(path, item.depth, node.getPrimaryNodeType().getName(), properties, bytes,
+                    Math.max(0L, versions), children);
+        }
+
+        public NodeUsage failed(final Item item, final Exception e) {
+            log.warn("Exception while reading node", e);
+            List<Item> children = Collections.emptyList();
+            return new NodeUsage(null, item.depth, null, 0L, 0L, 0L, children);
+        }
+
+        public List<Item> getChildren(final NodeUsage result) {
+            return result.children;
+        }
+    }
+
+    private final int depth;
+    private final int top;
+    private final PriorityQueue<Usage> subtrees;
+    private final Map<String, Usage> types = new HashMap<String, Usage>();
+    private Usage total;
+    private long errors;
+
+    /**
+     * @param depth the depth below the root down to which the subtrees are reported
+     * @param top the number of largest subtrees to keep, 0 to keep all
+     */
+    public TreeUsage(final int depth, final int top) {
+        this.depth = depth;
+        this.top = top;
+        // smallest first, so the smallest is removed when there are too many
+        this.subtrees = new PriorityQueue<Usage>(11, Collections.reverseOrder(LARGEST_FIRST));
+    }
+
+    /**
+     * Collect the counts of the tree.
+     * @param pool the sessions that read the nodes, one thread for each, or null to read the nodes
+     *        sequentially through the session of the root
+     */
+    public void collect(final Node root, final SessionPool pool) throws RepositoryException {
+        ExecutorService executor = null;
+        Item item = new Item(root, null, 0);
+        if (pool != null) {
+            executor = PrefetchingTreeWalker.newExecutor(pool.getSize(), "jcr-shell du");
+            item = new Item(null, root.getPath(), 0);
+        }
+        try {
+            PrefetchingTreeWalker<Item, NodeUsage> walker = new PrefetchingTreeWalker<Item, NodeUsage>(item,
+                    new UsageVisitor(pool), executor, PrefetchingTreeWalker.DEFAULT_WINDOW);
+            // the subtrees that contain the current node, the root first
+            LinkedList<Usage> open = new LinkedList<Usage>();
+            while (walker.hasNext()) {
+                NodeUsage node = walker.next();
+                if (node.path == null) {
+                    errors++;
+                    continue;
+                }
+                while (!open.isEmpty() && open.getLast().depth >= node.depth) {
+                    close(open.removeLast());
+                }
+                if (node.depth <= depth) {
+                    open.add(new Usage(node.path, node.depth));
+                }
+                for (Usage usage : open) {
+                    usage.add(node);
+                }
+                Usage type = types.get(node.type);
+                if (type == null) {
+                    type = new Usage(node.type, 0);
+                    types.put(node.type, type);
+                }
+                type.add(node);
+            }
+            while (!open.isEmpty()) {
+                close(open.removeLast());
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private void close(final Usage usage) {
+        if (usage.depth == 0) {
+            total = usage;
+            return;
+        }
+        subtrees.add(usage);
+        if (top > 0 && subtrees.size() > top) {
+            subtrees.poll();
+        }
+    }
+
+    /**
+     * @return the counts of the whole tree
+     */
+    public Usage getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the largest subtrees below the root, largest first
+     */
+    public List<Usage> getSubtrees() {
+        return sort(subtrees, 0);
+    }
+
+    /**
+     * @return the counts by primary node type, largest first
+     */
+    public List<Usage> getTypes() {
+        return sort(types.values(), top);
+    }
+
+    /**
+     * @return the number of nodes that could not be read
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    private static List<Usage> sort(final Collection<Usage> usages, final int top) {
+        List<Usage> sorted = new ArrayList<Usage>(usages);
+        Collections.sort(sorted, LARGEST_FIRST);
+        if (top > 0 && sorted.size() > top) {
+            return sorted.subList(0, top);
+        }
+        return sorted;
+    }
+}
@@ -12,14 +12,21 @@ import javax.jcr.LoginException;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public abstract class JcrTest {
 
     static TransientRepository repository;
 
+    private static final SimpleCredentials ADMIN = new SimpleCredentials("admin", "admin".toCharArray());
+
     private static Session session;
     private Node testRoot;
+    private Session writer;
+    private final List<SessionPool> pools = new ArrayList<SessionPool>();
 
     @BeforeClass
     public static void startRepository() throws IOException, ConfigurationException, RepositoryException {
@@ -27,7 +34,7 @@ public abstract class JcrTest {
                 JcrTest.class.getClassLoader().getResourceAsStream(
                 "repository.xml"), "repository");
         repository = new TransientRepository(config);
-        session = repository.login();
+        session = repository.login(ADMIN);
     }
 
     @AfterClass
@@ -48,7 +55,17 @@ public abstract class JcrTest {
     public void stopSession() throws RepositoryException {
         JcrWrapper.setConnected(false);
         JcrWrapper.setShellSession(null);
-        testRoot.remove();
+        for (SessionPool pool : pools) {
+            pool.close();
+        }
+        if (writer != null) {
+            writer.logout();
+        }
+        session.refresh(false);
+        if (session.getRootNode().hasNode("test")) {
+            session.getRootNode().getNode("test").remove();
+            session.save();
+        }
     }
 
     protected final Session getSession() {
@@ -59,4 +76,33 @@ public abstract class JcrTest {
         return testRoot;
     }
 
+    /**
+     * @return the test root in another session
+     */
+    protected final Node getTestRoot(Session other) throws RepositoryException {
+        return other.getNode(testRoot.getPath());
+    }
+
+    /**
+     * Get an admin session of its own, for the fixtures that other sessions must see, e.g. the
+     * sessions of a pool. The test root is saved first, so the fixtures can be built below it.
+     * The session is logged out and the test root is removed after the test.
+     */
+    protected final Session getWriter() throws RepositoryException {
+        if (writer == null) {
+            session.save();
+            writer = repository.login(ADMIN);
+        }
+        return writer;
+    }
+
+    /**
+     * @return a pool of admin sessions that is closed after the test
+     */
+    protected final SessionPool createSessionPool(int size) {
+        SessionPool pool = new SessionPool(repository, ADMIN, size);
+        pools.add(pool);
+        return pool;
+    }
+
 }
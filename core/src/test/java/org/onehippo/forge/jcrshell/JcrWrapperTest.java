@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+
+import org.junit.Test;
+
+public class JcrWrapperTest extends JcrTest {
+
+    @Test
+    public void movedNodeIsNotResolvedFromCache() throws RepositoryException {
+        JcrWrapper.getShellSession().session = getSession();
+        Node node = getTestRoot().addNode("a");
+        getTestRoot().addNode("b");
+        assertEquals(node.getIdentifier(), JcrWrapper.resolvePath("/test/a").getIdentifier());
+
+        // the path cache is not invalidated, because there is no observation listener
+        getSession().move("/test/a", "/test/b/a");
+        assertEquals("/test/b/a", JcrWrapper.resolvePath("/test/b/a").getPath());
+        try {
+            JcrWrapper.resolvePath("/test/a");
+            fail("resolved the moved node at its old path");
+        } catch (PathNotFoundException expected) {
+            // the cached identifier is of a node at another path
+        }
+    }
+}
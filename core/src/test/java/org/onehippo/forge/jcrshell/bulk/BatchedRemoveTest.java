@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.JcrTest;
+
+public class BatchedRemoveTest extends JcrTest {
+
+    @Test
+    public void subtreeIsRemovedInBatches() throws Exception {
+        Session session = getWriter();
+        Node tree = getTestRoot(session).addNode("batchedremove");
+        for (int i = 0; i < 5; i++) {
+            Node child = tree.addNode("child" + i);
+            for (int j = 0; j < 3; j++) {
+                child.addNode("grandchild" + j);
+            }
+        }
+        session.save();
+
+        final List<Long> saves = new ArrayList<Long>();
+        BatchedRemove remove = new BatchedRemove(session, 4, new BatchedRemove.Listener() {
+            public void saved(long removed, double nodesPerSecond) {
+                saves.add(Long.valueOf(removed));
+            }
+        });
+        assertEquals(21L, remove.remove("/test/batchedremove"));
+        assertEquals(6, saves.size());
+        assertEquals(Long.valueOf(4L), saves.get(0));
+        assertFalse(session.hasPendingChanges());
+        assertFalse(session.nodeExists("/test/batchedremove"));
+    }
+
+    @Test
+    public void mandatoryChildNodesAreCounted() throws Exception {
+        Session session = getWriter();
+        Node tree = getTestRoot(session).addNode("batchedremove", "nt:folder");
+        for (int i = 0; i < 2; i++) {
+            Node content = tree.addNode("file" + i, "nt:file").addNode("jcr:content", "nt:resource");
+            content.setProperty("jcr:mimeType", "text/plain");
+            content.setProperty("jcr:data", session.getValueFactory().createBinary(
+                    new ByteArrayInputStream(new byte[] { 1 })));
+            content.setProperty("jcr:lastModified", Calendar.getInstance());
+        }
+        session.save();
+
+        assertEquals(5L, new BatchedRemove(session, 2, null).remove("/test/batchedremove"));
+        assertFalse(session.nodeExists("/test/batchedremove"));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.JcrTest;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.util.PathGlob;
+
+public class BulkUpdateTest extends JcrTest {
+
+    private static final BulkUpdate.Listener LISTENER = new BulkUpdate.Listener() {
+        public void saved(long matched, long changed, long failed, double nodesPerSecond) {
+        }
+
+        public void failed(String path, Exception e) {
+            throw new AssertionError(e);
+        }
+    };
+
+    private Session writer;
+    private SessionPool pool;
+
+    @Before
+    public void createTree() throws RepositoryException {
+        writer = getWriter();
+        Node tree = getTestRoot(writer).addNode("bulkupdate");
+        for (int i = 0; i < 3; i++) {
+            Node folder = tree.addNode("folder" + i);
+            for (int j = 0; j < 4; j++) {
+                folder.addNode("doc" + j).setProperty("state", "draft");
+            }
+            folder.addNode("other");
+        }
+        writer.save();
+        pool = createSessionPool(2);
+    }
+
+    @Test
+    public void matchingNodesAreChangedInBatches() throws Exception {
+        PathGlob glob = new PathGlob(writer.getRootNode(), "/test/bulkupdate/*/doc*");
+        BulkUpdate update = new BulkUpdate(BulkUpdate.parse("propset", new String[] { "state", "live" }), 5);
+        BulkUpdate.Result result = update.run(glob, pool, LISTENER);
+        assertEquals(12L, result.getMatched());
+        assertEquals(12L, result.getChanged());
+        assertEquals(0L, result.getFailed());
+
+        writer.refresh(false);
+        assertEquals("live", writer.getNode("/test/bulkupdate/folder2/doc3").getProperty("state").getString());
+        assertFalse(writer.getNode("/test/bulkupdate/folder2/other").hasProperty("state"));
+
+        // nodes that already have the change are not changed again
+        result = update.run(new PathGlob(writer.getRootNode(), "/test/bulkupdate/*/doc*"), pool, LISTENER);
+        assertEquals(12L, result.getMatched());
+        assertEquals(0L, result.getChanged());
+
+        update = new BulkUpdate(BulkUpdate.parse("mixinadd", new String[] { "mix:referenceable" }), 2);
+        result = update.run(new PathGlob(writer.getNode("/test/bulkupdate"), "folder1/*"), pool, LISTENER);
+        assertEquals(5L, result.getChanged());
+        writer.refresh(false);
+        assertTrue(writer.getNode("/test/bulkupdate/folder1/other").isNodeType("mix:referenceable"));
+    }
+
+    @Test
+    public void valuesAreAddedOnce() throws Exception {
+        BulkUpdate update = new BulkUpdate(BulkUpdate.parse("valueadd", new String[] { "tags", "news" }), 5);
+        BulkUpdate.Result result = update.run(new PathGlob(writer.getRootNode(), "/test/bulkupdate/*/doc*"), pool,
+                LISTENER);
+        assertEquals(12L, result.getChanged());
+
+        // running the same update again leaves the values as they are
+        result = update.run(new PathGlob(writer.getRootNode(), "/test/bulkupdate/*/doc*"), pool, LISTENER);
+        assertEquals(12L, result.getMatched());
+        assertEquals(0L, result.getChanged());
+
+        writer.refresh(false);
+        assertEquals(1, writer.getNode("/test/bulkupdate/folder0/doc0").getProperty("tags").getValues().length);
+    }
+}
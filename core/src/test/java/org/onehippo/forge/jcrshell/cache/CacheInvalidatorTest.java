@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.cache.CacheInvalidator.Invalidation;
+
+public class CacheInvalidatorTest {
+
+    @Test
+    public void batchIsCoalesced() {
+        List<Invalidation> batch = Arrays.asList(new Invalidation("/a/b", true), new Invalidation("/a", true),
+                new Invalidation("/c", true), new Invalidation("/a/b/c", false), new Invalidation("/b", false),
+                new Invalidation("/cd", false), new Invalidation("/b", false), new Invalidation("/c/d", false),
+                new Invalidation("/a-b", true), new Invalidation("/ab/c", true));
+        TreeSet<String> prefixes = new TreeSet<String>();
+        Set<String> paths = new HashSet<String>();
+        CacheInvalidator.coalesce(batch, prefixes, paths);
+
+        assertEquals(new TreeSet<String>(Arrays.asList("/a", "/a-b", "/ab/c", "/c")), prefixes);
+        assertEquals(new HashSet<String>(Arrays.asList("/b", "/cd")), paths);
+    }
+
+    @Test
+    public void batchIsAppliedToAllCaches() {
+        NameCache nodes = new NameCache();
+        NameCache properties = new NameCache();
+        for (String path : new String[] { "/", "/a", "/a/b", "/b" }) {
+            nodes.put(path, new TreeSet<String>());
+            properties.put(path, new TreeSet<String>());
+        }
+        CacheInvalidator invalidator = new CacheInvalidator(10, nodes, properties);
+        invalidator.apply(Arrays.asList(new Invalidation("/a", true), new Invalidation("/", false)));
+
+        for (NameCache cache : new NameCache[] { nodes, properties }) {
+            assertEquals(1, cache.size());
+            assertNotNull(cache.get("/b"));
+            assertNull(cache.get("/a/b"));
+        }
+        assertEquals(1, invalidator.getBatches());
+    }
+
+    @Test
+    public void pathsAreInvalidatedWithTheirSubtree() {
+        PathCache paths = new PathCache();
+        for (String path : new String[] { "/a", "/a/b", "/a/b/c", "/a/bc", "/b", "/b/c" }) {
+            paths.put(path, path);
+        }
+        CacheInvalidator invalidator = new CacheInvalidator(10, paths);
+        invalidator.apply(Arrays.asList(new Invalidation("/a/b", true), new Invalidation("/b/c", false)));
+
+        assertEquals(3, paths.size());
+        assertNotNull(paths.get("/a"));
+        assertNotNull(paths.get("/a/bc"));
+        assertNull(paths.get("/a/b/c"));
+        assertNull(paths.get("/b/c"));
+    }
+}
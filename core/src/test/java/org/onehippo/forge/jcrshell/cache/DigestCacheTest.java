@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class DigestCacheTest {
+
+    private static final byte[] DIGEST = new byte[] { 1, 2, 3 };
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        DigestCache cache = new DigestCache(2);
+        cache.putFrozen("a", DIGEST);
+        cache.putFrozen("b", DIGEST);
+        assertNotNull(cache.getFrozen("a"));
+        cache.putFrozen("c", DIGEST);
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.getFrozen("a"));
+        assertNotNull(cache.getFrozen("c"));
+        assertNull(cache.getFrozen("b"));
+    }
+}
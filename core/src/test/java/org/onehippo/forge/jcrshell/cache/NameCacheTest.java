@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+
+import org.junit.Test;
+
+public class NameCacheTest {
+
+    private static SortedSet<String> names(String... names) {
+        SortedSet<String> set = new TreeSet<String>();
+        for (String name : names) {
+            set.add(name);
+        }
+        return set;
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        NameCache cache = new NameCache(2, Long.MAX_VALUE);
+        cache.put("/a", names("x"));
+        cache.put("/b", names("y"));
+        assertNotNull(cache.get("/a"));
+        cache.put("/c", names("z"));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("/a"));
+        assertNull(cache.get("/b"));
+        assertNotNull(cache.get("/c"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void byteBudgetIsRespected() {
+        SortedSet<String> names = names("one", "two", "three");
+        long weight = NameCache.weigh("/a", names);
+        NameCache cache = new NameCache(Integer.MAX_VALUE, 2 * weight);
+        cache.put("/a", names);
+        cache.put("/b", names);
+        cache.put("/c", names);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.getBytes() <= 2 * weight);
+        assertNull(cache.get("/a"));
+    }
+
+    @Test
+    public void subtreeIsRemovedByPrefix() {
+        NameCache cache = new NameCache();
+        cache.put("/", names("a", "ab"));
+        cache.put("/a", names("b"));
+        cache.put("/a/b", names());
+        cache.put("/ab", names());
+        cache.put("/b", names());
+
+        cache.removeSubtree("/a");
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("/"));
+        assertNotNull(cache.get("/b"));
+        assertNull(cache.get("/a/b"));
+        assertEquals(NameCache.weigh("/", names("a", "ab")) + NameCache.weigh("/b", names()), cache.getBytes());
+    }
+
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        final NameCache cache = new NameCache();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final NameCache.Loader loader = new NameCache.Loader() {
+            public SortedSet<String> load() throws RepositoryException {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RepositoryException(e);
+                }
+                return names("x");
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<SortedSet<String>> first = executor.submit(new Callable<SortedSet<String>>() {
+                public SortedSet<String> call() throws Exception {
+                    return cache.get("/a", loader);
+                }
+            });
+            started.await(10, TimeUnit.SECONDS);
+            Future<SortedSet<String>> second = executor.submit(new Callable<SortedSet<String>>() {
+                public SortedSet<String> call() throws Exception {
+                    return cache.get("/a", loader);
+                }
+            });
+            // invalidation does not wait for the running load
+            cache.removeSubtree("/b");
+            release.countDown();
+
+            assertEquals(names("x"), first.get(10, TimeUnit.SECONDS));
+            assertEquals(names("x"), second.get(10, TimeUnit.SECONDS));
+            assertEquals(1, cache.getLoads());
+            assertNotNull(cache.get("/a"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void invalidatedLoadIsNotInstalled() throws Exception {
+        final NameCache cache = new NameCache();
+        SortedSet<String> loaded = cache.get("/a", new NameCache.Loader() {
+            public SortedSet<String> load() {
+                cache.removeSubtree("/");
+                return names("stale");
+            }
+        });
+        assertEquals(names("stale"), loaded);
+        assertNull(cache.get("/a"));
+    }
+
+    @Test
+    public void versionChangesWithEntries() {
+        NameCache cache = new NameCache(1, Long.MAX_VALUE);
+        long initial = cache.getVersion();
+        assertTrue(initial != new NameCache().getVersion());
+
+        cache.put("/a", names("x"));
+        long loaded = cache.getVersion();
+        assertTrue(loaded != initial);
+        cache.get("/a");
+        assertEquals(loaded, cache.getVersion());
+
+        // a path that is not cached may be in a result computed before
+        cache.remove("/b");
+        long removed = cache.getVersion();
+        assertTrue(removed != loaded);
+        cache.invalidate(Collections.<String> emptyList(), Collections.singletonList("/c"));
+        assertTrue(cache.getVersion() != removed);
+
+        cache.put("/b", names("y"));
+        long evicted = cache.getVersion();
+        cache.removeSubtree("/a");
+        assertTrue(cache.getVersion() != evicted);
+    }
+}
@@ -16,6 +16,7 @@
 package org.onehippo.forge.jcrshell.completers;
 
 import org.junit.Test;
+import org.onehippo.forge.jcrshell.CommandHelper;
 import org.onehippo.forge.jcrshell.JcrTest;
 
 import javax.jcr.ItemExistsException;
@@ -59,6 +60,23 @@ public class NodeNameCompleterTest extends JcrTest {
         assertEquals("Offset at end of match", 0, offset);
     }
 
+    @Test
+    public void testLimit() throws RepositoryException {
+        for (int i = 0; i < 5; i++) {
+            getTestRoot().addNode("item" + i);
+        }
+        CommandHelper.loadCommandsFromResource("/jcr-shell.commands");
+        ShellCompleter completer = new ShellCompleter();
+
+        List<CharSequence> candidates = new LinkedList<CharSequence>();
+        completer.complete("cd item", "cd item".length(), candidates, 2);
+        assertEquals("Completion stops after one candidate more than the limit", 3, candidates.size());
+
+        candidates.clear();
+        completer.complete("cd item", "cd item".length(), candidates);
+        assertEquals("All candidates without a limit", 5, candidates.size());
+    }
+
     @Test
     public void testUpCompletion() {
         Pattern pattern = NodeNameCompleter.MOVING_UP;
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.diff;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.JcrTest;
+import org.onehippo.forge.jcrshell.cache.DigestCache;
+
+public class JcrDiffTest extends JcrTest {
+
+    private static void fill(Node node, int width, int depth) throws RepositoryException {
+        node.setProperty("title", node.getName());
+        node.setProperty("tags", new String[] { "a", "b" });
+        if (depth > 0) {
+            for (int i = 0; i < width; i++) {
+                fill(node.addNode("node" + i), width, depth - 1);
+            }
+        }
+    }
+
+    private static List<String> changes(Iterator<Change> diff) {
+        List<String> changes = new ArrayList<String>();
+        while (diff.hasNext()) {
+            Change change = diff.next();
+            String kind = change.isAddition() ? "+" : change.isRemoval() ? "-" : "~";
+            changes.add(kind + change.getPath());
+        }
+        return changes;
+    }
+
+    private Node base;
+    private Node current;
+
+    private void createTrees() throws RepositoryException {
+        base = getTestRoot().addNode("base");
+        current = getTestRoot().addNode("current");
+        fill(base, 4, 3);
+        fill(current, 4, 3);
+        current.setProperty("title", "base");
+        current.getNode("node1").setProperty("title", "changed");
+        current.getNode("node1/node2").setProperty("tags", new String[] { "a" });
+        current.getNode("node2/node0").remove();
+        current.getNode("node3/node3").addNode("added");
+        current.getNode("node3").setProperty("extra", "value");
+        base.getNode("node0/node0/node0").getProperty("title").remove();
+    }
+
+    @Test
+    public void diffHasDepthFirstOrder() throws RepositoryException {
+        createTrees();
+        assertEquals(Arrays.asList("+/test/current/node0/node0/node0/title", "~/test/base/node1/title",
+                "~/test/base/node1/node2/tags", "-/test/base/node2/node0", "+/test/current/node3/extra",
+                "+/test/current/node3/node3/added"), changes(JcrDiff.compare(base, current)));
+    }
+    @Test
+    public void digestDiffHasSameChanges() throws RepositoryException {
+        createTrees();
+        base.getNode("node0/node1").setProperty("data", getSession().getValueFactory().createBinary(
+                new ByteArrayInputStream(new byte[] { 1, 2, 3 })));
+        current.getNode("node0/node1").setProperty("data", getSession().getValueFactory().createBinary(
+                new ByteArrayInputStream(new byte[] { 1, 2, 3 })));
+        base.getNode("node0/node2").setProperty("data", getSession().getValueFactory().createBinary(
+                new ByteArrayInputStream(new byte[] { 1, 2, 3 })));
+        current.getNode("node0/node2").setProperty("data", getSession().getValueFactory().createBinary(
+                new ByteArrayInputStream(new byte[] { 1, 2, 4 })));
+
+        SubtreeDigester digester = new SubtreeDigester(new DigestCache());
+        assertArrayEquals(digester.digest(base.getNode("node0/node1")), digester.digest(current.getNode("node0/node1")));
+        assertFalse(Arrays.equals(digester.digest(base), digester.digest(current)));
+
+        List<String> changes = changes(JcrDiff.compare(base, current));
+        assertTrue(changes.contains("~/test/base/node0/node2/data"));
+        assertEquals(changes, changes(JcrDiff.compare(base, current, digester)));
+    }
+
+    @Test
+    public void liveDigestsAreNotKept() throws RepositoryException {
+        createTrees();
+        DigestCache cache = new DigestCache();
+        byte[] before = new SubtreeDigester(cache).digest(current);
+        current.getNode("node0/node1").setProperty("changed", "yes");
+        getSession().save();
+
+        assertEquals(0, cache.size());
+        assertFalse(Arrays.equals(before, new SubtreeDigester(cache).digest(current)));
+    }
+
+    @Test
+    public void onlyFrozenSubtreesAreFrozen() {
+        String history = "/jcr:system/jcr:versionStorage/ab/cd/ef/abcdef";
+        assertFalse(SubtreeDigester.isFrozen(history));
+        assertFalse(SubtreeDigester.isFrozen(history + "/1.0"));
+        assertTrue(SubtreeDigester.isFrozen(history + "/1.0/jcr:frozenNode"));
+        assertTrue(SubtreeDigester.isFrozen(history + "/1.0/jcr:frozenNode/child"));
+        assertFalse(SubtreeDigester.isFrozen("/content/jcr:frozenNode"));
+    }
+}
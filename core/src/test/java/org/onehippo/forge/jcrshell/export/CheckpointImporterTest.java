@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.JcrTest;
+
+public class CheckpointImporterTest extends JcrTest {
+
+    @Test
+    public void importIsSavedAtCheckpoints() throws Exception {
+        Session session = getWriter();
+        Node source = getTestRoot(session).addNode("checkpointsource");
+        for (int i = 0; i < 5; i++) {
+            source.addNode("child" + i).addNode("grandchild");
+        }
+        Node target = getTestRoot(session).addNode("checkpointtarget");
+        session.save();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        session.exportSystemView(source.getPath(), out, false, false);
+
+        final List<Long> checkpoints = new ArrayList<Long>();
+        CheckpointImporter importer = new CheckpointImporter(session, 4, 0L, new CheckpointImporter.Listener() {
+            public void checkpoint(long nodes, long bytes, double nodesPerSecond) {
+                checkpoints.add(Long.valueOf(nodes));
+            }
+        });
+        importer.importXml(target.getPath(), new ByteArrayInputStream(out.toByteArray()),
+                ImportUUIDBehavior.IMPORT_UUID_COLLISION_THROW, 0, 0);
+
+        assertEquals(11L, importer.getNodes());
+        assertEquals(4L, checkpoints.get(0).longValue());
+        assertEquals(Long.valueOf(11L), checkpoints.get(checkpoints.size() - 1));
+        assertFalse(session.hasPendingChanges());
+        assertTrue(target.hasNode("checkpointsource/child4/grandchild"));
+    }
+
+    @Test
+    public void newIdentifiersAreNotSavedAtCheckpoints() throws Exception {
+        Session session = getWriter();
+        Node source = getTestRoot(session).addNode("checkpointsource");
+        source.addMixin("mix:referenceable");
+        source.addNode("child").setProperty("self", source);
+        Node target = getTestRoot(session).addNode("checkpointtarget");
+        session.save();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        session.exportSystemView(source.getPath(), out, false, false);
+
+        assertFalse(CheckpointImporter.canCheckpoint(session, ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW));
+        CheckpointImporter importer = new CheckpointImporter(session, 1, 0L, null);
+        try {
+            importer.importXml(target.getPath(), new ByteArrayInputStream(out.toByteArray()),
+                    ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW, 0, 0);
+            fail("checkpoints of an import with new identifiers");
+        } catch (RepositoryException expected) {
+            // references would be saved with the identifiers of the document
+        }
+        assertFalse(target.hasNode("checkpointsource"));
+
+        // without checkpoints the import is saved once, after the references have been rewritten
+        importer = new CheckpointImporter(session, 0, 0L, null);
+        importer.importXml(target.getPath(), new ByteArrayInputStream(out.toByteArray()),
+                ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW, 0, 0);
+        Node copy = target.getNode("checkpointsource");
+        assertEquals(copy.getIdentifier(), copy.getProperty("child/self").getString());
+    }
+}
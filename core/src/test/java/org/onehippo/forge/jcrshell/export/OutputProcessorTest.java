@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.export;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.Test;
+
+public class OutputProcessorTest {
+
+    private static byte[] read(String name) throws IOException {
+        InputStream in = OutputProcessorTest.class.getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The expected output was written by the output processor before the single pass escaping.
+     */
+    @Test
+    public void outputIsTheSameAsTheLegacyOutput() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new OutputProcessor(SAXParserFactory.newInstance(), OutputProcessorTest.class
+                .getResourceAsStream("/export/formatter-input.xml"), out).process();
+        assertEquals(new String(read("/export/formatter-output.xml"), "UTF-8"), new String(out.toByteArray(),
+                "UTF-8"));
+    }
+}
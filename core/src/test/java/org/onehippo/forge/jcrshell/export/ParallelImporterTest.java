@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.io.FileUtils;
+import org.hippoecm.repository.api.ImportMergeBehavior;
+import org.hippoecm.repository.api.ImportReferenceBehavior;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.JcrTest;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.export.ExportManifest.Chunk;
+
+public class ParallelImporterTest extends JcrTest {
+
+    private Session writer;
+    private SessionPool pool;
+    private File dir;
+
+    @Before
+    public void createTree() throws RepositoryException, IOException {
+        writer = getWriter();
+        Node tree = getTestRoot(writer).addNode("parallelimport");
+        for (int i = 0; i < 6; i++) {
+            Node child = tree.addNode("child" + i);
+            child.setProperty("title", "child " + i);
+            child.addNode("grandchild").setProperty("title", "grandchild " + i);
+        }
+        tree.addNode("same").setProperty("title", "same 1");
+        tree.addNode("same").setProperty("title", "same 2");
+        getTestRoot(writer).addNode("parallelimported");
+        writer.save();
+        pool = createSessionPool(3);
+        dir = File.createTempFile("parallelimport", "");
+        dir.delete();
+    }
+
+    @After
+    public void removeDir() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void splitDocumentIsImportedInOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.exportSystemView("/test/parallelimport", out, false, false);
+        ExportManifest manifest = SystemViewSplitter.split(new ByteArrayInputStream(out.toByteArray()), dir, 1,
+                "/test/parallelimport");
+        assertEquals(9, manifest.getChunks().size());
+
+        Node parent = getTestRoot(writer).getNode("parallelimported");
+        final List<String> imported = new ArrayList<String>();
+        ParallelImporter importer = new ParallelImporter(pool, ImportUUIDBehavior.IMPORT_UUID_COLLISION_THROW,
+                ImportReferenceBehavior.IMPORT_REFERENCE_NOT_FOUND_THROW, ImportMergeBehavior.IMPORT_MERGE_THROW,
+                0, 0L);
+        Map<Chunk, Exception> failures = importer.importManifest(parent, new File(dir, ExportManifest.FILE_NAME),
+                new ParallelImporter.Listener() {
+                    public void imported(Chunk chunk) {
+                        imported.add(chunk.getRelPath());
+                    }
+                });
+        assertTrue(failures.isEmpty());
+        assertEquals(9, imported.size());
+
+        writer.refresh(false);
+        Node root = parent.getNode("parallelimport");
+        List<String> names = new ArrayList<String>();
+        for (NodeIterator iter = root.getNodes(); iter.hasNext();) {
+            Node child = iter.nextNode();
+            names.add(child.getName() + ":" + child.getProperty("title").getString());
+        }
+        assertEquals("[child0:child 0, child1:child 1, child2:child 2, child3:child 3, child4:child 4,"
+                + " child5:child 5, same:same 1, same:same 2]", names.toString());
+        assertEquals("grandchild 4", root.getNode("child4/grandchild").getProperty("title").getString());
+    }
+
+    @Test
+    public void referencesBetweenChunksAreKept() throws Exception {
+        Node tree = getTestRoot(writer).addNode("references");
+        Node target = tree.addNode("target");
+        target.addMixin("mix:referenceable");
+        writer.save();
+        tree.addNode("source").setProperty("weak", writer.getValueFactory().createValue(target, true));
+        writer.save();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.exportSystemView("/test/references", out, false, false);
+        tree.remove();
+        writer.save();
+        SystemViewSplitter.split(new ByteArrayInputStream(out.toByteArray()), dir, 1, "/test/references");
+        File manifestFile = new File(dir, ExportManifest.FILE_NAME);
+        Node parent = getTestRoot(writer).getNode("parallelimported");
+        ParallelImporter.Listener listener = new ParallelImporter.Listener() {
+            public void imported(Chunk chunk) {
+            }
+        };
+
+        // new identifiers are only mapped within one chunk
+        try {
+            new ParallelImporter(pool, ImportUUIDBehavior.IMPORT_UUID_CREATE_NEW,
+                    ImportReferenceBehavior.IMPORT_REFERENCE_NOT_FOUND_THROW, ImportMergeBehavior.IMPORT_MERGE_THROW,
+                    0, 0L).importManifest(parent, manifestFile, listener);
+            fail("imported with new identifiers");
+        } catch (RepositoryException expected) {
+        }
+        assertFalse(parent.hasNode("references"));
+
+        Map<Chunk, Exception> failures = new ParallelImporter(pool, ImportUUIDBehavior.IMPORT_UUID_COLLISION_THROW,
+                ImportReferenceBehavior.IMPORT_REFERENCE_NOT_FOUND_THROW, ImportMergeBehavior.IMPORT_MERGE_THROW, 0,
+                0L).importManifest(parent, manifestFile, listener);
+        assertTrue(failures.isEmpty());
+        writer.refresh(false);
+        assertEquals("/test/parallelimported/references/target", parent.getNode("references/source").getProperty(
+                "weak").getNode().getPath());
+    }
+}
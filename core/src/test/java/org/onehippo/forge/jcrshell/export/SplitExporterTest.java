@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.JcrTest;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.export.ExportManifest.Chunk;
+
+public class SplitExporterTest extends JcrTest {
+
+    private static final class RecordingListener implements SplitExporter.Listener {
+        private final List<String> exported = new ArrayList<String>();
+        private final List<String> resumed = new ArrayList<String>();
+
+        public void exported(Chunk chunk, boolean resumed) {
+            (resumed ? this.resumed : exported).add(chunk.getRelPath());
+        }
+
+        public void failed(Chunk chunk, Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private SessionPool pool;
+    private File dir;
+
+    @Before
+    public void createTree() throws RepositoryException, IOException {
+        Node tree = getTestRoot(getWriter()).addNode("splitexport");
+        for (int i = 0; i < 3; i++) {
+            Node child = tree.addNode("child" + i);
+            child.setProperty("title", "child " + i);
+            child.addNode("grandchild").setProperty("title", "grandchild " + i);
+        }
+        getWriter().save();
+        pool = createSessionPool(2);
+        dir = File.createTempFile("splitexport", "");
+        dir.delete();
+    }
+
+    @After
+    public void removeDir() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void exportIsSplitAndResumed() throws Exception {
+        Node root = getTestRoot().getNode("splitexport");
+        SplitExporter exporter = new SplitExporter(root, dir, 1, false);
+        RecordingListener listener = new RecordingListener();
+        assertEquals(0, exporter.export(pool, listener));
+        assertEquals(4, listener.exported.size());
+
+        File manifestFile = new File(dir, ExportManifest.FILE_NAME);
+        ExportManifest manifest = ExportManifest.read(manifestFile);
+        assertTrue(manifest.isComplete());
+        assertEquals("/test/splitexport", manifest.getSource());
+        List<Chunk> chunks = manifest.getChunks();
+        assertEquals("", chunks.get(0).getRelPath());
+        assertFalse(chunks.get(0).isDeep());
+        assertEquals("child1", chunks.get(2).getRelPath());
+        assertTrue(chunks.get(2).isDeep());
+        String shallow = FileUtils.readFileToString(new File(dir, chunks.get(0).getFileName()), "UTF-8");
+        assertFalse(shallow.contains("child0"));
+        String deep = FileUtils.readFileToString(new File(dir, chunks.get(2).getFileName()), "UTF-8");
+        assertTrue(deep.contains("grandchild 1"));
+
+        // an interrupted export is resumed with the chunks that are missing or changed
+        assertTrue(new File(dir, chunks.get(1).getFileName()).delete());
+        FileUtils.writeStringToFile(new File(dir, chunks.get(3).getFileName()), "changed", "UTF-8");
+        listener = new RecordingListener();
+        assertEquals(0, exporter.export(pool, listener));
+        assertEquals(2, listener.resumed.size());
+        assertEquals(2, listener.exported.size());
+        assertTrue(listener.exported.contains("child0"));
+        assertTrue(listener.exported.contains("child2"));
+    }
+}
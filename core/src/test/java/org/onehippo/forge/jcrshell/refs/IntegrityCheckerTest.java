@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.refs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.JcrTest;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.refs.IntegrityChecker.Finding;
+import org.onehippo.forge.jcrshell.refs.IntegrityChecker.Problem;
+
+public class IntegrityCheckerTest extends JcrTest {
+
+    private static final String MISSING = "01234567-89ab-cdef-0123-456789abcdef";
+
+    private static final class RecordingListener implements IntegrityChecker.Listener {
+        private final List<Finding> found = new ArrayList<Finding>();
+        private final List<String> checked = new ArrayList<String>();
+        private final List<String> resumed = new ArrayList<String>();
+
+        public void found(Finding finding) {
+            found.add(finding);
+        }
+
+        public void checked(String path, long nodes, boolean resumed) {
+            (resumed ? this.resumed : checked).add(path);
+        }
+
+        public void failed(String path, Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private Session writer;
+    private SessionPool pool;
+
+    @Before
+    public void createTree() throws RepositoryException {
+        writer = getWriter();
+        Node outside = getTestRoot(writer).addNode("integrityoutside");
+        outside.addMixin("mix:referenceable");
+        Node tree = getTestRoot(writer).addNode("integritycheck");
+        Node inside = tree.addNode("inside");
+        inside.addMixin("mix:referenceable");
+        writer.save();
+        Node first = tree.addNode("first");
+        first.setProperty("ok", inside);
+        first.addNode("deeper").setProperty("docbase", MISSING);
+        tree.addNode("second").setProperty("weak", writer.getValueFactory().createValue(outside, true));
+        writer.save();
+        pool = createSessionPool(2);
+    }
+
+    @Test
+    public void problemsAreFoundAndCheckIsResumed() throws Exception {
+        Node root = writer.getNode("/test/integritycheck");
+        File checkpoint = File.createTempFile("integrity", "");
+        try {
+            // a check that was interrupted after the second subtree
+            FileUtils.writeStringToFile(checkpoint, "# integritycheck /test/integritycheck 1\nD\t/test/integritycheck/second\n",
+                    "UTF-8");
+            IntegrityChecker checker = new IntegrityChecker(root, 1, "docbase", false, 1);
+            RecordingListener listener = new RecordingListener();
+            assertEquals(0, checker.check(pool, checkpoint, listener));
+            assertEquals(1, listener.resumed.size());
+            assertEquals(3, listener.checked.size());
+            assertEquals(1, listener.found.size());
+            Finding dangling = listener.found.get(0);
+            assertEquals(Problem.DANGLING, dangling.getProblem());
+            assertEquals("/test/integritycheck/first/deeper/docbase", dangling.getPath());
+            assertEquals(MISSING, dangling.getIdentifier());
+            assertFalse(checkpoint.exists());
+
+            // without a checkpoint all subtrees are checked
+            listener = new RecordingListener();
+            assertEquals(0, checker.check(pool, checkpoint, listener));
+            assertEquals(2, listener.found.size());
+            boolean outside = false;
+            for (Finding finding : listener.found) {
+                if (finding.getProblem() == Problem.OUTSIDE) {
+                    assertEquals("/test/integrityoutside", finding.getTargetPath());
+                    outside = true;
+                }
+            }
+            assertTrue(outside);
+        } finally {
+            checkpoint.delete();
+        }
+    }
+
+    @Test
+    public void orphanedHistoriesAreFoundInSplitVersionStorage() throws Exception {
+        Node versionable = writer.getNode("/test/integritycheck").addNode("versionable");
+        versionable.addMixin("mix:versionable");
+        writer.save();
+        writer.getWorkspace().getVersionManager().checkin(versionable.getPath());
+        String identifier = versionable.getIdentifier();
+        versionable.remove();
+        writer.save();
+
+        IntegrityChecker checker = new IntegrityChecker(writer.getNode("/test/integritycheck"), 1, "docbase", true,
+                1);
+        RecordingListener listener = new RecordingListener();
+        assertEquals(0, checker.check(pool, null, listener));
+        int units = 0;
+        for (String path : listener.checked) {
+            if (path.startsWith("/jcr:system/jcr:versionStorage/")) {
+                units++;
+            }
+        }
+        assertTrue(units > 0);
+        boolean orphaned = false;
+        for (Finding finding : listener.found) {
+            if (finding.getProblem() == Problem.ORPHANED_HISTORY && identifier.equals(finding.getIdentifier())) {
+                orphaned = true;
+            }
+        }
+        assertTrue(orphaned);
+    }
+}
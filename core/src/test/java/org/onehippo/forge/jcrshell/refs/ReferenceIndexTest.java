@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.refs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.JcrTest;
+import org.onehippo.forge.jcrshell.refs.ReferenceIndex.Reference;
+
+public class ReferenceIndexTest extends JcrTest {
+
+    private Session writer;
+    private Node target;
+
+    @Before
+    public void createTree() throws RepositoryException {
+        writer = getWriter();
+        Node tree = getTestRoot(writer).addNode("referenceindex");
+        target = tree.addNode("target");
+        target.addMixin("mix:referenceable");
+        target.addNode("child").addMixin("mix:referenceable");
+        writer.save();
+        Node source = tree.addNode("source");
+        source.setProperty("hard", target);
+        source.setProperty("weak", writer.getValueFactory().createValue(target, true));
+        source.setProperty("docbase", target.getNode("child").getIdentifier());
+        target.setProperty("self", target);
+        writer.save();
+    }
+
+    @Test
+    public void referencesAreIndexedAndUpdated() throws Exception {
+        ReferenceIndex index = new ReferenceIndex("docbase");
+        assertEquals(0L, index.build(getTestRoot(writer), createSessionPool(2)));
+        assertTrue(index.isEnabled());
+
+        List<Reference> references = index.getReferences(target.getIdentifier());
+        assertEquals(3, references.size());
+        List<Reference> into = index.getReferencesInto("/test/referenceindex/target");
+        assertEquals(3, into.size());
+        for (Reference reference : into) {
+            assertEquals("/test/referenceindex/source", reference.getSourcePath());
+        }
+        Reference docbase = index.getReferences(target.getNode("child").getIdentifier()).get(0);
+        assertEquals(PropertyType.STRING, docbase.getType());
+        assertEquals("/test/referenceindex/target/child", docbase.getTargetPath());
+
+        // a saved index is loaded with the same references
+        File file = File.createTempFile("references", "");
+        try {
+            index.save(file);
+            ReferenceIndex loaded = new ReferenceIndex("docbase");
+            loaded.load(file, writer);
+            assertEquals(index.size(), loaded.size());
+            assertEquals(3, loaded.getReferencesInto("/test/referenceindex/target").size());
+        } finally {
+            file.delete();
+        }
+
+        // changed and removed sources are rescanned
+        Node source = writer.getNode("/test/referenceindex/source");
+        source.getProperty("hard").remove();
+        writer.save();
+        index.invalidate(Collections.<String> emptyList(), Collections.singletonList(source.getPath()));
+        assertEquals(2, index.getReferencesInto("/test/referenceindex/target").size());
+
+        source.remove();
+        writer.save();
+        index.invalidate(Collections.singletonList("/test/referenceindex/source"), Collections.<String> emptyList());
+        assertEquals(0, index.getReferencesInto("/test/referenceindex/target").size());
+        assertEquals(1, index.getReferences(target.getIdentifier()).size());
+        assertTrue(index.getReferencesInto("/test/referenceindex/target/child").isEmpty());
+    }
+
+    @Test
+    public void changesDuringLoadAreApplied() throws Exception {
+        ReferenceIndex index = new ReferenceIndex("docbase");
+        assertEquals(0L, index.build(getTestRoot(writer), null));
+        File file = File.createTempFile("references", "");
+        try {
+            index.save(file);
+
+            ReferenceIndex loaded = new ReferenceIndex("docbase");
+            loaded.deferChanges();
+            Node source = writer.getNode("/test/referenceindex/source");
+            source.getProperty("hard").remove();
+            writer.save();
+            loaded.invalidate(Collections.<String> emptyList(), Collections.singletonList(source.getPath()));
+            assertFalse(loaded.isEnabled());
+
+            loaded.load(file, writer);
+            assertEquals(2, loaded.getReferencesInto("/test/referenceindex/target").size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void createdTargetIsResolved() throws Exception {
+        ReferenceIndex index = new ReferenceIndex("docbase");
+        assertEquals(0L, index.build(getTestRoot(writer), null));
+        String child = "/test/referenceindex/target/child";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.exportSystemView(child, out, false, false);
+
+        writer.getNode(child).remove();
+        writer.save();
+        index.invalidate(Collections.singletonList(child), Collections.<String> emptyList());
+        assertTrue(index.getReferencesInto(child).isEmpty());
+
+        // created again with the same identifier
+        writer.importXML("/test/referenceindex/target", new ByteArrayInputStream(out.toByteArray()),
+                ImportUUIDBehavior.IMPORT_UUID_COLLISION_THROW);
+        writer.save();
+        index.invalidate(Collections.<String> emptyList(), Collections.singletonList(child));
+        List<Reference> into = index.getReferencesInto(child);
+        assertEquals(1, into.size());
+        assertEquals(child, into.get(0).getTargetPath());
+    }
+}
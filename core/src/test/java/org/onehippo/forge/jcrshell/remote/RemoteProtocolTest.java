@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.remote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.IJcrShellRenderer;
+import org.onehippo.forge.jcrshell.JcrShellPrinter;
+import org.onehippo.forge.jcrshell.output.Output;
+
+public class RemoteProtocolTest {
+
+    private static class CapturingRenderer implements IJcrShellRenderer {
+        private final List<String> lines = new ArrayList<String>();
+        private final List<String[]> rows = new ArrayList<String[]>();
+
+        public void print(Output output) {
+            lines.add(RemoteProtocol.toFields(output.head()).length + ":" + text(output.head()));
+        }
+
+        public void printTableWithHeader(List<String[]> rows) {
+            this.rows.addAll(rows);
+        }
+
+        public void printTableWithHeader(String[] header, Iterator<String[]> rows) {
+            this.rows.add(header);
+            while (rows.hasNext()) {
+                this.rows.add(rows.next());
+            }
+        }
+
+        private static String text(Output output) {
+            StringBuilder text = new StringBuilder();
+            for (; output != null; output = output.next()) {
+                text.append(output.getText());
+            }
+            return text.toString();
+        }
+    }
+
+    @After
+    public void resetPrinter() {
+        JcrShellPrinter.setConsolePrinter(null);
+    }
+
+    @Test
+    public void outputIsReplayed() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordWriter writer = new RecordWriter(bytes);
+        RemoteRenderer renderer = new RemoteRenderer(writer, 2);
+        JcrShellPrinter.setConsolePrinter(renderer);
+        JcrShellPrinter.print(Output.out().a("Removed ").ok("3").a(" nodes"));
+        List<String[]> rows = new ArrayList<String[]>();
+        rows.add(new String[] { "Name", "Value" });
+        for (int i = 0; i < 5; i++) {
+            rows.add(new String[] { "name" + i, "value" + i });
+        }
+        JcrShellPrinter.printTableWithHeader(rows);
+        renderer.write(RemoteProtocol.DONE, "/content", "true");
+        renderer.close();
+        writer.close();
+
+        CapturingRenderer capture = new CapturingRenderer();
+        JcrShellPrinter.setConsolePrinter(capture);
+        RecordReader reader = new RecordReader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertTrue(RemoteProtocol.print(reader.read(), reader));
+        assertTrue(RemoteProtocol.print(reader.read(), reader));
+        Record done = reader.read();
+        assertEquals(RemoteProtocol.DONE, done.getType());
+        assertEquals("/content", done.getField(0));
+        assertNull(reader.read());
+
+        assertEquals(1, capture.lines.size());
+        assertEquals("6:Removed 3 nodes", capture.lines.get(0));
+        assertEquals(rows.size(), capture.rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertArrayEquals(rows.get(i), capture.rows.get(i));
+        }
+    }
+
+    @Test
+    public void idleOutputIsFlushed() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RemoteRenderer renderer = new RemoteRenderer(new RecordWriter(bytes), 100);
+        try {
+            renderer.write(RemoteProtocol.START, "/content");
+            assertEquals(0, bytes.size());
+            // the command writes nothing more for a while
+            long until = System.currentTimeMillis() + 10 * RemoteRenderer.FLUSH_INTERVAL;
+            while (bytes.size() == 0 && System.currentTimeMillis() < until) {
+                Thread.sleep(10L);
+            }
+            assertTrue(bytes.size() > 0);
+        } finally {
+            renderer.close();
+        }
+    }
+
+    @Test
+    public void filesAreCopiedOrSkipped() throws IOException {
+        byte[] content = new byte[200000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 251);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordWriter writer = new RecordWriter(bytes);
+        writer.write(RemoteProtocol.EXECUTE, "import x.xml");
+        writer.writeFile("1", new ByteArrayInputStream(content), content.length);
+        writer.writeFile("2", new ByteArrayInputStream(content), content.length);
+        writer.write(RemoteProtocol.END);
+        writer.close();
+
+        RecordReader reader = new RecordReader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("import x.xml", reader.read().getField(0));
+        Record file = reader.read();
+        assertEquals(RemoteProtocol.FILE, file.getType());
+        assertEquals(content.length, file.getLength());
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        reader.copyFile(copy);
+        assertArrayEquals(content, copy.toByteArray());
+        // the second file is not read
+        assertEquals("2", reader.read().getField(0));
+        assertEquals(RemoteProtocol.END, reader.read().getType());
+        assertNull(reader.read());
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ShellPathTest {
+
+    @Test
+    public void namesAreIndexed() {
+        assertEquals("/content[1]/documents[2]", ShellPath.encode("/content/documents[2]"));
+        assertEquals("content/a[1]/..", ShellPath.encode("content/a/../"));
+        assertEquals("child[2]", ShellPath.encode("child[2]"));
+        assertEquals("a/b[x][1]", ShellPath.encode("a/b[x]"));
+    }
+
+    @Test
+    public void pathsAreNormalized() {
+        assertEquals("/content/documents[2]", ShellPath.normalize("/", "/content[1]/documents[2]"));
+        assertEquals("/test/content", ShellPath.normalize("/test", "content/a[1]/.."));
+        assertEquals("/content", ShellPath.normalize("/", "content"));
+        assertEquals("/", ShellPath.normalize("/test", "../."));
+        assertNull(ShellPath.normalize("/", "../a[1]"));
+        assertNull(ShellPath.normalize("/", "a/[1]"));
+        assertEquals("/", ShellPath.normalize("/", "/"));
+    }
+
+    @Test
+    public void subtreeEndsAtNameBoundary() {
+        assertTrue(ShellPath.isInSubtree("/a/b", "/a"));
+        assertTrue(ShellPath.isInSubtree("/a", "/a"));
+        assertTrue(ShellPath.isInSubtree("/a", "/"));
+        assertFalse(ShellPath.isInSubtree("/ab", "/a"));
+        assertFalse(ShellPath.isInSubtree("/a", "/a/b"));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class StreamPipeTest {
+
+    @Test
+    public void allDataIsPassed() throws IOException {
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        InputStream in = StreamPipe.start(new StreamPipe.Producer() {
+            public void produce(OutputStream out) throws IOException {
+                out.write(data, 0, 10);
+                out.write(data[10]);
+                out.write(data, 11, data.length - 11);
+            }
+        }, "test", 1000, 2);
+        assertArrayEquals(data, IOUtils.toByteArray(in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void failureIsThrownToConsumer() throws IOException {
+        InputStream in = StreamPipe.start(new StreamPipe.Producer() {
+            public void produce(OutputStream out) throws IOException, RepositoryException {
+                out.write(1);
+                throw new RepositoryException("export failed");
+            }
+        }, "test");
+        try {
+            IOUtils.toByteArray(in);
+            fail("expected exception");
+        } catch (IOException e) {
+            assertEquals("export failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void closeStopsProducer() throws IOException {
+        final AtomicBoolean stopped = new AtomicBoolean();
+        InputStream in = StreamPipe.start(new StreamPipe.Producer() {
+            public void produce(OutputStream out) throws IOException {
+                try {
+                    while (true) {
+                        out.write(new byte[100]);
+                    }
+                } finally {
+                    stopped.set(true);
+                }
+            }
+        }, "test", 100, 2);
+        assertEquals(0, in.read());
+        in.close();
+        assertTrue(stopped.get());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.JcrTest;
+import org.onehippo.forge.jcrshell.SessionPool;
+
+public class TreeRendererTest extends JcrTest {
+
+    @Before
+    public void createTree() throws RepositoryException {
+        Node tree = getTestRoot().addNode("tree");
+        for (int i = 0; i < 4; i++) {
+            Node child = tree.addNode("child" + i);
+            child.addNode("a");
+            child.addNode("b");
+        }
+        getSession().save();
+    }
+
+    private static List<String> render(final Node node, final int maxLevel, final int maxChildren,
+            final SessionPool pool) throws RepositoryException {
+        List<String> lines = new ArrayList<String>();
+        for (Iterator<String> iter = new TreeRenderer(node, maxLevel, maxChildren, pool); iter.hasNext();) {
+            lines.add(iter.next());
+        }
+        return lines;
+    }
+
+    @Test
+    public void parallelTreeIsPrintedInOrder() throws RepositoryException {
+        Node tree = getTestRoot().getNode("tree");
+        List<String> sequential = render(tree, 3, 0, null);
+        assertEquals(13, sequential.size());
+        assertEquals("tree {nt:unstructured}", sequential.get(0));
+        assertEquals("|--child0 {nt:unstructured}", sequential.get(1));
+        assertEquals("|  |--a {nt:unstructured}", sequential.get(2));
+        assertEquals("|  `--b {nt:unstructured}", sequential.get(3));
+        assertEquals("`--child3 {nt:unstructured}", sequential.get(10));
+        assertEquals("   `--b {nt:unstructured}", sequential.get(12));
+        assertEquals(sequential, render(tree, 3, 0, createSessionPool(4)));
+    }
+
+    @Test
+    public void childNodesAreTruncated() throws RepositoryException {
+        List<String> lines = render(getTestRoot().getNode("tree"), 1, 2, createSessionPool(2));
+        assertEquals(4, lines.size());
+        assertEquals("|--child1 {nt:unstructured}", lines.get(2));
+        assertEquals("`-- ... 2 more", lines.get(3));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2010 Hippo.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.onehippo.forge.jcrshell.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.util.Calendar;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Test;
+import org.onehippo.forge.jcrshell.JcrTest;
+import org.onehippo.forge.jcrshell.SessionPool;
+import org.onehippo.forge.jcrshell.util.TreeUsage.Usage;
+
+public class TreeUsageTest extends JcrTest {
+
+    @Test
+    public void usageIsAddedUpBySubtreeAndType() throws RepositoryException {
+        Session session = getWriter();
+        Node tree = getTestRoot(session).addNode("du");
+        Node small = tree.addNode("small");
+        small.setProperty("title", "small");
+        Node large = tree.addNode("large");
+        for (int i = 0; i < 3; i++) {
+            Node file = large.addNode("file" + i, "nt:resource");
+            file.setProperty("jcr:mimeType", "application/octet-stream");
+            file.setProperty("jcr:data", session.getValueFactory().createBinary(
+                    new ByteArrayInputStream(new byte[100])));
+            file.setProperty("jcr:lastModified", Calendar.getInstance());
+        }
+        tree.addNode("empty");
+        session.save();
+
+        // read sequentially through the session of the tree, and through the sessions of a pool
+        for (SessionPool pool : new SessionPool[] { null, createSessionPool(2) }) {
+            TreeUsage usage = new TreeUsage(2, 2);
+            usage.collect(tree, pool);
+
+            Usage total = usage.getTotal();
+            assertEquals(7L, total.getNodes());
+            assertEquals(300L, total.getBytes());
+            assertEquals(0L, usage.getErrors());
+
+            List<Usage> subtrees = usage.getSubtrees();
+            assertEquals(2, subtrees.size());
+            assertEquals(large.getPath(), subtrees.get(0).getName());
+            assertEquals(4L, subtrees.get(0).getNodes());
+            assertEquals(100L, subtrees.get(1).getBytes());
+
+            List<Usage> types = usage.getTypes();
+            assertEquals("nt:resource", types.get(0).getName());
+            assertEquals(3L, types.get(0).getNodes());
+            assertEquals("nt:unstructured", types.get(1).getName());
+        }
+    }
+}
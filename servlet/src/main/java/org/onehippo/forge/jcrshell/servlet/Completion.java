@@ -1,14 +1,16 @@
 package org.onehippo.forge.jcrshell.servlet;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 
 public class Completion {
-    private List<String> candidates = new LinkedList<String>();
+    private List<String> candidates = new ArrayList<String>();
 
     private int start;
 
+    private boolean more;
+
     public int getStart() {
         return start;
     }
@@ -20,4 +22,15 @@ public class Completion {
     public List<String> getCandidates() {
         return candidates;
     }
+
+    /**
+     * @return whether there are more candidates than the ones returned
+     */
+    public boolean isMore() {
+        return more;
+    }
+
+    public void setMore(boolean more) {
+        this.more = more;
+    }
 }
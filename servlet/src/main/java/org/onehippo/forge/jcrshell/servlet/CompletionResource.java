@@ -1,39 +1,107 @@
 package org.onehippo.forge.jcrshell.servlet;
 
-import jline.console.completer.Completer;
+import org.onehippo.forge.jcrshell.JcrShellSession;
 import org.onehippo.forge.jcrshell.JcrWrapper;
 import org.onehippo.forge.jcrshell.completers.ShellCompleter;
 
 import javax.jcr.RepositoryException;
 import javax.ws.rs.*;
-import java.util.LinkedList;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Completes command lines. At most <code>limit</code> candidates are returned, with a flag when
+ * there are more. The response has an entity tag made of the versions of the name caches of the
+ * session, which the observation listener invalidates, so a client that repeats a request gets a
+ * 304 without completing again as long as no names were added or removed.
+ */
 @Path("/{path:.*}")
 @Produces("application/json")
 public class CompletionResource {
 
-    private static final Completer completer = new ShellCompleter();
+    /** default maximum number of candidates */
+    static final int LIMIT = Integer.getInteger("jcrshell.complete.limit", 100);
+
+    /** maximum number of candidates a client can ask for */
+    static final int MAX_LIMIT = Integer.getInteger("jcrshell.complete.max", 1000);
+
+    /** tells the entity tags of a restarted server apart, the cache versions start again */
+    private static final String INSTANCE = Long.toString(System.currentTimeMillis(), 36);
+
+    private static final ShellCompleter completer = new ShellCompleter();
+
+    /**
+     * Create the completers once, after the commands are registered. Called when the application
+     * context starts.
+     */
+    public static void init() {
+        ExecutionResource.loadCommands();
+        completer.init();
+    }
 
     @GET
-    public Completion complete(@PathParam("path") String path,
-                               @QueryParam("current") String current,
-                               @QueryParam("cursor") @DefaultValue("-1") int cursor) {
+    public Response complete(@PathParam("path") String path,
+                             @QueryParam("current") @DefaultValue("") String current,
+                             @QueryParam("cursor") @DefaultValue("-1") int cursor,
+                             @QueryParam("limit") @DefaultValue("0") int limit,
+                             @Context Request request) {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setPrivate(true);
+        cacheControl.setNoCache(true);
         try {
-            JcrWrapper.cd("/" + path);
+            cd("/" + path);
+            Response.ResponseBuilder unchanged = request.evaluatePreconditions(tag());
+            if (unchanged != null) {
+                return unchanged.cacheControl(cacheControl).build();
+            }
         } catch (RepositoryException e) {
             throw new WebApplicationException(e);
         }
-        List<CharSequence> candidates = new LinkedList<CharSequence>();
-        int start = completer.complete(current, cursor < 0 ? current.length() : cursor, candidates);
+        Completion completion = complete(current, cursor, limit);
+        // the tag after completing includes the names that were loaded for it
+        return Response.ok(completion).tag(tag()).cacheControl(cacheControl).build();
+    }
+
+    /**
+     * Complete the line in the current node of the session.
+     * @param limit the maximum number of candidates, 0 for the default
+     */
+    static Completion complete(String current, int cursor, int limit) {
+        int max = limit <= 0 ? LIMIT : Math.min(limit, MAX_LIMIT);
+        List<CharSequence> candidates = new ArrayList<CharSequence>();
+        int start = completer.complete(current, cursor < 0 ? current.length() : cursor, candidates, max);
 
         Completion completion = new Completion();
         completion.setStart(start);
+        completion.setMore(candidates.size() > max);
         List<String> asStrings = completion.getCandidates();
         for (CharSequence seq : candidates) {
+            if (asStrings.size() == max) {
+                break;
+            }
             asStrings.add(seq.toString());
         }
         return completion;
     }
 
+    /**
+     * Change the current node when it is not the node of the path yet. The shared sessions of
+     * the completions usually are at the node already.
+     */
+    static void cd(String path) throws RepositoryException {
+        JcrShellSession shellSession = JcrWrapper.getShellSession();
+        if (shellSession.getCurrentNode() == null || !path.equals(shellSession.getCurrentPath())) {
+            JcrWrapper.cd(path);
+        }
+    }
+
+    private static EntityTag tag() {
+        return new EntityTag(INSTANCE + "-" + JcrWrapper.getNodeNameCache().getVersion() + "-"
+                + JcrWrapper.getPropertyNameCache().getVersion());
+    }
 }
@@ -0,0 +1,22 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+/**
+ * The last message of a streamed execution, with the path of the current node after it.
+ */
+public class Done extends Message {
+
+    private final String path;
+
+    public Done(String path) {
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getType() {
+        return "DONE";
+    }
+}
@@ -17,9 +17,21 @@ public class ExecutionResource {
     private static final String DEFAULT_COMMANDS = "/jcr-shell.commands";
     private static final String EXTRA_COMMANDS = "/extra.commands";
 
+    private static boolean loaded;
+
     static {
-        CommandHelper.loadCommandsFromResource(DEFAULT_COMMANDS);
-        CommandHelper.loadCommandsFromResource(EXTRA_COMMANDS);
+        loadCommands();
+    }
+
+    /**
+     * Register the commands, unless that was done before.
+     */
+    static synchronized void loadCommands() {
+        if (!loaded) {
+            CommandHelper.loadCommandsFromResource(DEFAULT_COMMANDS);
+            CommandHelper.loadCommandsFromResource(EXTRA_COMMANDS);
+            loaded = true;
+        }
     }
 
     @GET
@@ -49,9 +61,7 @@ public class ExecutionResource {
      * @return true if the command line was successful handled and executed
      * @throws java.io.IOException when the interaction with the shell fails
      */
-    private static boolean handleCommand(final String line) throws IOException {
-        long tickStart = System.currentTimeMillis();
-
+    static boolean handleCommand(final String line) throws IOException {
         String cmdLine = line.trim();
         // # = comment
         if (cmdLine.length() == 0) {
@@ -60,7 +70,18 @@ public class ExecutionResource {
         if (cmdLine.startsWith("#")) {
             return true;
         }
-        String[] args = tokenizeCommand(cmdLine);
+        return handleCommand(tokenizeCommand(cmdLine));
+    }
+
+    /**
+     * Handle a tokenized command line.
+     *
+     * @param args the command and its arguments
+     * @return true if the command was successful handled and executed
+     * @throws java.io.IOException when the interaction with the shell fails
+     */
+    static boolean handleCommand(final String[] args) throws IOException {
+        long tickStart = System.currentTimeMillis();
 
         // white space
         if (args.length == 0) {
@@ -102,7 +123,7 @@ public class ExecutionResource {
      * @param line commandline
      * @return String array with tokens
      */
-    private static String[] tokenizeCommand(final String line) {
+    static String[] tokenizeCommand(final String line) {
         List<String> parts = new ArrayList<String>();
 
         QuotedStringTokenizer tok = new QuotedStringTokenizer(line, " \t\n\r", false, false);
@@ -1,27 +1,41 @@
 package org.onehippo.forge.jcrshell.servlet;
 
-import org.onehippo.forge.jcrshell.JcrShellSession;
-
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 
 public class JcrShellSessionAttacher implements HttpSessionListener {
 
+    static final String ATTRIBUTE = ShellSessionManager.ManagedSession.class.getName();
+
     @Override
     public void sessionCreated(HttpSessionEvent se) {
         HttpSession httpSession = se.getSession();
-        JcrShellSession shellSession = new JcrShellSession();
-        httpSession.setAttribute(JcrShellSession.class.getName(), shellSession);
+        httpSession.setAttribute(ATTRIBUTE, ShellSessionManager.getInstance().create());
     }
 
     @Override
     public void sessionDestroyed(HttpSessionEvent se) {
         HttpSession httpSession = se.getSession();
-        JcrShellSession session = (JcrShellSession) httpSession.getAttribute(JcrShellSession.class.getName());
+        ShellSessionManager.ManagedSession session = (ShellSessionManager.ManagedSession) httpSession.getAttribute(ATTRIBUTE);
         if (session != null) {
-            httpSession.removeAttribute(JcrShellSession.class.getName());
-            session.destroy();
+            httpSession.removeAttribute(ATTRIBUTE);
+            ShellSessionManager.getInstance().destroy(session);
+        }
+    }
+
+    /**
+     * @return the managed session of the HTTP session, which is created when the HTTP session
+     *         existed before the listener was registered
+     */
+    static ShellSessionManager.ManagedSession getSession(HttpSession httpSession) {
+        synchronized (httpSession) {
+            ShellSessionManager.ManagedSession session = (ShellSessionManager.ManagedSession) httpSession.getAttribute(ATTRIBUTE);
+            if (session == null) {
+                session = ShellSessionManager.getInstance().create();
+                httpSession.setAttribute(ATTRIBUTE, session);
+            }
+            return session;
         }
     }
 }
@@ -1,33 +1,92 @@
 package org.onehippo.forge.jcrshell.servlet;
 
-import org.onehippo.forge.jcrshell.JcrShellSession;
 import org.onehippo.forge.jcrshell.JcrWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Binds a shell session to the request thread. Requests use the shell session of their HTTP
+ * session one at a time; requests whose path starts with one of the <code>readOnlyPaths</code>
+ * of the filter configuration use the read-only session of their HTTP session while its shell
+ * session is busy, see {@link ShellSessionManager#enterReadOnly}, and requests whose path starts with
+ * one of the <code>unboundPaths</code> do not get a session, like the jobs, which log in with a
+ * session of their own when they run.
+ */
 public class JcrShellSessionFilter implements Filter {
 
     static final Logger log = LoggerFactory.getLogger(JcrShellSessionFilter.class);
 
+    private List<String> readOnlyPaths;
+    private List<String> unboundPaths;
+
     public void init(FilterConfig filterConfig) throws ServletException {
+        readOnlyPaths = parsePaths(filterConfig.getInitParameter("readOnlyPaths"));
+        unboundPaths = parsePaths(filterConfig.getInitParameter("unboundPaths"));
+    }
+
+    private static List<String> parsePaths(String paths) {
+        List<String> list = new ArrayList<String>();
+        if (paths != null) {
+            for (String path : paths.split(",")) {
+                if (path.trim().length() > 0) {
+                    list.add(path.trim());
+                }
+            }
+        }
+        return list;
     }
 
     public void destroy() {
     }
 
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws java.io.IOException, ServletException {
-        HttpSession httpSession = ((HttpServletRequest) request).getSession();
-        JcrShellSession session = (JcrShellSession) httpSession.getAttribute(JcrShellSession.class.getName());
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        if (matches(httpRequest, unboundPaths)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        ShellSessionManager manager = ShellSessionManager.getInstance();
+        boolean readOnly = matches(httpRequest, readOnlyPaths);
+        ShellSessionManager.ManagedSession session = JcrShellSessionAttacher.getSession(httpRequest.getSession());
         try {
-            JcrWrapper.setShellSession(session);
+            if (readOnly) {
+                session = manager.enterReadOnly(session);
+            } else {
+                manager.enter(session);
+            }
+        } catch (ShellSessionManager.SessionLimitException e) {
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        try {
+            JcrWrapper.setShellSession(session.getShellSession());
             chain.doFilter(request, response);
         } finally {
             JcrWrapper.setShellSession(null);
+            manager.exit(session);
         }
     }
 
+    private static boolean matches(HttpServletRequest request, List<String> paths) {
+        String path = request.getPathInfo();
+        if (path == null) {
+            return false;
+        }
+        for (String prefix : paths) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,231 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+import org.onehippo.forge.jcrshell.JcrShellPrinter;
+import org.onehippo.forge.jcrshell.JcrWrapper;
+
+import javax.jcr.RepositoryException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A command that runs in the background on a shell session of its own, which logs in like the
+ * shell session of the user that submitted it, so the session of the user stays available.
+ * The output is kept as a numbered sequence of messages, of which only the last ones are kept,
+ * so that a client can poll for the messages after the last one it has seen.
+ */
+public class Job implements Runnable {
+
+    public enum State {
+        QUEUED, RUNNING, FINISHED, FAILED, CANCELLED
+    }
+
+    private final String id;
+    private final String owner;
+    private final String command;
+    private final String startPath;
+    private final ShellSessionManager.ManagedSession session;
+    private final int maxMessages;
+    private final long created = System.currentTimeMillis();
+
+    private final LinkedList<Message> messages = new LinkedList<Message>();
+    private long firstSequence;
+    private State state = State.QUEUED;
+    private String path;
+    private long started;
+    private long finished;
+    private Future<?> future;
+
+    Job(String id, String owner, String command, String path, ShellSessionManager.ManagedSession session,
+        int maxMessages) {
+        this.id = id;
+        this.owner = owner;
+        this.command = command;
+        this.startPath = path;
+        this.path = path;
+        this.session = session;
+        this.maxMessages = maxMessages;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the path of the current node, after the command when it is done
+     */
+    public synchronized String getPath() {
+        return path;
+    }
+
+    public synchronized long getStarted() {
+        return started;
+    }
+
+    public synchronized long getFinished() {
+        return finished;
+    }
+
+    public synchronized boolean isDone() {
+        return state != State.QUEUED && state != State.RUNNING;
+    }
+
+    /**
+     * @return the sequence number of the next message
+     */
+    public synchronized long getNextSequence() {
+        return firstSequence + messages.size();
+    }
+
+    /**
+     * @return the number of messages that were dropped because there were too many
+     */
+    public synchronized long getDropped() {
+        return firstSequence;
+    }
+
+    /**
+     * @return whether the job is queued or still running, also after it has been cancelled
+     */
+    public synchronized boolean isActive() {
+        return finished == 0L;
+    }
+
+    synchronized void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    synchronized void add(Message message) {
+        messages.add(message);
+        if (messages.size() > maxMessages) {
+            messages.removeFirst();
+            firstSequence++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the messages from the sequence number on, as far as they are still kept
+     */
+    public synchronized List<Message> getMessages(long since) {
+        int from = (int) Math.max(0L, since - firstSequence);
+        if (from >= messages.size()) {
+            return new ArrayList<Message>();
+        }
+        return new ArrayList<Message>(messages.subList(from, messages.size()));
+    }
+
+    /**
+     * Wait until there are messages from the sequence number on or the job is done.
+     */
+    public synchronized void await(long since, long timeout) throws InterruptedException {
+        long until = System.currentTimeMillis() + timeout;
+        long now;
+        while (!isDone() && getNextSequence() <= since && (now = System.currentTimeMillis()) < until) {
+            wait(until - now);
+        }
+    }
+
+    /**
+     * Cancel the job: a queued job does not run, a running job is interrupted and stops when the
+     * command checks for it.
+     */
+    public synchronized boolean cancel() {
+        if (isDone()) {
+            return false;
+        }
+        if (state == State.QUEUED) {
+            finish(State.CANCELLED);
+        } else {
+            state = State.CANCELLED;
+        }
+        if (future != null) {
+            future.cancel(true);
+        }
+        return true;
+    }
+
+    private synchronized boolean start() {
+        if (state != State.QUEUED) {
+            return false;
+        }
+        state = State.RUNNING;
+        started = System.currentTimeMillis();
+        return true;
+    }
+
+    private synchronized void finish(State end) {
+        if (state == State.RUNNING || state == State.QUEUED) {
+            state = end;
+        }
+        finished = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    public void run() {
+        if (!start()) {
+            return;
+        }
+        boolean success = false;
+        ShellSessionManager manager = ShellSessionManager.getInstance();
+        ShellSessionManager.ManagedSession own = manager.create(session);
+        JcrShellPrinter.setConsolePrinter(new JobRenderer(this));
+        try {
+            // wait for a login
+            manager.enter(own);
+        } catch (InterruptedException e) {
+            manager.destroy(own);
+            JcrShellPrinter.setConsolePrinter(null);
+            Thread.interrupted();
+            finish(State.CANCELLED);
+            return;
+        } catch (ShellSessionManager.SessionLimitException e) {
+            manager.destroy(own);
+            JcrShellPrinter.printErrorln(e.getMessage());
+            JcrShellPrinter.setConsolePrinter(null);
+            finish(State.FAILED);
+            return;
+        }
+        JcrWrapper.setShellSession(own.getShellSession());
+        try {
+            JcrWrapper.cd(startPath);
+            success = ExecutionResource.handleCommand(command);
+            String current = JcrWrapper.getCurrentNode().getPath();
+            synchronized (this) {
+                path = current;
+            }
+        } catch (RepositoryException e) {
+            JcrShellPrinter.printErrorln(e.getClass().getSimpleName() + ": " + e.getMessage());
+        } catch (IOException e) {
+            JcrShellPrinter.printErrorln("IO exception: " + e.getMessage());
+        } catch (RuntimeException e) {
+            JcrShellPrinter.printErrorln("Unexpected error " + e.getClass().getSimpleName() + ": " + e.getMessage());
+        } finally {
+            JcrShellPrinter.setConsolePrinter(null);
+            JcrWrapper.setShellSession(null);
+            manager.exit(own);
+            manager.destroy(own);
+            // do not leave a cancellation on the pooled thread
+            Thread.interrupted();
+        }
+        finish(success ? State.FINISHED : State.FAILED);
+    }
+}
@@ -0,0 +1,155 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the jobs of all users on a bounded pool of threads, so long commands do not hold the
+ * request threads of the container. A user can only have a limited number of jobs that are
+ * queued or running. Jobs that are done are removed when they have not been looked at for
+ * some time.
+ */
+public final class JobManager {
+
+    /** number of jobs that run concurrently */
+    static final int THREADS = Integer.getInteger("jcrshell.jobs.threads", 4);
+
+    /** number of jobs that wait for a thread */
+    static final int QUEUE = Integer.getInteger("jcrshell.jobs.queue", 100);
+
+    /** number of jobs per user that are queued or running */
+    static final int PER_USER = Integer.getInteger("jcrshell.jobs.peruser", 2);
+
+    /** number of messages that are kept per job */
+    static final int MESSAGES = Integer.getInteger("jcrshell.jobs.messages", 10000);
+
+    /** time in milliseconds after which a job that is done is removed */
+    static final long TTL = Long.getLong("jcrshell.jobs.ttl", 10L * 60 * 1000);
+
+    private static final JobManager INSTANCE = new JobManager();
+
+    /**
+     * Thrown when a job cannot be submitted, because the user or the server has too many jobs.
+     */
+    public static final class LimitExceededException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+    private final Map<String, Long> lastAccess = new LinkedHashMap<String, Long>();
+
+    private JobManager() {
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "jcr-shell job " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static JobManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queue a command to run in the path with the session.
+     */
+    public synchronized Job submit(String owner, String command, String path,
+                                   ShellSessionManager.ManagedSession session)
+            throws LimitExceededException {
+        evict();
+        int active = 0;
+        for (Job job : jobs.values()) {
+            if (job.getOwner().equals(owner) && job.isActive()) {
+                active++;
+            }
+        }
+        if (active >= PER_USER) {
+            throw new LimitExceededException("Too many jobs, at most " + PER_USER + " can be queued or running");
+        }
+        Job job = new Job(UUID.randomUUID().toString(), owner, command, path, session, MESSAGES);
+        try {
+            job.setFuture(executor.submit(job));
+        } catch (RejectedExecutionException e) {
+            throw new LimitExceededException("Too many jobs on the server, try again later");
+        }
+        jobs.put(job.getId(), job);
+        lastAccess.put(job.getId(), Long.valueOf(System.currentTimeMillis()));
+        return job;
+    }
+
+    /**
+     * @return the job of the owner with the id, or null when there is no such job
+     */
+    public synchronized Job get(String owner, String id) {
+        evict();
+        Job job = jobs.get(id);
+        if (job == null || !job.getOwner().equals(owner)) {
+            return null;
+        }
+        lastAccess.put(id, Long.valueOf(System.currentTimeMillis()));
+        return job;
+    }
+
+    public synchronized List<Job> list(String owner) {
+        evict();
+        List<Job> list = new ArrayList<Job>();
+        for (Job job : jobs.values()) {
+            if (job.getOwner().equals(owner)) {
+                list.add(job);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Cancel a job that is not done, or remove it when it is.
+     * @return false when there is no such job
+     */
+    public synchronized boolean cancel(String owner, String id) {
+        Job job = get(owner, id);
+        if (job == null) {
+            return false;
+        }
+        if (!job.cancel()) {
+            jobs.remove(id);
+            lastAccess.remove(id);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the jobs that are done and have not been looked at within the time to live.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Job>> iter = jobs.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<String, Job> entry = iter.next();
+            Job job = entry.getValue();
+            long last = Math.max(lastAccess.get(entry.getKey()).longValue(), job.getFinished());
+            if (!job.isActive() && now - last > TTL) {
+                iter.remove();
+                lastAccess.remove(entry.getKey());
+            }
+        }
+    }
+}
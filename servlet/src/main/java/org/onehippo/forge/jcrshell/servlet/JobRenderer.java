@@ -0,0 +1,39 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+import org.onehippo.forge.jcrshell.IJcrShellRenderer;
+import org.onehippo.forge.jcrshell.output.Output;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Adds the output of a command to its {@link Job}, with tables split into rows like the
+ * {@link StreamingShellRenderer} does, so a job keeps a bounded number of messages.
+ */
+public class JobRenderer implements IJcrShellRenderer {
+
+    private final Job job;
+
+    public JobRenderer(Job job) {
+        this.job = job;
+    }
+
+    @Override
+    public void print(Output output) {
+        job.add(ServletShellRenderer.toLine(output));
+    }
+
+    @Override
+    public void printTableWithHeader(List<String[]> rows) {
+        printTableWithHeader(rows.get(0), rows.subList(1, rows.size()).iterator());
+    }
+
+    @Override
+    public void printTableWithHeader(String[] header, Iterator<String[]> rows) {
+        job.add(new Table(Arrays.asList(header)));
+        while (rows.hasNext() && !Thread.currentThread().isInterrupted()) {
+            job.add(new Row(rows.next()));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs commands as background jobs. A job is submitted with a POST, which returns its id right
+ * away. Its output is polled with <code>GET {id}?since=n</code>, or streamed with
+ * <code>GET {id}/stream</code> like the {@link StreamingExecutionResource} does, and a job is
+ * cancelled, or removed when it is done, with a DELETE. The jobs of a user are only visible to
+ * that user.
+ */
+@Path("/")
+@Produces("application/json")
+public class JobResource {
+
+    /** status code for a client that has too many jobs */
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /** time in milliseconds that a stream waits for output before it flushes */
+    private static final long STREAM_WAIT = 15000L;
+
+    @POST
+    public JobStatus submit(@Context HttpServletRequest request,
+                            @QueryParam("command") String command,
+                            @QueryParam("path") @DefaultValue("/") String path) {
+        if (command == null || command.trim().length() == 0) {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        ShellSessionManager.ManagedSession session = JcrShellSessionAttacher.getSession(request.getSession());
+        try {
+            Job job = JobManager.getInstance().submit(owner(request), command, path.startsWith("/") ? path : "/"
+                    + path, session);
+            return new JobStatus(job, -1L);
+        } catch (JobManager.LimitExceededException e) {
+            throw new WebApplicationException(Response.status(TOO_MANY_REQUESTS).entity(e.getMessage()).type(
+                    "text/plain").build());
+        }
+    }
+
+    @GET
+    public List<JobStatus> list(@Context HttpServletRequest request) {
+        List<JobStatus> list = new ArrayList<JobStatus>();
+        for (Job job : JobManager.getInstance().list(owner(request))) {
+            list.add(new JobStatus(job, -1L));
+        }
+        return list;
+    }
+
+    @GET
+    @Path("{id}")
+    public JobStatus poll(@Context HttpServletRequest request,
+                          @PathParam("id") String id,
+                          @QueryParam("since") @DefaultValue("0") long since,
+                          @QueryParam("wait") @DefaultValue("0") long wait) {
+        Job job = getJob(request, id);
+        if (wait > 0) {
+            try {
+                job.await(since, Math.min(wait, STREAM_WAIT));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return new JobStatus(job, since);
+    }
+
+    @GET
+    @Path("{id}/stream")
+    public Response stream(@Context HttpServletRequest request,
+                           @PathParam("id") String id,
+                           @QueryParam("since") @DefaultValue("0") final long since,
+                           @QueryParam("format") String format,
+                           @QueryParam("flush") final Integer flush) {
+        final Job job = getJob(request, id);
+        final boolean events = "sse".equals(format);
+        StreamingOutput output = new StreamingOutput() {
+            public void write(OutputStream stream) throws IOException {
+                Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+                StreamingShellRenderer renderer = new StreamingShellRenderer(out, events,
+                        flush == null ? 1 : flush.intValue());
+                renderer.write(new Start(job.getPath()));
+                renderer.flush();
+                long next = since;
+                try {
+                    while (!renderer.isClosed()) {
+                        job.await(next, STREAM_WAIT);
+                        boolean done = job.isDone();
+                        List<Message> messages;
+                        synchronized (job) {
+                            messages = job.getMessages(next);
+                            next = job.getNextSequence();
+                        }
+                        for (Message message : messages) {
+                            renderer.write(message);
+                        }
+                        if (done) {
+                            renderer.write(new Done(job.getPath()));
+                            break;
+                        }
+                        renderer.flush();
+                    }
+                    renderer.flush();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    if (renderer.isClosed()) {
+                        // the client has gone away, the job goes on
+                        Thread.interrupted();
+                    }
+                }
+            }
+        };
+        return Response.ok(output, events ? "text/event-stream" : "application/x-ndjson")
+                .header("Cache-Control", "no-cache")
+                .build();
+    }
+
+    @DELETE
+    @Path("{id}")
+    public JobStatus cancel(@Context HttpServletRequest request, @PathParam("id") String id) {
+        Job job = getJob(request, id);
+        JobManager.getInstance().cancel(owner(request), id);
+        return new JobStatus(job, -1L);
+    }
+
+    private static Job getJob(HttpServletRequest request, String id) {
+        Job job = JobManager.getInstance().get(owner(request), id);
+        if (job == null) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        return job;
+    }
+
+    /**
+     * @return the authenticated user, or the HTTP session when the user is not authenticated
+     */
+    private static String owner(HttpServletRequest request) {
+        String user = request.getRemoteUser();
+        if (user != null) {
+            return "user:" + user;
+        }
+        return "session:" + request.getSession().getId();
+    }
+}
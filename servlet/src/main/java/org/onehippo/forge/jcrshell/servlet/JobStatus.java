@@ -0,0 +1,62 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+import java.util.List;
+
+/**
+ * The state of a {@link Job} and the messages after the sequence number the client asked for.
+ * The client asks for the messages from {@link #getNext()} on the next time.
+ */
+public class JobStatus {
+
+    private final Job job;
+    private final List<Message> messages;
+    private final long next;
+
+    public JobStatus(Job job, long since) {
+        this.job = job;
+        synchronized (job) {
+            this.next = job.getNextSequence();
+            this.messages = since < 0 ? null : job.getMessages(since);
+        }
+    }
+
+    public String getId() {
+        return job.getId();
+    }
+
+    public String getCommand() {
+        return job.getCommand();
+    }
+
+    public String getState() {
+        return job.getState().name();
+    }
+
+    public String getPath() {
+        return job.getPath();
+    }
+
+    public long getCreated() {
+        return job.getCreated();
+    }
+
+    public long getStarted() {
+        return job.getStarted();
+    }
+
+    public long getFinished() {
+        return job.getFinished();
+    }
+
+    public long getDropped() {
+        return job.getDropped();
+    }
+
+    public long getNext() {
+        return next;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+}
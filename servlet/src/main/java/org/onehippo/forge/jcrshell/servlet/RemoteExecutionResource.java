@@ -0,0 +1,190 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+import org.onehippo.forge.jcrshell.JcrShellPrinter;
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.onehippo.forge.jcrshell.remote.Record;
+import org.onehippo.forge.jcrshell.remote.RecordReader;
+import org.onehippo.forge.jcrshell.remote.RecordWriter;
+import org.onehippo.forge.jcrshell.remote.RemoteProtocol;
+import org.onehippo.forge.jcrshell.remote.RemoteRenderer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Executes commands and completes command lines for a console in remote mode, see
+ * {@link RemoteProtocol}. The files that are arguments of a command are kept in a temporary
+ * directory while it runs: the files that the console uploads are written there before the
+ * command runs, and the files that the command writes there are sent back after it.
+ */
+@Path("/{path:.*}")
+public class RemoteExecutionResource {
+
+    static final Logger log = LoggerFactory.getLogger(RemoteExecutionResource.class);
+
+    @POST
+    @Consumes(RemoteProtocol.MEDIA_TYPE)
+    @Produces(RemoteProtocol.MEDIA_TYPE)
+    public Response execute(@PathParam("path") final String path, InputStream body) throws IOException {
+        RecordReader reader = new RecordReader(body);
+        Record request = reader.read();
+        StreamingOutput output;
+        if (request != null && request.getType() == RemoteProtocol.COMPLETE) {
+            output = complete("/" + path, request);
+        } else if (request != null && request.getType() == RemoteProtocol.EXECUTE) {
+            output = execute("/" + path, request, reader);
+        } else {
+            throw new WebApplicationException(Response.Status.BAD_REQUEST);
+        }
+        return Response.ok(output, RemoteProtocol.MEDIA_TYPE).header("Cache-Control", "no-cache").build();
+    }
+
+    private static StreamingOutput complete(final String path, final Record request) {
+        return new StreamingOutput() {
+            public void write(OutputStream stream) throws IOException {
+                RecordWriter writer = new RecordWriter(stream);
+                List<String> fields = new ArrayList<String>();
+                try {
+                    CompletionResource.cd(path);
+                    Completion completion = CompletionResource.complete(request.getField(0) == null ? ""
+                            : request.getField(0), parse(request.getField(1)), parse(request.getField(2)));
+                    fields.add(String.valueOf(completion.getStart()));
+                    fields.add(String.valueOf(completion.isMore()));
+                    fields.addAll(completion.getCandidates());
+                } catch (RepositoryException e) {
+                    log.warn("Unable to complete in " + path + ": " + e.getMessage());
+                    fields.clear();
+                    fields.add("-1");
+                    fields.add("false");
+                }
+                writer.write(RemoteProtocol.COMPLETION, fields.toArray(new String[fields.size()]));
+                writer.flush();
+            }
+        };
+    }
+
+    /**
+     * Read the uploaded files and return the output that runs the command.
+     */
+    private static StreamingOutput execute(final String path, Record request, RecordReader reader)
+            throws IOException {
+        String line = request.getField(0) == null ? "" : request.getField(0).trim();
+        final String[] args = line.startsWith("#") ? new String[0] : ExecutionResource.tokenizeCommand(line);
+        final List<Integer> files = RemoteProtocol.getFileArguments(args);
+        final File dir = files.isEmpty() ? null : createTempDir();
+        final Set<Integer> uploaded = new HashSet<Integer>();
+        try {
+            for (int index : files) {
+                args[index] = new File(dir, index + "-" + new File(args[index]).getName()).getPath();
+            }
+            Record record;
+            while ((record = reader.read()) != null && record.getType() != RemoteProtocol.END) {
+                int index = parse(record.getField(0));
+                if (record.getType() == RemoteProtocol.FILE && files.contains(index)) {
+                    OutputStream out = new FileOutputStream(args[index]);
+                    try {
+                        reader.copyFile(out);
+                    } finally {
+                        out.close();
+                    }
+                    uploaded.add(index);
+                }
+            }
+        } catch (IOException e) {
+            delete(dir);
+            throw e;
+        }
+        return new StreamingOutput() {
+            public void write(OutputStream stream) throws IOException {
+                RecordWriter writer = new RecordWriter(stream);
+                RemoteRenderer renderer = new RemoteRenderer(writer);
+                JcrShellPrinter.setConsolePrinter(renderer);
+                String current = path;
+                boolean success = false;
+                try {
+                    renderer.write(RemoteProtocol.START, current);
+                    renderer.flush();
+                    JcrWrapper.cd(current);
+                    success = ExecutionResource.handleCommand(args);
+                    current = JcrWrapper.getCurrentNode().getPath();
+                    for (int index : files) {
+                        File file = new File(args[index]);
+                        if (!renderer.isClosed() && !uploaded.contains(index) && file.isFile()) {
+                            sendFile(renderer, index, file);
+                        }
+                    }
+                } catch (RepositoryException e) {
+                    JcrShellPrinter.printErrorln(e.getClass().getSimpleName() + ": " + e.getMessage());
+                } finally {
+                    renderer.write(RemoteProtocol.DONE, current, String.valueOf(success));
+                    renderer.flush();
+                    JcrShellPrinter.setConsolePrinter(null);
+                    delete(dir);
+                    renderer.close();
+                    if (renderer.isDisconnected()) {
+                        // the client has gone away, do not leave the interrupt on the request thread
+                        Thread.interrupted();
+                    }
+                }
+            }
+        };
+    }
+
+    private static void sendFile(RemoteRenderer renderer, int index, File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            renderer.writeFile(String.valueOf(index), in, file.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("jcrshell-remote", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create temporary directory " + dir.getPath());
+        }
+        return dir;
+    }
+
+    private static void delete(File dir) {
+        if (dir == null) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    delete(file);
+                } else if (!file.delete()) {
+                    log.warn("Unable to delete temporary file " + file.getPath());
+                }
+            }
+        }
+        if (!dir.delete()) {
+            log.warn("Unable to delete temporary directory " + dir.getPath());
+        }
+    }
+
+    private static int parse(String number) {
+        try {
+            return number == null ? -1 : Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A row of the table that was streamed before it.
+ */
+public class Row extends Message {
+
+    private final List<String> cells;
+
+    public Row(String[] cells) {
+        this.cells = Arrays.asList(cells);
+    }
+
+    public List<String> getCells() {
+        return Collections.unmodifiableList(cells);
+    }
+
+    @Override
+    public String getType() {
+        return "ROW";
+    }
+}
@@ -4,6 +4,7 @@ import org.onehippo.forge.jcrshell.IJcrShellRenderer;
 import org.onehippo.forge.jcrshell.output.*;
 
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 public class ServletShellRenderer implements IJcrShellRenderer {
@@ -16,6 +17,10 @@ public class ServletShellRenderer implements IJcrShellRenderer {
 
     @Override
     public void print(Output output) {
+        execution.addMessage(toLine(output));
+    }
+
+    static Line toLine(Output output) {
         Line line = new Line();
         do {
             if (output instanceof DebugOutput) {
@@ -32,8 +37,7 @@ public class ServletShellRenderer implements IJcrShellRenderer {
 
             output = output.next();
         } while(output != null);
-
-        execution.addMessage(line);
+        return line;
     }
 
     @Override
@@ -49,4 +53,13 @@ public class ServletShellRenderer implements IJcrShellRenderer {
         }
         execution.addMessage(table);
     }
+
+    @Override
+    public void printTableWithHeader(String[] header, Iterator<String[]> rows) {
+        Table table = new Table(Arrays.asList(header));
+        while (rows.hasNext()) {
+            table.addRow(Arrays.asList(rows.next()));
+        }
+        execution.addMessage(table);
+    }
 }
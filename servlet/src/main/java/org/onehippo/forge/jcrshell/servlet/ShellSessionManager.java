@@ -0,0 +1,327 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+import org.onehippo.forge.jcrshell.JcrShellSession;
+import org.onehippo.forge.jcrshell.JcrWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Manages the shell sessions of the servlet. Each shell session has a fair lock, so the
+ * requests of an HTTP session use its JCR session one at a time, in the order they arrive. Jobs
+ * run on shell sessions of their own, which count against the logins like the others. A shell
+ * session only holds a repository login while it is used: sessions that have been idle for some
+ * time are logged out, and log in again on their next request. Sessions with unsaved changes
+ * are not logged out. The number of logins is limited; a request that needs a login when all
+ * are taken first logs out the least recently used idle session, and waits for a login
+ * otherwise. Read-only requests, like completions, use the session of their HTTP session when it
+ * is free, so they see its unsaved changes, and otherwise a read-only session that logs in like
+ * it, so they do not wait behind a long command of their own HTTP session.
+ */
+public final class ShellSessionManager {
+
+    static final Logger log = LoggerFactory.getLogger(ShellSessionManager.class);
+
+    /** time in milliseconds after which an unused session is logged out */
+    static final long IDLE = Long.getLong("jcrshell.session.idle", 5L * 60 * 1000);
+
+    /** maximum number of sessions that are logged in */
+    static final int MAX_LOGINS = Integer.getInteger("jcrshell.session.max", 50);
+
+    /** time in milliseconds that a request waits for a session or a login */
+    static final long WAIT = Long.getLong("jcrshell.session.wait", 10000L);
+
+    private static final ShellSessionManager INSTANCE = new ShellSessionManager();
+
+    /**
+     * Thrown when no session or login is available within the waiting time.
+     */
+    public static final class SessionLimitException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        SessionLimitException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A shell session with its lock and the time it was last used.
+     */
+    public static final class ManagedSession {
+        private final JcrShellSession shellSession = new JcrShellSession();
+        private final ReentrantLock lock = new ReentrantLock(true);
+        private volatile long lastUsed = System.currentTimeMillis();
+        private boolean login;
+        private boolean destroyed;
+        private ManagedSession readOnly;
+
+        public JcrShellSession getShellSession() {
+            return shellSession;
+        }
+    }
+
+    private final Set<ManagedSession> sessions = new LinkedHashSet<ManagedSession>();
+    private int logins;
+
+    private ShellSessionManager() {
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "jcr-shell session reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1000L, IDLE / 4);
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                logoutIdle(System.currentTimeMillis() - IDLE);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public static ShellSessionManager getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized ManagedSession create() {
+        ManagedSession session = new ManagedSession();
+        sessions.add(session);
+        return session;
+    }
+
+    /**
+     * Create a session for a job, with the repository and credentials of the session of its
+     * HTTP session. The session is destroyed when the job is done.
+     */
+    public ManagedSession create(ManagedSession like) {
+        ManagedSession session = create();
+        session.shellSession.copyConnection(like.shellSession);
+        return session;
+    }
+
+    /**
+     * Forget the session, when its HTTP session ends or its job is done. The session is logged
+     * out right away when it is not in use, and otherwise when the thread that uses it exits.
+     */
+    public void destroy(ManagedSession session) {
+        ManagedSession readOnly;
+        synchronized (this) {
+            sessions.remove(session);
+            session.destroyed = true;
+            readOnly = session.readOnly;
+        }
+        logoutDestroyed(session);
+        if (readOnly != null) {
+            destroy(readOnly);
+        }
+    }
+
+    private void logoutDestroyed(ManagedSession session) {
+        if (!session.lock.tryLock()) {
+            return;
+        }
+        try {
+            logout(session);
+            session.shellSession.destroy();
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the turn of the current thread to use the session, and for a login when the session
+     * is not logged in. The session logs in when it is first used.
+     */
+    public void enter(ManagedSession session) throws InterruptedException, SessionLimitException {
+        if (!session.lock.tryLock(WAIT, TimeUnit.MILLISECONDS)) {
+            throw new SessionLimitException("The session is busy, try again later");
+        }
+        try {
+            reserveLogin(session);
+        } catch (InterruptedException e) {
+            session.lock.unlock();
+            throw e;
+        } catch (SessionLimitException e) {
+            session.lock.unlock();
+            throw e;
+        }
+        session.lastUsed = System.currentTimeMillis();
+    }
+
+    public void exit(ManagedSession session) {
+        session.lastUsed = System.currentTimeMillis();
+        session.lock.unlock();
+        boolean destroyed;
+        synchronized (this) {
+            destroyed = session.destroyed;
+            // the session may now be logged out for a request that waits for a login
+            notifyAll();
+        }
+        if (destroyed) {
+            logoutDestroyed(session);
+        }
+    }
+
+    /**
+     * Enter the session for a read-only request when it is free, and otherwise its read-only
+     * session, which logs in with the repository and credentials of the session.
+     * @return the session that was entered, to {@link #exit} after the request
+     */
+    public ManagedSession enterReadOnly(ManagedSession session) throws InterruptedException,
+            SessionLimitException {
+        if (session.lock.tryLock()) {
+            try {
+                reserveLogin(session);
+            } catch (InterruptedException e) {
+                session.lock.unlock();
+                throw e;
+            } catch (SessionLimitException e) {
+                session.lock.unlock();
+                throw e;
+            }
+            session.lastUsed = System.currentTimeMillis();
+            return session;
+        }
+        ManagedSession readOnly;
+        synchronized (this) {
+            if (session.readOnly == null) {
+                session.readOnly = create(session);
+            }
+            readOnly = session.readOnly;
+        }
+        enter(readOnly);
+        if (!readOnly.shellSession.hasSameConnection(session.shellSession)) {
+            // the user has logged in again since
+            logout(readOnly);
+            readOnly.shellSession.copyConnection(session.shellSession);
+            try {
+                reserveLogin(readOnly);
+            } catch (InterruptedException e) {
+                exit(readOnly);
+                throw e;
+            } catch (SessionLimitException e) {
+                exit(readOnly);
+                throw e;
+            }
+        }
+        return readOnly;
+    }
+
+    /**
+     * Take a login for the session, logging out the least recently used idle session when all
+     * are taken. The logout is done outside the monitor, so other requests do not wait for it.
+     */
+    private void reserveLogin(ManagedSession session) throws InterruptedException, SessionLimitException {
+        long until = System.currentTimeMillis() + WAIT;
+        // the sessions that could not be logged out, because they are in use or have unsaved changes
+        Set<ManagedSession> kept = new HashSet<ManagedSession>();
+        while (true) {
+            ManagedSession oldest;
+            synchronized (this) {
+                if (session.login) {
+                    return;
+                }
+                if (logins < MAX_LOGINS) {
+                    logins++;
+                    session.login = true;
+                    return;
+                }
+                oldest = leastRecentlyUsed(kept);
+                if (oldest == null) {
+                    long remaining = until - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SessionLimitException("Too many sessions are logged in, try again later");
+                    }
+                    wait(remaining);
+                    kept.clear();
+                    continue;
+                }
+            }
+            // frees a login, unless the session is in use by now or has unsaved changes
+            if (!tryLogout(oldest)) {
+                kept.add(oldest);
+            }
+        }
+    }
+
+    /**
+     * @return the logged in session that is not in use and that was used least recently, or null
+     */
+    private synchronized ManagedSession leastRecentlyUsed(Set<ManagedSession> kept) {
+        ManagedSession oldest = null;
+        for (ManagedSession candidate : sessions) {
+            if (candidate.login && !candidate.lock.isLocked() && !kept.contains(candidate)
+                    && (oldest == null || candidate.lastUsed < oldest.lastUsed)) {
+                oldest = candidate;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Log out the sessions that are not in use and were last used before the time.
+     */
+    void logoutIdle(long before) {
+        List<ManagedSession> idle = new ArrayList<ManagedSession>();
+        synchronized (this) {
+            for (ManagedSession session : sessions) {
+                if (session.login && session.lastUsed < before) {
+                    idle.add(session);
+                }
+            }
+        }
+        for (ManagedSession session : idle) {
+            tryLogout(session);
+        }
+    }
+
+    /**
+     * Log out the session when it is not in use and has no unsaved changes, which would be lost.
+     */
+    private boolean tryLogout(ManagedSession session) {
+        if (!session.lock.tryLock()) {
+            return false;
+        }
+        try {
+            if (session.shellSession.hasPendingChanges()) {
+                return false;
+            }
+            logout(session);
+            return true;
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    /**
+     * Log out the session, which must be locked by the current thread, and free its login.
+     */
+    private void logout(ManagedSession session) {
+        JcrShellSession previous = JcrWrapper.getShellSession();
+        JcrWrapper.setShellSession(session.shellSession);
+        try {
+            JcrWrapper.logout();
+        } catch (RuntimeException e) {
+            log.warn("Unable to log out idle session", e);
+        } finally {
+            JcrWrapper.setShellSession(previous);
+        }
+        synchronized (this) {
+            if (session.login) {
+                session.login = false;
+                logins--;
+                notifyAll();
+            }
+        }
+    }
+}
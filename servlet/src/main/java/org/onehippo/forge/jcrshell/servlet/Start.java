@@ -0,0 +1,22 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+/**
+ * The first message of a streamed execution, with the path the command runs in.
+ */
+public class Start extends Message {
+
+    private final String path;
+
+    public Start(String path) {
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getType() {
+        return "START";
+    }
+}
@@ -0,0 +1,68 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+import org.onehippo.forge.jcrshell.JcrShellPrinter;
+import org.onehippo.forge.jcrshell.JcrWrapper;
+
+import javax.jcr.RepositoryException;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Executes a command like the {@link ExecutionResource}, but streams the messages to the client
+ * while the command runs. The response starts with a {@link Start} message, which is flushed
+ * before the command runs so the client gets the first byte right away, and ends with a
+ * {@link Done} message with the new path.
+ * With <code>format=sse</code> the messages are server-sent events for an EventSource, otherwise
+ * JSON lines. The response is flushed every <code>flush</code> messages, default 1.
+ */
+@Path("/{path:.*}")
+public class StreamingExecutionResource {
+
+    private static final String JSON_LINES = "application/x-ndjson";
+    private static final String EVENT_STREAM = "text/event-stream";
+
+    @GET
+    public Response execute(@PathParam("path") final String path,
+                            @QueryParam("command") final String command,
+                            @QueryParam("format") final String format,
+                            @QueryParam("flush") final Integer flush) {
+        final boolean events = "sse".equals(format);
+        final int flushEvery = flush == null ? 1 : flush.intValue();
+        StreamingOutput output = new StreamingOutput() {
+            public void write(OutputStream stream) throws IOException {
+                Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+                StreamingShellRenderer renderer = new StreamingShellRenderer(out, events, flushEvery);
+                JcrShellPrinter.setConsolePrinter(renderer);
+                String current = "/" + path;
+                try {
+                    renderer.write(new Start(current));
+                    renderer.flush();
+                    JcrWrapper.cd(current);
+                    ExecutionResource.handleCommand(command == null ? "" : command);
+                    current = JcrWrapper.getCurrentNode().getPath();
+                } catch (RepositoryException e) {
+                    // the response has started, so the error can only be reported as a message
+                    JcrShellPrinter.printErrorln(e.getClass().getSimpleName() + ": " + e.getMessage());
+                } finally {
+                    // always end with done, an event source that sees the stream end reconnects
+                    renderer.write(new Done(current));
+                    renderer.flush();
+                    JcrShellPrinter.setConsolePrinter(null);
+                    if (renderer.isClosed()) {
+                        // the client has gone away, do not leave the interrupt on the request thread
+                        Thread.interrupted();
+                    }
+                }
+            }
+        };
+        return Response.ok(output, events ? EVENT_STREAM : JSON_LINES)
+                .header("Cache-Control", "no-cache")
+                .build();
+    }
+}
@@ -0,0 +1,103 @@
+package org.onehippo.forge.jcrshell.servlet;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.onehippo.forge.jcrshell.IJcrShellRenderer;
+import org.onehippo.forge.jcrshell.output.Output;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes each message to the response as soon as it is printed, instead of collecting them in
+ * an {@link Execution}. A table is written as a {@link Table} with only the headers, followed by
+ * a {@link Row} for each row, so the rows of a table are never held in memory. The messages are
+ * written as JSON lines, or as server-sent events, and the response is flushed after a number of
+ * messages. When the client has gone away the remaining output is dropped and the thread is
+ * interrupted, so that commands that check for it stop early.
+ */
+public class StreamingShellRenderer implements IJcrShellRenderer {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Writer out;
+    private final boolean events;
+    private final int flushEvery;
+    private int unflushed;
+    private boolean closed;
+
+    /**
+     * @param events whether to write server-sent events instead of JSON lines
+     * @param flushEvery the number of messages after which the response is flushed
+     */
+    public StreamingShellRenderer(Writer out, boolean events, int flushEvery) {
+        this.out = out;
+        this.events = events;
+        this.flushEvery = Math.max(1, flushEvery);
+    }
+
+    @Override
+    public void print(Output output) {
+        write(ServletShellRenderer.toLine(output));
+    }
+
+    @Override
+    public void printTableWithHeader(List<String[]> rows) {
+        printTableWithHeader(rows.get(0), rows.subList(1, rows.size()).iterator());
+    }
+
+    @Override
+    public void printTableWithHeader(String[] header, Iterator<String[]> rows) {
+        write(new Table(Arrays.asList(header)));
+        while (!closed && rows.hasNext()) {
+            write(new Row(rows.next()));
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Write the message and flush the response when enough messages have been written.
+     */
+    public void write(Message message) {
+        if (closed) {
+            return;
+        }
+        try {
+            String json = MAPPER.writeValueAsString(message);
+            if (events) {
+                out.write("event: ");
+                out.write(message.getType());
+                out.write("\ndata: ");
+                out.write(json);
+                out.write("\n\n");
+            } else {
+                out.write(json);
+                out.write('\n');
+            }
+            if (++unflushed >= flushEvery) {
+                flush();
+            }
+        } catch (IOException e) {
+            closed = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            out.flush();
+            unflushed = 0;
+        } catch (IOException e) {
+            closed = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -23,6 +23,9 @@ jsshell.complete = function(val, match, suggest, fail) {
         function(response) {
             var start = val.substr(0, response.start);
             var candidates = response.candidates;
+            if (response.more) {
+                candidates.push('...');
+            }
             if (candidates.length == 1) {
                match(start, candidates[0]);
             } else if (candidates.length > 1) {
@@ -35,7 +38,53 @@ jsshell.complete = function(val, match, suggest, fail) {
         fail();
     });
 };
+jsshell.line = function(message) {
+    var text = '';
+    $.each(message.parts, function(index, part) {
+        switch (part.mode) {
+        case 'PLAIN':
+            text = text + part.text;
+            break;
+        case 'DEBUG':
+            text = text + '<span class="debug">' + part.text + '</span>'
+            break;
+        case 'OK':
+            text = text + '<span class="ok">' + part.text + '</span>'
+            break;
+        case 'WARN':
+            text = text + '<span class="warn">' + part.text + '</span>'
+            break;
+        case 'ERROR':
+            text = text + '<span class="error">' + part.text + '</span>'
+            break;
+        }
+    });
+    jsshell.out.print(text);
+};
+jsshell.row = function(row) {
+    var text = '<tr>';
+    $.each(row, function(index, value) {
+        text += '<td><tt>' + value + '</tt></td>';
+    });
+    return text + '</tr>';
+};
+jsshell.table = function(message) {
+    var text = '<table><tr>';
+    $.each(message.headers, function(index, header) {
+        text += '<th><tt>' + header + '</tt></th>';
+    });
+    text += '</tr>\n';
+    $.each(message.rows, function(index, row) {
+        text += jsshell.row(row);
+    });
+    text += '</table>';
+    jsshell.out.append(text);
+};
 jsshell.execute = function(val, success, fail) {
+    if (window.EventSource) {
+        jsshell.stream(val, success, fail);
+        return;
+    }
     $.get('rest/execute' + jsshell.path,
         { command: val },
         function(execution) {
@@ -44,47 +93,9 @@ jsshell.execute = function(val, success, fail) {
             if (execution.messages != undefined) {
                 $.each(execution.messages, function(index, message) {
                     if (message.type == 'LINE') {
-                        var text = '';
-                        $.each(message.parts, function(index, part) {
-                            switch (part.mode) {
-                            case 'PLAIN':
-                                text = text + part.text;
-                                break;
-                            case 'DEBUG':
-                                text = text + '<span class="debug">' + part.text + '</span>'
-                                break;
-                            case 'OK':
-                                text = text + '<span class="ok">' + part.text + '</span>'
-                                break;
-                            case 'WARN':
-                                text = text + '<span class="warn">' + part.text + '</span>'
-                                break;
-                            case 'ERROR':
-                                text = text + '<span class="error">' + part.text + '</span>'
-                                break;
-                            }
-                        });
-                        jsshell.out.print(text);
+                        jsshell.line(message);
                     } else if (message.type == 'TABLE') {
-                        var headers = message.headers;
-                        var text = '<table>';
-
-                        text += '<tr>';
-                        $.each(headers, function(index, header) {
-                            text += '<th><tt>' + header + '</tt></th>';
-                        });
-                        text += '</tr>\n';
-
-                        $.each(message.rows, function(index, row) {
-                            text += '<tr>';
-                            $.each(row, function(index, value) {
-                                text += '<td><tt>' + value + '</tt></td>';
-                            });
-                            text += '</tr>';
-                        });
-
-                        text += '</table>';
-                        jsshell.out.append(text);
+                        jsshell.table(message);
                     }
                 });
             }
@@ -94,6 +105,38 @@ jsshell.execute = function(val, success, fail) {
         fail();
     });
 };
+// show the output of the command while it runs, with server-sent events
+jsshell.stream = function(val, success, fail) {
+    var source = new EventSource('rest/stream' + jsshell.path + '?format=sse&command=' + encodeURIComponent(val));
+    var done = false;
+    source.addEventListener('START', function(e) {
+        jsshell.out.print('<b>jcr-shell: > ' + val + '</b>');
+    });
+    source.addEventListener('LINE', function(e) {
+        jsshell.line(JSON.parse(e.data));
+        jsshell.scroll();
+    });
+    source.addEventListener('TABLE', function(e) {
+        jsshell.table(JSON.parse(e.data));
+    });
+    source.addEventListener('ROW', function(e) {
+        $('#output table:last').append(jsshell.row(JSON.parse(e.data).cells));
+        jsshell.scroll();
+    });
+    source.addEventListener('DONE', function(e) {
+        done = true;
+        source.close();
+        jsshell.path = JSON.parse(e.data).path;
+        success();
+    });
+    source.onerror = function() {
+        // an event source reconnects when the stream ends, which would run the command again
+        source.close();
+        if (!done) {
+            fail();
+        }
+    };
+};
 jsshell.util = {
     // find the greatest common start string by a binary search
     common : function(a, b) {